@@ -17,19 +17,44 @@
 package fr.robincarozzani.pamaja;
 
 import java.io.Console;
+import java.io.File;
+import java.io.IOException;
 import java.security.Security;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
+import fr.robincarozzani.pamaja.audit.AccessLog;
+import fr.robincarozzani.pamaja.audit.BreachAudit;
+import fr.robincarozzani.pamaja.audit.BreachCorpus;
+import fr.robincarozzani.pamaja.audit.ReuseAudit;
 import fr.robincarozzani.pamaja.crypto.Ciph;
 import fr.robincarozzani.pamaja.crypto.Ciphor;
 import fr.robincarozzani.pamaja.crypto.Hash;
 import fr.robincarozzani.pamaja.crypto.Hashor;
-import fr.robincarozzani.pamaja.crypto.Password;
+import fr.robincarozzani.pamaja.crypto.Passphrase;
+import fr.robincarozzani.pamaja.crypto.PasswordPolicy;
 import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.crypto.Totp;
+import fr.robincarozzani.pamaja.crypto.Wordlist;
 import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.EntryHandle;
+import fr.robincarozzani.pamaja.db.ScrubReport;
+import fr.robincarozzani.pamaja.db.SnapshotStore;
+import fr.robincarozzani.pamaja.db.VaultStore;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.IntMap;
 import fr.robincarozzani.pamaja.utils.Pair;
+import fr.robincarozzani.pamaja.vault.KeyRotator;
+import fr.robincarozzani.pamaja.vault.TotpCode;
+import fr.robincarozzani.pamaja.vault.TotpEngine;
 
 /**
  * Main class of Pamaja
@@ -42,13 +67,23 @@ public class Launcher {
 	 */
 	public static final String PROG_VERSION = "0.1.1";
 	
-	private static byte[] masterKey;
+	private static final int KEY_ARENA_SIZE = 64;
+	
+	private static VaultStore store;
+	private static VaultStore vault;
+	private static SecureArena keyArena;
+	private static Secret masterKey;
 	private static Hash storedPwd;
+	private static BreachCorpus breachList;
+	private static AccessLog accessLog;
+	private static TotpEngine totp;
+	private static Passphrase passphrase;
 	private static byte[] origSalt;
 	
 	private static Console cons;
 	
 	private static final int PWDLEN = 17;
+	private static final PasswordPolicy.Sampler PWD_POLICY = defaultPolicy();
 
 	public static void main(String[] args) {
 		
@@ -64,26 +99,54 @@ public class Launcher {
 	private static void init() throws Exception {
 		printProgramTitle(30);
 		System.out.print("\nInitialize instances... ");
-		Security.addProvider(new BouncyCastleProvider());
 		Hashor h = Hashor.getInstance();
 		Ciphor c = Ciphor.getInstance();
-		DBHandler dbh = DBHandler.getInstance();
+		VaultStore dbh = VaultStore.getInstance();
+		store = dbh;
+		vault = dbh;
 		cons = System.console();
+		keyArena = new SecureArena(KEY_ARENA_SIZE);
+		Metrics.getInstance().register();
+		boolean dbExists = dbh.exists();
+		ExecutorService initPool = Executors.newFixedThreadPool(2, r -> {
+			Thread t = new Thread(r, "pamaja-init");
+			t.setDaemon(true);
+			return t;
+		});
 		System.out.println("done");
 		
-		System.out.print("Opening DB... ");
-		dbh.connect();
-		System.out.println("done");
+		// Everything up to the stored key runs while the user types the master password
+		CompletableFuture<Void> providers = CompletableFuture.runAsync(() -> Security.addProvider(new BouncyCastleProvider()), initPool);
+		CompletableFuture<Boolean> dbOk = CompletableFuture.supplyAsync(() -> {
+			dbh.connect();
+			return dbh.dbVersionIsOk();
+		}, initPool);
+		CompletableFuture<Boolean> dbInit = dbOk.thenApply(ok -> ok && dbh.isInit());
+		CompletableFuture<Pair<byte[], Hash>> storedPwdAndSalt = dbInit.thenApply(isInit -> isInit ? dbh.getStoredPasswordAndSalt() : null);
+		CompletableFuture<Ciph> storedKey = dbInit.thenApply(isInit -> isInit ? dbh.getStoredKey() : null);
+		
+		char[] clearInPassword = null;
+		if (dbExists) {
+			System.out.println("Type your master password");
+			clearInPassword = cons.readPassword();
+		}
 		
-		System.out.print("Checking DB... ");
-		boolean dbOk = dbh.dbVersionIsOk();
+		System.out.print("Opening DB... ");
+		await(providers);
+		boolean versionOk = await(dbOk).booleanValue();
 		System.out.println("done");
-		if (!dbOk) {
+		if (!versionOk) {
+			initPool.shutdown();
 			System.out.println("Wrong version of database");
 			quit();
 		}
 		
-		if (!dbh.isInit()) {
+		boolean created = !await(dbInit).booleanValue();
+		if (created) {
+			initPool.shutdown();
+			if (clearInPassword != null) {
+				Arrays.fill(clearInPassword, '\0');
+			}
 			System.out.println("No master password is set");
 			System.out.println("Type a master password (and remember it) ");
 			String clearMasterPassword = cons.readLine();
@@ -91,36 +154,34 @@ public class Launcher {
 			System.out.print("Hashing password... ");
 			Hash hashedPassword = h.generatePasswordHash(clearMasterPassword);
 			origSalt = hashedPassword.getSalt();
-			storedPwd = h.generatePasswordHash(hashedPassword.toString());
+			char[] hashedChars = hashedPassword.toChars();
+			storedPwd = h.generatePasswordHash(hashedChars);
+			Arrays.fill(hashedChars, '\0');
 			System.out.println("done");
 			
 			System.out.print("Generating encryption key... ");
-			masterKey = Randgen.generateKey().getEncoded();
-			Ciph storedKey = c.encrypt(masterKey, hashedPassword.getHashedMessage());
+			byte[] clearKey = Randgen.generateKey().getEncoded();
+			Ciph storedKeyC = c.encrypt(clearKey, hashedPassword.getHashedMessage());
+			masterKey = keyArena.moveIn(clearKey);
 			System.out.println("done");
 			
 			System.out.print("Updating DB... ");
 			dbh.insertMasterPassword(storedPwd, origSalt);
-			dbh.insertMasterKey(storedKey);
+			dbh.insertMasterKey(storedKeyC);
 			dbh.setInit();
 			System.out.println("done");
 			
 		} else {
 			System.out.print("Checking stored password... ");
-			Pair<Byte[], Hash> storedPwdAndSalt = dbh.getStoredPasswordAndSalt();
-			storedPwd = storedPwdAndSalt.second();
-			Byte[] oSalt = storedPwdAndSalt.first();
-			origSalt = new byte[oSalt.length];
-			int i = 0;
-			for (Byte b : oSalt) {
-				origSalt[i++] = b.byteValue();
-			}
+			Pair<byte[], Hash> pwdAndSalt = await(storedPwdAndSalt);
+			Ciph storedKeyC = await(storedKey);
+			initPool.shutdown();
+			storedPwd = pwdAndSalt.second();
+			origSalt = pwdAndSalt.first();
 			System.out.println("done");
-			System.out.println("Type your master password");
-			String clearInPassword = new String(cons.readPassword());
 			System.out.print("Checking master password... ");
 			Hash hashedIn = h.hash(clearInPassword, origSalt, 64);
-			clearInPassword = null;
+			Arrays.fill(clearInPassword, '\0');
 			boolean matched = h.checkHash(hashedIn, storedPwd);
 			System.out.println("done");
 			if (!matched) {
@@ -129,15 +190,89 @@ public class Launcher {
 			}
 			System.out.println("Master password ok");
 			System.out.print("Getting encryption key... ");
-			Ciph storedKey = dbh.getStoredKey();
-			if (storedKey != null) {
-				masterKey = c.decrypt(storedKey, hashedIn.getHashedMessage());
+			if (storedKeyC != null) {
+				masterKey = keyArena.moveIn(c.decrypt(storedKeyC, hashedIn.getHashedMessage()));
 				System.out.println("done");
+				if ((dbh instanceof DBHandler) && (((DBHandler)dbh).getRotationKey() != null)) {
+					System.out.println("An interrupted key rotation has been found");
+					rotateKey(hashedIn.getHashedMessage());
+				}
 			} else {
 				System.out.println("failed");
 				quit();
 			}
 		}
+		
+		if (store instanceof DBHandler) {
+			if (created) {
+				System.out.print("Building integrity tree... ");
+				System.out.println((((DBHandler)store).enableIntegrity(masterKey) >= 0) ? "done" : "failed");
+			} else {
+				System.out.print("Opening integrity tree... ");
+				System.out.println(((DBHandler)store).openIntegrity(masterKey) ? "done" : "not protected, see the integrity check (S)");
+			}
+			totp = new TotpEngine((DBHandler)store);
+		}
+		
+		if (Boolean.getBoolean("pamaja.snapshot")) {
+			System.out.print("Loading vault in memory... ");
+			SnapshotStore snapshot = new SnapshotStore(store, Long.getLong("pamaja.snapshot.max", SnapshotStore.DEFAULT_CEILING).longValue());
+			if (snapshot.load()) {
+				System.out.println("done ("+snapshot.getEntryCount()+" entries, "+snapshot.getBytesPerEntry()+" bytes per entry)");
+			} else {
+				System.out.println("too large, reading from disk");
+			}
+			vault = snapshot;
+		}
+		
+		String breachFile = System.getProperty("pamaja.breach.list");
+		if (breachFile != null) {
+			System.out.print("Opening breached password list... ");
+			try {
+				breachList = BreachCorpus.open(new File(breachFile), Integer.getInteger("pamaja.breach.bloom", 0).intValue());
+				System.out.println("done ("+breachList.size()+" hashes)");
+			} catch (IOException e) {
+				System.out.println("failed ("+e.getMessage()+")");
+			}
+		}
+		
+		String wordFile = System.getProperty("pamaja.wordlist");
+		if (wordFile != null) {
+			System.out.print("Opening word list... ");
+			try {
+				Wordlist words = Wordlist.open(new File(wordFile));
+				passphrase = new Passphrase(words, Integer.getInteger("pamaja.passphrase.words", Passphrase.DEFAULT_WORDS).intValue(), '-');
+				System.out.println(String.format("done (%d words, passphrases of %.0f bits)", words.size(), passphrase.getEntropy()));
+			} catch (IOException e) {
+				System.out.println("failed ("+e.getMessage()+")");
+			}
+		}
+		
+		String accessFile = System.getProperty("pamaja.access.log", System.getProperty("pamaja.db.dir", "data")+File.separator+"access.log");
+		System.out.print("Opening access log... ");
+		try {
+			try {
+				accessLog = AccessLog.open(new File(accessFile), Integer.getInteger("pamaja.access.capacity", AccessLog.DEFAULT_CAPACITY).intValue(),
+						AccessLog.DEFAULT_FLUSH_INTERVAL);
+			} catch (IllegalArgumentException e) {
+				System.out.print("invalid pamaja.access.capacity ("+e.getMessage()+"), using "+AccessLog.DEFAULT_CAPACITY+"... ");
+				accessLog = AccessLog.open(new File(accessFile), AccessLog.DEFAULT_CAPACITY, AccessLog.DEFAULT_FLUSH_INTERVAL);
+			}
+			System.out.println("done");
+		} catch (IOException e) {
+			System.out.println("failed ("+e.getMessage()+")");
+		}
+	}
+	
+	private static <T> T await(CompletableFuture<T> future) throws Exception {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			if (e.getCause() instanceof Exception) {
+				throw (Exception)e.getCause();
+			}
+			throw e;
+		}
 	}
 	
 	private static void printProgramTitle(int width) {
@@ -179,6 +314,12 @@ public class Launcher {
 			System.out.println("\t (A) Generate and save a new password");
 			System.out.println("\t (B) Get a password");
 			System.out.println("\t (C) Change a password");
+			System.out.println("\t (O) Get the one-time codes");
+			System.out.println("\t (T) Set the one-time code secret of a login");
+			System.out.println("\t (K) Check the passwords against the breached password list");
+			System.out.println("\t (U) Find reused and weak passwords");
+			System.out.println("\t (S) Check the integrity of the vault");
+			System.out.println("\t (R) Rotate the encryption key");
 			System.out.println("\t (Q) Quit");
 			System.out.println("Type the letter corresponding to your choice");
 			String check = cons.readLine();
@@ -196,20 +337,21 @@ public class Launcher {
 					System.out.println("Type your login (empty to cancel)");
 					String login = cons.readLine();
 					if (!login.equals("")) {
-						System.out.print("\nEncrypting login... ");
-						Ciph ciphLoginA = Ciphor.getInstance().encrypt(login.getBytes(), masterKey);
+						System.out.print("\nGenerating a password... ");
+						String pwd = generatePassword();
 						System.out.println("done");
-						System.out.print("Generating a password... ");
-						Password pass1 = new Password(PWDLEN, PWDLEN, true, true, true, true);
-						String pwd = pass1.getPwd();
-						Ciph ciphPwdA = Ciphor.getInstance().encrypt(pwd.getBytes(), masterKey);
+						System.out.print("Encrypting entry... ");
+						Pair<Ciph, Ciph> ciphEntryA = Ciphor.getInstance().encryptEntry(login.getBytes(), pwd.getBytes(), masterKey);
 						System.out.println("done");
 						System.out.print("Updating DB... ");
-						DBHandler.getInstance().insertPassword(service, ciphLoginA, ciphPwdA);
-						System.out.println("done");
-						System.out.println("\nPassword for "+service+" is:");
-						System.out.println("\tlogin: "+login);
-						System.out.println("\tpassword: "+pwd);
+						if (vault.insertPassword(service, ciphEntryA.first(), ciphEntryA.second()) < 0) {
+							System.out.println("failed, the entry has not been stored");
+						} else {
+							System.out.println("done");
+							System.out.println("\nPassword for "+service+" is:");
+							System.out.println("\tlogin: "+login);
+							System.out.println("\tpassword: "+pwd);
+						}
 					}
 				}
 				break;
@@ -219,12 +361,17 @@ public class Launcher {
 					Pair<Integer, String> loginB = scanLogin(serviceB.first().intValue());
 					if (loginB != null) {
 						System.out.print("Getting password... ");
-						Ciph ciphPwdB = DBHandler.getInstance().getPassword(serviceB.first().intValue(), loginB.first().intValue());
-						String clPwdB = new String(Ciphor.getInstance().decrypt(ciphPwdB, masterKey));
-						System.out.println("done");
-						System.out.println("\nPassword for "+serviceB.second()+" is:");
-						System.out.println("\tlogin: "+loginB.second());
-						System.out.println("\tpassword: "+clPwdB);
+						Ciph ciphPwdB = vault.getPassword(serviceB.first().intValue(), loginB.first().intValue());
+						try (SecureArena plainArena = new SecureArena(Ciphor.plainLength(ciphPwdB))) {
+							Secret clPwdB = Ciphor.getInstance().decrypt(ciphPwdB, masterKey, plainArena);
+							recordAccess(AccessLog.Operation.GET, serviceB.first().intValue(), loginB.first().intValue());
+							System.out.println("done");
+							System.out.println("\nPassword for "+serviceB.second()+" is:");
+							System.out.println("\tlogin: "+loginB.second());
+							System.out.print("\tpassword: ");
+							clPwdB.writeTo(System.out);
+							System.out.println();
+						}
 					}
 				}
 				break;
@@ -234,12 +381,17 @@ public class Launcher {
 					Pair<Integer, String> loginC = scanLogin(serviceC.first().intValue());
 					if (loginC != null) {
 						System.out.print("Generating a password... ");
-						Password pass2 = new Password(PWDLEN, PWDLEN, true, true, true, true);
-						String pwdc = pass2.getPwd();
+						String pwdc = generatePassword();
 						Ciph ciphPwdC = Ciphor.getInstance().encrypt(pwdc.getBytes(), masterKey);
 						System.out.println("done");
 						System.out.print("Updating DB... ");
-						DBHandler.getInstance().updatePassword(serviceC.first().intValue(), loginC.first().intValue(), ciphPwdC);
+						try {
+							vault.updatePassword(serviceC.first().intValue(), loginC.first().intValue(), ciphPwdC);
+						} catch (IllegalStateException e) {
+							System.out.println("failed ("+e.getMessage()+"), the password has not been changed");
+							break;
+						}
+						recordAccess(AccessLog.Operation.CHANGE, serviceC.first().intValue(), loginC.first().intValue());
 						System.out.println("done");
 						System.out.println("\nNew password for "+serviceC.second()+" is:");
 						System.out.println("\tlogin: "+loginC.second());
@@ -247,6 +399,152 @@ public class Launcher {
 					}
 				}
 				break;
+			case 'O':
+				if (totp == null) {
+					System.out.println("One-time codes are not supported by this store");
+					break;
+				}
+				System.out.print("Computing codes... ");
+				long nowO = System.currentTimeMillis() / 1000;
+				List<TotpCode> codes = totp.getCodes(nowO, masterKey);
+				System.out.println("done");
+				if (codes.isEmpty()) {
+					System.out.println("No one-time code secret stored yet, add one with (T)");
+				} else {
+					IntMap<String> servicesO = vault.listServices();
+					for (TotpCode code : codes) {
+						Ciph ciphLoginO = vault.getLogin(code.getServiceId(), code.getLoginId());
+						System.out.println("\t"+servicesO.get(code.getServiceId())+" ("+new String(Ciphor.getInstance().decrypt(ciphLoginO, masterKey))+"): "
+								+code.getCode()+" ("+(code.getValidUntil() - nowO)+" s left)");
+					}
+				}
+				break;
+			case 'T':
+				if (totp == null) {
+					System.out.println("One-time codes are not supported by this store");
+					break;
+				}
+				Pair<Integer, String> serviceT = scanService();
+				if (serviceT != null) {
+					Pair<Integer, String> loginT = scanLogin(serviceT.first().intValue());
+					if (loginT != null) {
+						System.out.println("Type the secret key or the otpauth:// URI given by the service (empty to cancel)");
+						char[] clearT = cons.readPassword();
+						if (clearT.length > 0) {
+							try (SecureArena secretArena = new SecureArena(Totp.HEADER + clearT.length)) {
+								Secret packedT = Totp.parse(new String(clearT), secretArena);
+								System.out.print("Updating DB... ");
+								boolean storedT = totp.setSecret(serviceT.first().intValue(), loginT.first().intValue(), packedT, masterKey);
+								System.out.println(storedT ? "done" : "failed");
+							} catch (IllegalArgumentException e) {
+								System.out.println("Invalid secret: "+e.getMessage());
+							} finally {
+								Arrays.fill(clearT, '\0');
+							}
+						}
+					}
+				}
+				break;
+			case 'K':
+				if (breachList == null) {
+					System.out.println("No breached password list, set it with -Dpamaja.breach.list=file");
+					break;
+				}
+				System.out.print("Checking passwords... ");
+				BreachAudit audit = new BreachAudit(vault, breachList, Runtime.getRuntime().availableProcessors());
+				List<EntryHandle> breached = audit.run(masterKey);
+				System.out.println("done ("+audit.getChecked()+" entries)");
+				if (breached.isEmpty()) {
+					System.out.println("No breached password found");
+				} else {
+					IntMap<String> servicesK = vault.listServices();
+					System.out.println("Breached passwords, change them with (C):");
+					for (EntryHandle entry : breached) {
+						byte[] loginK = entry.decryptLogin(masterKey);
+						if (loginK != null) {
+							System.out.println("\t"+servicesK.get(entry.getServiceId())+": "+new String(loginK));
+						}
+					}
+				}
+				break;
+			case 'U':
+				System.out.print("Checking passwords... ");
+				ReuseAudit reuse = new ReuseAudit(vault, Runtime.getRuntime().availableProcessors());
+				reuse.run(masterKey);
+				System.out.println("done ("+reuse.getChecked()+" entries)");
+				IntMap<String> servicesU = vault.listServices();
+				if (reuse.getReused().isEmpty()) {
+					System.out.println("No reused password found");
+				} else {
+					System.out.println("Passwords used more than once, change them with (C):");
+					for (List<EntryHandle> group : reuse.getReused()) {
+						String sep = "\t";
+						for (EntryHandle entry : group) {
+							byte[] loginU = entry.decryptLogin(masterKey);
+							if (loginU != null) {
+								System.out.print(sep+servicesU.get(entry.getServiceId())+": "+new String(loginU));
+								sep = ", ";
+							}
+						}
+						System.out.println();
+					}
+				}
+				if (reuse.getWeak().isEmpty()) {
+					System.out.println("No weak password found");
+				} else {
+					System.out.println("Weak passwords (less than "+ReuseAudit.WEAK_BITS+" bits), change them with (C):");
+					for (Pair<EntryHandle, Integer> weak : reuse.getWeak()) {
+						byte[] loginW = weak.first().decryptLogin(masterKey);
+						if (loginW != null) {
+							System.out.println("\t"+servicesU.get(weak.first().getServiceId())+": "+new String(loginW)+" ("+weak.second()+" bits)");
+						}
+					}
+				}
+				break;
+			case 'S':
+				if (!(store instanceof DBHandler)) {
+					System.out.println("Integrity checks are not supported by this store");
+					break;
+				}
+				System.out.println("Type F to check every entry, anything else to check only the entries changed since the last check");
+				boolean fullS = cons.readLine().equalsIgnoreCase("F");
+				System.out.print("Checking vault... ");
+				ScrubReport scrub = ((DBHandler)store).scrub(!fullS, Runtime.getRuntime().availableProcessors());
+				System.out.println("done ("+scrub.getCheckedEntries()+" entries)");
+				if (scrub.isClean()) {
+					System.out.println("No integrity problem found");
+				} else {
+					System.out.println("Integrity problems, the vault may have been corrupted or tampered with:");
+					for (ScrubReport.Finding finding : scrub.getFindings()) {
+						System.out.println("\t"+finding);
+					}
+					System.out.println("Type E to protect the vault again with new integrity trees, trusting the entries as they are now,"
+							+ " anything else to leave it as it is");
+					if (cons.readLine().equalsIgnoreCase("E")) {
+						System.out.print("Building integrity tree... ");
+						int tagged = ((DBHandler)store).enableIntegrity(masterKey);
+						System.out.println((tagged >= 0) ? "done ("+tagged+" entries)" : "failed");
+					}
+				}
+				break;
+			case 'R':
+				if (!(store instanceof DBHandler)) {
+					System.out.println("Key rotation is not supported by this store");
+					break;
+				}
+				System.out.println("Type your master password");
+				char[] clearR = cons.readPassword();
+				System.out.print("Checking master password... ");
+				Hash hashedR = Hashor.getInstance().hash(clearR, origSalt, 64);
+				Arrays.fill(clearR, '\0');
+				boolean matchedR = Hashor.getInstance().checkHash(hashedR, storedPwd);
+				System.out.println("done");
+				if (matchedR) {
+					rotateKey(hashedR.getHashedMessage());
+				} else {
+					System.out.println("Wrong master password");
+				}
+				break;
 			case 'Q':
 				System.out.println("Quit");
 				break;
@@ -257,13 +555,77 @@ public class Launcher {
 		} while (Character.toUpperCase(choice) != 'Q');
 	}
 	
+	private static String generatePassword() {
+		if (passphrase != null) {
+			String pwd = passphrase.getPwd();
+			while ((breachList != null) && breachList.isBreached(pwd.getBytes())) {
+				pwd = passphrase.getPwd();
+			}
+			return pwd;
+		}
+		String pwd = PWD_POLICY.getPwd();
+		while ((breachList != null) && breachList.isBreached(pwd.getBytes())) {
+			pwd = PWD_POLICY.getPwd();
+		}
+		return pwd;
+	}
+	
+	private static PasswordPolicy.Sampler defaultPolicy() {
+		PasswordPolicy policy = new PasswordPolicy(PWDLEN, PWDLEN);
+		for (PasswordPolicy.CharClass c : PasswordPolicy.CharClass.values()) {
+			policy.require(c, 1);
+		}
+		return policy.compile();
+	}
+	
+	private static void recordAccess(AccessLog.Operation op, int serviceId, int loginId) {
+		if (accessLog != null) {
+			accessLog.record(op, serviceId, loginId);
+		}
+	}
+	
+	private static void rotateKey(byte[] wrapKey) throws Exception {
+		KeyRotator rotator = new KeyRotator((DBHandler)store);
+		SecureArena newArena = new SecureArena(KEY_ARENA_SIZE);
+		Secret newKey = rotator.pendingKey(wrapKey, newArena);
+		if (newKey == null) {
+			System.out.print("Generating a new encryption key... ");
+			newKey = rotator.begin(wrapKey, newArena);
+			System.out.println("done");
+		}
+		System.out.print("Re-encrypting vault... ");
+		int count;
+		try {
+			count = rotator.run(masterKey, newKey);
+		} catch (IllegalStateException e) {
+			// Shards may already be switched: the vault is only readable once the rotation is resumed, at the next start
+			System.out.println("failed ("+e.getMessage()+")");
+			newArena.close();
+			quit();
+			return;
+		}
+		System.out.println("done ("+count+" entries)");
+		recordAccess(AccessLog.Operation.KEY_ROTATION, -1, -1);
+		keyArena.close();
+		keyArena = newArena;
+		masterKey = newKey;
+		if (vault instanceof SnapshotStore) {
+			System.out.print("Reloading vault in memory... ");
+			System.out.println(((SnapshotStore)vault).load() ? "done" : "too large, reading from disk");
+		}
+	}
+	
 	private static Pair<Integer, String> scanService() {
 		int serviceId = -2;
-		Map<Integer, String> services = DBHandler.getInstance().getServices();
+		if (vault.countServices() == 0) {
+			System.out.println("No service registered yet");
+			return null;
+		}
+		IntMap<String> services = vault.listServices();
 		do {
 			System.out.println("Select a service");
-			for (int id : services.keySet()) {
-				System.out.println("\t("+id+") "+services.get(id));
+			for (int i=0 ; i<services.size() ; ++i) {
+				System.out.println("\t("+services.keyAt(i)+") "+services.valueAt(i));
 			}
 			System.out.println("Type the number of the wanted service (-1 to cancel)");
 			try {
@@ -281,11 +643,19 @@ public class Launcher {
 	
 	private static Pair<Integer, String> scanLogin(int serviceId) throws Exception {
 		int loginId = -2;
-		Map<Integer, Ciph> logins = DBHandler.getInstance().getLogins(serviceId);
+		IntMap<Ciph> logins = vault.listLogins(serviceId);
+		if (logins.isEmpty()) {
+			System.out.println("No login registered for this service");
+			return null;
+		}
+		String[] clear = new String[logins.size()];
+		for (int i=0 ; i<clear.length ; ++i) {
+			clear[i] = new String(Ciphor.getInstance().decrypt(logins.valueAt(i), masterKey));
+		}
 		do {
 			System.out.println("Select a login");
-			for (int id : logins.keySet()) {
-				System.out.println("\t("+id+") "+new String(Ciphor.getInstance().decrypt(logins.get(id), masterKey)));
+			for (int i=0 ; i<clear.length ; ++i) {
+				System.out.println("\t("+logins.keyAt(i)+") "+clear[i]);
 			}
 			System.out.println("Type the number of the wanted login (-1 to cancel)");
 			try {
@@ -296,25 +666,42 @@ public class Launcher {
 			System.out.println();
 		} while ((loginId != -1) && (!logins.containsKey(loginId)));
 		if (loginId != -1) {
-			return new Pair<Integer, String>(Integer.valueOf(loginId), new String(Ciphor.getInstance().decrypt(logins.get(loginId), masterKey)));
+			return new Pair<Integer, String>(Integer.valueOf(loginId), clear[logins.indexOf(loginId)]);
 		}
 		return null;
 	}
 	
 	private static void quit() {
 		System.out.print("Closing DB... ");
-		DBHandler.getInstance().disconnect();
+		if (store != null) {
+			store.disconnect();
+		}
 		System.out.println("done");
+		if (Metrics.getInstance().isEnabled()) {
+			System.out.println("\nMetrics:");
+			System.out.print(Metrics.getInstance().report());
+		}
 		System.out.print("Releasing instances... ");
-		if (masterKey != null) {
-			for (int i=0 ; i<masterKey.length ; ++i) {
-				masterKey[i] = 0;
+		if (breachList != null) {
+			breachList.close();
+		}
+		if (accessLog != null) {
+			accessLog.close();
+		}
+		if (totp != null) {
+			totp.close();
+		}
+		if (keyArena != null) {
+			keyArena.close();
+		}
+		if (origSalt != null) {
+			for (int i=0 ; i<origSalt.length ; ++i) {
+				origSalt[i] = 0;
 			}
 		}
-		for (int i=0 ; i<origSalt.length ; ++i) {
-			origSalt[i] = 0;
+		if (storedPwd != null) {
+			storedPwd.clear();
 		}
-		storedPwd.clear();
 		System.out.println("done");
 		System.out.println("\nGoodbye");
 		System.exit(0);
@@ -0,0 +1,337 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Record of the accesses to the vault, kept in a memory-mapped ring buffer file.
+ * Each access is a fixed-size record (sequence number, time, operation, service ID, login ID, check value)
+ * written in place: appending only claims a sequence number with an atomic increment and fills the mapped slot,
+ * so any number of threads append without locking and without a system call.
+ * A background thread forces the file to disk at a fixed interval, an access is durable after at most that long.
+ * The file keeps the latest records only, the oldest ones being overwritten once it is full.
+ * @author Robin Carozzani
+ */
+public class AccessLog implements AutoCloseable {
+
+	/**
+	 * Recorded operations
+	 */
+	public enum Operation {
+		/**
+		 * A password was read
+		 */
+		GET,
+		/**
+		 * A password was replaced
+		 */
+		CHANGE,
+		/**
+		 * The encryption key of the vault was replaced
+		 */
+		KEY_ROTATION
+	}
+
+	/**
+	 * One access read back from the file
+	 */
+	public static class Record {
+		private final long _seq;
+		private final long _time;
+		private final Operation _op;
+		private final int _serviceId;
+		private final int _loginId;
+
+		Record(long seq, long time, Operation op, int serviceId, int loginId) {
+			_seq = seq;
+			_time = time;
+			_op = op;
+			_serviceId = serviceId;
+			_loginId = loginId;
+		}
+
+		/**
+		 * @return Sequence number of the record, starting at 1
+		 */
+		public long getSeq() {
+			return _seq;
+		}
+
+		/**
+		 * @return Time of the access, in milliseconds since the epoch
+		 */
+		public long getTime() {
+			return _time;
+		}
+
+		/**
+		 * @return Operation
+		 */
+		public Operation getOperation() {
+			return _op;
+		}
+
+		/**
+		 * @return ID of the service of the entry, <code>-1</code> for the whole vault
+		 */
+		public int getServiceId() {
+			return _serviceId;
+		}
+
+		/**
+		 * @return ID of the login of the entry, <code>-1</code> for the whole vault
+		 */
+		public int getLoginId() {
+			return _loginId;
+		}
+	}
+
+	/**
+	 * Size of a record in bytes
+	 */
+	public static final int RECORD_SIZE = 32;
+
+	/**
+	 * Default number of records kept (2 MB)
+	 */
+	public static final int DEFAULT_CAPACITY = 1 << 16;
+
+	/**
+	 * Default interval between two flushes, in milliseconds
+	 */
+	public static final long DEFAULT_FLUSH_INTERVAL = 1000;
+
+	private static final int MAGIC = 0x504d4a41;
+	private static final int FORMAT_VERSION = 1;
+	// Magic, version, record size, capacity, padded to a record
+	private static final int HEADER = RECORD_SIZE;
+	// The whole file is one mapping
+	private static final int MAX_CAPACITY = (Integer.MAX_VALUE - HEADER) / RECORD_SIZE;
+
+	private final FileChannel _channel;
+	private final MappedByteBuffer _buffer;
+	private final int _capacity;
+	private final AtomicLong _last;
+	private final long _flushInterval;
+	private final Thread _flusher;
+	private volatile boolean _closed = false;
+
+	private AccessLog(FileChannel channel, MappedByteBuffer buffer, int capacity, long last, long flushInterval) {
+		_channel = channel;
+		_buffer = buffer;
+		_capacity = capacity;
+		_last = new AtomicLong(last);
+		_flushInterval = flushInterval;
+		_flusher = new Thread(this::flushLoop, "pamaja-access-flush");
+		_flusher.setDaemon(true);
+		_flusher.start();
+	}
+
+	/**
+	 * Opens a log, creating it if needed. An existing file keeps its capacity and its records.
+	 * @param file The log file
+	 * @param capacity Number of records kept by a new file
+	 * @param flushInterval Interval between two flushes, in milliseconds
+	 * @return The opened log
+	 * @throws IOException If the file cannot be mapped or is not an access log
+	 */
+	public static AccessLog open(File file, int capacity, long flushInterval) throws IOException {
+		if ((capacity < 1) || (capacity > MAX_CAPACITY)) {
+			throw new IllegalArgumentException("Capacity must be between 1 and "+MAX_CAPACITY);
+		}
+		boolean exists = file.exists() && (file.length() > 0);
+		FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (exists) {
+				capacity = readHeader(channel, file);
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long)capacity * RECORD_SIZE);
+			long last = 0;
+			if (exists) {
+				for (int slot=0 ; slot<capacity ; ++slot) {
+					last = Math.max(last, validSeq(buffer, slot, capacity));
+				}
+			} else {
+				buffer.putInt(0, MAGIC);
+				buffer.putInt(4, FORMAT_VERSION);
+				buffer.putInt(8, RECORD_SIZE);
+				buffer.putInt(12, capacity);
+				buffer.force();
+			}
+			return new AccessLog(channel, buffer, capacity, last, flushInterval);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	private static int readHeader(FileChannel channel, File file) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER);
+		channel.read(header, 0);
+		if ((header.position() < HEADER) || (header.getInt(0) != MAGIC)) {
+			throw new IOException(file+" is not an access log");
+		}
+		if ((header.getInt(4) != FORMAT_VERSION) || (header.getInt(8) != RECORD_SIZE)) {
+			throw new IOException("Unsupported access log version in "+file);
+		}
+		int capacity = header.getInt(12);
+		if ((capacity < 1) || (capacity > MAX_CAPACITY) || (channel.size() != HEADER + (long)capacity * RECORD_SIZE)) {
+			throw new IOException(file+" is truncated");
+		}
+		return capacity;
+	}
+
+	/**
+	 * Appends a record, from any thread
+	 * @param op Operation
+	 * @param serviceId ID of the service of the entry, <code>-1</code> for the whole vault
+	 * @param loginId ID of the login of the entry, <code>-1</code> for the whole vault
+	 */
+	public void record(Operation op, int serviceId, int loginId) {
+		if (_closed) {
+			return;
+		}
+		long seq = _last.incrementAndGet();
+		long time = System.currentTimeMillis();
+		int pos = HEADER + (int)((seq - 1) % _capacity) * RECORD_SIZE;
+		// The sequence number goes last, so a record caught half written fails its check
+		_buffer.putLong(pos, 0);
+		_buffer.putLong(pos + 8, time);
+		_buffer.putInt(pos + 16, op.ordinal());
+		_buffer.putInt(pos + 20, serviceId);
+		_buffer.putInt(pos + 24, loginId);
+		_buffer.putInt(pos + 28, check(seq, time, op.ordinal(), serviceId, loginId));
+		_buffer.putLong(pos, seq);
+	}
+
+	/**
+	 * Gets the number of records appended since the file was created
+	 * @return Sequence number of the last record
+	 */
+	public long getLastSeq() {
+		return _last.get();
+	}
+
+	/**
+	 * Forces the appended records to disk
+	 */
+	public void flush() {
+		_buffer.force();
+	}
+
+	private void flushLoop() {
+		long flushed = _last.get();
+		while (!_closed) {
+			LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(_flushInterval));
+			long last = _last.get();
+			if (last != flushed) {
+				flush();
+				flushed = last;
+			}
+		}
+	}
+
+	/**
+	 * Stops the flusher, flushes and closes the file. Later records are dropped.
+	 */
+	@Override
+	public void close() {
+		if (_closed) {
+			return;
+		}
+		_closed = true;
+		LockSupport.unpark(_flusher);
+		try {
+			_flusher.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		flush();
+		try {
+			_channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Reads the records of a log, which may be open for writing by another program
+	 * @param file The log file
+	 * @return Valid records, ordered by sequence number
+	 * @throws IOException If the file cannot be read or is not an access log
+	 */
+	public static List<Record> read(File file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			int capacity = readHeader(channel, file);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER + (long)capacity * RECORD_SIZE);
+			Operation[] ops = Operation.values();
+			List<Record> records = new ArrayList<Record>();
+			for (int slot=0 ; slot<capacity ; ++slot) {
+				long seq = validSeq(buffer, slot, capacity);
+				int pos = HEADER + slot * RECORD_SIZE;
+				int op = buffer.getInt(pos + 16);
+				if ((seq != 0) && (op < ops.length)) {
+					records.add(new Record(seq, buffer.getLong(pos + 8), ops[op], buffer.getInt(pos + 20), buffer.getInt(pos + 24)));
+				}
+			}
+			// Slots are in sequence order except at the wrapping point
+			int start = 0;
+			for (int i=1 ; i<records.size() ; ++i) {
+				if (records.get(i).getSeq() < records.get(i - 1).getSeq()) {
+					start = i;
+					break;
+				}
+			}
+			Collections.rotate(records, -start);
+			return records;
+		}
+	}
+
+	/**
+	 * Gets the sequence number of a slot if it holds a complete record
+	 * @return The sequence number, <code>0</code> if the slot is empty or damaged
+	 */
+	private static long validSeq(ByteBuffer buffer, int slot, int capacity) {
+		int pos = HEADER + slot * RECORD_SIZE;
+		long seq = buffer.getLong(pos);
+		if ((seq <= 0) || ((seq - 1) % capacity != slot)) {
+			return 0;
+		}
+		int c = check(seq, buffer.getLong(pos + 8), buffer.getInt(pos + 16), buffer.getInt(pos + 20), buffer.getInt(pos + 24));
+		return (c == buffer.getInt(pos + 28)) ? seq : 0;
+	}
+
+	private static int check(long seq, long time, int op, int serviceId, int loginId) {
+		long h = seq * 0x9e3779b97f4a7c15L;
+		h = (h ^ time) * 0x9e3779b97f4a7c15L;
+		h = (h ^ (((long)op << 32) | (serviceId & 0xffffffffL))) * 0x9e3779b97f4a7c15L;
+		h = (h ^ loginId) * 0x9e3779b97f4a7c15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,85 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+/**
+ * Bloom filter over cryptographic hashes.
+ * The hashed values are already uniformly distributed, so their bytes are used directly as the hash functions
+ * (double hashing on their first two 64-bit words) instead of hashing them again.
+ * @author Robin Carozzani
+ */
+public class BloomFilter {
+
+	private final long[] _bits;
+	private final long _size;
+	private final int _hashes;
+
+	/**
+	 * Constructs an empty BloomFilter
+	 * @param expected Number of values that will be added
+	 * @param bitsPerValue Bits of memory per value, 10 gives about 1% of false positives
+	 */
+	public BloomFilter(long expected, int bitsPerValue) {
+		long words = Math.max(1, (expected * bitsPerValue + 63) / 64);
+		if (words > Integer.MAX_VALUE - 8) {
+			throw new IllegalArgumentException("Bloom filter too large: " + expected + " values");
+		}
+		_bits = new long[(int)words];
+		_size = words * 64;
+		_hashes = Math.max(1, (int)Math.round(bitsPerValue * Math.log(2)));
+	}
+
+	/**
+	 * Adds a value
+	 * @param hi First 8 bytes of the hash, big-endian
+	 * @param mid Next 8 bytes of the hash, big-endian
+	 */
+	public void add(long hi, long mid) {
+		long h = hi;
+		for (int i=0 ; i<_hashes ; ++i) {
+			long bit = Long.remainderUnsigned(h, _size);
+			_bits[(int)(bit >>> 6)] |= 1L << bit;
+			h += mid;
+		}
+	}
+
+	/**
+	 * Checks if a value may have been added
+	 * @param hi First 8 bytes of the hash, big-endian
+	 * @param mid Next 8 bytes of the hash, big-endian
+	 * @return <code>false</code> if the value has certainly not been added
+	 */
+	public boolean mightContain(long hi, long mid) {
+		long h = hi;
+		for (int i=0 ; i<_hashes ; ++i) {
+			long bit = Long.remainderUnsigned(h, _size);
+			if ((_bits[(int)(bit >>> 6)] & (1L << bit)) == 0) {
+				return false;
+			}
+			h += mid;
+		}
+		return true;
+	}
+
+	/**
+	 * Gets the memory used by the filter
+	 * @return Number of bytes
+	 */
+	public long getMemoryUsage() {
+		return 8L * _bits.length;
+	}
+}
@@ -0,0 +1,81 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.db.EntryHandle;
+import fr.robincarozzani.pamaja.db.VaultStore;
+
+/**
+ * Checks every password of the vault against a breached password list.
+ * The vault is read in one pass while a pool of workers decrypts and checks the entries.
+ * @author Robin Carozzani
+ */
+public class BreachAudit {
+
+	private final VaultStore _store;
+	private final BreachCorpus _corpus;
+	private final int _threads;
+	private int _checked = 0;
+
+	/**
+	 * Constructs a BreachAudit
+	 * @param store Store holding the vault
+	 * @param corpus Breached password list
+	 * @param threads Number of workers
+	 */
+	public BreachAudit(VaultStore store, BreachCorpus corpus, int threads) {
+		_store = store;
+		_corpus = corpus;
+		_threads = threads;
+	}
+
+	/**
+	 * Checks the whole vault
+	 * @param key The secret key of the vault
+	 * @return Breached entries, ordered by service and login ID
+	 * @throws GeneralSecurityException If an entry cannot be decrypted
+	 * @throws InterruptedException
+	 */
+	public List<EntryHandle> run(Secret key) throws GeneralSecurityException, InterruptedException {
+		Queue<EntryHandle> breached = new ConcurrentLinkedQueue<EntryHandle>();
+		_checked = VaultScan.run(_store, key, _threads, (serviceId, loginId, password) -> {
+			if (_corpus.isBreached(password)) {
+				breached.add(new EntryHandle(_store, serviceId, loginId));
+			}
+		});
+		List<EntryHandle> res = new ArrayList<EntryHandle>(breached);
+		res.sort((a, b) -> (a.getServiceId() != b.getServiceId())
+				? Integer.compare(a.getServiceId(), b.getServiceId())
+				: Integer.compare(a.getLoginId(), b.getLoginId()));
+		return res;
+	}
+
+	/**
+	 * Gets the number of entries checked by the last run
+	 * @return Number of entries
+	 */
+	public int getChecked() {
+		return _checked;
+	}
+}
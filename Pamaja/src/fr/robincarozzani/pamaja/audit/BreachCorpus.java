@@ -0,0 +1,469 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.ParallelSort;
+
+/**
+ * Local list of breached passwords, as SHA-1 hashes, checked without any network access.
+ * The list is ingested once from text (one hexadecimal SHA-1 per line, optionally followed by <code>:count</code>,
+ * like the HIBP download) into a binary file of sorted, unique 20-byte hashes.
+ * Lookups are binary searches over the memory-mapped file, optionally behind an in-memory Bloom filter which
+ * answers most negative lookups without touching the file.
+ * @author Robin Carozzani
+ */
+public class BreachCorpus implements AutoCloseable {
+
+	/**
+	 * Size of a SHA-1 hash
+	 */
+	public static final int HASH_LENGTH = 20;
+
+	/**
+	 * Default number of hashes sorted in memory at once during ingestion (80 MB of heap)
+	 */
+	public static final int DEFAULT_RUN = 1 << 22;
+
+	private static final int MAGIC = 0x504d4a42;
+	private static final int FORMAT_VERSION = 1;
+	private static final int HEADER = 16;
+	// Hashes per mapping, a mapping being limited to 2 GB
+	private static final long CHUNK_HASHES = (1L << 30) / HASH_LENGTH;
+	private static final int DIGEST_CHUNK = 64;
+
+	private static final ThreadLocal<MessageDigest> DIGESTS = ThreadLocal.withInitial(() -> {
+		try {
+			return MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	});
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[DIGEST_CHUNK]);
+	private static final ThreadLocal<byte[]> HASHES = ThreadLocal.withInitial(() -> new byte[HASH_LENGTH]);
+
+	private final MappedByteBuffer[] _chunks;
+	private final long _count;
+	private final BloomFilter _bloom;
+
+	private BreachCorpus(MappedByteBuffer[] chunks, long count, BloomFilter bloom) {
+		_chunks = chunks;
+		_count = count;
+		_bloom = bloom;
+	}
+
+	/**
+	 * Opens an ingested list
+	 * @param file File written by {@link #build(File, File, int)}
+	 * @param bloomBitsPerHash Bits of memory per hash for the Bloom filter, <code>0</code> for none.
+	 * The filter is filled by reading the whole file once.
+	 * @return The opened list
+	 * @throws IOException If the file cannot be read or is not a breached password list
+	 */
+	public static BreachCorpus open(File file, int bloomBitsPerHash) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if ((raf.length() < HEADER) || (raf.readInt() != MAGIC)) {
+				throw new IOException(file + " is not a breached password list");
+			}
+			if (raf.readInt() != FORMAT_VERSION) {
+				throw new IOException(file + " has an unsupported format version");
+			}
+			long count = raf.readLong();
+			if (raf.length() != HEADER + count * HASH_LENGTH) {
+				throw new IOException(file + " is truncated");
+			}
+			FileChannel channel = raf.getChannel();
+			MappedByteBuffer[] chunks = new MappedByteBuffer[(int)((count + CHUNK_HASHES - 1) / CHUNK_HASHES)];
+			for (int i=0 ; i<chunks.length ; ++i) {
+				long first = i * CHUNK_HASHES;
+				long hashes = Math.min(CHUNK_HASHES, count - first);
+				chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, HEADER + first * HASH_LENGTH, hashes * HASH_LENGTH);
+			}
+			BloomFilter bloom = null;
+			if (bloomBitsPerHash > 0) {
+				bloom = new BloomFilter(count, bloomBitsPerHash);
+				for (MappedByteBuffer chunk : chunks) {
+					for (int pos=0 ; pos<chunk.capacity() ; pos+=HASH_LENGTH) {
+						bloom.add(chunk.getLong(pos), chunk.getLong(pos + 8));
+					}
+				}
+			}
+			return new BreachCorpus(chunks, count, bloom);
+		}
+	}
+
+	/**
+	 * Gets the number of hashes of the list
+	 * @return Number of distinct hashes
+	 */
+	public long size() {
+		return _count;
+	}
+
+	/**
+	 * Gets the memory used by the Bloom filter
+	 * @return Number of bytes, <code>0</code> without filter
+	 */
+	public long getBloomMemory() {
+		return (_bloom != null) ? _bloom.getMemoryUsage() : 0;
+	}
+
+	/**
+	 * Checks if a hash is in the list. Can be called from several threads at once.
+	 * @param sha1 SHA-1 hash of the password
+	 * @return <code>true</code> if the password is known to be breached
+	 */
+	public boolean contains(byte[] sha1) {
+		if (sha1.length != HASH_LENGTH) {
+			throw new IllegalArgumentException("Not a SHA-1 hash: " + sha1.length + " bytes");
+		}
+		long t = Metrics.start();
+		ByteBuffer hash = ByteBuffer.wrap(sha1);
+		long hi = hash.getLong(0);
+		long mid = hash.getLong(8);
+		int lo = hash.getInt(16);
+		boolean found = ((_bloom == null) || _bloom.mightContain(hi, mid)) && search(hi, mid, lo);
+		Metrics.record("breach.check", t, 0);
+		return found;
+	}
+
+	/**
+	 * Checks if a password is in the list
+	 * @param password The clear password
+	 * @return <code>true</code> if the password is known to be breached
+	 */
+	public boolean isBreached(byte[] password) {
+		MessageDigest md = DIGESTS.get();
+		md.update(password);
+		return containsDigest(md);
+	}
+
+	/**
+	 * Checks if an off-heap password is in the list.
+	 * The password only transits through a per-thread buffer which is wiped before returning.
+	 * @param password The clear password
+	 * @return <code>true</code> if the password is known to be breached
+	 */
+	public boolean isBreached(Secret password) {
+		MessageDigest md = DIGESTS.get();
+		byte[] chunk = SCRATCH.get();
+		try {
+			for (int from=0 ; from<password.length() ; from+=DIGEST_CHUNK) {
+				int len = Math.min(DIGEST_CHUNK, password.length() - from);
+				password.copyTo(from, chunk, 0, len);
+				md.update(chunk, 0, len);
+			}
+		} finally {
+			Arrays.fill(chunk, (byte)0);
+		}
+		return containsDigest(md);
+	}
+
+	private boolean containsDigest(MessageDigest md) {
+		byte[] hash = HASHES.get();
+		try {
+			md.digest(hash, 0, HASH_LENGTH);
+			return contains(hash);
+		} catch (DigestException e) {
+			throw new IllegalStateException(e);
+		} finally {
+			Arrays.fill(hash, (byte)0);
+		}
+	}
+
+	/**
+	 * Releases the list, it must not be used afterwards.
+	 * The mappings are unmapped once collected.
+	 */
+	@Override
+	public void close() {
+		Arrays.fill(_chunks, null);
+	}
+
+	private boolean search(long hi, long mid, int lo) {
+		long low = 0;
+		long high = _count - 1;
+		while (low <= high) {
+			long m = (low + high) >>> 1;
+			MappedByteBuffer chunk = _chunks[(int)(m / CHUNK_HASHES)];
+			int pos = (int)(m % CHUNK_HASHES) * HASH_LENGTH;
+			int c = compare(chunk.getLong(pos), chunk.getLong(pos + 8), chunk.getInt(pos + 16), hi, mid, lo);
+			if (c < 0) {
+				low = m + 1;
+			} else if (c > 0) {
+				high = m - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares two hashes split into big-endian words, in the order of their bytes
+	 */
+	private static int compare(long hi1, long mid1, int lo1, long hi2, long mid2, int lo2) {
+		int c = Long.compareUnsigned(hi1, hi2);
+		if (c == 0) {
+			c = Long.compareUnsigned(mid1, mid2);
+		}
+		if (c == 0) {
+			c = Integer.compareUnsigned(lo1, lo2);
+		}
+		return c;
+	}
+
+
+	/**
+	 * Ingests a text list of SHA-1 hashes into a binary list.
+	 * The input does not need to be sorted: it is sorted by runs in memory, then the runs are merged from disk,
+	 * so memory use is bounded whatever the size of the input. Temporary files go next to the output.
+	 * @param input Text file, one hexadecimal hash per line, optionally followed by <code>:count</code>
+	 * @param output Binary file to write, replaced once complete
+	 * @param runSize Number of hashes sorted in memory at once
+	 * @return Number of distinct hashes written
+	 * @throws IOException If a file cannot be read or written, or a line is not a hash
+	 */
+	public static long build(File input, File output, int runSize) throws IOException {
+		File dir = output.getAbsoluteFile().getParentFile();
+		List<File> runs = new ArrayList<File>();
+		try {
+			RunBuffer buffer = new RunBuffer(runSize);
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.US_ASCII), 1 << 16)) {
+				String line;
+				long lineNumber = 0;
+				while ((line = in.readLine()) != null) {
+					++lineNumber;
+					if (line.trim().isEmpty()) {
+						continue;
+					}
+					if ((line.length() < 2 * HASH_LENGTH) || ((line.length() > 2 * HASH_LENGTH) && (line.charAt(2 * HASH_LENGTH) != ':'))) {
+						throw new IOException("Line " + lineNumber + " of " + input + " is not a SHA-1 hash");
+					}
+					try {
+						buffer.add(parseHex(line, 0, 16), parseHex(line, 16, 16), (int)parseHex(line, 32, 8));
+					} catch (NumberFormatException e) {
+						throw new IOException("Line " + lineNumber + " of " + input + " is not a SHA-1 hash");
+					}
+					if (buffer.isFull()) {
+						runs.add(buffer.writeRun(dir));
+					}
+				}
+			}
+			if ((buffer.size() > 0) || runs.isEmpty()) {
+				runs.add(buffer.writeRun(dir));
+			}
+			buffer = null;
+			return merge(runs, output);
+		} finally {
+			for (File run : runs) {
+				run.delete();
+			}
+		}
+	}
+
+	private static long parseHex(String s, int offset, int length) {
+		long v = 0;
+		for (int i=offset ; i<offset+length ; ++i) {
+			int d = Character.digit(s.charAt(i), 16);
+			if (d < 0) {
+				throw new NumberFormatException(s);
+			}
+			v = (v << 4) | d;
+		}
+		return v;
+	}
+
+	private static long merge(List<File> runs, File output) throws IOException {
+		File tmp = new File(output.getPath() + ".tmp");
+		PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(runs.size(),
+				(a, b) -> compare(a._hi, a._mid, a._lo, b._hi, b._mid, b._lo));
+		long count = 0;
+		try {
+			for (File run : runs) {
+				RunReader reader = new RunReader(run);
+				if (reader.next()) {
+					queue.add(reader);
+				} else {
+					reader.close();
+				}
+			}
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16))) {
+				out.writeInt(MAGIC);
+				out.writeInt(FORMAT_VERSION);
+				out.writeLong(0);
+				long hi = 0;
+				long mid = 0;
+				int lo = 0;
+				while (!queue.isEmpty()) {
+					RunReader reader = queue.poll();
+					// Duplicates come out of the queue one after the other
+					if ((count == 0) || (compare(reader._hi, reader._mid, reader._lo, hi, mid, lo) != 0)) {
+						hi = reader._hi;
+						mid = reader._mid;
+						lo = reader._lo;
+						out.writeLong(hi);
+						out.writeLong(mid);
+						out.writeInt(lo);
+						++count;
+					}
+					if (reader.next()) {
+						queue.add(reader);
+					} else {
+						reader.close();
+					}
+				}
+			}
+		} finally {
+			for (RunReader reader : queue) {
+				reader.close();
+			}
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+			raf.seek(8);
+			raf.writeLong(count);
+			raf.getFD().sync();
+		}
+		if (output.exists() && !output.delete()) {
+			throw new IOException("Cannot replace " + output);
+		}
+		if (!tmp.renameTo(output)) {
+			throw new IOException("Cannot rename " + tmp + " to " + output);
+		}
+		return count;
+	}
+
+	/**
+	 * Hashes sorted in memory before being written as a run
+	 */
+	private static class RunBuffer implements ParallelSort.Sortable {
+
+		private final long[] _his;
+		private final long[] _mids;
+		private final int[] _los;
+		private int _size = 0;
+
+		RunBuffer(int capacity) {
+			_his = new long[capacity];
+			_mids = new long[capacity];
+			_los = new int[capacity];
+		}
+
+		int size() {
+			return _size;
+		}
+
+		boolean isFull() {
+			return _size == _his.length;
+		}
+
+		void add(long hi, long mid, int lo) {
+			_his[_size] = hi;
+			_mids[_size] = mid;
+			_los[_size] = lo;
+			++_size;
+		}
+
+		File writeRun(File dir) throws IOException {
+			ParallelSort.sort(this, 0, _size);
+			File run = File.createTempFile("pamaja-breach", ".run", dir);
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 1 << 16))) {
+				for (int i=0 ; i<_size ; ++i) {
+					out.writeLong(_his[i]);
+					out.writeLong(_mids[i]);
+					out.writeInt(_los[i]);
+				}
+			}
+			_size = 0;
+			return run;
+		}
+
+		@Override
+		public int compare(int i, int j) {
+			return BreachCorpus.compare(_his[i], _mids[i], _los[i], _his[j], _mids[j], _los[j]);
+		}
+
+		@Override
+		public void swap(int i, int j) {
+			long h = _his[i];
+			_his[i] = _his[j];
+			_his[j] = h;
+			long m = _mids[i];
+			_mids[i] = _mids[j];
+			_mids[j] = m;
+			int l = _los[i];
+			_los[i] = _los[j];
+			_los[j] = l;
+		}
+
+	}
+
+	/**
+	 * Sequential reader of a sorted run
+	 */
+	private static class RunReader {
+
+		private final DataInputStream _in;
+		private long _hi;
+		private long _mid;
+		private int _lo;
+
+		RunReader(File run) throws IOException {
+			_in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			try {
+				_hi = _in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			_mid = _in.readLong();
+			_lo = _in.readInt();
+			return true;
+		}
+
+		void close() throws IOException {
+			_in.close();
+		}
+	}
+}
@@ -0,0 +1,277 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.db.EntryHandle;
+import fr.robincarozzani.pamaja.db.VaultStore;
+import fr.robincarozzani.pamaja.utils.Pair;
+import fr.robincarozzani.pamaja.utils.ParallelSort;
+
+/**
+ * Finds the passwords stored under several entries, and the weak ones.
+ * Each password is fingerprinted with HMAC-SHA256 under a random key drawn for the run and forgotten afterwards,
+ * so the fingerprints cannot be checked against guesses once the audit is over.
+ * Only 128 bits of fingerprint, the entry IDs and an entropy estimate are kept per entry (25 bytes),
+ * and they are grouped with an open-addressing hash table: a million entries fit in about 50 MB.
+ * @author Robin Carozzani
+ */
+public class ReuseAudit {
+
+	/**
+	 * Passwords estimated below this number of bits of entropy are reported as weak
+	 */
+	public static final int WEAK_BITS = 60;
+
+	private static final String MAC = "HmacSHA256";
+	private static final int DIGEST_CHUNK = 64;
+
+	private final VaultStore _store;
+	private final int _threads;
+
+	// Collected fingerprints, one slot per entry
+	private long[] _keys;
+	private long[] _fpHi;
+	private long[] _fpLo;
+	private byte[] _bits;
+	private int _size;
+
+	private List<List<EntryHandle>> _reused = new ArrayList<List<EntryHandle>>();
+	private List<Pair<EntryHandle, Integer>> _weak = new ArrayList<Pair<EntryHandle, Integer>>();
+	private int _checked = 0;
+
+	/**
+	 * Constructs a ReuseAudit
+	 * @param store Store holding the vault
+	 * @param threads Number of workers
+	 */
+	public ReuseAudit(VaultStore store, int threads) {
+		_store = store;
+		_threads = threads;
+	}
+
+	/**
+	 * Checks the whole vault
+	 * @param key The secret key of the vault
+	 * @throws GeneralSecurityException If an entry cannot be decrypted
+	 * @throws InterruptedException
+	 */
+	public void run(Secret key) throws GeneralSecurityException, InterruptedException {
+		byte[] macKey = new byte[32];
+		new SecureRandom().nextBytes(macKey);
+		SecretKeySpec macKeySpec = new SecretKeySpec(macKey, MAC);
+		Arrays.fill(macKey, (byte)0);
+		ThreadLocal<Mac> macs = new ThreadLocal<Mac>();
+		ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[DIGEST_CHUNK]);
+		int capacity = 1024;
+		_keys = new long[capacity];
+		_fpHi = new long[capacity];
+		_fpLo = new long[capacity];
+		_bits = new byte[capacity];
+		_size = 0;
+		try {
+			_checked = VaultScan.run(_store, key, _threads, (serviceId, loginId, password) -> {
+				Mac mac = macs.get();
+				if (mac == null) {
+					mac = Mac.getInstance(MAC);
+					mac.init(macKeySpec);
+					macs.set(mac);
+				}
+				byte[] chunk = scratch.get();
+				try {
+					for (int from=0 ; from<password.length() ; from+=DIGEST_CHUNK) {
+						int len = Math.min(DIGEST_CHUNK, password.length() - from);
+						password.copyTo(from, chunk, 0, len);
+						mac.update(chunk, 0, len);
+					}
+				} finally {
+					Arrays.fill(chunk, (byte)0);
+				}
+				ByteBuffer fp = ByteBuffer.wrap(mac.doFinal());
+				add(((long)serviceId << 32) | (loginId & 0xffffffffL), fp.getLong(0), fp.getLong(8), estimateBits(password));
+			});
+			group();
+		} finally {
+			_keys = null;
+			_fpHi = null;
+			_fpLo = null;
+			_bits = null;
+		}
+	}
+
+	/**
+	 * Gets the groups of entries sharing a password, found by the last run
+	 * @return Groups of at least two entries, each ordered by service and login ID
+	 */
+	public List<List<EntryHandle>> getReused() {
+		return _reused;
+	}
+
+	/**
+	 * Gets the weak entries found by the last run
+	 * @return Entries with the estimated entropy of their password in bits, ordered by service and login ID
+	 */
+	public List<Pair<EntryHandle, Integer>> getWeak() {
+		return _weak;
+	}
+
+	/**
+	 * Gets the number of entries checked by the last run
+	 * @return Number of entries
+	 */
+	public int getChecked() {
+		return _checked;
+	}
+
+	/**
+	 * Estimates the entropy of a password as if its characters were drawn at random
+	 * from the character classes it uses (lowercase, uppercase, digits, other ASCII, non-ASCII).
+	 * @param password The clear password
+	 * @return Estimated number of bits
+	 */
+	public static int estimateBits(Secret password) {
+		boolean lower = false;
+		boolean upper = false;
+		boolean digit = false;
+		boolean other = false;
+		boolean nonAscii = false;
+		for (int i=0 ; i<password.length() ; ++i) {
+			int c = password.byteAt(i) & 0xff;
+			if ((c >= 'a') && (c <= 'z')) {
+				lower = true;
+			} else if ((c >= 'A') && (c <= 'Z')) {
+				upper = true;
+			} else if ((c >= '0') && (c <= '9')) {
+				digit = true;
+			} else if (c < 0x80) {
+				other = true;
+			} else {
+				nonAscii = true;
+			}
+		}
+		int pool = (lower ? 26 : 0) + (upper ? 26 : 0) + (digit ? 10 : 0) + (other ? 33 : 0) + (nonAscii ? 128 : 0);
+		if (pool == 0) {
+			return 0;
+		}
+		return (int)(password.length() * Math.log(pool) / Math.log(2));
+	}
+
+	private synchronized void add(long key, long fpHi, long fpLo, int bits) {
+		if (_size == _keys.length) {
+			int capacity = _keys.length * 2;
+			_keys = Arrays.copyOf(_keys, capacity);
+			_fpHi = Arrays.copyOf(_fpHi, capacity);
+			_fpLo = Arrays.copyOf(_fpLo, capacity);
+			_bits = Arrays.copyOf(_bits, capacity);
+		}
+		_keys[_size] = key;
+		_fpHi[_size] = fpHi;
+		_fpLo[_size] = fpLo;
+		_bits[_size] = (byte)Math.min(bits, Byte.MAX_VALUE);
+		++_size;
+	}
+
+	/**
+	 * Groups the collected entries by fingerprint and builds the reports
+	 */
+	private void group() {
+		// Entries visited in key order give ordered groups and weak list
+		ParallelSort.sort(new ParallelSort.Sortable() {
+			@Override
+			public int compare(int i, int j) {
+				return Long.compare(_keys[i], _keys[j]);
+			}
+
+			@Override
+			public void swap(int i, int j) {
+				swapEntries(i, j);
+			}
+		}, 0, _size);
+		int tableSize = Integer.highestOneBit(Math.max(_size, 1) * 2) * 2;
+		int mask = tableSize - 1;
+		// Slot => 1 + index of the first entry with the fingerprint, 0 when free
+		int[] table = new int[tableSize];
+		// Entry => 1 + index of the next entry with the same fingerprint, 0 at the end
+		int[] next = new int[_size];
+		// First entry of a group => 1 + index of the last entry of the group
+		int[] last = new int[_size];
+		List<Integer> heads = new ArrayList<Integer>();
+		List<Pair<EntryHandle, Integer>> weak = new ArrayList<Pair<EntryHandle, Integer>>();
+		for (int i=0 ; i<_size ; ++i) {
+			int slot = (int)(_fpHi[i] ^ (_fpHi[i] >>> 32)) & mask;
+			while ((table[slot] != 0) && ((_fpHi[table[slot] - 1] != _fpHi[i]) || (_fpLo[table[slot] - 1] != _fpLo[i]))) {
+				slot = (slot + 1) & mask;
+			}
+			if (table[slot] == 0) {
+				table[slot] = i + 1;
+				last[i] = i + 1;
+			} else {
+				int head = table[slot] - 1;
+				if (next[head] == 0) {
+					heads.add(head);
+				}
+				next[last[head] - 1] = i + 1;
+				last[head] = i + 1;
+			}
+			if (_bits[i] < WEAK_BITS) {
+				weak.add(new Pair<EntryHandle, Integer>(handle(i), Integer.valueOf(_bits[i])));
+			}
+		}
+		Collections.sort(heads);
+		List<List<EntryHandle>> reused = new ArrayList<List<EntryHandle>>(heads.size());
+		for (int head : heads) {
+			List<EntryHandle> group = new ArrayList<EntryHandle>();
+			for (int i=head+1 ; i!=0 ; i=next[i - 1]) {
+				group.add(handle(i - 1));
+			}
+			reused.add(group);
+		}
+		_reused = reused;
+		_weak = weak;
+	}
+
+	private EntryHandle handle(int i) {
+		return new EntryHandle(_store, (int)(_keys[i] >> 32), (int)_keys[i]);
+	}
+
+	private void swapEntries(int i, int j) {
+		long k = _keys[i];
+		_keys[i] = _keys[j];
+		_keys[j] = k;
+		long f = _fpHi[i];
+		_fpHi[i] = _fpHi[j];
+		_fpHi[j] = f;
+		f = _fpLo[i];
+		_fpLo[i] = _fpLo[j];
+		_fpLo[j] = f;
+		byte b = _bits[i];
+		_bits[i] = _bits[j];
+		_bits[j] = b;
+	}
+
+}
@@ -0,0 +1,134 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.audit;
+
+import java.security.GeneralSecurityException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.VaultStore;
+
+/**
+ * Decrypts every password of the vault on a pool of workers.
+ * The vault is read in one pass while the workers decrypt the entries, each one in its own secure arena,
+ * which is wiped as soon as the entry has been handled. Only a bounded number of entries wait for a worker.
+ * @author Robin Carozzani
+ */
+class VaultScan {
+
+	/**
+	 * Handles one decrypted password, from any worker
+	 */
+	interface PasswordCheck {
+		/**
+		 * Handles one entry
+		 * @param serviceId ID of the service of the entry
+		 * @param loginId ID of the login of the entry
+		 * @param password The clear password, wiped once the method returns
+		 * @throws GeneralSecurityException
+		 */
+		void check(int serviceId, int loginId, Secret password) throws GeneralSecurityException;
+	}
+
+	private static final int ARENA_SIZE = 1024;
+	private static final int QUEUED_PER_THREAD = 64;
+
+	private VaultScan() {
+	}
+
+	/**
+	 * Decrypts and handles every password
+	 * @param store Store holding the vault
+	 * @param key The secret key of the vault
+	 * @param threads Number of workers
+	 * @param check Handler of the passwords
+	 * @return Number of handled entries
+	 * @throws GeneralSecurityException If an entry cannot be decrypted
+	 * @throws InterruptedException
+	 */
+	static int run(VaultStore store, Secret key, int threads, PasswordCheck check) throws GeneralSecurityException, InterruptedException {
+		Queue<SecureArena> arenas = new ConcurrentLinkedQueue<SecureArena>();
+		ThreadLocal<SecureArena> arena = ThreadLocal.withInitial(() -> {
+			SecureArena a = new SecureArena(ARENA_SIZE);
+			arenas.add(a);
+			return a;
+		});
+		AtomicReference<GeneralSecurityException> failure = new AtomicReference<GeneralSecurityException>();
+		AtomicInteger checked = new AtomicInteger();
+		Semaphore queued = new Semaphore(threads * QUEUED_PER_THREAD);
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "pamaja-audit");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			store.forEachEntry((serviceId, service, loginId, login, password) -> {
+				if (failure.get() != null) {
+					return false;
+				}
+				queued.acquireUninterruptibly();
+				pool.execute(() -> {
+					try {
+						decryptAndCheck(serviceId, loginId, password, key, arena.get(), check);
+						checked.incrementAndGet();
+					} catch (GeneralSecurityException e) {
+						failure.compareAndSet(null, e);
+					} finally {
+						queued.release();
+					}
+				});
+				return true;
+			});
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+		} finally {
+			pool.shutdownNow();
+			for (SecureArena a : arenas) {
+				a.close();
+			}
+		}
+		if (failure.get() != null) {
+			throw failure.get();
+		}
+		return checked.get();
+	}
+
+	private static void decryptAndCheck(int serviceId, int loginId, Ciph password, Secret key, SecureArena arena, PasswordCheck check)
+			throws GeneralSecurityException {
+		if (Ciphor.plainLength(password) > arena.remaining()) {
+			try (SecureArena large = new SecureArena(Ciphor.plainLength(password))) {
+				check.check(serviceId, loginId, Ciphor.getInstance().decrypt(password, key, large));
+			}
+			return;
+		}
+		try {
+			check.check(serviceId, loginId, Ciphor.getInstance().decrypt(password, key, arena));
+		} finally {
+			arena.reset();
+		}
+	}
+}
@@ -21,6 +21,7 @@ import java.security.InvalidKeyException;
 import java.security.Key;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -30,7 +31,9 @@ import javax.crypto.ShortBufferException;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
+import fr.robincarozzani.pamaja.metrics.Metrics;
 import fr.robincarozzani.pamaja.utils.HexHandler;
+import fr.robincarozzani.pamaja.utils.Pair;
 
 /**
  * Object handling encryption and decryption processes
@@ -42,6 +45,10 @@ public class Ciphor {
 	private static final String MODE = "CTR";
 	private static final String PADD = "NoPadding";
 	private static final String TRANSFO = ALGO+"/"+MODE+"/"+PADD;
+	private static final int BLOCK = 16;
+
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[64]);
+	private static final ThreadLocal<Cipher> CIPHERS = new ThreadLocal<Cipher>();
 
 	private static Ciphor instance = null;
 	
@@ -52,7 +59,7 @@ public class Ciphor {
 	 * Gets the unique instance of the Ciphor
 	 * @return Instance of Ciphor
 	 */
-	public static Ciphor getInstance() {
+	public static synchronized Ciphor getInstance() {
 		if (instance == null) {
 			instance = new Ciphor();
 		}
@@ -60,7 +67,99 @@ public class Ciphor {
 	}
 	
 	private Cipher getCipher() throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException  {
-		return Cipher.getInstance(TRANSFO, "BC");
+		Cipher cipher = CIPHERS.get();
+		if (cipher == null) {
+			cipher = Cipher.getInstance(TRANSFO, "BC");
+			CIPHERS.set(cipher);
+		}
+		return cipher;
+	}
+	
+	private static Key keyOf(Secret key) {
+		byte[] k = new byte[key.length()];
+		key.copyTo(0, k, 0, k.length);
+		try {
+			return new SecretKeySpec(k, ALGO);
+		} finally {
+			Arrays.fill(k, (byte)0);
+		}
+	}
+	
+	private static byte[] scratch(int size) {
+		byte[] s = SCRATCH.get();
+		if (s.length < size) {
+			s = new byte[size];
+			SCRATCH.set(s);
+		}
+		return s;
+	}
+	
+	private Ciph doEncrypt(byte[] message, int length, Key k)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
+		long t = Metrics.start();
+		Cipher cipher = getCipher();
+		cipher.init(Cipher.ENCRYPT_MODE, k);
+		byte[] cipherMessage = new byte[cipher.getOutputSize(length)];
+		int len = cipher.update(message, 0, length, cipherMessage, 0);
+		cipher.doFinal(cipherMessage, len);
+		Ciph res = new Ciph(HexHandler.toHexBytes(cipher.getIV()), HexHandler.toHexBytes(cipherMessage));
+		Metrics.record("ciphor.encrypt", t, length);
+		return res;
+	}
+	
+	private int doDecrypt(Ciph cipherMessage, Key k, byte[] plainMessage)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		long t = Metrics.start();
+		byte[] cipherMsg = HexHandler.fromHex(cipherMessage.getEnc());
+		Cipher cipher = getCipher();
+		cipher.init(Cipher.DECRYPT_MODE, k, new IvParameterSpec(HexHandler.fromHex(cipherMessage.getIV())));
+		int len = cipher.update(cipherMsg, 0, cipherMsg.length, plainMessage, 0);
+		len += cipher.doFinal(plainMessage, len);
+		Metrics.record("ciphor.decrypt", t, cipherMsg.length);
+		return len;
+	}
+	
+	/**
+	 * Gets the size of the clear message corresponding to encrypted data
+	 * @param cipherMessage The encrypted message
+	 * @return Size of the clear message
+	 */
+	public static int plainLength(Ciph cipherMessage) {
+		return cipherMessage.getEnc().length / 2;
+	}
+	
+	private static int blocks(int length) {
+		return (length + BLOCK - 1) / BLOCK;
+	}
+	
+	/**
+	 * Gets the IV of the password encrypted with a login by {@link #encryptEntry(byte[], Secret, Secret)}:
+	 * the counter block following the last block of the login
+	 * @param login The encrypted login
+	 * @return IV of the password, in hexadecimal like {@link Ciph#getIV()}
+	 */
+	public static byte[] passwordIV(Ciph login) {
+		byte[] counter = HexHandler.fromHex(login.getIV());
+		long add = blocks(plainLength(login));
+		// The whole block is a big-endian counter
+		for (int i=counter.length-1 ; (i>=0) && (add!=0) ; --i) {
+			add += counter[i] & 0xff;
+			counter[i] = (byte)add;
+			add >>>= 8;
+		}
+		return HexHandler.toHexBytes(counter);
+	}
+	
+	/**
+	 * Checks if a login and a password have been encrypted together by {@link #encryptEntry(byte[], Secret, Secret)}
+	 * @param login The encrypted login
+	 * @param password The encrypted password
+	 * @return <code>true</code> if the password continues the counter of the login
+	 */
+	public static boolean isEntry(Ciph login, Ciph password) {
+		return Arrays.equals(passwordIV(login), password.getIV());
 	}
 	
 	/**
@@ -79,13 +178,122 @@ public class Ciphor {
 	public Ciph encrypt(byte[] message, byte[] key)
 			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
 				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
-		Cipher cipher = getCipher();
-		Key k = new SecretKeySpec(key, ALGO);
-		cipher.init(Cipher.ENCRYPT_MODE, k);
-		byte[] cipherMessage = new byte[cipher.getOutputSize(message.length)];
-		int len = cipher.update(message, 0, message.length, cipherMessage, 0);
-		cipher.doFinal(cipherMessage, len);
-		return new Ciph(HexHandler.toHex(cipher.getIV()).getBytes(), HexHandler.toHex(cipherMessage).getBytes());
+		return doEncrypt(message, message.length, new SecretKeySpec(key, ALGO));
+	}
+	
+	/**
+	 * Encrypts a message with an off-heap secret key
+	 * @param message The message to encrypt
+	 * @param key The secret key to encrypt the message with
+	 * @return The encrypted message
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchProviderException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 * @throws ShortBufferException 
+	 * @throws BadPaddingException 
+	 * @throws IllegalBlockSizeException 
+	 */
+	public Ciph encrypt(byte[] message, Secret key)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
+		return doEncrypt(message, message.length, keyOf(key));
+	}
+	
+	/**
+	 * Encrypts an off-heap message with an off-heap secret key.
+	 * The message only transits through a per-thread buffer which is wiped before returning.
+	 * @param message The message to encrypt
+	 * @param key The secret key to encrypt the message with
+	 * @return The encrypted message
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchProviderException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 * @throws ShortBufferException 
+	 * @throws BadPaddingException 
+	 * @throws IllegalBlockSizeException 
+	 */
+	public Ciph encrypt(Secret message, Secret key)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
+		int length = message.length();
+		byte[] clear = scratch(length);
+		try {
+			message.copyTo(0, clear, 0, length);
+			return doEncrypt(clear, length, keyOf(key));
+		} finally {
+			Arrays.fill(clear, 0, length, (byte)0);
+		}
+	}
+	
+	/**
+	 * Encrypts a login and its password as one record, with one IV and one cipher pass.
+	 * The login is padded to whole blocks, so the password starts on a counter block of its own:
+	 * each half is returned as an ordinary message, the password having the IV given by {@link #passwordIV(Ciph)},
+	 * which can still be decrypted alone.
+	 * @param login The clear login
+	 * @param password The clear password
+	 * @param key The secret key to encrypt the entry with
+	 * @return The encrypted login and the encrypted password
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchProviderException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 * @throws ShortBufferException 
+	 * @throws BadPaddingException 
+	 * @throws IllegalBlockSizeException 
+	 */
+	public Pair<Ciph, Ciph> encryptEntry(byte[] login, Secret password, Secret key)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
+		int offset = blocks(login.length) * BLOCK;
+		int length = offset + password.length();
+		byte[] clear = scratch(length);
+		try {
+			System.arraycopy(login, 0, clear, 0, login.length);
+			Arrays.fill(clear, login.length, offset, (byte)0);
+			password.copyTo(0, clear, offset, password.length());
+			return split(doEncrypt(clear, length, keyOf(key)), login.length, offset);
+		} finally {
+			Arrays.fill(clear, 0, length, (byte)0);
+		}
+	}
+	
+	/**
+	 * Encrypts a login and its password as one record, see {@link #encryptEntry(byte[], Secret, Secret)}
+	 * @param login The clear login
+	 * @param password The clear password
+	 * @param key The secret key to encrypt the entry with
+	 * @return The encrypted login and the encrypted password
+	 * @throws NoSuchPaddingException 
+	 * @throws NoSuchProviderException 
+	 * @throws NoSuchAlgorithmException 
+	 * @throws InvalidKeyException 
+	 * @throws ShortBufferException 
+	 * @throws BadPaddingException 
+	 * @throws IllegalBlockSizeException 
+	 */
+	public Pair<Ciph, Ciph> encryptEntry(byte[] login, byte[] password, Secret key)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				ShortBufferException, IllegalBlockSizeException, BadPaddingException  {
+		int offset = blocks(login.length) * BLOCK;
+		int length = offset + password.length;
+		byte[] clear = scratch(length);
+		try {
+			System.arraycopy(login, 0, clear, 0, login.length);
+			Arrays.fill(clear, login.length, offset, (byte)0);
+			System.arraycopy(password, 0, clear, offset, password.length);
+			return split(doEncrypt(clear, length, keyOf(key)), login.length, offset);
+		} finally {
+			Arrays.fill(clear, 0, length, (byte)0);
+		}
+	}
+	
+	private static Pair<Ciph, Ciph> split(Ciph record, int loginLength, int offset) {
+		byte[] enc = record.getEnc();
+		Ciph login = new Ciph(record.getIV(), Arrays.copyOfRange(enc, 0, 2 * loginLength));
+		return new Pair<Ciph, Ciph>(login, new Ciph(passwordIV(login), Arrays.copyOfRange(enc, 2 * offset, enc.length)));
 	}
 
 	/**
@@ -105,13 +313,110 @@ public class Ciphor {
 	public byte[] decrypt(Ciph cipherMessage, byte[] key)
 			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
 				InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
-		byte[] cipherMsg = HexHandler.fromHex(new String(cipherMessage.getEnc()));
-		Cipher cipher = getCipher();
-		Key k = new SecretKeySpec(key, ALGO);
-		cipher.init(Cipher.DECRYPT_MODE, k, new IvParameterSpec(HexHandler.fromHex(new String(cipherMessage.getIV()))));
-		byte[] plainMessage = new byte[cipher.getOutputSize(cipherMsg.length)];
-		int len = cipher.update(cipherMsg, 0, cipherMsg.length, plainMessage, 0);
-		cipher.doFinal(plainMessage, len);
+		byte[] plainMessage = new byte[plainLength(cipherMessage)];
+		doDecrypt(cipherMessage, new SecretKeySpec(key, ALGO), plainMessage);
+		return plainMessage;
+	}
+	
+	/**
+	 * Decrypts a message with an off-heap secret key
+	 * @param cipherMessage The encrypted message
+	 * @param key The secret key to decrypt the message with
+	 * @return The clear message
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws ShortBufferException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	public byte[] decrypt(Ciph cipherMessage, Secret key)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		byte[] plainMessage = new byte[plainLength(cipherMessage)];
+		doDecrypt(cipherMessage, keyOf(key), plainMessage);
 		return plainMessage;
 	}
+	
+	/**
+	 * Decrypts a message straight into a secure arena.
+	 * The clear message only transits through a per-thread buffer which is wiped before returning.
+	 * @param cipherMessage The encrypted message
+	 * @param key The secret key to decrypt the message with
+	 * @param arena Arena receiving the clear message, needs {@link #plainLength(Ciph)} free bytes
+	 * @return The clear message
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws ShortBufferException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	public Secret decrypt(Ciph cipherMessage, Secret key, SecureArena arena)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		int size = plainLength(cipherMessage);
+		Secret res = arena.allocate(size);
+		byte[] clear = scratch(size);
+		try {
+			int len = doDecrypt(cipherMessage, keyOf(key), clear);
+			res.buffer().put(clear, 0, len);
+			res.truncate(len);
+		} finally {
+			Arrays.fill(clear, 0, size, (byte)0);
+		}
+		return res;
+	}
+	
+	/**
+	 * Decrypts the login and the password of an entry, in a single cipher pass when they have been encrypted together
+	 * by {@link #encryptEntry(byte[], Secret, Secret)}, one pass each otherwise.
+	 * The clear password only transits through a per-thread buffer which is wiped before returning.
+	 * @param login The encrypted login
+	 * @param password The encrypted password
+	 * @param key The secret key to decrypt the entry with
+	 * @param arena Arena receiving the clear password, needs {@link #plainLength(Ciph)} free bytes
+	 * @return The clear login, to be overwritten by the caller when done, and the clear password
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws NoSuchPaddingException
+	 * @throws InvalidKeyException
+	 * @throws InvalidAlgorithmParameterException
+	 * @throws ShortBufferException
+	 * @throws IllegalBlockSizeException
+	 * @throws BadPaddingException
+	 */
+	public Pair<byte[], Secret> decryptEntry(Ciph login, Ciph password, Secret key, SecureArena arena)
+			throws NoSuchAlgorithmException, NoSuchProviderException, NoSuchPaddingException, InvalidKeyException,
+				InvalidAlgorithmParameterException, ShortBufferException, IllegalBlockSizeException, BadPaddingException {
+		if (!isEntry(login, password)) {
+			Key k = keyOf(key);
+			byte[] clearLogin = new byte[plainLength(login)];
+			doDecrypt(login, k, clearLogin);
+			return new Pair<byte[], Secret>(clearLogin, decrypt(password, key, arena));
+		}
+		int loginLength = plainLength(login);
+		int offset = blocks(loginLength) * BLOCK;
+		int size = plainLength(password);
+		// The padding of the login was not kept: any bytes decrypt the counter blocks in between
+		byte[] record = new byte[2 * (offset + size)];
+		byte[] loginEnc = login.getEnc();
+		byte[] passwordEnc = password.getEnc();
+		Arrays.fill(record, (byte)'0');
+		System.arraycopy(loginEnc, 0, record, 0, loginEnc.length);
+		System.arraycopy(passwordEnc, 0, record, 2 * offset, passwordEnc.length);
+		Secret res = arena.allocate(size);
+		byte[] clear = scratch(offset + size);
+		try {
+			doDecrypt(new Ciph(login.getIV(), record), keyOf(key), clear);
+			res.buffer().put(clear, offset, size);
+			return new Pair<byte[], Secret>(Arrays.copyOf(clear, loginLength), res);
+		} finally {
+			Arrays.fill(clear, 0, offset + size, (byte)0);
+		}
+	}
 }
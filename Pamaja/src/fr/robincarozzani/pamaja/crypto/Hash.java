@@ -73,6 +73,23 @@ public class Hash {
 		}
 	}
 	
+	/**
+	 * Same as {@link #toString()}, as a character array the caller can wipe
+	 * @return salt;hash
+	 */
+	public char[] toChars() {
+		char[] res = new char[_salt.length + 1 + _hash.length];
+		int i = 0;
+		for (byte b : _salt) {
+			res[i++] = (char)(b & 0xff);
+		}
+		res[i++] = SEPARATOR.charAt(0);
+		for (byte b : _hash) {
+			res[i++] = (char)(b & 0xff);
+		}
+		return res;
+	}
+	
 	/**
 	 * String representation of Hash, salt;hash
 	 */
@@ -18,10 +18,12 @@ package fr.robincarozzani.pamaja.crypto;
 
 import java.security.NoSuchAlgorithmException;
 import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
 
 import javax.crypto.SecretKeyFactory;
 import javax.crypto.spec.PBEKeySpec;
 
+import fr.robincarozzani.pamaja.metrics.Metrics;
 import fr.robincarozzani.pamaja.utils.HexHandler;
 
 /**
@@ -33,6 +35,8 @@ public class Hashor {
 	private static final String ALGO = "PBKDF2WithHmacSHA1";
 	private static final int ITER = 1000;
 	
+	private static final ThreadLocal<SecretKeyFactory> FACTORIES = new ThreadLocal<SecretKeyFactory>();
+	
 	private static Hashor instance = null;
 	
 	private Hashor() {
@@ -42,18 +46,30 @@ public class Hashor {
 	 * Gets the unique instance of Hashor
 	 * @return Instance of Hashor
 	 */
-	public static Hashor getInstance() {
+	public static synchronized Hashor getInstance() {
 		if (instance == null) {
 			instance = new Hashor();
 		}
 		return instance;
 	}
 	
+	private static SecretKeyFactory factory() throws NoSuchAlgorithmException {
+		SecretKeyFactory skf = FACTORIES.get();
+		if (skf == null) {
+			skf = SecretKeyFactory.getInstance(ALGO);
+			FACTORIES.set(skf);
+		}
+		return skf;
+	}
+	
 	private byte[] doHash(char[] message, byte[] salt, int iterations, int keyLength)
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		long t = Metrics.start();
 		PBEKeySpec spec = new PBEKeySpec(message, salt, ITER, keyLength);
-		SecretKeyFactory skf = SecretKeyFactory.getInstance(ALGO);
-		return skf.generateSecret(spec).getEncoded();
+		byte[] res = factory().generateSecret(spec).getEncoded();
+		spec.clearPassword();
+		Metrics.record("hashor.derive", t, res.length);
+		return res;
 	}
 	
 	/**
@@ -67,8 +83,29 @@ public class Hashor {
 	 */
 	public Hash hash(String message, byte[] salt, int length)
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
-		byte[] hashed = doHash(message.toCharArray(), HexHandler.fromHex(new String(salt)), ITER, length);
-		return new Hash(salt, HexHandler.toHex(hashed).getBytes());
+		char[] chars = message.toCharArray();
+		try {
+			return hash(chars, salt, length);
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+	}
+	
+	/**
+	 * Hashes data with a given salt and a fixed key length
+	 * @param message Data to hash, left untouched so the caller can wipe it
+	 * @param salt Salt
+	 * @param length Key length
+	 * @return Hashed data
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	public Hash hash(char[] message, byte[] salt, int length)
+			throws NoSuchAlgorithmException, InvalidKeySpecException {
+		byte[] hashed = doHash(message, HexHandler.fromHex(salt), ITER, length);
+		Hash res = new Hash(salt, HexHandler.toHexBytes(hashed));
+		Arrays.fill(hashed, (byte)0);
+		return res;
 	}
 	
 	/**
@@ -83,8 +120,9 @@ public class Hashor {
 			throws NoSuchAlgorithmException, InvalidKeySpecException {
 		byte[] salt = storedPassword.getSalt();
 		byte[] hash = storedPassword.getHashedMessage();
-		String originalPassword = toTest.toString();
-		byte[] testHash = HexHandler.toHex(doHash(originalPassword.toCharArray(), HexHandler.fromHex(new String(salt)), ITER, hash.length * 4)).getBytes();
+		char[] originalPassword = toTest.toChars();
+		byte[] testHash = HexHandler.toHexBytes(doHash(originalPassword, HexHandler.fromHex(salt), ITER, hash.length * 4));
+		Arrays.fill(originalPassword, '\0');
 		int diff = hash.length ^ testHash.length;
 		for (int i=0 ; i<hash.length && i<testHash.length ; ++i) {
 			if ((diff |= hash[i] ^ testHash[i]) != 0) {
@@ -102,8 +140,26 @@ public class Hashor {
 	 * @throws InvalidKeySpecException
 	 */
 	public Hash generatePasswordHash(String password) throws NoSuchAlgorithmException, InvalidKeySpecException {
+		char[] chars = password.toCharArray();
+		try {
+			return generatePasswordHash(chars);
+		} finally {
+			Arrays.fill(chars, '\0');
+		}
+	}
+	
+	/**
+	 * Hashes a password, salt is random, key length is 64
+	 * @param password The password to hash, left untouched so the caller can wipe it
+	 * @return Hashed password
+	 * @throws NoSuchAlgorithmException
+	 * @throws InvalidKeySpecException
+	 */
+	public Hash generatePasswordHash(char[] password) throws NoSuchAlgorithmException, InvalidKeySpecException {
 		byte[] salt = Randgen.generateHashSalt();
-		byte[] hashed = doHash(password.toCharArray(), salt, ITER, 64);
-		return new Hash(HexHandler.toHex(salt).getBytes(), HexHandler.toHex(hashed).getBytes());		
+		byte[] hashed = doHash(password, salt, ITER, 64);
+		Hash res = new Hash(HexHandler.toHexBytes(salt), HexHandler.toHexBytes(hashed));
+		Arrays.fill(hashed, (byte)0);
+		return res;
 	}
 }
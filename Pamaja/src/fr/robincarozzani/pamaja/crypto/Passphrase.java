@@ -0,0 +1,146 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Diceware passphrase generator: words drawn uniformly from a {@link Wordlist} with a secure random generator.
+ * Words are copied straight from the list into the output, so generating batches builds no string
+ * unless one is asked for. An instance must be used by one thread at a time.
+ * @author Robin Carozzani
+ */
+public class Passphrase {
+
+	/**
+	 * Default number of words of a passphrase
+	 */
+	public static final int DEFAULT_WORDS = 6;
+
+	// Random bytes drawn at once, each word index using 4 of them
+	private static final int POOL = 256;
+
+	private final Wordlist _words;
+	private final int _wordCount;
+	private final byte _separator;
+	private final SecureRandom _random = new SecureRandom();
+	private final byte[] _pool = new byte[POOL];
+	private int _poolPos = POOL;
+	// Largest multiple of the list size below 2^32, draws above it are rejected to keep the choice uniform
+	private final long _limit;
+
+	/**
+	 * Creates a passphrase generator
+	 * @param words List to draw the words from
+	 * @param wordCount Number of words of a passphrase
+	 * @param separator ASCII character put between two words
+	 */
+	public Passphrase(Wordlist words, int wordCount, char separator) {
+		if (wordCount < 1) {
+			throw new IllegalArgumentException("A passphrase needs at least one word");
+		}
+		if (separator >= 0x80) {
+			throw new IllegalArgumentException("The separator must be an ASCII character");
+		}
+		_words = words;
+		_wordCount = wordCount;
+		_separator = (byte)separator;
+		_limit = (1L << 32) - (1L << 32) % words.size();
+	}
+
+	/**
+	 * Gets the entropy of a passphrase, the words being drawn independently and uniformly
+	 * @return Number of bits
+	 */
+	public double getEntropy() {
+		return _wordCount * _words.getBitsPerWord();
+	}
+
+	/**
+	 * Gets the length of the longest possible passphrase, to size output buffers
+	 * @return Number of UTF-8 bytes
+	 */
+	public int getMaxLength() {
+		return _wordCount * (_words.getMaxLength() + 1) - 1;
+	}
+
+	/**
+	 * Writes a new passphrase into an array
+	 * @param dest Destination array, with at least {@link #getMaxLength()} bytes from the offset
+	 * @param offset Position in the destination array
+	 * @return Length of the passphrase
+	 */
+	public int generate(byte[] dest, int offset) {
+		int pos = offset;
+		for (int i=0 ; i<_wordCount ; ++i) {
+			if (i > 0) {
+				dest[pos++] = _separator;
+			}
+			pos += _words.copyTo(nextIndex(), dest, pos);
+		}
+		return pos - offset;
+	}
+
+	/**
+	 * Generates a new passphrase directly into secure memory
+	 * @param arena Arena receiving the passphrase, with at least {@link #getMaxLength()} bytes left
+	 * @return The passphrase
+	 */
+	public Secret generate(SecureArena arena) {
+		Secret secret = arena.allocate(getMaxLength());
+		ByteBuffer b = secret.buffer();
+		for (int i=0 ; i<_wordCount ; ++i) {
+			if (i > 0) {
+				b.put(_separator);
+			}
+			_words.copyTo(nextIndex(), b);
+		}
+		secret.truncate(b.position());
+		return secret;
+	}
+
+	/**
+	 * Gives a new passphrase
+	 * @return Clear-text passphrase
+	 */
+	public String getPwd() {
+		byte[] pwd = new byte[getMaxLength()];
+		int length = generate(pwd, 0);
+		String s = new String(pwd, 0, length, StandardCharsets.UTF_8);
+		Arrays.fill(pwd, (byte)0);
+		return s;
+	}
+
+	private int nextIndex() {
+		long x;
+		do {
+			if (_poolPos == POOL) {
+				_random.nextBytes(_pool);
+				_poolPos = 0;
+			}
+			x = ((_pool[_poolPos] & 0xffL) << 24) | ((_pool[_poolPos + 1] & 0xffL) << 16)
+					| ((_pool[_poolPos + 2] & 0xffL) << 8) | (_pool[_poolPos + 3] & 0xffL);
+			// Used random bytes are not kept around
+			Arrays.fill(_pool, _poolPos, _poolPos + 4, (byte)0);
+			_poolPos += 4;
+		} while (x >= _limit);
+		return (int)(x % _words.size());
+	}
+}
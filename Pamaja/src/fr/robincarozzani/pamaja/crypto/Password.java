@@ -17,7 +17,6 @@
 package fr.robincarozzani.pamaja.crypto;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 
@@ -28,11 +27,6 @@ import java.util.Random;
  */
 public class Password {
 	
-	private static final String[] UPPERCHARS = {"A","B","C","D","E","F","G","H","I","J","K","L","M","N","O","P","Q","R","S","T","U","V","W","X","Y","Z"};
-	private static final String[] LOWERCHARS = {"a","b","c","d","e","f","g","h","i","j","k","l","m","n","o","p","q","r","s","t","u","v","w","x","y","z"};
-	private static final String[] NUMERIC = {"0","1","2","3","4","5","6","7","8","9"};
-	private static final String[] SPECIAL = {"@","&","$","#","%","*","?",":",";","!","-","_","=",".","/","<",">","(",")", "+"};
-	
 	private int _minLength;
 	private int _maxLength;
 	private int _length;
@@ -42,6 +36,7 @@ public class Password {
 	private boolean _withNumeric;
 	private boolean _withSpecials;
 	private List<String> _excluded;
+	private PasswordPolicy.Sampler _sampler;
 	
 	/**
 	 * Creates an instance of Password object
@@ -78,6 +73,7 @@ public class Password {
 	 */
 	public void exclude(String character) {
 		_excluded.add(character);
+		_sampler = null;
 	}
 	
 	/**
@@ -86,6 +82,7 @@ public class Password {
 	 */
 	public void unexclude(String character) {
 		_excluded.remove(character);
+		_sampler = null;
 	}
 	
 	/**
@@ -93,6 +90,7 @@ public class Password {
 	 */
 	public void clearExcluded() {
 		_excluded = new ArrayList<>();
+		_sampler = null;
 	}
 	
 	/**
@@ -100,22 +98,32 @@ public class Password {
 	 * @return Clear-text random password
 	 */
 	public String getPwd() {
-		List<String> alphabet = new ArrayList<>();
+		if (_sampler == null) {
+			_sampler = compile();
+		}
+		return _sampler.getPwd();
+	}
+	
+	/**
+	 * Compiles the rules of the password, again only once the excluded characters change
+	 */
+	private PasswordPolicy.Sampler compile() {
+		PasswordPolicy policy = new PasswordPolicy(_length, _length);
 		if (_withUpperChars) {
-			alphabet.addAll(Arrays.asList(UPPERCHARS));
+			policy.allow(PasswordPolicy.CharClass.UPPER);
 		}
 		if (_withLowerChars) {
-			alphabet.addAll(Arrays.asList(LOWERCHARS));
+			policy.allow(PasswordPolicy.CharClass.LOWER);
 		}
 		if (_withNumeric) {
-			alphabet.addAll(Arrays.asList(NUMERIC));
+			policy.allow(PasswordPolicy.CharClass.DIGIT);
 		}
 		if (_withSpecials) {
-			alphabet.addAll(Arrays.asList(SPECIAL));
+			policy.allow(PasswordPolicy.CharClass.SPECIAL);
 		}
 		for (String s : _excluded) {
-			alphabet.remove(s);
+			policy.forbid(s);
 		}
-		return Randgen.generateRandomString(_length, alphabet.toArray(new String[alphabet.size()]));
+		return policy.compile();
 	}
 }
\ No newline at end of file
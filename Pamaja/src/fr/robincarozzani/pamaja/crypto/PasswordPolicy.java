@@ -0,0 +1,295 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rules a generated password must follow: length range, classes of characters allowed or required a minimum
+ * number of times, forbidden characters, and whether a character may appear twice.
+ * Rules are compiled once into a {@link Sampler}, which draws compliant passwords directly: it first picks how many
+ * characters of each class the password holds, weighted by the number of passwords having these counts, then the
+ * characters, then their order. Every compliant password of the chosen length is equally likely and nothing is
+ * ever drawn again.
+ * @author Robin Carozzani
+ */
+public class PasswordPolicy {
+
+	/**
+	 * Classes of characters
+	 */
+	public enum CharClass {
+		UPPER("ABCDEFGHIJKLMNOPQRSTUVWXYZ"),
+		LOWER("abcdefghijklmnopqrstuvwxyz"),
+		DIGIT("0123456789"),
+		SPECIAL("@&$#%*?:;!-_=./<>()+");
+
+		private final String _chars;
+
+		private CharClass(String chars) {
+			_chars = chars;
+		}
+
+		/**
+		 * @return Characters of the class
+		 */
+		public String getChars() {
+			return _chars;
+		}
+	}
+
+	/**
+	 * Longest password a policy may ask for
+	 */
+	public static final int MAX_LENGTH = 128;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final int _minLength;
+	private final int _maxLength;
+	private final boolean[] _allowed = new boolean[CharClass.values().length];
+	private final int[] _minimum = new int[CharClass.values().length];
+	private final StringBuilder _forbidden = new StringBuilder();
+	private boolean _noRepeat = false;
+
+	/**
+	 * Creates a policy allowing no character yet
+	 * @param minLength Minimum number of characters
+	 * @param maxLength Maximum number of characters
+	 */
+	public PasswordPolicy(int minLength, int maxLength) {
+		if ((minLength < 1) || (maxLength < minLength) || (maxLength > MAX_LENGTH)) {
+			throw new IllegalArgumentException("Length range must be within 1 and "+MAX_LENGTH);
+		}
+		_minLength = minLength;
+		_maxLength = maxLength;
+	}
+
+	/**
+	 * Allows the characters of a class
+	 * @param c The class
+	 */
+	public void allow(CharClass c) {
+		_allowed[c.ordinal()] = true;
+	}
+
+	/**
+	 * Requires a minimum number of characters of a class, which is allowed as well
+	 * @param c The class
+	 * @param minimum Minimum number of characters of the class
+	 */
+	public void require(CharClass c, int minimum) {
+		allow(c);
+		_minimum[c.ordinal()] = minimum;
+	}
+
+	/**
+	 * Forbids characters, whatever their class
+	 * @param characters The characters
+	 */
+	public void forbid(String characters) {
+		_forbidden.append(characters);
+	}
+
+	/**
+	 * Sets whether each character may appear only once
+	 * @param noRepeat <code>true</code> to forbid repeated characters
+	 */
+	public void setNoRepeat(boolean noRepeat) {
+		_noRepeat = noRepeat;
+	}
+
+	/**
+	 * Precomputes the sampler of the policy. Later changes of the policy do not affect it.
+	 * @return The sampler
+	 * @throws IllegalArgumentException If some length of the range cannot satisfy the policy
+	 */
+	public Sampler compile() {
+		int classes = _allowed.length;
+		char[][] alphabets = new char[classes][];
+		for (CharClass c : CharClass.values()) {
+			StringBuilder chars = new StringBuilder();
+			if (_allowed[c.ordinal()]) {
+				for (char ch : c.getChars().toCharArray()) {
+					if (_forbidden.indexOf(String.valueOf(ch)) < 0) {
+						chars.append(ch);
+					}
+				}
+			}
+			alphabets[c.ordinal()] = chars.toString().toCharArray();
+			if ((_minimum[c.ordinal()] > 0) && (alphabets[c.ordinal()].length == 0)) {
+				throw new IllegalArgumentException("Not enough allowed "+c+" characters for the policy");
+			}
+		}
+		// ways[c][k]: ways to pick k characters of class c, in order
+		double[][] ways = new double[classes][_maxLength + 1];
+		for (int c=0 ; c<classes ; ++c) {
+			ways[c][0] = 1;
+			for (int k=1 ; k<=_maxLength ; ++k) {
+				int choices = _noRepeat ? alphabets[c].length - k + 1 : alphabets[c].length;
+				ways[c][k] = (choices > 0) ? ways[c][k - 1] * choices : 0;
+			}
+		}
+		double[][] binomial = new double[_maxLength + 1][];
+		for (int n=0 ; n<=_maxLength ; ++n) {
+			binomial[n] = new double[n + 1];
+			binomial[n][0] = 1;
+			binomial[n][n] = 1;
+			for (int k=1 ; k<n ; ++k) {
+				binomial[n][k] = binomial[n - 1][k - 1] + binomial[n - 1][k];
+			}
+		}
+		// total[c][r]: passwords of r characters made of classes c and after, meeting their minimums.
+		// cumulated[c][r][k]: part of total[c][r] where class c has at most k characters.
+		double[][] total = new double[classes + 1][_maxLength + 1];
+		double[][][] cumulated = new double[classes][_maxLength + 1][];
+		total[classes][0] = 1;
+		for (int c=classes-1 ; c>=0 ; --c) {
+			for (int r=0 ; r<=_maxLength ; ++r) {
+				cumulated[c][r] = new double[r + 1];
+				double sum = 0;
+				for (int k=0 ; k<=r ; ++k) {
+					if (k >= _minimum[c]) {
+						// Positions of the class among the r left, its characters, then the other classes
+						sum += binomial[r][k] * ways[c][k] * total[c + 1][r - k];
+					}
+					cumulated[c][r][k] = sum;
+				}
+				total[c][r] = sum;
+			}
+		}
+		for (int length=_minLength ; length<=_maxLength ; ++length) {
+			if (total[0][length] == 0) {
+				throw new IllegalArgumentException("No password of "+length+" characters satisfies the policy");
+			}
+		}
+		return new Sampler(_minLength, _maxLength, _noRepeat, alphabets, total[0], cumulated);
+	}
+
+	/**
+	 * Compiled policy, immutable and usable from any thread
+	 */
+	public static class Sampler {
+		private final int _minLength;
+		private final int _maxLength;
+		private final boolean _noRepeat;
+		private final char[][] _alphabets;
+		private final double[] _total;
+		private final double[][][] _cumulated;
+
+		private Sampler(int minLength, int maxLength, boolean noRepeat, char[][] alphabets, double[] total, double[][][] cumulated) {
+			_minLength = minLength;
+			_maxLength = maxLength;
+			_noRepeat = noRepeat;
+			_alphabets = alphabets;
+			_total = total;
+			_cumulated = cumulated;
+		}
+
+		/**
+		 * Gets the entropy of the generated passwords, as the min-entropy of their distribution:
+		 * the length is drawn uniformly, then the password uniformly among the compliant ones of that length
+		 * @return Number of bits
+		 */
+		public double getEntropy() {
+			double fewest = Double.MAX_VALUE;
+			for (int length=_minLength ; length<=_maxLength ; ++length) {
+				fewest = Math.min(fewest, _total[length]);
+			}
+			return (Math.log(_maxLength - _minLength + 1) + Math.log(fewest)) / Math.log(2);
+		}
+
+		/**
+		 * Gets the length of the longest password, to size output buffers
+		 * @return Number of characters
+		 */
+		public int getMaxLength() {
+			return _maxLength;
+		}
+
+		/**
+		 * Writes a new compliant password into an array
+		 * @param random Source of randomness
+		 * @param dest Destination array, with at least {@link #getMaxLength()} characters
+		 * @return Length of the password
+		 */
+		public int generate(Random random, char[] dest) {
+			int length = _minLength + random.nextInt(_maxLength - _minLength + 1);
+			int pos = 0;
+			int left = length;
+			for (int c=0 ; c<_alphabets.length ; ++c) {
+				int count = (c == _alphabets.length - 1) ? left : drawCount(random, _cumulated[c][left]);
+				char[] alphabet = _alphabets[c];
+				if (_noRepeat) {
+					// Partial shuffle of the class: its first characters are a uniform draw without repetition
+					alphabet = alphabet.clone();
+					for (int i=0 ; i<count ; ++i) {
+						int j = i + random.nextInt(alphabet.length - i);
+						char tmp = alphabet[i];
+						alphabet[i] = alphabet[j];
+						alphabet[j] = tmp;
+						dest[pos++] = alphabet[i];
+					}
+					Arrays.fill(alphabet, '\0');
+				} else {
+					for (int i=0 ; i<count ; ++i) {
+						dest[pos++] = alphabet[random.nextInt(alphabet.length)];
+					}
+				}
+				left -= count;
+			}
+			// Uniform order of the characters
+			for (int i=length-1 ; i>0 ; --i) {
+				int j = random.nextInt(i + 1);
+				char tmp = dest[i];
+				dest[i] = dest[j];
+				dest[j] = tmp;
+			}
+			return length;
+		}
+
+		/**
+		 * Gives a new compliant password, drawn with a secure random generator
+		 * @return Clear-text password
+		 */
+		public String getPwd() {
+			char[] pwd = new char[_maxLength];
+			int length = generate(RANDOM, pwd);
+			String s = new String(pwd, 0, length);
+			Arrays.fill(pwd, '\0');
+			return s;
+		}
+
+		private static int drawCount(Random random, double[] cumulated) {
+			double x = random.nextDouble() * cumulated[cumulated.length - 1];
+			int lo = 0;
+			int hi = cumulated.length - 1;
+			// First count whose cumulated weight exceeds x
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (cumulated[mid] > x) {
+					hi = mid;
+				} else {
+					lo = mid + 1;
+				}
+			}
+			return lo;
+		}
+	}
+}
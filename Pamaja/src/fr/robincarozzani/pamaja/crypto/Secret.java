@@ -0,0 +1,133 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Sensitive data stored in a {@link SecureArena}
+ * @author Robin Carozzani
+ */
+public class Secret implements AutoCloseable {
+
+	private static final int CHUNK = 64;
+
+	private final ByteBuffer _data;
+	private int _length;
+
+	Secret(ByteBuffer data) {
+		_data = data;
+		_length = data.capacity();
+	}
+
+	/**
+	 * Gets the number of bytes of the secret
+	 * @return Length of the secret
+	 */
+	public int length() {
+		return _length;
+	}
+
+	/**
+	 * Gets one byte of the secret
+	 * @param index Position of the byte
+	 * @return Byte at the given position
+	 */
+	public byte byteAt(int index) {
+		if (index >= _length) {
+			throw new IndexOutOfBoundsException(index + " >= " + _length);
+		}
+		return _data.get(index);
+	}
+
+	/**
+	 * Gets a writable view over the whole room of the secret
+	 * @return Buffer positioned at 0
+	 */
+	ByteBuffer buffer() {
+		ByteBuffer b = _data.duplicate();
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Shrinks the secret when less data than reserved has been written
+	 * @param length New length of the secret
+	 */
+	void truncate(int length) {
+		for (int i=length ; i<_length ; ++i) {
+			_data.put(i, (byte)0);
+		}
+		_length = length;
+	}
+
+	/**
+	 * Copies part of the secret to a heap array, which the caller must overwrite when done
+	 * @param from Position of the first byte to copy
+	 * @param dest Destination array
+	 * @param offset Position in the destination array
+	 * @param length Number of bytes to copy
+	 */
+	public void copyTo(int from, byte[] dest, int offset, int length) {
+		if (from + length > _length) {
+			throw new IndexOutOfBoundsException((from + length) + " > " + _length);
+		}
+		ByteBuffer b = _data.duplicate();
+		b.position(from);
+		b.get(dest, offset, length);
+	}
+
+	/**
+	 * Writes the secret to a stream, through a small buffer which is wiped afterwards
+	 * @param out Stream to write to
+	 * @throws IOException
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		byte[] chunk = new byte[CHUNK];
+		try {
+			for (int from=0 ; from<_length ; from+=CHUNK) {
+				int len = Math.min(CHUNK, _length - from);
+				copyTo(from, chunk, 0, len);
+				out.write(chunk, 0, len);
+			}
+		} finally {
+			for (int i=0 ; i<chunk.length ; ++i) {
+				chunk[i] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Overwrites the secret with zeros
+	 */
+	public void wipe() {
+		for (int i=0 ; i<_data.capacity() ; ++i) {
+			_data.put(i, (byte)0);
+		}
+		_length = 0;
+	}
+
+	/**
+	 * Same as {@link #wipe()}
+	 */
+	@Override
+	public void close() {
+		wipe();
+	}
+}
@@ -0,0 +1,110 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap memory region holding key material and decrypted data.
+ * The region is a direct buffer, so the garbage collector never copies its content around,
+ * and it is overwritten with zeros on {@link #reset()} and {@link #close()}.
+ * Allocation is a simple bump of a cursor: secrets live until the arena is reset or closed.
+ * @author Robin Carozzani
+ */
+public class SecureArena implements AutoCloseable {
+
+	private final ByteBuffer _buffer;
+	private int _used;
+	private boolean _closed;
+
+	/**
+	 * Constructs a SecureArena
+	 * @param capacity Number of bytes available for secrets
+	 */
+	public SecureArena(int capacity) {
+		_buffer = ByteBuffer.allocateDirect(capacity);
+		_used = 0;
+		_closed = false;
+	}
+
+	/**
+	 * Reserves room for a secret
+	 * @param length Number of bytes of the secret
+	 * @return Zero-filled secret
+	 * @throws IllegalStateException If the arena is closed or has not enough room left
+	 */
+	public synchronized Secret allocate(int length) {
+		if (_closed) {
+			throw new IllegalStateException("Arena is closed");
+		}
+		if (length > _buffer.capacity() - _used) {
+			throw new IllegalStateException("Arena is full ("+_used+"/"+_buffer.capacity()+" bytes used)");
+		}
+		ByteBuffer view = _buffer.duplicate();
+		view.position(_used);
+		view.limit(_used + length);
+		_used += length;
+		return new Secret(view.slice());
+	}
+
+	/**
+	 * Copies data into a new secret, the source is then overwritten with zeros
+	 * @param data Data to move off-heap
+	 * @return Secret holding the data
+	 */
+	public Secret moveIn(byte[] data) {
+		Secret s = allocate(data.length);
+		s.buffer().put(data);
+		for (int i=0 ; i<data.length ; ++i) {
+			data[i] = 0;
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the number of bytes still available
+	 * @return Number of free bytes
+	 */
+	public synchronized int remaining() {
+		return _buffer.capacity() - _used;
+	}
+
+	/**
+	 * Wipes every secret of the arena and makes its room available again.
+	 * Secrets allocated before must not be used afterwards.
+	 */
+	public synchronized void reset() {
+		wipe(_used);
+		_used = 0;
+	}
+
+	/**
+	 * Wipes every secret of the arena, no more allocation is possible afterwards
+	 */
+	@Override
+	public synchronized void close() {
+		wipe(_buffer.capacity());
+		_used = 0;
+		_closed = true;
+	}
+
+	private void wipe(int length) {
+		for (int i=0 ; i<length ; ++i) {
+			_buffer.put(i, (byte)0);
+		}
+	}
+}
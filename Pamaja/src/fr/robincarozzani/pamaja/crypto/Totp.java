@@ -0,0 +1,280 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Locale;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Time-based one-time passwords (RFC 6238).
+ * A TOTP secret is kept packed with its parameters, as stored encrypted in the vault:
+ * one byte for the algorithm, one for the number of digits, two for the period in seconds, then the key.
+ * Codes are computed with one {@link Mac} per thread and algorithm, the key only transiting through
+ * a per-thread buffer which is wiped afterwards.
+ * @author Robin Carozzani
+ */
+public class Totp {
+
+	/**
+	 * HMAC algorithms allowed by RFC 6238
+	 */
+	public enum Algorithm {
+		SHA1("HmacSHA1"),
+		SHA256("HmacSHA256"),
+		SHA512("HmacSHA512");
+
+		private final String _macName;
+
+		private Algorithm(String macName) {
+			_macName = macName;
+		}
+
+		/**
+		 * @return Name of the JCE algorithm
+		 */
+		public String getMacName() {
+			return _macName;
+		}
+	}
+
+	/**
+	 * Size of the parameters in front of the key in a packed secret
+	 */
+	public static final int HEADER = 4;
+	/**
+	 * Number of digits of the codes when the service does not tell
+	 */
+	public static final int DEFAULT_DIGITS = 6;
+	/**
+	 * Validity of a code in seconds when the service does not tell
+	 */
+	public static final int DEFAULT_PERIOD = 30;
+
+	private static final String BASE32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+	private static final int[] POWERS = {1, 10, 100, 1000, 10000, 100000, 1000000, 10000000, 100000000};
+	private static final int MAX_KEY = 128;
+
+	private static final ThreadLocal<Mac[]> MACS = ThreadLocal.withInitial(() -> new Mac[Algorithm.values().length]);
+	private static final ThreadLocal<byte[]> SCRATCH = ThreadLocal.withInitial(() -> new byte[MAX_KEY + 8]);
+
+	private Totp() {
+	}
+
+	/**
+	 * Packs a key and its parameters into a secret, the key is then overwritten with zeros
+	 * @param algorithm HMAC algorithm
+	 * @param digits Number of digits of the codes, from 6 to 8
+	 * @param period Validity of a code in seconds
+	 * @param key Raw key
+	 * @param arena Arena receiving the packed secret
+	 * @return Packed secret
+	 */
+	public static Secret pack(Algorithm algorithm, int digits, int period, byte[] key, SecureArena arena) {
+		if ((digits < 6) || (digits > 8)) {
+			throw new IllegalArgumentException("A code has 6 to 8 digits");
+		}
+		if ((period < 1) || (period > 0xFFFF)) {
+			throw new IllegalArgumentException("Invalid period: " + period);
+		}
+		if ((key.length == 0) || (key.length > MAX_KEY)) {
+			throw new IllegalArgumentException("A key has 1 to " + MAX_KEY + " bytes");
+		}
+		byte[] packed = new byte[HEADER + key.length];
+		packed[0] = (byte)algorithm.ordinal();
+		packed[1] = (byte)digits;
+		packed[2] = (byte)(period >>> 8);
+		packed[3] = (byte)period;
+		System.arraycopy(key, 0, packed, HEADER, key.length);
+		Arrays.fill(key, (byte)0);
+		return arena.moveIn(packed);
+	}
+
+	/**
+	 * Packs a secret as given by a service: either a bare base32 key, which gets the default parameters,
+	 * or an <code>otpauth://totp/</code> URI
+	 * @param input Key or URI
+	 * @param arena Arena receiving the packed secret
+	 * @return Packed secret
+	 * @throws IllegalArgumentException If the input is malformed
+	 */
+	public static Secret parse(String input, SecureArena arena) {
+		String text = input.trim();
+		if (!text.regionMatches(true, 0, "otpauth://", 0, 10)) {
+			return pack(Algorithm.SHA1, DEFAULT_DIGITS, DEFAULT_PERIOD, decodeBase32(text), arena);
+		}
+		if (!text.regionMatches(true, 10, "totp/", 0, 5)) {
+			throw new IllegalArgumentException("Only TOTP URIs are supported");
+		}
+		int query = text.indexOf('?');
+		if (query < 0) {
+			throw new IllegalArgumentException("URI without parameters");
+		}
+		String secret = null;
+		Algorithm algorithm = Algorithm.SHA1;
+		int digits = DEFAULT_DIGITS;
+		int period = DEFAULT_PERIOD;
+		try {
+			for (String param : text.substring(query + 1).split("&")) {
+				int eq = param.indexOf('=');
+				String name = (eq < 0) ? param : param.substring(0, eq);
+				String value = (eq < 0) ? "" : URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+				switch (name.toLowerCase(Locale.ROOT)) {
+				case "secret":
+					secret = value;
+					break;
+				case "algorithm":
+					algorithm = Algorithm.valueOf(value.toUpperCase(Locale.ROOT));
+					break;
+				case "digits":
+					digits = Integer.parseInt(value);
+					break;
+				case "period":
+					period = Integer.parseInt(value);
+					break;
+				default:
+					// Issuer, image... are not needed for the codes
+				}
+			}
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		if (secret == null) {
+			throw new IllegalArgumentException("URI without secret");
+		}
+		return pack(algorithm, digits, period, decodeBase32(secret), arena);
+	}
+
+	/**
+	 * Decodes base32 (RFC 4648), ignoring case, spaces, dashes and padding
+	 * @param text Encoded key
+	 * @return Raw key
+	 * @throws IllegalArgumentException If a character is not part of the alphabet
+	 */
+	public static byte[] decodeBase32(String text) {
+		byte[] out = new byte[text.length() * 5 / 8];
+		int buffer = 0;
+		int bits = 0;
+		int length = 0;
+		for (int i=0 ; i<text.length() ; ++i) {
+			char c = Character.toUpperCase(text.charAt(i));
+			if ((c == ' ') || (c == '-') || (c == '=')) {
+				continue;
+			}
+			int value = BASE32.indexOf(c);
+			if (value < 0) {
+				throw new IllegalArgumentException("Not a base32 character: " + c);
+			}
+			buffer = (buffer << 5) | value;
+			bits += 5;
+			if (bits >= 8) {
+				bits -= 8;
+				out[length++] = (byte)(buffer >>> bits);
+			}
+		}
+		byte[] key = Arrays.copyOf(out, length);
+		Arrays.fill(out, (byte)0);
+		return key;
+	}
+
+	/**
+	 * Gets the algorithm of a packed secret
+	 * @param packed Packed secret
+	 * @return HMAC algorithm
+	 */
+	public static Algorithm algorithmOf(Secret packed) {
+		return Algorithm.values()[packed.byteAt(0)];
+	}
+
+	/**
+	 * Gets the number of digits of the codes of a packed secret
+	 * @param packed Packed secret
+	 * @return Number of digits
+	 */
+	public static int digitsOf(Secret packed) {
+		return packed.byteAt(1);
+	}
+
+	/**
+	 * Gets the validity of the codes of a packed secret
+	 * @param packed Packed secret
+	 * @return Period in seconds
+	 */
+	public static int periodOf(Secret packed) {
+		return ((packed.byteAt(2) & 0xFF) << 8) | (packed.byteAt(3) & 0xFF);
+	}
+
+	private static Mac mac(Algorithm algorithm) throws GeneralSecurityException {
+		Mac[] macs = MACS.get();
+		Mac mac = macs[algorithm.ordinal()];
+		if (mac == null) {
+			mac = Mac.getInstance(algorithm.getMacName());
+			macs[algorithm.ordinal()] = mac;
+		}
+		return mac;
+	}
+
+	/**
+	 * Computes the code of a packed secret at a given time
+	 * @param packed Packed secret
+	 * @param epochSeconds Time, in seconds since 1970-01-01T00:00:00Z
+	 * @return Code, to be shown on {@link #digitsOf(Secret)} digits
+	 * @throws GeneralSecurityException
+	 */
+	public static int code(Secret packed, long epochSeconds) throws GeneralSecurityException {
+		Algorithm algorithm = algorithmOf(packed);
+		int keyLength = packed.length() - HEADER;
+		long counter = epochSeconds / periodOf(packed);
+		byte[] scratch = SCRATCH.get();
+		Mac mac = mac(algorithm);
+		try {
+			packed.copyTo(HEADER, scratch, 0, keyLength);
+			mac.init(new SecretKeySpec(scratch, 0, keyLength, algorithm.getMacName()));
+			for (int i=0 ; i<8 ; ++i) {
+				scratch[MAX_KEY + i] = (byte)(counter >>> (56 - 8 * i));
+			}
+			mac.update(scratch, MAX_KEY, 8);
+			byte[] hash = mac.doFinal();
+			int offset = hash[hash.length - 1] & 0x0F;
+			int binary = ((hash[offset] & 0x7F) << 24) | ((hash[offset + 1] & 0xFF) << 16)
+					| ((hash[offset + 2] & 0xFF) << 8) | (hash[offset + 3] & 0xFF);
+			return binary % POWERS[digitsOf(packed)];
+		} finally {
+			Arrays.fill(scratch, 0, keyLength, (byte)0);
+		}
+	}
+
+	/**
+	 * Formats a code with its leading zeros
+	 * @param code Code computed by {@link #code(Secret, long)}
+	 * @param digits Number of digits
+	 * @return Code as shown by authenticator applications
+	 */
+	public static String format(int code, int digits) {
+		String s = Integer.toString(code);
+		StringBuilder sb = new StringBuilder(digits);
+		for (int i=s.length() ; i<digits ; ++i) {
+			sb.append('0');
+		}
+		return sb.append(s).toString();
+	}
+}
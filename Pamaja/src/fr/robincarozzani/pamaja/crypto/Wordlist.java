@@ -0,0 +1,225 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.crypto;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+
+/**
+ * List of words for passphrases, read from a memory-mapped file without building any string.
+ * The list is ingested once from text (one word per line, optionally preceded by its dice roll like the EFF lists)
+ * into a binary file holding the offset of every word followed by the UTF-8 words, so opening it costs nothing
+ * whatever its size and any word is found with a single offset lookup.
+ * @author Robin Carozzani
+ */
+public class Wordlist {
+
+	private static final int MAGIC = 0x504d4a57;
+	private static final int FORMAT_VERSION = 1;
+	// Magic, version, word count, length of the longest word
+	private static final int HEADER = 16;
+
+	private final MappedByteBuffer _buffer;
+	private final int _count;
+	private final int _maxLength;
+	// Position of the first word in the file
+	private final int _data;
+
+	private Wordlist(MappedByteBuffer buffer, int count, int maxLength) {
+		_buffer = buffer;
+		_count = count;
+		_maxLength = maxLength;
+		_data = HEADER + (count + 1) * 4;
+	}
+
+	/**
+	 * Opens an ingested list
+	 * @param file File written by {@link #build(File, File)}
+	 * @return The opened list
+	 * @throws IOException If the file cannot be read or is not a word list
+	 */
+	public static Wordlist open(File file) throws IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if ((raf.length() < HEADER) || (raf.readInt() != MAGIC)) {
+				throw new IOException(file + " is not a word list");
+			}
+			if (raf.readInt() != FORMAT_VERSION) {
+				throw new IOException(file + " has an unsupported format version");
+			}
+			int count = raf.readInt();
+			int maxLength = raf.readInt();
+			if ((count < 1) || (raf.length() > Integer.MAX_VALUE) || (raf.length() < HEADER + (count + 1) * 4L)) {
+				throw new IOException(file + " is truncated");
+			}
+			MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			int data = HEADER + (count + 1) * 4;
+			if (data + buffer.getInt(HEADER + count * 4) != raf.length()) {
+				throw new IOException(file + " is truncated");
+			}
+			return new Wordlist(buffer, count, maxLength);
+		}
+	}
+
+	/**
+	 * Gets the number of words of the list
+	 * @return Number of distinct words
+	 */
+	public int size() {
+		return _count;
+	}
+
+	/**
+	 * Gets the length of the longest word
+	 * @return Number of UTF-8 bytes
+	 */
+	public int getMaxLength() {
+		return _maxLength;
+	}
+
+	/**
+	 * Gets the entropy brought by one word drawn uniformly from the list
+	 * @return Number of bits
+	 */
+	public double getBitsPerWord() {
+		return Math.log(_count) / Math.log(2);
+	}
+
+	/**
+	 * Gets the length of a word
+	 * @param index Position of the word in the list
+	 * @return Number of UTF-8 bytes
+	 */
+	public int length(int index) {
+		int pos = HEADER + index * 4;
+		return _buffer.getInt(pos + 4) - _buffer.getInt(pos);
+	}
+
+	/**
+	 * Copies a word into a buffer at its position, which is moved past the word
+	 * @param index Position of the word in the list
+	 * @param dest Destination buffer
+	 * @return Number of copied bytes
+	 */
+	public int copyTo(int index, ByteBuffer dest) {
+		int from = _data + _buffer.getInt(HEADER + index * 4);
+		int length = length(index);
+		for (int i=0 ; i<length ; ++i) {
+			dest.put(_buffer.get(from + i));
+		}
+		return length;
+	}
+
+	/**
+	 * Copies a word into an array
+	 * @param index Position of the word in the list
+	 * @param dest Destination array
+	 * @param offset Position in the destination array
+	 * @return Number of copied bytes
+	 */
+	public int copyTo(int index, byte[] dest, int offset) {
+		int from = _data + _buffer.getInt(HEADER + index * 4);
+		int length = length(index);
+		for (int i=0 ; i<length ; ++i) {
+			dest[offset + i] = _buffer.get(from + i);
+		}
+		return length;
+	}
+
+	/**
+	 * Gets a word
+	 * @param index Position of the word in the list
+	 * @return The word
+	 */
+	public String get(int index) {
+		byte[] word = new byte[length(index)];
+		copyTo(index, word, 0);
+		return new String(word, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Ingests a text list: one word per line, anything before the last blank of a line (such as a dice roll) being ignored.
+	 * Blank lines and duplicates are dropped and the words are sorted. The output is written to a temporary file
+	 * renamed once complete.
+	 * @param input Text list
+	 * @param output Binary list to write
+	 * @return Number of distinct words
+	 * @throws IOException If a file cannot be read or written, or the list is empty
+	 */
+	public static int build(File input, File output) throws IOException {
+		TreeSet<String> words = new TreeSet<String>();
+		try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] tokens = line.trim().split("\\s+");
+				String word = tokens[tokens.length - 1];
+				if (!word.isEmpty()) {
+					words.add(word);
+				}
+			}
+		}
+		if (words.isEmpty()) {
+			throw new IOException(input + " holds no word");
+		}
+		List<byte[]> encoded = new ArrayList<byte[]>(words.size());
+		int maxLength = 0;
+		for (String word : words) {
+			byte[] b = word.getBytes(StandardCharsets.UTF_8);
+			encoded.add(b);
+			maxLength = Math.max(maxLength, b.length);
+		}
+		File tmp = new File(output.getPath() + ".tmp");
+		try (FileOutputStream fos = new FileOutputStream(tmp);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(encoded.size());
+			out.writeInt(maxLength);
+			int offset = 0;
+			for (byte[] word : encoded) {
+				out.writeInt(offset);
+				offset += word.length;
+			}
+			out.writeInt(offset);
+			for (byte[] word : encoded) {
+				out.write(word);
+			}
+			out.flush();
+			fos.getFD().sync();
+		}
+		if (output.exists() && !output.delete()) {
+			throw new IOException("Cannot replace " + output);
+		}
+		if (!tmp.renameTo(output)) {
+			throw new IOException("Cannot rename " + tmp + " to " + output);
+		}
+		return encoded.size();
+	}
+}
@@ -17,34 +17,89 @@
 package fr.robincarozzani.pamaja.db;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import fr.robincarozzani.pamaja.Launcher;
 import fr.robincarozzani.pamaja.crypto.Ciph;
 import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.IntMap;
 import fr.robincarozzani.pamaja.utils.Pair;
 
 /**
  * Object handling database communications
  * @author Robin Carozzani
  */
-public class DBHandler {
+public class DBHandler implements VaultStore {
+	
+	/**
+	 * Receives the TOTP secrets of the vault one by one
+	 */
+	public interface TotpVisitor {
+		/**
+		 * Handles one secret
+		 * @param serviceId ID of the service of the entry
+		 * @param loginId ID of the login of the entry
+		 * @param secret Encrypted TOTP secret
+		 */
+		void visit(int serviceId, int loginId, Ciph secret);
+	}
 	
-	private static final String DB_LOC = "data";
 	private static final String DB_NAME = "PamajaDB.db";
+	private static final String SHARD_NAME = "PamajaDB.shard%d-%d.db";
+	private static final String ROTATION_SUFFIX = "_rot";
+	private static final String SERVICE_INDEX = "ix_sercl_ser";
 	private static final String[] ACC_VERSIONS = {Launcher.PROG_VERSION, "0.1"};
 
+	private final String dbDir;
 	private Connection connection = null;
+	private Connection[] shards = null;
+	private WriteBehindQueue[] writers = null;
+	private List<Map<String, PreparedStatement>> statements = null;
+	// Local ID of every service name, per shard, as committed
+	private List<Map<String, Integer>> serviceIds = null;
+	// Services created by the transaction in progress, per shard, only used by its writer thread
+	private List<Map<String, Integer>> newServices = null;
+	private ExecutorService fanOut = null;
+	private volatile IntegrityTree integrity = null;
+	// Why the vault is not protected by its trees, null if it is
+	private volatile ScrubReport.Problem integrityMarker = null;
+	private StorageProfile profile = StorageProfile.BALANCED;
 
 	private static DBHandler instance = null;
 
 	private DBHandler() {
+		this(System.getProperty("pamaja.db.dir", "data"));
+	}
+
+	/**
+	 * Constructs a DBHandler on its own directory, independent from the unique instance
+	 * @param dir Directory of the database files
+	 */
+	public DBHandler(String dir) {
+		dbDir = dir;
 		try {
 			Class.forName("org.sqlite.JDBC");
 		} catch (ClassNotFoundException e) {
@@ -56,7 +111,7 @@ public class DBHandler {
 	 * Gets unique instance of DBHandler
 	 * @return Instance of DBHandler
 	 */
-	public static DBHandler getInstance() {
+	public static synchronized DBHandler getInstance() {
 		if (instance == null) {
 			instance = new DBHandler();
 		}
@@ -64,35 +119,219 @@ public class DBHandler {
 	}
 	
 	/**
-	 * Establishes a connection to the database
+	 * Checks if the database file already exists, without opening it
+	 * @return <code>true</code> if a database file is present
 	 */
+	@Override
+	public boolean exists() {
+		return (new File(dbDir).exists()) &&
+				(new File(dbDir).isDirectory()) &&
+				(new File(dbDir+"/"+DB_NAME).exists());
+	}
+	
+	/**
+	 * Establishes a connection to the database, with the storage profile selected by <code>pamaja.db.profile</code>
+	 */
+	@Override
 	public void connect() {
-		boolean newDB = (
-				!(
-						(new File(DB_LOC).exists()) &&
-						(new File(DB_LOC).isDirectory()) &&
-						(new File(DB_LOC+"/"+DB_NAME).exists())
-				));
-		new File(DB_LOC).mkdir();
-		try {
-			connection = DriverManager.getConnection("jdbc:sqlite:"+DB_LOC+"/"+DB_NAME);
-			Statement stmt = connection.createStatement();
-			stmt.executeUpdate("PRAGMA synchronous = OFF;");
-			stmt.setQueryTimeout(30);
-			stmt.close();
+		long t = Metrics.start();
+		profile = StorageProfile.selected();
+		boolean newDB = !exists();
+		new File(dbDir).mkdir();
+		try {
+			connection = openConnection(DB_NAME);
 			if (newDB) {
-				createDB();
+				createDB(Math.max(1, Integer.getInteger("pamaja.db.shards", 1).intValue()));
 			}
+			createChangeLog(connection);
+			openShards(readShardCount());
 		} catch(SQLException e) {
 			e.printStackTrace();
 		}
+		Metrics.record("db.connect", t, 0);
+	}
+	
+	private Connection openConnection(String fileName) throws SQLException {
+		return openConnection(dbDir, fileName);
+	}
+	
+	private Connection openConnection(String dir, String fileName) throws SQLException {
+		Connection c = DriverManager.getConnection("jdbc:sqlite:"+dir+"/"+fileName);
+		profile.apply(c, false);
+		return c;
+	}
+	
+	/**
+	 * Gets the storage profile the database has been opened with
+	 * @return Storage profile
+	 */
+	public StorageProfile getStorageProfile() {
+		return profile;
+	}
+	
+	private static String shardFileName(int shard, int count) {
+		return (count == 1) ? DB_NAME : String.format(SHARD_NAME, shard, count);
+	}
+	
+	private int readShardCount() {
+		return readShardCount(connection);
+	}
+	
+	private static int readShardCount(Connection c) {
+		if (!tableExists(c, "shar")) {
+			return 1;
+		}
+		ResultSet rs = executeWithResult(c, "SELECT count FROM shar");
+		int count = 1;
+		try {
+			if (rs.next()) {
+				count = rs.getInt("count");
+			}
+			rs.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return count;
+	}
+	
+	private void openShards(int count) throws SQLException {
+		shards = new Connection[count];
+		writers = new WriteBehindQueue[count];
+		statements = new ArrayList<Map<String, PreparedStatement>>(count);
+		serviceIds = new ArrayList<Map<String, Integer>>(count);
+		newServices = new ArrayList<Map<String, Integer>>(count);
+		for (int i=0 ; i<count ; ++i) {
+			if (count == 1) {
+				shards[i] = connection;
+			} else {
+				boolean newShard = !new File(dbDir+"/"+shardFileName(i, count)).exists();
+				shards[i] = openConnection(shardFileName(i, count));
+				if (newShard) {
+					createEntryTables(shards[i]);
+				}
+			}
+			createTotpTable(shards[i]);
+			createChangeLog(shards[i]);
+			if (!tableExists(shards[i], "merk")) {
+				mergeServices(shards[i]);
+			}
+			statements.add(new HashMap<String, PreparedStatement>());
+			serviceIds.add(readServiceIds(shards[i]));
+			newServices.add(new HashMap<String, Integer>());
+			int shard = i;
+			Connection writer = DriverManager.getConnection("jdbc:sqlite:"+dbDir+"/"+shardFileName(i, count));
+			profile.apply(writer, true);
+			writers[i] = new WriteBehindQueue(writer, stmt -> {
+				IntegrityTree tree = integrity;
+				if (tree != null) {
+					tree.propagate(stmt, shard);
+				}
+			}, committed -> {
+				Map<String, Integer> created = newServices.get(shard);
+				if (committed) {
+					serviceIds.get(shard).putAll(created);
+				}
+				created.clear();
+			});
+		}
+		if (count > 1) {
+			fanOut = Executors.newFixedThreadPool(count, r -> {
+				Thread th = new Thread(r, "pamaja-shard");
+				th.setDaemon(true);
+				return th;
+			});
+		}
+	}
+	
+	private void closeShards() throws SQLException {
+		if (fanOut != null) {
+			fanOut.shutdown();
+			fanOut = null;
+		}
+		for (int i=0 ; i<shards.length ; ++i) {
+			writers[i].close();
+			for (PreparedStatement stmt : statements.get(i).values()) {
+				stmt.close();
+			}
+			if (shards[i] != connection) {
+				shards[i].close();
+			}
+		}
+		shards = null;
+		writers = null;
+		statements = null;
+		serviceIds = null;
+		newServices = null;
+	}
+	
+	/**
+	 * Gets the number of database files the entries are spread over
+	 * @return Number of shards
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+	
+	/**
+	 * Runs the SQLite integrity check on every database file, to find damage left by a crash
+	 * @return <code>true</code> if every file is sound
+	 */
+	public boolean checkStorage() {
+		long t = Metrics.start();
+		List<Connection> files = new ArrayList<Connection>();
+		files.add(connection);
+		for (Connection shard : shards) {
+			if (shard != connection) {
+				files.add(shard);
+			}
+		}
+		boolean ok = true;
+		try {
+			for (Connection c : files) {
+				synchronized (c) {
+					ResultSet rs = executeWithResult(c, "PRAGMA integrity_check;");
+					if (rs == null) {
+						ok = false;
+					} else {
+						ok &= rs.next() && "ok".equals(rs.getString(1));
+						rs.close();
+					}
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			ok = false;
+		} finally {
+			Metrics.record("db.checkStorage", t, 0);
+		}
+		return ok;
+	}
+	
+	private int shardOf(String service) {
+		return Math.floorMod(service.hashCode(), shards.length);
+	}
+	
+	private int shardOf(int globalId) {
+		return globalId % shards.length;
+	}
+	
+	private int localId(int globalId) {
+		return globalId / shards.length;
+	}
+	
+	private int globalId(int localId, int shard) {
+		return localId * shards.length + shard;
 	}
 
 	/**
 	 * Closes connection to the database
 	 */
+	@Override
 	public void disconnect() {
 		try {
+			if (shards != null) {
+				closeShards();
+			}
 			if (connection != null) {
 				connection.close();
 			}
@@ -102,8 +341,12 @@ public class DBHandler {
 	}
 	
 	private void executeNoResult(String query) {
+		executeNoResult(connection, query);
+	}
+	
+	private static void executeNoResult(Connection c, String query) {
 		try {
-			Statement stmt = connection.createStatement();
+			Statement stmt = c.createStatement();
 			stmt.executeUpdate(query);
 			stmt.close();
 		} catch (SQLException e) {
@@ -112,9 +355,13 @@ public class DBHandler {
 	}
 	
 	private ResultSet executeWithResult(String query) {
+		return executeWithResult(connection, query);
+	}
+	
+	private static ResultSet executeWithResult(Connection c, String query) {
 		ResultSet rs = null;
 		try {
-			Statement stmt = connection.createStatement();
+			Statement stmt = c.createStatement();
 			rs = stmt.executeQuery(query);
 		} catch (SQLException e) {
 			e.printStackTrace();
@@ -122,6 +369,88 @@ public class DBHandler {
 		return rs;
 	}
 	
+	private static boolean executeTransaction(Connection c, List<String> queries) {
+		return executeTransaction(c, queries, null);
+	}
+	
+	/**
+	 * Runs queries, then a change needing a statement, in one transaction.
+	 * The connection is locked like by its readers, which must not run inside the transaction.
+	 * @param then Change applied after the queries, <code>null</code> if none
+	 */
+	private static boolean executeTransaction(Connection c, List<String> queries, WriteBehindQueue.Mutation then) {
+		synchronized (c) {
+			try {
+				c.setAutoCommit(false);
+				Statement stmt = c.createStatement();
+				try {
+					for (String query : queries) {
+						stmt.executeUpdate(query);
+					}
+					if (then != null) {
+						then.apply(stmt);
+					}
+					c.commit();
+					return true;
+				} catch (SQLException e) {
+					c.rollback();
+					e.printStackTrace();
+				} finally {
+					stmt.close();
+					c.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			return false;
+		}
+	}
+	
+	/**
+	 * Runs queries, then a change needing a statement, on the writer of a shard, ordered with the other writes
+	 * @param then Change applied after the queries, <code>null</code> if none
+	 * @return <code>true</code> if the change has been committed
+	 */
+	private boolean executeOnWriter(int shard, List<String> queries, WriteBehindQueue.Mutation then) {
+		try {
+			writers[shard].submit(stmt -> {
+				for (String query : queries) {
+					stmt.executeUpdate(query);
+				}
+				if (then != null) {
+					then.apply(stmt);
+				}
+			}).join();
+			return true;
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			return false;
+		}
+	}
+	
+	private static boolean tableExists(Connection c, String table) {
+		return schemaExists(c, "table", table);
+	}
+	
+	private static boolean indexExists(Connection c, String index) {
+		return schemaExists(c, "index", index);
+	}
+	
+	private static boolean schemaExists(Connection c, String type, String name) {
+		ResultSet rs = executeWithResult(c, "SELECT COUNT(*) FROM sqlite_master"
+				  + " WHERE type = '" + type + "' AND name = '" + name + "';");
+		boolean res = false;
+		try {
+			if (rs.next()) {
+				res = rs.getInt(1)!=0;
+			}
+			rs.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return res;
+	}
+	
 	private boolean recordExistsInTable(String fieldName, String valueToFind, String table) {
 		String sql = "SELECT COUNT(*) FROM " + table
 				  + " WHERE " + fieldName + " = " + valueToFind +";";
@@ -138,23 +467,24 @@ public class DBHandler {
 		return res;
 	}
 	
-	private void createDB() {
+	private static void createEntryTables(Connection c) {
 		String sql = "CREATE TABLE cida ("
 				   + "	id INT PRIMARY KEY NOT NULL,"
 				   + "	iv TEXT NOT NULL,"
 				   + "	enc TEXT NOT NULL)";
-		executeNoResult(sql);
+		executeNoResult(c, sql);
 		
 		sql = "CREATE TABLE sercl ("
 			+ "	id INT PRIMARY KEY NOT NULL,"
 			+ "	ser TEXT NOT NULL)";
-		executeNoResult(sql);
+		executeNoResult(c, sql);
+		executeNoResult(c, "CREATE UNIQUE INDEX "+SERVICE_INDEX+" ON sercl(ser)");
 		
 		sql = "CREATE TABLE locl ("
 			+ "	id INT PRIMARY KEY NOT NULL,"
 			+ " iv TEXT NOT NULL,"
 			+ "	lo TEXT NOT NULL)";
-		executeNoResult(sql);
+		executeNoResult(c, sql);
 		
 		sql = "CREATE TABLE corda ("
 			+ "	sid INT NOT NULL,"
@@ -164,9 +494,154 @@ public class DBHandler {
 			+ "	CONSTRAINT fk_corda1 FOREIGN KEY(sid) REFERENCES sercl(id),"
 			+ "	CONSTRAINT fk_corda2 FOREIGN KEY(lid) REFERENCES locl(id),"
 			+ "	CONSTRAINT fk_corda3 FOREIGN KEY(pid) REFERENCES cida(id))";
-		executeNoResult(sql);
+		executeNoResult(c, sql);
+		
+		createTotpTable(c);
+		createChangeLog(c);
+	}
+	
+	/**
+	 * Creates the table of TOTP secrets, keyed by the ID of the login they belong to.
+	 * Vaults created before TOTP support get it when opened.
+	 */
+	private static void createTotpTable(Connection c) {
+		executeNoResult(c, "CREATE TABLE IF NOT EXISTS totp ("
+				+ "	id INT PRIMARY KEY NOT NULL,"
+				+ "	iv TEXT NOT NULL,"
+				+ "	sec TEXT NOT NULL)");
+	}
+	
+	/**
+	 * Merges the services sharing a name into the one with the lowest ID, their logins moving to it,
+	 * then makes service names unique. Vaults created before that constraint are merged once, when opened.
+	 * Entries of merged services change IDs, so only a full backup can follow. A shard with an integrity tree is only
+	 * merged once the vault is unlocked, see {@link #mergeTaggedServices(IntegrityTree, boolean)}.
+	 * @param c Connection of the shard
+	 * @return Number of services merged into another one
+	 * @throws SQLException
+	 */
+	private static int mergeServices(Connection c) throws SQLException {
+		if (indexExists(c, SERVICE_INDEX)) {
+			return 0;
+		}
+		c.setAutoCommit(false);
+		Statement stmt = c.createStatement();
+		try {
+			int merged = mergeServices(stmt, -1, null);
+			c.commit();
+			return merged;
+		} catch (SQLException e) {
+			c.rollback();
+			throw new SQLException("Could not merge the services sharing a name", e);
+		} finally {
+			stmt.close();
+			c.setAutoCommit(true);
+		}
+	}
+	
+	/**
+	 * Merges the services sharing a name in the transaction of a statement, the moved entries being tagged again
+	 * @param tree Integrity tree of the shard, opened, <code>null</code> if none
+	 */
+	private static int mergeServices(Statement stmt, int shard, IntegrityTree tree) throws SQLException {
+		String merging = "SELECT s.id AS old, k.id AS keep"
+				  + " FROM sercl s"
+				  + " JOIN (SELECT ser, MIN(id) AS id FROM sercl GROUP BY ser) k ON k.ser = s.ser"
+				  + " WHERE s.id <> k.id";
+		ResultSet rs = stmt.executeQuery("SELECT m.old, m.keep, corda.lid FROM ("+merging+") m JOIN corda ON corda.sid = m.old;");
+		List<int[]> moved = new ArrayList<int[]>();
+		while (rs.next()) {
+			moved.add(new int[] {rs.getInt(1), rs.getInt(2), rs.getInt(3)});
+		}
+		rs.close();
+		rs = stmt.executeQuery("SELECT COUNT(*) - COUNT(DISTINCT ser) FROM sercl;");
+		int merged = rs.next() ? rs.getInt(1) : 0;
+		rs.close();
+		if (merged > 0) {
+			if (tree != null) {
+				for (int[] entry : moved) {
+					tree.untag(stmt, shard, entry[0], entry[2]);
+				}
+			}
+			stmt.executeUpdate("CREATE TEMP TABLE sermerge AS "+merging);
+			stmt.executeUpdate("UPDATE corda"
+					  + " SET sid = (SELECT keep FROM sermerge WHERE old = corda.sid)"
+					  + " WHERE sid IN (SELECT old FROM sermerge)");
+			stmt.executeUpdate("DELETE FROM sercl WHERE id IN (SELECT old FROM sermerge)");
+			stmt.executeUpdate("DROP TABLE sermerge");
+			if (tree != null) {
+				for (int[] entry : moved) {
+					tree.tag(stmt, shard, entry[1], entry[2], true);
+				}
+			}
+			stmt.executeUpdate("INSERT INTO chlog (sid, lid) VALUES(-1, -1)");
+		}
+		stmt.executeUpdate("CREATE UNIQUE INDEX "+SERVICE_INDEX+" ON sercl(ser)");
+		return merged;
+	}
+	
+	/**
+	 * Merges the services sharing a name in the shards left unmerged because of their integrity tree, see
+	 * {@link #mergeServices(Connection)}. Each tree is checked first, unless it has just been built, then the moved entries
+	 * are tagged again in the transaction of the merge. A shard whose tree is not clean keeps its services until it is.
+	 * @param tree Integrity trees of the vault, opened
+	 * @param check <code>false</code> if the trees have just been built
+	 */
+	private void mergeTaggedServices(IntegrityTree tree, boolean check) {
+		for (int i=0 ; i<shards.length ; ++i) {
+			int shard = i;
+			if (indexExists(shards[shard], SERVICE_INDEX)
+					|| (check && !checkShards(tree, Collections.singletonList(Integer.valueOf(shard))).isClean())) {
+				continue;
+			}
+			await(writers[shard].submit(stmt -> mergeServices(stmt, shard, tree)));
+			try {
+				serviceIds.get(shard).putAll(readServiceIds(shards[shard]));
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	private static Map<String, Integer> readServiceIds(Connection c) throws SQLException {
+		Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		Statement stmt = c.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT id, ser FROM sercl;");
+		while (rs.next()) {
+			ids.put(rs.getString(2), Integer.valueOf(rs.getInt(1)));
+		}
+		rs.close();
+		stmt.close();
+		return ids;
+	}
+	
+	/**
+	 * Creates the table recording which entries have been written, used by incremental backups.
+	 * A row with negative IDs means the entries have been moved and only a full backup can follow.
+	 */
+	private static void createChangeLog(Connection c) {
+		executeNoResult(c, "CREATE TABLE IF NOT EXISTS chlog ("
+				+ "	seq INTEGER PRIMARY KEY AUTOINCREMENT,"
+				+ "	sid INT NOT NULL,"
+				+ "	lid INT NOT NULL)");
+	}
+	
+	private static long lastChange(Connection c) throws SQLException {
+		if (!tableExists(c, "sqlite_sequence")) {
+			return 0;
+		}
+		Statement stmt = c.createStatement();
+		ResultSet rs = stmt.executeQuery("SELECT seq FROM sqlite_sequence WHERE name = 'chlog';");
+		long seq = rs.next() ? rs.getLong(1) : 0;
+		rs.close();
+		stmt.close();
+		return seq;
+	}
+	
+	private void createDB(int shardCount) {
+		createEntryTables(connection);
 		
-		sql = "CREATE TABLE cimd ("
+		String sql = "CREATE TABLE cimd ("
 		   + "	id INT PRIMARY KEY NOT NULL,"
 		   + "	sa TEXT,"
 		   + "	ivsa TEXT NOT NULL,"
@@ -180,13 +655,22 @@ public class DBHandler {
 		
 		sql = "INSERT INTO info VALUES(0, '"+Launcher.PROG_VERSION+"')";
 		executeNoResult(sql);
+		
+		sql = "CREATE TABLE shar ("
+		   + " count INTEGER NOT NULL)";
+		executeNoResult(sql);
+		
+		sql = "INSERT INTO shar VALUES("+shardCount+")";
+		executeNoResult(sql);
 	}
 	
 	/**
 	 * Checks if the database has been initialized
 	 * @return <code>true</code> if the database has been initialized
 	 */
+	@Override
 	public boolean isInit() {
+		long t = Metrics.start();
 		String sql = "SELECT init FROM info";
 		ResultSet rs = executeWithResult(sql);
 		boolean init = false;
@@ -198,6 +682,7 @@ public class DBHandler {
 		} catch (SQLException e1) {
 			e1.printStackTrace();
 		}
+		Metrics.record("db.isInit", t, 0);
 		return init;
 	}
 	
@@ -205,7 +690,9 @@ public class DBHandler {
 	 * Checks if the version of the database corresponds to the version of the running program
 	 * @return <code>true</code> if the database can properly be handled by the program
 	 */
+	@Override
 	public boolean dbVersionIsOk() {
+		long t = Metrics.start();
 		String sql = "SELECT version FROM info";
 		ResultSet rs = executeWithResult(sql);
 		String v = "";
@@ -217,6 +704,7 @@ public class DBHandler {
 		} catch (SQLException e1) {
 			e1.printStackTrace();
 		}
+		Metrics.record("db.dbVersionIsOk", t, 0);
 		for (String s : ACC_VERSIONS) {
 			if (s.equals(v)) {
 				return true;
@@ -228,6 +716,7 @@ public class DBHandler {
 	/**
 	 * Set the database status to initialized
 	 */
+	@Override
 	public void setInit() {
 		String sql = "UPDATE info SET init = 1";
 		executeNoResult(sql);
@@ -238,6 +727,7 @@ public class DBHandler {
 	 * @param password The double hashed password
 	 * @param origSalt Salt of the first hash
 	 */
+	@Override
 	public void insertMasterPassword(Hash password, byte[] origSalt) {
 		int id = 1;
 		if (!recordExistsInTable("id", ""+id, "cimd")) {
@@ -253,30 +743,28 @@ public class DBHandler {
 	 * Gets the master password from the database and its salt from its first hash
 	 * @return Double hashed master password
 	 */
-	public Pair<Byte[], Hash> getStoredPasswordAndSalt() {
-		String sql = "SELECT * FROM cimd"
+	@Override
+	public Pair<byte[], Hash> getStoredPasswordAndSalt() {
+		long t = Metrics.start();
+		String sql = "SELECT sa, ivsa, enc FROM cimd"
 				  + " WHERE id = 1";
 		ResultSet rs = executeWithResult(sql);
-		Byte[] os = null;
+		byte[] os = null;
 		byte[] s = null;
 		byte[] e = null;
 		try {
 			if (rs.next()) {
-				byte[] tmpos = rs.getString("sa").getBytes();
-				os = new Byte[tmpos.length];
-				int i = 0;
-				for (byte b : tmpos) {
-					os[i++] = Byte.valueOf(b);
-				}
-				s = rs.getString("ivsa").getBytes();
-				e = rs.getString("enc").getBytes();
+				os = rs.getBytes("sa");
+				s = rs.getBytes("ivsa");
+				e = rs.getBytes("enc");
 			}
 			rs.close();
 		} catch (SQLException e1) {
 			e1.printStackTrace();
 		}
+		Metrics.record("db.getStoredPasswordAndSalt", t, (e != null) ? e.length : 0);
 		if ((s != null) && (e != null)) {
-			return new Pair<Byte[], Hash>(os, new Hash(s, e));
+			return new Pair<byte[], Hash>(os, new Hash(s, e));
 		}
 		return null;
 	}
@@ -285,6 +773,7 @@ public class DBHandler {
 	 * Inserts the secret encryption key into the database
 	 * @param key The encrypted secret key
 	 */
+	@Override
 	public void insertMasterKey(Ciph key) {
 		int id = 2;
 		if (!recordExistsInTable("id", ""+id, "cimd")) {
@@ -300,161 +789,1612 @@ public class DBHandler {
 	 * Gets the encryption key from the database
 	 * @return The encrypted secret key
 	 */
+	@Override
 	public Ciph getStoredKey() {
-		String sql = "SELECT * FROM cimd"
+		long t = Metrics.start();
+		String sql = "SELECT ivsa, enc FROM cimd"
 				  + " WHERE id = 2";
 		ResultSet rs = executeWithResult(sql);
 		byte[] i = null;
 		byte[] e = null;
 		try {
 			if (rs.next()) {
-				i = rs.getString("ivsa").getBytes();
-				e = rs.getString("enc").getBytes();
+				i = rs.getBytes("ivsa");
+				e = rs.getBytes("enc");
 			}
 			rs.close();
 		} catch (SQLException e1) {
 			e1.printStackTrace();
 		}
+		Metrics.record("db.getStoredKey", t, (e != null) ? e.length : 0);
 		if ((i != null) && (e != null)) {
 			return new Ciph(i, e);
 		}
 		return null;
 	}
 	
+	private static int nextId(Statement stmt, String table) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM "+table+";");
+		int id = 0;
+		if (rs.next()) {
+			id = rs.getInt(1)+1;
+		}
+		rs.close();
+		return id;
+	}
+	
 	/**
-	 * Inserts a new password in the database
-	 * @param service Service associated to the password
-	 * @param login Encrypted login corresponding to the password
-	 * @param password Encrypted password to insert
+	 * Refuses a write of entries while a key rotation is pending on the shard: a row changed after being re-encrypted
+	 * would be reverted when the shadow tables replace the original ones
 	 */
-	public void insertPassword(String service, Ciph login, Ciph password) {
-		String sql = "SELECT MAX(id) FROM sercl;";
-		ResultSet rs = executeWithResult(sql);
-		int serviceId = 0;
-		try {
-			if (rs.next()) {
-				serviceId = rs.getInt(1)+1;
-			}
-			rs.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
+	private static void checkNotRotating(Statement stmt, int shard) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master"
+				  + " WHERE type = 'table' AND name = 'rotp';");
+		boolean rotating = rs.next() && (rs.getInt(1) != 0);
+		rs.close();
+		if (rotating) {
+			throw new SQLException("Shard " + shard + " is being switched to a new key, write again once the rotation is over");
 		}
-		sql = "SELECT MAX(id) FROM locl;";
-		rs = executeWithResult(sql);
-		int loginId = 0;
-		try {
-			if (rs.next()) {
-				loginId = rs.getInt(1)+1;
+	}
+	
+	private int[] doInsertPassword(Statement stmt, int shard, String service, Ciph login, Ciph password) throws SQLException {
+		checkNotRotating(stmt, shard);
+		Map<String, Integer> created = newServices.get(shard);
+		Integer id = created.get(service);
+		if (id == null) {
+			id = serviceIds.get(shard).get(service);
+		}
+		int serviceId;
+		if (id != null) {
+			serviceId = id.intValue();
+		} else {
+			serviceId = nextId(stmt, "sercl");
+			PreparedStatement insert = stmt.getConnection().prepareStatement("INSERT INTO sercl VALUES(?, ?)");
+			try {
+				insert.setInt(1, serviceId);
+				insert.setString(2, service);
+				insert.executeUpdate();
+			} finally {
+				insert.close();
 			}
-			rs.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
+			created.put(service, Integer.valueOf(serviceId));
 		}
-		sql = "SELECT MAX(id) FROM cida;";
-		rs = executeWithResult(sql);
-		int pwdId = 0;
+		int loginId = doInsertLogin(stmt, shard, serviceId, login, password);
+		return new int[] {serviceId, loginId};
+	}
+	
+	private int doInsertLogin(Statement stmt, int shard, int serviceId, Ciph login, Ciph password) throws SQLException {
+		int loginId = nextId(stmt, "locl");
+		int pwdId = nextId(stmt, "cida");
+		insertCiph(stmt, "locl", loginId, login);
+		insertCiph(stmt, "cida", pwdId, password);
+		stmt.executeUpdate("INSERT INTO corda VALUES('"+serviceId+"', '"+loginId+"', '"+pwdId+"')");
+		stmt.executeUpdate("INSERT INTO chlog (sid, lid) VALUES("+serviceId+", "+loginId+")");
+		tagEntry(stmt, shard, serviceId, loginId, true);
+		return loginId;
+	}
+	
+	private static void insertCiph(Statement stmt, String table, int id, Ciph value) throws SQLException {
+		PreparedStatement insert = stmt.getConnection().prepareStatement("INSERT INTO "+table+" VALUES(?, ?, ?)");
 		try {
-			if (rs.next()) {
-				pwdId = rs.getInt(1)+1;
-			}
-			rs.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
+			insert.setInt(1, id);
+			insert.setString(2, new String(value.getIV()));
+			insert.setString(3, new String(value.getEnc()));
+			insert.executeUpdate();
+		} finally {
+			insert.close();
 		}
-		sql = "INSERT INTO sercl VALUES('"+serviceId+"', '"+service+"')";
-		executeNoResult(sql);
-		sql = "INSERT INTO locl VALUES('"+loginId+"', '"+new String(login.getIV())+"', '"+new String(login.getEnc())+"')";
-		executeNoResult(sql);
-		sql = "INSERT INTO cida VALUES('"+pwdId+"', '"+new String(password.getIV())+"', '"+new String(password.getEnc())+"')";
-		executeNoResult(sql);
-		sql = "INSERT INTO corda VALUES('"+serviceId+"', '"+loginId+"', '"+pwdId+"')";
-		executeNoResult(sql);
 	}
 	
-	/**
-	 * Updates a password in the database
-	 * @param serviceId ID of the service associated to the password
-	 * @param loginId ID of the login corresponding to the password
-	 * @param newPassword Encrypted password to insert
-	 */
-	public void updatePassword(int serviceId, int loginId, Ciph newPassword) {
-		String sql = "UPDATE cida"
+	private void doUpdatePassword(Statement stmt, int shard, int serviceId, int loginId, Ciph newPassword) throws SQLException {
+		checkNotRotating(stmt, shard);
+		stmt.executeUpdate("UPDATE cida"
 				  + " SET iv = '" + new String(newPassword.getIV()) + "', enc = '" + new String(newPassword.getEnc()) + "'"
 				  + " WHERE id = (SELECT pid"
 				  + "			  FROM corda"
 				  + "			  WHERE sid = " + serviceId
-				  + "			  AND lid = " + loginId + ");";
-		executeNoResult(sql);
+				  + "			  AND lid = " + loginId + ");");
+		stmt.executeUpdate("INSERT INTO chlog (sid, lid) VALUES("+serviceId+", "+loginId+")");
+		tagEntry(stmt, shard, serviceId, loginId, false);
 	}
 	
-	/**
-	 * Gets a specific password from the database
-	 * @param serviceId ID of the service associated to the password
-	 * @param loginId ID of the login corresponding to the password
-	 * @return Encrypted password
-	 */
-	public Ciph getPassword(int serviceId, int loginId) {
-		String sql = "SELECT iv, enc"
-				  + " FROM cida"
-				  + " WHERE id = (SELECT pid"
-				  + "			  FROM corda"
-				  + "			  WHERE sid = " + serviceId
-				  + "			  AND lid = " + loginId + ");";
-		ResultSet rs = executeWithResult(sql);
-		String iv = null;
-		String enc = null;
-		try {
-			if (rs.next()) {
-				iv = rs.getString("iv");
-				enc = rs.getString("enc");
-			}
-			rs.close();
-		} catch (SQLException e) {
-			e.printStackTrace();
+	private void doSetTotpSecret(Statement stmt, int shard, int serviceId, int loginId, Ciph secret) throws SQLException {
+		checkNotRotating(stmt, shard);
+		int updated = stmt.executeUpdate("INSERT OR REPLACE INTO totp"
+				  + " SELECT lid, '" + new String(secret.getIV()) + "', '" + new String(secret.getEnc()) + "'"
+				  + " FROM corda"
+				  + " WHERE sid = " + serviceId
+				  + " AND lid = " + loginId + ";");
+		if (updated == 0) {
+			throw new SQLException("No entry for service " + serviceId + " and login " + loginId);
 		}
-		if ((iv != null) && (enc != null)) {
-			return new Ciph(iv.getBytes(), enc.getBytes());
+		stmt.executeUpdate("INSERT INTO chlog (sid, lid) VALUES("+serviceId+", "+loginId+")");
+		tagEntry(stmt, shard, serviceId, loginId, false);
+	}
+	
+	private void tagEntry(Statement stmt, int shard, int serviceId, int loginId, boolean created) throws SQLException {
+		IntegrityTree tree = integrity;
+		if (tree != null) {
+			tree.tag(stmt, shard, serviceId, loginId, created);
+		}
+	}
+	
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
 		}
 		return null;
 	}
 	
 	/**
-	 * Gets a list of registered services
-	 * @return List of services (<code>ID => name</code>)
+	 * Waits for a write having no status to return
+	 * @throws IllegalStateException If the write failed, with the cause of the failure
 	 */
-	public Map<Integer, String> getServices() {
-		String sql = "SELECT * FROM sercl"
-				  + " ORDER BY id;";
-		ResultSet rs = executeWithResult(sql);
-		Map<Integer, String> services = new HashMap<Integer, String>();
+	private static <T> T awaitWrite(CompletableFuture<T> future) {
 		try {
-			while (rs.next()) {
-				services.put(rs.getInt("id"), rs.getString("ser"));
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
+			return future.join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("Write failed: " + e.getCause().getMessage(), e.getCause());
 		}
-		return services;
 	}
 	
 	/**
-	 * Gets a list of logins for a given service
-	 * @param serviceId ID of the service to get the logins from
-	 * @return List of logins (<code>ID => name</code>)
+	 * Queues the insertion of a new password, grouped with other pending writes into one transaction.
+	 * The entry goes under the service of that name, which is created if there is none yet.
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return Future completed with the ID of the new service once the password is durably stored
 	 */
-	public Map<Integer, Ciph> getLogins(int serviceId) {
-		String sql = "SELECT * FROM locl"
-				  + " WHERE id IN (SELECT lid FROM corda"
-				  + "			   WHERE sid = "+serviceId+");";
-		ResultSet rs = executeWithResult(sql);
-		Map<Integer, Ciph> logins = new HashMap<Integer, Ciph>();
-		try {
-			while (rs.next()) {
-				logins.put(rs.getInt("id"), new Ciph(rs.getString("iv").getBytes(), rs.getString("lo").getBytes()));
-			}
-		} catch (SQLException e) {
-			e.printStackTrace();
-		}
-		return logins;
+	public CompletableFuture<Integer> insertPasswordAsync(String service, Ciph login, Ciph password) {
+		return insertEntryAsync(service, login, password).thenApply(ids -> ids.first());
+	}
+	
+	/**
+	 * Queues the insertion of a new password like {@link #insertPasswordAsync(String, Ciph, Ciph)}, telling which login was created
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return Future completed with the IDs of the service and of the login once the password is durably stored
+	 */
+	public CompletableFuture<Pair<Integer, Integer>> insertEntryAsync(String service, Ciph login, Ciph password) {
+		long t = Metrics.start();
+		int shard = shardOf(service);
+		int[][] ids = new int[1][];
+		CompletableFuture<Pair<Integer, Integer>> f = writers[shard].submit(stmt -> ids[0] = doInsertPassword(stmt, shard, service, login, password))
+				.thenApply(v -> new Pair<Integer, Integer>(globalId(ids[0][0], shard), globalId(ids[0][1], shard)));
+		f.whenComplete((v, e) -> Metrics.record("db.insertPassword", t, login.getEnc().length + password.getEnc().length));
+		return f;
+	}
+	
+	/**
+	 * Inserts a new password in the database, under the service of that name, which is created if there is none yet
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return IDs of the service and of the login of the new entry, <code>null</code> if it could not be stored
+	 */
+	@Override
+	public Pair<Integer, Integer> insertEntry(String service, Ciph login, Ciph password) {
+		return await(insertEntryAsync(service, login, password));
+	}
+	
+	/**
+	 * Queues the insertion of a new login under an existing service, grouped with other pending writes into one transaction
+	 * @param serviceId ID of the service
+	 * @param login Encrypted login to insert
+	 * @param password Encrypted password corresponding to the login
+	 * @return Future completed with the ID of the new login once it is durably stored
+	 */
+	public CompletableFuture<Integer> insertLoginAsync(int serviceId, Ciph login, Ciph password) {
+		long t = Metrics.start();
+		int shard = shardOf(serviceId);
+		int[] loginId = new int[1];
+		CompletableFuture<Integer> f = writers[shard].submit(stmt -> {
+			checkNotRotating(stmt, shard);
+			loginId[0] = doInsertLogin(stmt, shard, localId(serviceId), login, password);
+		})
+				.thenApply(v -> Integer.valueOf(globalId(loginId[0], shard)));
+		f.whenComplete((v, e) -> Metrics.record("db.insertLogin", t, login.getEnc().length + password.getEnc().length));
+		return f;
+	}
+	
+	/**
+	 * Inserts a new login under an existing service
+	 * @param serviceId ID of the service
+	 * @param login Encrypted login to insert
+	 * @param password Encrypted password corresponding to the login
+	 * @return ID of the new login, <code>-1</code> if it could not be stored
+	 */
+	public int insertLogin(int serviceId, Ciph login, Ciph password) {
+		Integer loginId = await(insertLoginAsync(serviceId, login, password));
+		return (loginId != null) ? loginId.intValue() : -1;
+	}
+	
+	/**
+	 * Queues the update of a password, grouped with other pending writes into one transaction
+	 * @param serviceId ID of the service associated to the password
+	 * @param loginId ID of the login corresponding to the password
+	 * @param newPassword Encrypted password to insert
+	 * @return Future completed once the password is durably stored, exceptionally if a key rotation is pending
+	 */
+	public CompletableFuture<Void> updatePasswordAsync(int serviceId, int loginId, Ciph newPassword) {
+		long t = Metrics.start();
+		int shard = shardOf(serviceId);
+		CompletableFuture<Void> f = writers[shard].submit(stmt -> doUpdatePassword(stmt, shard, localId(serviceId), localId(loginId), newPassword));
+		f.whenComplete((v, e) -> Metrics.record("db.updatePassword", t, newPassword.getEnc().length));
+		return f;
+	}
+	
+	/**
+	 * Updates a password in the database
+	 * @param serviceId ID of the service associated to the password
+	 * @param loginId ID of the login corresponding to the password
+	 * @param newPassword Encrypted password to insert
+	 * @throws IllegalStateException If the password could not be stored
+	 */
+	@Override
+	public void updatePassword(int serviceId, int loginId, Ciph newPassword) {
+		awaitWrite(updatePasswordAsync(serviceId, loginId, newPassword));
+	}
+	
+	/**
+	 * Queues the storage of the TOTP secret of an entry, replacing the previous one, grouped with other pending writes
+	 * into one transaction
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param secret Encrypted TOTP secret
+	 * @return Future completed once the secret is durably stored, exceptionally if the entry does not exist or a key
+	 * rotation is pending
+	 */
+	public CompletableFuture<Void> setTotpSecretAsync(int serviceId, int loginId, Ciph secret) {
+		long t = Metrics.start();
+		int shard = shardOf(serviceId);
+		CompletableFuture<Void> f = writers[shard].submit(stmt -> doSetTotpSecret(stmt, shard, localId(serviceId), localId(loginId), secret));
+		f.whenComplete((v, e) -> Metrics.record("db.setTotpSecret", t, secret.getEnc().length));
+		return f;
+	}
+	
+	/**
+	 * Stores the TOTP secret of an entry, replacing the previous one
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param secret Encrypted TOTP secret
+	 * @return <code>false</code> if the entry does not exist or the secret could not be stored
+	 */
+	public boolean setTotpSecret(int serviceId, int loginId, Ciph secret) {
+		try {
+			setTotpSecretAsync(serviceId, loginId, secret).join();
+			return true;
+		} catch (CompletionException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * Gets the TOTP secret of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return Encrypted TOTP secret, <code>null</code> if the entry has none
+	 */
+	public Ciph getTotpSecret(int serviceId, int loginId) {
+		long t = Metrics.start();
+		byte[] iv = null;
+		byte[] enc = null;
+		try {
+			int shard = shardOf(serviceId);
+			PreparedStatement stmt = prepare(shard, "SELECT o.iv, o.sec"
+					+ " FROM totp o"
+					+ " JOIN corda ON corda.lid = o.id"
+					+ " WHERE corda.sid = ?"
+					+ " AND corda.lid = ?;");
+			synchronized (shards[shard]) {
+				stmt.setInt(1, localId(serviceId));
+				stmt.setInt(2, localId(loginId));
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					iv = rs.getBytes(1);
+					enc = rs.getBytes(2);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.getTotpSecret", t, (enc != null) ? enc.length : 0);
+		if ((iv != null) && (enc != null)) {
+			return new Ciph(iv, enc);
+		}
+		return null;
+	}
+	
+	/**
+	 * Reads every TOTP secret of the vault, one shard after the other, in one query per shard
+	 * @param visitor Receiver of the secrets
+	 */
+	public void forEachTotpSecret(TotpVisitor visitor) {
+		long t = Metrics.start();
+		int count = 0;
+		try {
+			for (int shard=0 ; shard<shards.length ; ++shard) {
+				PreparedStatement stmt = prepare(shard, "SELECT corda.sid, corda.lid, o.iv, o.sec"
+						+ " FROM totp o"
+						+ " JOIN corda ON corda.lid = o.id;");
+				synchronized (shards[shard]) {
+					ResultSet rs = stmt.executeQuery();
+					while (rs.next()) {
+						visitor.visit(globalId(rs.getInt(1), shard), globalId(rs.getInt(2), shard), new Ciph(rs.getBytes(3), rs.getBytes(4)));
+						++count;
+					}
+					rs.close();
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.forEachTotpSecret", t, count);
+	}
+	
+	/**
+	 * Gets a specific password from the database.
+	 * Like every read of an entry, it holds the lock of the shard connection: SQLite keeps the snapshot a connection reads
+	 * from while any of its statements is running, so overlapping reads from several threads would keep on missing
+	 * later writes.
+	 * @param serviceId ID of the service associated to the password
+	 * @param loginId ID of the login corresponding to the password
+	 * @return Encrypted password
+	 */
+	@Override
+	public Ciph getPassword(int serviceId, int loginId) {
+		long t = Metrics.start();
+		byte[] iv = null;
+		byte[] enc = null;
+		try {
+			int shard = shardOf(serviceId);
+			PreparedStatement stmt = prepare(shard, "SELECT iv, enc"
+					+ " FROM cida"
+					+ " WHERE id = (SELECT pid"
+					+ "			  FROM corda"
+					+ "			  WHERE sid = ?"
+					+ "			  AND lid = ?);");
+			synchronized (shards[shard]) {
+				stmt.setInt(1, localId(serviceId));
+				stmt.setInt(2, localId(loginId));
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					iv = rs.getBytes(1);
+					enc = rs.getBytes(2);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.getPassword", t, (enc != null) ? enc.length : 0);
+		if ((iv != null) && (enc != null)) {
+			return new Ciph(iv, enc);
+		}
+		return null;
+	}
+	
+	/**
+	 * Finds a service by name, without querying the database
+	 * @param service Name of the service
+	 * @return ID of the service, <code>-1</code> if there is none with that name
+	 */
+	@Override
+	public int getServiceId(String service) {
+		int shard = shardOf(service);
+		Integer id = serviceIds.get(shard).get(service);
+		return (id != null) ? globalId(id.intValue(), shard) : -1;
+	}
+	
+	private IntMap<String> listServices(int shard) {
+		String sql = "SELECT id, ser FROM sercl"
+				  + " ORDER BY id;";
+		IntMap<String> services = new IntMap<String>();
+		synchronized (shards[shard]) {
+			ResultSet rs = executeWithResult(shards[shard], sql);
+			try {
+				while (rs.next()) {
+					services.put(globalId(rs.getInt("id"), shard), rs.getString("ser"));
+				}
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		return services;
+	}
+	
+	/**
+	 * Gets the registered services in a compact map sorted by ID, shards are queried in parallel
+	 * @return List of services (<code>ID => name</code>)
+	 */
+	@Override
+	public IntMap<String> listServices() {
+		long t = Metrics.start();
+		IntMap<String> services;
+		if (shards.length == 1) {
+			services = listServices(0);
+		} else {
+			List<CompletableFuture<IntMap<String>>> parts = new ArrayList<CompletableFuture<IntMap<String>>>();
+			for (int i=0 ; i<shards.length ; ++i) {
+				int shard = i;
+				parts.add(CompletableFuture.supplyAsync(() -> listServices(shard), fanOut));
+			}
+			List<IntMap<String>> lists = new ArrayList<IntMap<String>>(parts.size());
+			for (CompletableFuture<IntMap<String>> part : parts) {
+				lists.add(part.join());
+			}
+			services = IntMap.merge(lists);
+		}
+		long bytes = 0;
+		for (int i=0 ; i<services.size() ; ++i) {
+			bytes += services.valueAt(i).length();
+		}
+		Metrics.record("db.listServices", t, bytes);
+		return services;
+	}
+	
+	/**
+	 * Gets a list of registered services, see {@link #listServices()} for a more compact one
+	 * @return List of services (<code>ID => name</code>)
+	 */
+	@Override
+	public Map<Integer, String> getServices() {
+		long t = Metrics.start();
+		Map<Integer, String> services = listServices().toMap();
+		Metrics.record("db.getServices", t, 0);
+		return services;
+	}
+	
+	/**
+	 * Gets the logins of a given service in a compact map sorted by ID
+	 * @param serviceId ID of the service to get the logins from
+	 * @return List of logins (<code>ID => encrypted login</code>)
+	 */
+	@Override
+	public IntMap<Ciph> listLogins(int serviceId) {
+		long t = Metrics.start();
+		int shard = shardOf(serviceId);
+		String sql = "SELECT id, iv, lo FROM locl"
+				  + " WHERE id IN (SELECT lid FROM corda"
+				  + "			   WHERE sid = "+localId(serviceId)+")"
+				  + " ORDER BY id;";
+		IntMap<Ciph> logins = new IntMap<Ciph>();
+		long bytes = 0;
+		synchronized (shards[shard]) {
+			ResultSet rs = executeWithResult(shards[shard], sql);
+			try {
+				while (rs.next()) {
+					Ciph login = new Ciph(rs.getBytes("iv"), rs.getBytes("lo"));
+					logins.put(globalId(rs.getInt("id"), shard), login);
+					bytes += login.getEnc().length;
+				}
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		Metrics.record("db.listLogins", t, bytes);
+		return logins;
+	}
+	
+	/**
+	 * Gets a list of logins for a given service, see {@link #listLogins(int)} for a more compact one
+	 * @param serviceId ID of the service to get the logins from
+	 * @return List of logins (<code>ID => name</code>)
+	 */
+	@Override
+	public Map<Integer, Ciph> getLogins(int serviceId) {
+		long t = Metrics.start();
+		Map<Integer, Ciph> logins = listLogins(serviceId).toMap();
+		Metrics.record("db.getLogins", t, 0);
+		return logins;
+	}
+	
+	/**
+	 * Gets a statement prepared on a shard, reused by later calls.
+	 * Callers synchronize on the shard connection while binding, executing and reading it, see {@link #getPassword(int, int)}.
+	 * @param shard Index of the shard
+	 * @param sql Query to prepare
+	 * @return Prepared statement
+	 * @throws SQLException
+	 */
+	private PreparedStatement prepare(int shard, String sql) throws SQLException {
+		Map<String, PreparedStatement> cache = statements.get(shard);
+		synchronized (cache) {
+			PreparedStatement stmt = cache.get(sql);
+			if (stmt == null) {
+				stmt = shards[shard].prepareStatement(sql);
+				cache.put(sql, stmt);
+			}
+			return stmt;
+		}
+	}
+	
+	@Override
+	public int countServices() {
+		long t = Metrics.start();
+		int count = 0;
+		try {
+			for (int shard=0 ; shard<shards.length ; ++shard) {
+				PreparedStatement stmt = prepare(shard, "SELECT COUNT(*) FROM sercl;");
+				synchronized (shards[shard]) {
+					ResultSet rs = stmt.executeQuery();
+					if (rs.next()) {
+						count += rs.getInt(1);
+					}
+					rs.close();
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.countServices", t, 0);
+		return count;
+	}
+	
+	@Override
+	public int countLogins(int serviceId) {
+		long t = Metrics.start();
+		int count = 0;
+		try {
+			PreparedStatement stmt = prepare(shardOf(serviceId), "SELECT COUNT(*) FROM corda WHERE sid = ?;");
+			synchronized (shards[shardOf(serviceId)]) {
+				stmt.setInt(1, localId(serviceId));
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					count = rs.getInt(1);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.countLogins", t, 0);
+		return count;
+	}
+	
+	@Override
+	public boolean entryExists(int serviceId, int loginId) {
+		long t = Metrics.start();
+		boolean exists = false;
+		try {
+			PreparedStatement stmt = prepare(shardOf(serviceId), "SELECT 1 FROM corda WHERE sid = ? AND lid = ?;");
+			synchronized (shards[shardOf(serviceId)]) {
+				stmt.setInt(1, localId(serviceId));
+				stmt.setInt(2, localId(loginId));
+				ResultSet rs = stmt.executeQuery();
+				exists = rs.next();
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.entryExists", t, 0);
+		return exists;
+	}
+	
+	@Override
+	public int[] getLoginIds(int serviceId) {
+		long t = Metrics.start();
+		int shard = shardOf(serviceId);
+		int[] ids = new int[0];
+		try {
+			PreparedStatement stmt = prepare(shard, "SELECT lid FROM corda WHERE sid = ? ORDER BY lid;");
+			synchronized (shards[shard]) {
+				stmt.setInt(1, localId(serviceId));
+				ResultSet rs = stmt.executeQuery();
+				int n = 0;
+				while (rs.next()) {
+					if (n == ids.length) {
+						ids = Arrays.copyOf(ids, Math.max(4, n * 2));
+					}
+					ids[n++] = globalId(rs.getInt(1), shard);
+				}
+				rs.close();
+				ids = Arrays.copyOf(ids, n);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.getLoginIds", t, 0);
+		return ids;
+	}
+	
+	@Override
+	public Ciph getLogin(int serviceId, int loginId) {
+		long t = Metrics.start();
+		byte[] iv = null;
+		byte[] lo = null;
+		try {
+			PreparedStatement stmt = prepare(shardOf(serviceId), "SELECT iv, lo"
+					+ " FROM locl"
+					+ " WHERE id = (SELECT lid"
+					+ "			  FROM corda"
+					+ "			  WHERE sid = ?"
+					+ "			  AND lid = ?);");
+			synchronized (shards[shardOf(serviceId)]) {
+				stmt.setInt(1, localId(serviceId));
+				stmt.setInt(2, localId(loginId));
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					iv = rs.getBytes(1);
+					lo = rs.getBytes(2);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.getLogin", t, (lo != null) ? lo.length : 0);
+		if ((iv != null) && (lo != null)) {
+			return new Ciph(iv, lo);
+		}
+		return null;
+	}
+	
+	@Override
+	public void forEachEntry(EntryVisitor visitor) {
+		long t = Metrics.start();
+		long bytes = 0;
+		try {
+			for (int shard=0 ; shard<shards.length ; ++shard) {
+				boolean more = true;
+				// Other reads of the shard wait for the end of its scan
+				synchronized (shards[shard]) {
+					ResultSet rs = executeWithResult(shards[shard], "SELECT corda.sid, s.ser, corda.lid, l.iv, l.lo, c.iv, c.enc"
+							  + " FROM corda"
+							  + " JOIN sercl s ON s.id = corda.sid"
+							  + " JOIN locl l ON l.id = corda.lid"
+							  + " JOIN cida c ON c.id = corda.pid;");
+					while (more && rs.next()) {
+						Ciph login = new Ciph(rs.getBytes(4), rs.getBytes(5));
+						Ciph password = new Ciph(rs.getBytes(6), rs.getBytes(7));
+						bytes += login.getEnc().length + password.getEnc().length;
+						more = visitor.visit(globalId(rs.getInt(1), shard), rs.getString(2), globalId(rs.getInt(3), shard), login, password);
+					}
+					rs.close();
+				}
+				if (!more) {
+					break;
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.forEachEntry", t, bytes);
+	}
+	
+	/**
+	 * Gets the integrity marker, stored next to the key once the vault is protected by its integrity trees
+	 * @return Layout and MAC of the marker, <code>null</code> if not set
+	 */
+	private Pair<String, byte[]> getIntegrityMarker() {
+		ResultSet rs = executeWithResult("SELECT ivsa, enc FROM cimd WHERE id = 4");
+		Pair<String, byte[]> marker = null;
+		try {
+			if (rs.next()) {
+				marker = new Pair<String, byte[]>(rs.getString(1), rs.getBytes(2));
+			}
+			rs.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return marker;
+	}
+	
+	private static String integrityMarkerQuery(IntegrityTree tree) {
+		return "INSERT OR REPLACE INTO cimd VALUES('4', '', '"+tree.getLayout()+"', '"+tree.marker()+"')";
+	}
+	
+	/**
+	 * Gets the layout shared by the trees of every shard, built before the integrity marker existed
+	 * @return Number of columns covered by the MACs of the entries, <code>-1</code> if a shard has no tree or they differ
+	 */
+	private int unmarkedLayout() {
+		int layout = -1;
+		try {
+			for (int i=0 ; i<shards.length ; ++i) {
+				int l = IntegrityTree.unmarkedLayout(shards[i]);
+				if ((l < 0) || ((i > 0) && (l != layout))) {
+					return -1;
+				}
+				layout = l;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		return layout;
+	}
+	
+	/**
+	 * Builds the trees of every shard from their current entries, see {@link IntegrityTree#build(Statement, int)}
+	 * @return Number of entries tagged, <code>-1</code> if a shard failed
+	 */
+	private int buildTrees(IntegrityTree tree) {
+		int built = 0;
+		int[] counts = new int[shards.length];
+		List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+		integrity = tree;
+		for (int i=0 ; i<shards.length ; ++i) {
+			int shard = i;
+			parts.add(writers[i].submit(stmt -> counts[shard] = tree.build(stmt, shard)));
+		}
+		for (int i=0 ; i<shards.length ; ++i) {
+			try {
+				parts.get(i).join();
+				built += counts[i];
+			} catch (CompletionException e) {
+				e.getCause().printStackTrace();
+				built = -1;
+			}
+		}
+		return built;
+	}
+	
+	private boolean setIntegrityMarker(IntegrityTree tree) {
+		List<String> queries = new ArrayList<String>();
+		queries.add(integrityMarkerQuery(tree));
+		return executeTransaction(connection, queries);
+	}
+	
+	/**
+	 * Starts maintaining the integrity trees of the shards: from now on, every write updates the MAC of its entry.
+	 * Trees are never built from unchecked entries here. A vault is protected once {@link #enableIntegrity(Secret)} has
+	 * stored the integrity marker next to the key: a shard of a protected vault without a tree is reported by
+	 * {@link #scrub(boolean, int)}, since building it again would take tampered entries as valid.
+	 * Trees over a former layout, recorded by the marker, are built again over the current one once a full scrub finds
+	 * them clean. So are trees in every shard of a vault without a marker, protected before the marker existed, which then
+	 * gets it. Otherwise they are kept as they are, and the scrubs report why.
+	 * Must be called once the vault is unlocked, before it is used by other threads.
+	 * @param key The clear encryption key of the vault
+	 * @return <code>true</code> if the vault is protected by its integrity trees
+	 */
+	public boolean openIntegrity(Secret key) {
+		long t = Metrics.start();
+		int built = 0;
+		try {
+			Pair<String, byte[]> marker = getIntegrityMarker();
+			int layout = (marker != null) ? IntegrityTree.parseLayout(marker.first()) : unmarkedLayout();
+			IntegrityTree tree = (layout > 0) ? new IntegrityTree(key, shards.length, layout) : new IntegrityTree(key, shards.length);
+			if (marker != null) {
+				integrityMarker = ((layout > 0) && tree.checkMarker(marker.second())) ? null : ScrubReport.Problem.DAMAGED_MARKER;
+			} else {
+				integrityMarker = ScrubReport.Problem.MISSING_MARKER;
+			}
+			boolean upgrade = (layout > 0) && ((integrityMarker == ScrubReport.Problem.MISSING_MARKER)
+					|| ((integrityMarker == null) && !tree.isCurrent()));
+			if (upgrade) {
+				ScrubReport report = new ScrubReport(true);
+				verifyTrees(tree, false, Runtime.getRuntime().availableProcessors(), false, report);
+				if (report.isClean()) {
+					if (!tree.isCurrent()) {
+						tree = new IntegrityTree(key, shards.length);
+						built = buildTrees(tree);
+					}
+					if ((built >= 0) && setIntegrityMarker(tree)) {
+						integrityMarker = null;
+					} else if (marker != null) {
+						// The marker no longer matches the trees
+						integrityMarker = ScrubReport.Problem.DAMAGED_MARKER;
+					}
+				}
+			}
+			if (integrityMarker != ScrubReport.Problem.MISSING_MARKER) {
+				IntegrityTree opened = tree;
+				List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+				// Queued behind earlier writes of the shard, and before any write tagged with the tree
+				for (int i=0 ; i<shards.length ; ++i) {
+					int shard = i;
+					parts.add(writers[i].submit(stmt -> opened.open(stmt, shard)));
+				}
+				integrity = opened;
+				for (CompletableFuture<Void> part : parts) {
+					await(part);
+				}
+				if (integrityMarker == null) {
+					mergeTaggedServices(opened, true);
+				}
+			} else {
+				integrity = tree;
+			}
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("db.openIntegrity", t, Math.max(built, 0));
+		return (integrity != null) && (integrityMarker == null);
+	}
+	
+	/**
+	 * Protects the vault with integrity trees built from the current entries of every shard, replacing the former trees,
+	 * then stores the integrity marker next to the key. The entries are trusted as they are: only for a new vault,
+	 * or on request of the user. Nothing else may write to the vault meanwhile.
+	 * @param key The clear encryption key of the vault
+	 * @return Number of entries tagged, <code>-1</code> if the vault could not be protected
+	 */
+	public int enableIntegrity(Secret key) {
+		long t = Metrics.start();
+		int built;
+		try {
+			IntegrityTree tree = new IntegrityTree(key, shards.length);
+			built = buildTrees(tree);
+			if ((built >= 0) && setIntegrityMarker(tree)) {
+				integrityMarker = null;
+				mergeTaggedServices(tree, false);
+			} else {
+				built = -1;
+			}
+		} catch (GeneralSecurityException e) {
+			e.printStackTrace();
+			built = -1;
+		}
+		Metrics.record("db.enableIntegrity", t, Math.max(built, 0));
+		return built;
+	}
+	
+	/**
+	 * Checks if the vault is protected by its integrity trees
+	 * @return <code>false</code> if the integrity marker is missing or damaged, or {@link #openIntegrity(Secret)} has not been called
+	 */
+	public boolean isIntegrityEnabled() {
+		return (integrity != null) && (integrityMarker == null);
+	}
+	
+	/**
+	 * Checks the entries against their MACs and the integrity trees, shards in parallel, MACs computed by a pool of threads.
+	 * Each shard is read from a dedicated connection inside a single transaction: the scrub sees a consistent state of
+	 * the shard without blocking other reads, and writes keep going meanwhile.
+	 * Leaves found intact are marked as scrubbed, unless written since they were read. A vault without a valid integrity
+	 * marker is reported as such, its trees are still checked but no leaf is marked.
+	 * A scrub of the changed leaves only cannot find entries written without their MAC, which needs a full one.
+	 * @param changedOnly <code>true</code> to check only the entries of the leaves written since their last scrub
+	 * @param threads Number of threads computing MACs
+	 * @return Problems found, <code>null</code> if {@link #openIntegrity(Secret)} has not been called
+	 */
+	public ScrubReport scrub(boolean changedOnly, int threads) {
+		IntegrityTree tree = integrity;
+		if (tree == null) {
+			return null;
+		}
+		long t = Metrics.start();
+		ScrubReport report = new ScrubReport(!changedOnly);
+		ScrubReport.Problem marker = integrityMarker;
+		if (marker != null) {
+			report.add(marker, -1, -1, -1, -1);
+		}
+		verifyTrees(tree, changedOnly, threads, marker == null, report);
+		Metrics.record("db.scrub", t, report.getCheckedEntries());
+		return report;
+	}
+	
+	private void verifyTrees(IntegrityTree tree, boolean changedOnly, int threads, boolean markScrubbed, ScrubReport report) {
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread th = new Thread(r, "pamaja-scrub");
+			th.setDaemon(true);
+			return th;
+		});
+		try {
+			if (shards.length == 1) {
+				scrubShard(tree, 0, changedOnly, pool, markScrubbed, report);
+			} else {
+				List<CompletableFuture<Void>> parts = new ArrayList<CompletableFuture<Void>>();
+				for (int i=0 ; i<shards.length ; ++i) {
+					int shard = i;
+					parts.add(CompletableFuture.runAsync(() -> scrubShard(tree, shard, changedOnly, pool, markScrubbed, report), fanOut));
+				}
+				for (CompletableFuture<Void> part : parts) {
+					part.join();
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Runs a full scrub of some shards, without marking their leaves as scrubbed
+	 */
+	private ScrubReport checkShards(IntegrityTree tree, List<Integer> which) {
+		ScrubReport report = new ScrubReport(true);
+		ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), r -> {
+			Thread th = new Thread(r, "pamaja-scrub");
+			th.setDaemon(true);
+			return th;
+		});
+		try {
+			for (Integer shard : which) {
+				scrubShard(tree, shard.intValue(), false, pool, false, report);
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return report;
+	}
+	
+	private void scrubShard(IntegrityTree tree, int shard, boolean changedOnly, ExecutorService pool, boolean markScrubbed,
+			ScrubReport report) {
+		try {
+			Map<Integer, Long> clean;
+			Connection c = openConnection(shardFileName(shard, shards.length));
+			try {
+				c.setAutoCommit(false);
+				clean = tree.verify(c, shard, shards.length, changedOnly, pool, report);
+			} finally {
+				c.rollback();
+				c.close();
+			}
+			if (markScrubbed && !clean.isEmpty()) {
+				await(writers[shard].submit(stmt -> IntegrityTree.markScrubbed(stmt, clean)));
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			// A tree that could not be checked must not pass for a clean one
+			report.add(ScrubReport.Problem.UNREADABLE_TREE, shard, -1, -1, -1);
+		}
+	}
+	
+	/**
+	 * Starts a rotation of the encryption key.
+	 * The new key is stored next to the current one and empty shadow tables are created in every shard to receive re-encrypted data.
+	 * Writes of entries are refused until the rotation is finished.
+	 * @param newKey The new secret key, encrypted like the current one
+	 * @return <code>false</code> if a rotation is already pending or the database could not be updated
+	 */
+	public boolean beginKeyRotation(Ciph newKey) {
+		if (recordExistsInTable("id", "3", "cimd")) {
+			return false;
+		}
+		for (int shard=0 ; shard<shards.length ; ++shard) {
+			List<String> queries = new ArrayList<String>();
+			for (VaultTable table : VaultTable.values()) {
+				queries.add("CREATE TABLE IF NOT EXISTS " + table.getName() + ROTATION_SUFFIX + " ("
+						  + "	id INT PRIMARY KEY NOT NULL,"
+						  + "	iv TEXT NOT NULL,"
+						  + "	" + table.getColumn() + " TEXT NOT NULL)");
+			}
+			queries.add("CREATE TABLE IF NOT EXISTS rotp ("
+					  + "	tab TEXT PRIMARY KEY NOT NULL,"
+					  + "	last INT NOT NULL)");
+			for (VaultTable table : VaultTable.values()) {
+				queries.add("INSERT OR REPLACE INTO rotp VALUES('" + table.getName() + "', 0)");
+			}
+			if (!executeOnWriter(shard, queries, null)) {
+				return false;
+			}
+		}
+		List<String> queries = new ArrayList<String>();
+		queries.add("INSERT INTO cimd "
+				  + "VALUES('3', '', '"+new String(newKey.getIV())+"', '"+new String(newKey.getEnc())+"')");
+		return executeTransaction(connection, queries);
+	}
+	
+	/**
+	 * Gets the new key of a pending key rotation
+	 * @return The encrypted new secret key, <code>null</code> if no rotation is pending
+	 */
+	public Ciph getRotationKey() {
+		String sql = "SELECT ivsa, enc FROM cimd"
+				  + " WHERE id = 3";
+		ResultSet rs = executeWithResult(sql);
+		byte[] i = null;
+		byte[] e = null;
+		try {
+			if (rs.next()) {
+				i = rs.getBytes("ivsa");
+				e = rs.getBytes("enc");
+			}
+			rs.close();
+		} catch (SQLException e1) {
+			e1.printStackTrace();
+		}
+		if ((i != null) && (e != null)) {
+			return new Ciph(i, e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Checks if a shard still has rows to move in the pending key rotation
+	 * @param shard Index of the shard
+	 * @return <code>false</code> if the re-encrypted rows of the shard have already replaced the original ones
+	 */
+	public boolean isRotating(int shard) {
+		synchronized (shards[shard]) {
+			return tableExists(shards[shard], "rotp");
+		}
+	}
+	
+	/**
+	 * Gets the ID of the last row of a shard already re-encrypted by the pending key rotation
+	 * @param shard Index of the shard
+	 * @param table Table to get the checkpoint of
+	 * @return Local ID of the last re-encrypted row, 0 if none
+	 */
+	public int getRotationCheckpoint(int shard, VaultTable table) {
+		String sql = "SELECT last FROM rotp"
+				  + " WHERE tab = '" + table.getName() + "';";
+		int last = 0;
+		synchronized (shards[shard]) {
+			ResultSet rs = executeWithResult(shards[shard], sql);
+			try {
+				if (rs.next()) {
+					last = rs.getInt("last");
+				}
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		return last;
+	}
+	
+	/**
+	 * Gets a batch of encrypted rows of a shard, ordered by ID
+	 * @param shard Index of the shard
+	 * @param table Table to read
+	 * @param afterId Only rows with a greater local ID are returned
+	 * @param limit Maximum number of rows to return
+	 * @return Encrypted data (<code>local ID => data</code>), in ID order
+	 */
+	public Map<Integer, Ciph> getRowsAfter(int shard, VaultTable table, int afterId, int limit) {
+		long t = Metrics.start();
+		String sql = "SELECT id, iv, " + table.getColumn() + " FROM " + table.getName()
+				  + " WHERE id > " + afterId
+				  + " ORDER BY id"
+				  + " LIMIT " + limit + ";";
+		Map<Integer, Ciph> rows = new LinkedHashMap<Integer, Ciph>();
+		long bytes = 0;
+		synchronized (shards[shard]) {
+			ResultSet rs = executeWithResult(shards[shard], sql);
+			try {
+				while (rs.next()) {
+					Ciph row = new Ciph(rs.getBytes("iv"), rs.getBytes(table.getColumn()));
+					rows.put(rs.getInt("id"), row);
+					bytes += row.getEnc().length;
+				}
+				rs.close();
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+		}
+		Metrics.record("db.getRowsAfter", t, bytes);
+		return rows;
+	}
+	
+	/**
+	 * Stores a batch of re-encrypted rows in the shadow table of a pending key rotation, and moves its checkpoint, atomically
+	 * @param shard Index of the shard the rows come from
+	 * @param table Table the rows come from
+	 * @param rows Rows encrypted with the new key (<code>local ID => data</code>)
+	 * @param lastId New checkpoint of the table
+	 * @return <code>true</code> if the batch has been committed
+	 */
+	public boolean commitRotationBatch(int shard, VaultTable table, Map<Integer, Ciph> rows, int lastId) {
+		long t = Metrics.start();
+		List<String> queries = new ArrayList<String>();
+		long bytes = 0;
+		for (Map.Entry<Integer, Ciph> row : rows.entrySet()) {
+			queries.add("INSERT OR REPLACE INTO " + table.getName() + ROTATION_SUFFIX
+					  + " VALUES('"+row.getKey()+"', '"+new String(row.getValue().getIV())+"', '"+new String(row.getValue().getEnc())+"')");
+			bytes += row.getValue().getEnc().length;
+		}
+		queries.add("UPDATE rotp SET last = " + lastId
+				  + " WHERE tab = '" + table.getName() + "';");
+		boolean res = executeOnWriter(shard, queries, null);
+		Metrics.record("db.commitRotationBatch", t, bytes);
+		return res;
+	}
+	
+	/**
+	 * Ends a pending key rotation: re-encrypted rows replace the original ones and the new key replaces the current one.
+	 * Fails if rows have been added after the checkpoint of one of the tables since it was last moved.
+	 * An unsharded vault is switched in a single transaction. A sharded one is switched shard by shard, then the key is
+	 * promoted: if this is interrupted, the rotation must be resumed before the vault is read again.
+	 * The integrity trees of a protected vault are checked with the current key first, then built again with the new key
+	 * in the transaction switching their shard, and the integrity marker is promoted with the key. The re-encrypted rows
+	 * have been written by this rotation from rows under the checked trees.
+	 * @param oldKey The current clear key
+	 * @param newKey The new clear key
+	 * @return <code>true</code> if the rotation is complete, <code>false</code> if rows are left to re-encrypt
+	 * @throws IllegalStateException If the integrity trees are not clean, or a shard or the key could not be switched
+	 */
+	public boolean finishKeyRotation(Secret oldKey, Secret newKey) {
+		for (int shard=0 ; shard<shards.length ; ++shard) {
+			if (!isRotating(shard)) {
+				continue;
+			}
+			for (VaultTable table : VaultTable.values()) {
+				String sql = "SELECT COUNT(*) FROM " + table.getName()
+						  + " WHERE id > " + getRotationCheckpoint(shard, table) + ";";
+				int remaining = 0;
+				synchronized (shards[shard]) {
+					ResultSet rs = executeWithResult(shards[shard], sql);
+					try {
+						if (rs.next()) {
+							remaining = rs.getInt(1);
+						}
+						rs.close();
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
+				if (remaining != 0) {
+					return false;
+				}
+			}
+		}
+		IntegrityTree newTree = checkTreesBeforeRotation(oldKey, newKey);
+		List<String> keyQueries = new ArrayList<String>();
+		keyQueries.add("UPDATE cimd"
+				  + " SET ivsa = (SELECT ivsa FROM cimd WHERE id = 3), enc = (SELECT enc FROM cimd WHERE id = 3)"
+				  + " WHERE id = 2");
+		keyQueries.add("DELETE FROM cimd WHERE id = 3");
+		if (newTree != null) {
+			keyQueries.add(integrityMarkerQuery(newTree));
+		}
+		integrity = null;
+		for (int shard=0 ; shard<shards.length ; ++shard) {
+			if (!isRotating(shard)) {
+				continue;
+			}
+			List<String> queries = new ArrayList<String>();
+			for (VaultTable table : VaultTable.values()) {
+				queries.add("INSERT OR REPLACE INTO " + table.getName()
+						  + " SELECT id, iv, " + table.getColumn() + " FROM " + table.getName() + ROTATION_SUFFIX);
+				queries.add("DROP TABLE " + table.getName() + ROTATION_SUFFIX);
+			}
+			queries.add("DROP TABLE rotp");
+			WriteBehindQueue.Mutation retag = null;
+			if (newTree != null) {
+				// MACs are computed over the ciphertexts with a key derived from the old key
+				int s = shard;
+				retag = stmt -> newTree.build(stmt, s);
+			} else {
+				queries.add("DROP TABLE IF EXISTS emac");
+				queries.add("DROP TABLE IF EXISTS merk");
+			}
+			if (shards[shard] == connection) {
+				queries.addAll(keyQueries);
+				keyQueries.clear();
+			}
+			if (!executeOnWriter(shard, queries, retag)) {
+				throw new IllegalStateException("Could not switch shard " + shard + " to the new key");
+			}
+		}
+		if (!keyQueries.isEmpty() && !executeTransaction(connection, keyQueries)) {
+			throw new IllegalStateException("Could not promote the new key");
+		}
+		return true;
+	}
+	
+	/**
+	 * Checks the integrity trees of the shards still to switch to the new key, with the current key
+	 * @return Tree to build with the new key, <code>null</code> if the vault is not protected
+	 * @throws IllegalStateException If the integrity marker or a tree is not clean
+	 */
+	private IntegrityTree checkTreesBeforeRotation(Secret oldKey, Secret newKey) {
+		Pair<String, byte[]> marker = getIntegrityMarker();
+		if (marker == null) {
+			return null;
+		}
+		try {
+			int layout = IntegrityTree.parseLayout(marker.first());
+			IntegrityTree oldTree = (layout > 0) ? new IntegrityTree(oldKey, shards.length, layout) : null;
+			if ((oldTree == null) || !oldTree.checkMarker(marker.second())) {
+				throw new IllegalStateException("The integrity marker does not match the current key, protect the vault again first");
+			}
+			List<Integer> rotating = new ArrayList<Integer>();
+			for (int shard=0 ; shard<shards.length ; ++shard) {
+				if (isRotating(shard)) {
+					rotating.add(Integer.valueOf(shard));
+				}
+			}
+			ScrubReport report = checkShards(oldTree, rotating);
+			if (!report.isClean()) {
+				throw new IllegalStateException("The integrity check before switching to the new key failed: "+report.getFindings());
+			}
+			return new IntegrityTree(newKey, shards.length);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Spreads the entries over a new number of database files.
+	 * Entries are copied to the new layout, then the shard count is updated, which switches the vault to the new
+	 * layout in one step, then the former files are removed. Entry IDs change.
+	 * Integrity trees are dropped with the integrity marker: the vault is no longer protected until
+	 * {@link #enableIntegrity(Secret)} builds them again for the new layout.
+	 * Nothing else may use the database meanwhile, and no key rotation may be pending.
+	 * @param count New number of shards
+	 * @return <code>true</code> if the entries have been moved
+	 */
+	public boolean reshard(int count) {
+		if ((count < 1) || (count == shards.length) || (getRotationKey() != null)) {
+			return false;
+		}
+		int oldCount = shards.length;
+		try {
+			Connection[] targets = new Connection[count];
+			for (int i=0 ; i<count ; ++i) {
+				if (count == 1) {
+					targets[i] = connection;
+				} else {
+					deleteDBFile(shardFileName(i, count));
+					targets[i] = openConnection(shardFileName(i, count));
+					createEntryTables(targets[i]);
+				}
+				targets[i].setAutoCommit(false);
+			}
+			if (count == 1) {
+				Statement stmt = connection.createStatement();
+				for (String table : new String[] {"corda", "sercl", "locl", "cida", "totp"}) {
+					stmt.executeUpdate("DELETE FROM "+table);
+				}
+				stmt.close();
+			}
+			List<Map<String, Integer>> targetServices = new ArrayList<Map<String, Integer>>(count);
+			for (int i=0 ; i<count ; ++i) {
+				targetServices.add(new HashMap<String, Integer>());
+			}
+			int[] next = new int[count];
+			Arrays.fill(next, 1);
+			for (int shard=0 ; shard<oldCount ; ++shard) {
+				ResultSet rs = executeWithResult(shards[shard], "SELECT corda.sid, s.ser, l.iv, l.lo, c.iv, c.enc, o.iv, o.sec"
+						  + " FROM corda"
+						  + " JOIN sercl s ON s.id = corda.sid"
+						  + " JOIN locl l ON l.id = corda.lid"
+						  + " JOIN cida c ON c.id = corda.pid"
+						  + " LEFT JOIN totp o ON o.id = corda.lid"
+						  + " ORDER BY corda.sid;");
+				while (rs.next()) {
+					String service = rs.getString(2);
+					int target = Math.floorMod(service.hashCode(), count);
+					Statement stmt = targets[target].createStatement();
+					Map<String, Integer> names = targetServices.get(target);
+					Integer serviceId = names.get(service);
+					if (serviceId == null) {
+						serviceId = Integer.valueOf(names.size() + 1);
+						names.put(service, serviceId);
+						PreparedStatement insert = targets[target].prepareStatement("INSERT INTO sercl VALUES(?, ?)");
+						insert.setInt(1, serviceId.intValue());
+						insert.setString(2, service);
+						insert.executeUpdate();
+						insert.close();
+					}
+					int id = next[target]++;
+					stmt.executeUpdate("INSERT INTO locl VALUES('"+id+"', '"+rs.getString(3)+"', '"+rs.getString(4)+"')");
+					stmt.executeUpdate("INSERT INTO cida VALUES('"+id+"', '"+rs.getString(5)+"', '"+rs.getString(6)+"')");
+					stmt.executeUpdate("INSERT INTO corda VALUES('"+serviceId+"', '"+id+"', '"+id+"')");
+					if (rs.getString(7) != null) {
+						stmt.executeUpdate("INSERT INTO totp VALUES('"+id+"', '"+rs.getString(7)+"', '"+rs.getString(8)+"')");
+					}
+					stmt.close();
+				}
+				rs.close();
+			}
+			if (count == 1) {
+				// Entries and shard count live in the same file: switch in the same transaction
+				executeNoResult("UPDATE shar SET count = 1");
+				executeNoResult("INSERT INTO chlog (sid, lid) VALUES(-1, -1)");
+			}
+			for (Connection target : targets) {
+				target.commit();
+				target.setAutoCommit(true);
+				if (target != connection) {
+					target.close();
+				}
+			}
+			closeShards();
+			integrity = null;
+			executeNoResult("DROP TABLE IF EXISTS emac");
+			executeNoResult("DROP TABLE IF EXISTS merk");
+			executeNoResult("DELETE FROM cimd WHERE id = 4");
+			if (count > 1) {
+				if (!tableExists(connection, "shar")) {
+					executeNoResult("CREATE TABLE shar (count INTEGER NOT NULL)");
+					executeNoResult("INSERT INTO shar VALUES(1)");
+				}
+				executeNoResult("UPDATE shar SET count = "+count);
+				executeNoResult("INSERT INTO chlog (sid, lid) VALUES(-1, -1)");
+			}
+			if (oldCount == 1) {
+				List<String> queries = new ArrayList<String>();
+				for (String table : new String[] {"corda", "sercl", "locl", "cida", "totp"}) {
+					queries.add("DELETE FROM "+table);
+				}
+				queries.add("DELETE FROM chlog WHERE sid >= 0");
+				executeTransaction(connection, queries);
+			} else {
+				for (int i=0 ; i<oldCount ; ++i) {
+					deleteDBFile(shardFileName(i, oldCount));
+				}
+			}
+			openShards(count);
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return false;
+	}
+	
+	/**
+	 * Copies the whole vault into a backup directory, through the SQLite online backup API.
+	 * Every file is copied page by page while writers keep going, into a temporary file, then each file of the backup is
+	 * replaced atomically, the shards before the main file. The change log is then trimmed up to what the backup holds.
+	 * @param dir Backup directory
+	 * @return <code>true</code> if the backup has been written
+	 */
+	public boolean backupFull(String dir) {
+		long t = Metrics.start();
+		new File(dir).mkdirs();
+		int count = shards.length;
+		try {
+			List<Connection> sources = new ArrayList<Connection>();
+			List<String> names = new ArrayList<String>();
+			sources.add(connection);
+			names.add(DB_NAME);
+			for (int i=0 ; (count > 1) && (i<count) ; ++i) {
+				sources.add(shards[i]);
+				names.add(shardFileName(i, count));
+			}
+			for (int i=0 ; i<sources.size() ; ++i) {
+				File tmp = new File(dir, names.get(i)+".tmp");
+				tmp.delete();
+				synchronized (sources.get(i)) {
+					Statement stmt = sources.get(i).createStatement();
+					stmt.executeUpdate("backup to \""+tmp.getPath()+"\"");
+					stmt.close();
+				}
+			}
+			File[] old = new File(dir).listFiles((d, name) -> name.startsWith("PamajaDB") && !name.endsWith(".tmp"));
+			for (File f : old) {
+				if (!names.contains(f.getName())) {
+					f.delete();
+				}
+			}
+			// The main file, holding the key and the shard count, goes last
+			for (int i=names.size()-1 ; i>=0 ; --i) {
+				String name = names.get(i);
+				new File(dir, name+"-wal").delete();
+				new File(dir, name+"-shm").delete();
+				Files.move(new File(dir, name+".tmp").toPath(), new File(dir, name).toPath(),
+						StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			}
+			for (int i=0 ; i<sources.size() ; ++i) {
+				trimChangeLog(sources.get(i), dir, names.get(i));
+			}
+			return true;
+		} catch (SQLException | IOException e) {
+			e.printStackTrace();
+		} finally {
+			Metrics.record("db.backupFull", t, 0);
+		}
+		return false;
+	}
+	
+	private void trimChangeLog(Connection source, String dir, String name) throws SQLException {
+		Connection backup = openConnection(dir, name);
+		long seq = lastChange(backup);
+		backup.close();
+		synchronized (source) {
+			executeNoResult(source, "DELETE FROM chlog WHERE seq <= "+seq);
+		}
+	}
+	
+	/**
+	 * Brings a backup directory up to date by copying only the entries written since the previous backup.
+	 * Nothing is written when the backup cannot be updated this way: missing backup, key rotated, entries resharded,
+	 * change log trimmed by another backup, or integrity tree built or integrity marker changed since the backup.
+	 * Each shard is read in one transaction; a change log trimmed meanwhile stops the update after the shards already shipped.
+	 * @param dir Backup directory, filled by {@link #backupFull(String)} beforehand
+	 * @return Number of entries copied, <code>-1</code> if a full backup is needed
+	 */
+	public int backupIncremental(String dir) {
+		long t = Metrics.start();
+		int count = shards.length;
+		if (!new File(dir, DB_NAME).exists()) {
+			return -1;
+		}
+		Connection[] backups = new Connection[count];
+		Connection backupMain = null;
+		int shipped = 0;
+		try {
+			backupMain = openConnection(dir, DB_NAME);
+			Ciph key = getStoredKey();
+			ResultSet rs = executeWithResult(backupMain, "SELECT ivsa, enc FROM cimd WHERE id = 2");
+			boolean sameKey = rs.next() && Arrays.equals(rs.getBytes(1), key.getIV()) && Arrays.equals(rs.getBytes(2), key.getEnc());
+			rs.close();
+			Pair<String, byte[]> marker = getIntegrityMarker();
+			rs = executeWithResult(backupMain, "SELECT enc FROM cimd WHERE id = 4");
+			boolean sameMarker = rs.next() ? ((marker != null) && Arrays.equals(rs.getBytes(1), marker.second())) : (marker == null);
+			rs.close();
+			if (!sameKey || !sameMarker || (readShardCount(backupMain) != count)) {
+				return -1;
+			}
+			if (count > 1) {
+				synchronized (connection) {
+					if (pendingChanges(connection, lastChange(backupMain)) == null) {
+						return -1;
+					}
+				}
+			}
+			for (int i=0 ; i<count ; ++i) {
+				backups[i] = (count == 1) ? backupMain : openConnection(dir, shardFileName(i, count));
+				synchronized (shards[i]) {
+					if ((pendingChanges(shards[i], lastChange(backups[i])) == null)
+							|| (tableExists(shards[i], "merk") && !tableExists(backups[i], "merk"))) {
+						return -1;
+					}
+				}
+			}
+			for (int i=0 ; i<count ; ++i) {
+				int copied = shipShard(shards[i], backups[i]);
+				if (copied < 0) {
+					return -1;
+				}
+				shipped += copied;
+			}
+			for (int i=0 ; i<count ; ++i) {
+				synchronized (shards[i]) {
+					executeNoResult(shards[i], "DELETE FROM chlog WHERE seq <= "+lastChange(backups[i]));
+				}
+			}
+			return shipped;
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return -1;
+		} finally {
+			try {
+				for (Connection b : backups) {
+					if ((b != null) && (b != backupMain)) {
+						b.close();
+					}
+				}
+				if (backupMain != null) {
+					backupMain.close();
+				}
+			} catch (SQLException e) {
+				e.printStackTrace();
+			}
+			Metrics.record("db.backupIncremental", t, shipped);
+		}
+	}
+	
+	/**
+	 * Reads the change log of a file after a given sequence number
+	 * @return Changes as <code>{seq, sid, lid}</code>, <code>null</code> if some of them are missing or the entries have been moved
+	 */
+	private static List<long[]> pendingChanges(Connection c, long after) throws SQLException {
+		long last = lastChange(c);
+		ResultSet rs = executeWithResult(c, "SELECT seq, sid, lid FROM chlog WHERE seq > "+after+" ORDER BY seq;");
+		List<long[]> changes = new ArrayList<long[]>();
+		long expected = after + 1;
+		boolean complete = true;
+		while (complete && rs.next()) {
+			long[] change = {rs.getLong(1), rs.getInt(2), rs.getInt(3)};
+			complete = (change[0] == expected++) && (change[1] >= 0);
+			changes.add(change);
+		}
+		rs.close();
+		if (!complete || (last < after) || (changes.isEmpty() && (last > after))) {
+			return null;
+		}
+		return changes;
+	}
+	
+	/**
+	 * Reads the changes of a shard missing from its backup and ships them, in one read transaction holding the lock of the
+	 * shard, so the entries, their MACs, the tree and the change log are copied from the same state
+	 * @return Number of entries copied, <code>-1</code> if the change log no longer covers the backup
+	 */
+	private static int shipShard(Connection source, Connection backup) throws SQLException {
+		synchronized (source) {
+			source.setAutoCommit(false);
+			try {
+				List<long[]> changes = pendingChanges(source, lastChange(backup));
+				return (changes != null) ? shipChanges(source, backup, changes) : -1;
+			} finally {
+				// Nothing has been written, ending the transaction only releases its snapshot
+				source.commit();
+				source.setAutoCommit(true);
+			}
+		}
+	}
+	
+	/**
+	 * Copies the current state of the changed entries, their MACs, the integrity tree and the change log rows, to a backup
+	 * file in one transaction
+	 * @return Number of entries copied
+	 */
+	private static int shipChanges(Connection source, Connection backup, List<long[]> changes) throws SQLException {
+		if (changes.isEmpty()) {
+			return 0;
+		}
+		Map<Long, long[]> entries = new LinkedHashMap<Long, long[]>();
+		for (long[] change : changes) {
+			entries.put((change[1] << 32) | change[2], change);
+		}
+		PreparedStatement read = source.prepareStatement("SELECT corda.pid, s.ser, l.iv, l.lo, c.iv, c.enc, o.iv, o.sec"
+				+ " FROM corda"
+				+ " JOIN sercl s ON s.id = corda.sid"
+				+ " JOIN locl l ON l.id = corda.lid"
+				+ " JOIN cida c ON c.id = corda.pid"
+				+ " LEFT JOIN totp o ON o.id = corda.lid"
+				+ " WHERE corda.sid = ? AND corda.lid = ?;");
+		createTotpTable(backup);
+		backup.setAutoCommit(false);
+		try {
+			PreparedStatement ser = backup.prepareStatement("INSERT OR REPLACE INTO sercl VALUES(?, ?)");
+			PreparedStatement lo = backup.prepareStatement("INSERT OR REPLACE INTO locl VALUES(?, ?, ?)");
+			PreparedStatement pwd = backup.prepareStatement("INSERT OR REPLACE INTO cida VALUES(?, ?, ?)");
+			PreparedStatement link = backup.prepareStatement("INSERT OR REPLACE INTO corda VALUES(?, ?, ?)");
+			PreparedStatement otp = backup.prepareStatement("INSERT OR REPLACE INTO totp VALUES(?, ?, ?)");
+			PreparedStatement log = backup.prepareStatement("INSERT INTO chlog VALUES(?, ?, ?)");
+			for (long[] change : entries.values()) {
+				int sid = (int)change[1];
+				int lid = (int)change[2];
+				read.setInt(1, sid);
+				read.setInt(2, lid);
+				ResultSet rs = read.executeQuery();
+				if (rs.next()) {
+					int pid = rs.getInt(1);
+					ser.setInt(1, sid);
+					ser.setString(2, rs.getString(2));
+					ser.executeUpdate();
+					lo.setInt(1, lid);
+					lo.setString(2, rs.getString(3));
+					lo.setString(3, rs.getString(4));
+					lo.executeUpdate();
+					pwd.setInt(1, pid);
+					pwd.setString(2, rs.getString(5));
+					pwd.setString(3, rs.getString(6));
+					pwd.executeUpdate();
+					link.setInt(1, sid);
+					link.setInt(2, lid);
+					link.setInt(3, pid);
+					link.executeUpdate();
+					if (rs.getString(7) != null) {
+						otp.setInt(1, lid);
+						otp.setString(2, rs.getString(7));
+						otp.setString(3, rs.getString(8));
+						otp.executeUpdate();
+					}
+				}
+				rs.close();
+			}
+			if (tableExists(source, "merk")) {
+				IntegrityTree.ship(source, backup, entries.values());
+			}
+			for (long[] change : changes) {
+				log.setLong(1, change[0]);
+				log.setInt(2, (int)change[1]);
+				log.setInt(3, (int)change[2]);
+				log.executeUpdate();
+			}
+			for (PreparedStatement stmt : new PreparedStatement[] {ser, lo, pwd, link, otp, log}) {
+				stmt.close();
+			}
+			backup.commit();
+		} catch (SQLException e) {
+			backup.rollback();
+			throw e;
+		} finally {
+			backup.setAutoCommit(true);
+			read.close();
+		}
+		return entries.size();
+	}
+	
+	private void deleteDBFile(String fileName) {
+		new File(dbDir+"/"+fileName).delete();
+		new File(dbDir+"/"+fileName+"-wal").delete();
+		new File(dbDir+"/"+fileName+"-shm").delete();
 	}
 }
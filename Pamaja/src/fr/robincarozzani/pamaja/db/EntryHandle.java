@@ -0,0 +1,107 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.security.GeneralSecurityException;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+
+/**
+ * Reference to a vault entry holding only its IDs.
+ * The encrypted login is read from the store the first time it is needed, the encrypted password each time.
+ * @author Robin Carozzani
+ */
+public class EntryHandle {
+
+	private final VaultStore _store;
+	private final int _serviceId;
+	private final int _loginId;
+	private Ciph _login = null;
+
+	/**
+	 * Constructs an EntryHandle
+	 * @param store Store holding the entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 */
+	public EntryHandle(VaultStore store, int serviceId, int loginId) {
+		_store = store;
+		_serviceId = serviceId;
+		_loginId = loginId;
+	}
+
+	/**
+	 * Gets the ID of the service of the entry
+	 * @return Service ID
+	 */
+	public int getServiceId() {
+		return _serviceId;
+	}
+
+	/**
+	 * Gets the ID of the login of the entry
+	 * @return Login ID
+	 */
+	public int getLoginId() {
+		return _loginId;
+	}
+
+	/**
+	 * Gets the encrypted login, reading it from the store on first call
+	 * @return Encrypted login, <code>null</code> if the entry does not exist anymore
+	 */
+	public Ciph getLogin() {
+		if (_login == null) {
+			_login = _store.getLogin(_serviceId, _loginId);
+		}
+		return _login;
+	}
+
+	/**
+	 * Gets the encrypted password, read from the store on each call
+	 * @return Encrypted password, <code>null</code> if the entry does not exist anymore
+	 */
+	public Ciph getPassword() {
+		return _store.getPassword(_serviceId, _loginId);
+	}
+
+	/**
+	 * Decrypts the login
+	 * @param key The secret key of the vault
+	 * @return The clear login, <code>null</code> if the entry does not exist anymore
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] decryptLogin(Secret key) throws GeneralSecurityException {
+		Ciph login = getLogin();
+		return (login != null) ? Ciphor.getInstance().decrypt(login, key) : null;
+	}
+
+	/**
+	 * Reads and decrypts the password straight into a secure arena
+	 * @param key The secret key of the vault
+	 * @param arena Arena receiving the clear password
+	 * @return The clear password, <code>null</code> if the entry does not exist anymore
+	 * @throws GeneralSecurityException
+	 */
+	public Secret decryptPassword(Secret key, SecureArena arena) throws GeneralSecurityException {
+		Ciph password = getPassword();
+		return (password != null) ? Ciphor.getInstance().decrypt(password, key, arena) : null;
+	}
+}
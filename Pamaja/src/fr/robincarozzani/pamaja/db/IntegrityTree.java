@@ -0,0 +1,766 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.db.ScrubReport.Problem;
+import fr.robincarozzani.pamaja.utils.HexHandler;
+
+/**
+ * Keyed integrity tree over the entries of the shards.
+ * Every entry has a MAC (HMAC-SHA256 with a key derived from the encryption key) of its service, login and password
+ * rows, stored in the <code>emac</code> table. Entries are spread over {@link #LEAVES} leaves of a binary Merkle tree
+ * stored in the <code>merk</code> table: a leaf holds the number of its entries and the XOR of their MACs, and every
+ * node, leaves included, has a MAC of its content. A changed, added or removed entry therefore shows up at its leaf and
+ * on the path to the root, without reading the other entries.
+ * Writes update the MAC of the entry and its leaf, inner nodes are updated once per group commit. Each leaf counts the
+ * writes since it was last scrubbed, so a scrub can check only the changed leaves.
+ * Trees are only built on request, see {@link #build(Statement, int)}: a protected vault holds a marker, a MAC that
+ * only the key can produce, so a missing tree is reported instead of being built again from tampered entries.
+ * The marker also records how many columns the MACs of the entries cover: a tree built over fewer columns is only built
+ * again once it has been checked clean. Node 0, outside of the tree, held that number before the marker existed.
+ * @author Robin Carozzani
+ */
+class IntegrityTree {
+
+	/**
+	 * Number of leaves of the tree of a shard
+	 */
+	static final int LEAVES = 1024;
+
+	private static final String ALGO = "HmacSHA256";
+	private static final int TAG_LENGTH = 32;
+	private static final byte[] DERIVATION = "Pamaja integrity".getBytes(StandardCharsets.US_ASCII);
+	// Domains of the MAC inputs, so an entry, a leaf and a node can never have the same MAC
+	private static final byte ENTRY = 0;
+	private static final byte LEAF = 1;
+	private static final byte NODE = 2;
+	private static final byte MARKER = 3;
+	private static final int BATCH = 512;
+
+	// Data covered by the MAC of an entry, the row of corda being "corda". Former layouts cover the first columns only.
+	private static final String ENTRY_COLUMNS = "s.ser, l.iv, l.lo, c.iv, c.enc, o.iv, o.sec";
+	private static final int ENTRY_FIELDS = 7;
+	// Before TOTP secrets
+	private static final int FIRST_LAYOUT = 5;
+	private static final int LAYOUT_NODE = 0;
+	private static final String ENTRY_JOINS = " LEFT JOIN sercl s ON s.id = corda.sid"
+			+ " LEFT JOIN locl l ON l.id = corda.lid"
+			+ " LEFT JOIN cida c ON c.id = corda.pid"
+			+ " LEFT JOIN totp o ON o.id = corda.lid";
+
+	private final SecretKeySpec _key;
+	private final int _layout;
+	private final ThreadLocal<Mac> _macs = new ThreadLocal<Mac>();
+	// Only used by the writer thread of each shard
+	private final boolean[] _ready;
+	private final BitSet[] _stale;
+
+	/**
+	 * Constructs the tree of a vault, which needs to be opened on every shard
+	 * @param key The clear encryption key of the vault
+	 * @param shards Number of shards
+	 * @throws GeneralSecurityException
+	 */
+	IntegrityTree(Secret key, int shards) throws GeneralSecurityException {
+		this(key, shards, ENTRY_FIELDS);
+	}
+
+	/**
+	 * Constructs the tree of a vault whose entry MACs cover a former layout, to check it before it is built again
+	 * @param key The clear encryption key of the vault
+	 * @param shards Number of shards
+	 * @param layout Number of columns covered by the MACs of the entries, see {@link #parseLayout(String)}
+	 * @throws GeneralSecurityException
+	 */
+	IntegrityTree(Secret key, int shards, int layout) throws GeneralSecurityException {
+		_layout = layout;
+		byte[] k = new byte[key.length()];
+		key.copyTo(0, k, 0, k.length);
+		byte[] derived = null;
+		try {
+			Mac mac = Mac.getInstance(ALGO);
+			mac.init(new SecretKeySpec(k, ALGO));
+			derived = mac.doFinal(DERIVATION);
+			_key = new SecretKeySpec(derived, ALGO);
+		} finally {
+			Arrays.fill(k, (byte)0);
+			if (derived != null) {
+				Arrays.fill(derived, (byte)0);
+			}
+		}
+		_ready = new boolean[shards];
+		_stale = new BitSet[shards];
+		for (int i=0 ; i<shards ; ++i) {
+			_stale[i] = new BitSet(LEAVES);
+		}
+	}
+
+	private Mac mac() {
+		Mac mac = _macs.get();
+		if (mac == null) {
+			try {
+				mac = Mac.getInstance(ALGO);
+				mac.init(_key);
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException(e);
+			}
+			_macs.set(mac);
+		}
+		return mac;
+	}
+
+	private static void updateInt(Mac mac, int value) {
+		mac.update((byte)(value >>> 24));
+		mac.update((byte)(value >>> 16));
+		mac.update((byte)(value >>> 8));
+		mac.update((byte)value);
+	}
+
+	/**
+	 * Gets the leaf holding an entry
+	 * @param serviceId Local ID of the service
+	 * @param loginId Local ID of the login
+	 * @return Index of the leaf
+	 */
+	static int leafOf(int serviceId, int loginId) {
+		return (int)((serviceId * 1031L + loginId) & (LEAVES - 1));
+	}
+
+	private byte[][] readEntry(ResultSet rs, int first) throws SQLException {
+		byte[][] fields = new byte[_layout][];
+		for (int i=0 ; i<fields.length ; ++i) {
+			fields[i] = rs.getBytes(first + i);
+		}
+		return fields;
+	}
+
+	private byte[] entryTag(int shard, int serviceId, int loginId, byte[][] fields) {
+		Mac mac = mac();
+		mac.update(ENTRY);
+		updateInt(mac, shard);
+		updateInt(mac, serviceId);
+		updateInt(mac, loginId);
+		for (byte[] field : fields) {
+			// Missing rows and empty ones must differ
+			updateInt(mac, (field != null) ? field.length : -1);
+			if (field != null) {
+				mac.update(field);
+			}
+		}
+		return mac.doFinal();
+	}
+
+	private byte[] leafHash(int leaf, int count, byte[] acc) {
+		Mac mac = mac();
+		mac.update(LEAF);
+		updateInt(mac, leaf);
+		updateInt(mac, count);
+		mac.update(acc);
+		return mac.doFinal();
+	}
+
+	private byte[] nodeHash(int node, byte[] left, byte[] right) {
+		Mac mac = mac();
+		mac.update(NODE);
+		updateInt(mac, node);
+		mac.update(left);
+		mac.update(right);
+		return mac.doFinal();
+	}
+
+	private static void xor(byte[] acc, byte[] tag) {
+		for (int i=0 ; i<TAG_LENGTH ; ++i) {
+			acc[i] ^= tag[i];
+		}
+	}
+
+	private static String hex(byte[] data) {
+		return new String(HexHandler.toHexBytes(data), StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] unhex(byte[] hex) {
+		// SQLite gives no bytes for an empty text
+		return (hex != null) ? HexHandler.fromHex(hex) : new byte[0];
+	}
+
+	private static boolean exists(Statement stmt) throws SQLException {
+		ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM sqlite_master WHERE type = 'table' AND name = 'merk';");
+		boolean res = rs.next() && (rs.getInt(1) != 0);
+		rs.close();
+		return res;
+	}
+
+	/**
+	 * Creates the tables of the tree, empty
+	 * @param stmt Statement of the shard
+	 * @throws SQLException
+	 */
+	static void createTables(Statement stmt) throws SQLException {
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS emac ("
+				+ "	sid INT NOT NULL,"
+				+ "	lid INT NOT NULL,"
+				+ "	leaf INT NOT NULL,"
+				+ "	tag TEXT NOT NULL,"
+				+ "	CONSTRAINT pk_emac PRIMARY KEY(sid, lid))");
+		stmt.executeUpdate("CREATE INDEX IF NOT EXISTS ix_emac_leaf ON emac(leaf)");
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS merk ("
+				+ "	node INT PRIMARY KEY NOT NULL,"
+				+ "	cnt INT NOT NULL,"
+				+ "	acc TEXT NOT NULL,"
+				+ "	hash TEXT NOT NULL,"
+				+ "	dirty INT NOT NULL)");
+	}
+
+	/**
+	 * Gets the marker of a vault protected by this tree, to store next to the key
+	 * @return MAC of the layout of the tree, in hexadecimal
+	 */
+	String marker() {
+		return hex(markerTag());
+	}
+
+	private byte[] markerTag() {
+		Mac mac = mac();
+		mac.update(MARKER);
+		updateInt(mac, _layout);
+		return mac.doFinal();
+	}
+
+	/**
+	 * Checks a stored marker against the key and the layout of this tree
+	 * @param tag MAC recorded with the marker, in hexadecimal
+	 * @return <code>true</code> if the marker has been made by {@link #marker()} with the same key and layout
+	 */
+	boolean checkMarker(byte[] tag) {
+		return MessageDigest.isEqual(markerTag(), unhex(tag));
+	}
+
+	/**
+	 * Gets the number of columns covered by the MACs of the entries
+	 * @return Number of columns
+	 */
+	int getLayout() {
+		return _layout;
+	}
+
+	/**
+	 * Checks if the MACs of the entries cover every column
+	 * @return <code>false</code> if the tree needs to be built again over the current layout
+	 */
+	boolean isCurrent() {
+		return _layout == ENTRY_FIELDS;
+	}
+
+	/**
+	 * Reads a layout recorded with a marker
+	 * @param layout Layout as stored
+	 * @return Number of columns covered by the MACs of the entries, <code>-1</code> if the layout is unknown
+	 */
+	static int parseLayout(String layout) {
+		try {
+			int res = Integer.parseInt(layout);
+			return ((res >= FIRST_LAYOUT) && (res <= ENTRY_FIELDS)) ? res : -1;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Reads the layout of a tree built before markers, from its node 0. Not authenticated: a wrong one only makes the
+	 * tree fail its check.
+	 * @param c Connection to the shard
+	 * @return Number of columns covered by the MACs of the entries, <code>-1</code> if the shard has no tree
+	 * @throws SQLException
+	 */
+	static int unmarkedLayout(Connection c) throws SQLException {
+		Statement stmt = c.createStatement();
+		try {
+			if (!exists(stmt)) {
+				return -1;
+			}
+			ResultSet rs = stmt.executeQuery("SELECT cnt FROM merk WHERE node = " + LAYOUT_NODE + ";");
+			// Trees without node 0 come from before TOTP secrets
+			int layout = rs.next() ? parseLayout(rs.getString(1)) : FIRST_LAYOUT;
+			rs.close();
+			return layout;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Opens the tree of a shard, which is never built here: a shard without a tree is left unprotected and reported by
+	 * {@link #verify(Connection, int, int, boolean, ExecutorService, ScrubReport)}.
+	 * Runs on the writer thread of the shard, later writes of the shard then maintain the tree.
+	 * @param stmt Statement of the writer of the shard
+	 * @param shard Index of the shard
+	 * @return <code>true</code> if the shard has a tree
+	 * @throws SQLException
+	 */
+	boolean open(Statement stmt, int shard) throws SQLException {
+		_ready[shard] = exists(stmt);
+		return _ready[shard];
+	}
+
+	/**
+	 * Builds the tree of a shard from its current entries, which are trusted as they are, replacing the former tree.
+	 * Only for a new vault or on request of the user: tampered entries would be taken as valid.
+	 * Runs on the writer thread of the shard, later writes of the shard then maintain the tree.
+	 * @param stmt Statement of the writer of the shard
+	 * @param shard Index of the shard
+	 * @return Number of entries tagged
+	 * @throws SQLException
+	 */
+	int build(Statement stmt, int shard) throws SQLException {
+		if (exists(stmt)) {
+			stmt.executeUpdate("DROP TABLE emac");
+			stmt.executeUpdate("DROP TABLE merk");
+			// MACs of the backups may no longer match the tree, only a full backup can follow
+			stmt.executeUpdate("INSERT INTO chlog (sid, lid) VALUES(-1, -1)");
+		}
+		createTables(stmt);
+		int[] counts = new int[2 * LEAVES];
+		byte[][] accs = new byte[2 * LEAVES][];
+		for (int leaf=0 ; leaf<LEAVES ; ++leaf) {
+			accs[LEAVES + leaf] = new byte[TAG_LENGTH];
+		}
+		int built = 0;
+		PreparedStatement insert = stmt.getConnection().prepareStatement("INSERT INTO emac VALUES(?, ?, ?, ?)");
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT corda.sid, corda.lid, " + ENTRY_COLUMNS + " FROM corda" + ENTRY_JOINS + ";");
+			while (rs.next()) {
+				int sid = rs.getInt(1);
+				int lid = rs.getInt(2);
+				int leaf = leafOf(sid, lid);
+				byte[] tag = entryTag(shard, sid, lid, readEntry(rs, 3));
+				xor(accs[LEAVES + leaf], tag);
+				++counts[LEAVES + leaf];
+				insert.setInt(1, sid);
+				insert.setInt(2, lid);
+				insert.setInt(3, leaf);
+				insert.setString(4, hex(tag));
+				insert.executeUpdate();
+				++built;
+			}
+			rs.close();
+		} finally {
+			insert.close();
+		}
+		byte[][] hashes = new byte[2 * LEAVES][];
+		for (int leaf=0 ; leaf<LEAVES ; ++leaf) {
+			hashes[LEAVES + leaf] = leafHash(leaf, counts[LEAVES + leaf], accs[LEAVES + leaf]);
+		}
+		for (int node=LEAVES-1 ; node>=1 ; --node) {
+			hashes[node] = nodeHash(node, hashes[2 * node], hashes[2 * node + 1]);
+		}
+		insert = stmt.getConnection().prepareStatement("INSERT INTO merk VALUES(?, ?, ?, ?, 0)");
+		try {
+			for (int node=1 ; node<2*LEAVES ; ++node) {
+				insert.setInt(1, node);
+				insert.setInt(2, counts[node]);
+				insert.setString(3, (accs[node] != null) ? hex(accs[node]) : "");
+				insert.setString(4, hex(hashes[node]));
+				insert.executeUpdate();
+			}
+		} finally {
+			insert.close();
+		}
+		_ready[shard] = true;
+		return built;
+	}
+
+	/**
+	 * Updates the MAC of an entry just written, and its leaf. Does nothing before the tree of the shard is opened.
+	 * @param stmt Statement of the writer of the shard, in the transaction of the write
+	 * @param shard Index of the shard
+	 * @param serviceId Local ID of the service
+	 * @param loginId Local ID of the login
+	 * @param created <code>true</code> if the entry has just been inserted, so it has no MAC yet
+	 * @throws SQLException
+	 */
+	void tag(Statement stmt, int shard, int serviceId, int loginId, boolean created) throws SQLException {
+		if (!_ready[shard]) {
+			return;
+		}
+		ResultSet rs = stmt.executeQuery("SELECT " + ENTRY_COLUMNS + " FROM corda" + ENTRY_JOINS
+				+ " WHERE corda.sid = " + serviceId + " AND corda.lid = " + loginId + ";");
+		byte[] tag = rs.next() ? entryTag(shard, serviceId, loginId, readEntry(rs, 1)) : null;
+		rs.close();
+		if (tag == null) {
+			return;
+		}
+		byte[] old = null;
+		if (!created) {
+			rs = stmt.executeQuery("SELECT tag FROM emac WHERE sid = " + serviceId + " AND lid = " + loginId + ";");
+			old = rs.next() ? unhex(rs.getBytes(1)) : null;
+			rs.close();
+		}
+		int node = LEAVES + leafOf(serviceId, loginId);
+		rs = stmt.executeQuery("SELECT cnt, acc FROM merk WHERE node = " + node + ";");
+		if (!rs.next()) {
+			rs.close();
+			throw new SQLException("Leaf " + node + " of the integrity tree is missing");
+		}
+		int count = rs.getInt(1);
+		byte[] acc = unhex(rs.getBytes(2));
+		rs.close();
+		if (acc.length != TAG_LENGTH) {
+			throw new SQLException("Leaf " + node + " of the integrity tree is damaged");
+		}
+		if (old != null) {
+			xor(acc, old);
+		} else {
+			++count;
+		}
+		xor(acc, tag);
+		stmt.executeUpdate("INSERT OR REPLACE INTO emac VALUES(" + serviceId + ", " + loginId + ", " + (node - LEAVES) + ", '" + hex(tag) + "')");
+		stmt.executeUpdate("UPDATE merk SET cnt = " + count + ", acc = '" + hex(acc) + "',"
+				+ " hash = '" + hex(leafHash(node - LEAVES, count, acc)) + "', dirty = dirty + 1"
+				+ " WHERE node = " + node + ";");
+		_stale[shard].set(node - LEAVES);
+	}
+
+	/**
+	 * Removes the MAC of an entry about to be moved to other IDs from its leaf. Does nothing before the tree of the shard
+	 * is opened.
+	 * @param stmt Statement of the writer of the shard, in the transaction of the move
+	 * @param shard Index of the shard
+	 * @param serviceId Local ID of the service
+	 * @param loginId Local ID of the login
+	 * @throws SQLException
+	 */
+	void untag(Statement stmt, int shard, int serviceId, int loginId) throws SQLException {
+		if (!_ready[shard]) {
+			return;
+		}
+		ResultSet rs = stmt.executeQuery("SELECT tag FROM emac WHERE sid = " + serviceId + " AND lid = " + loginId + ";");
+		byte[] old = rs.next() ? unhex(rs.getBytes(1)) : null;
+		rs.close();
+		if (old == null) {
+			return;
+		}
+		int node = LEAVES + leafOf(serviceId, loginId);
+		rs = stmt.executeQuery("SELECT cnt, acc FROM merk WHERE node = " + node + ";");
+		if (!rs.next()) {
+			rs.close();
+			throw new SQLException("Leaf " + node + " of the integrity tree is missing");
+		}
+		int count = rs.getInt(1) - 1;
+		byte[] acc = unhex(rs.getBytes(2));
+		rs.close();
+		if (acc.length != TAG_LENGTH) {
+			throw new SQLException("Leaf " + node + " of the integrity tree is damaged");
+		}
+		xor(acc, old);
+		stmt.executeUpdate("DELETE FROM emac WHERE sid = " + serviceId + " AND lid = " + loginId);
+		stmt.executeUpdate("UPDATE merk SET cnt = " + count + ", acc = '" + hex(acc) + "',"
+				+ " hash = '" + hex(leafHash(node - LEAVES, count, acc)) + "', dirty = dirty + 1"
+				+ " WHERE node = " + node + ";");
+		_stale[shard].set(node - LEAVES);
+	}
+
+	/**
+	 * Updates the inner nodes above the leaves changed by the writes of a group, before its commit
+	 * @param stmt Statement of the writer of the shard, in the transaction of the group
+	 * @param shard Index of the shard
+	 * @throws SQLException
+	 */
+	void propagate(Statement stmt, int shard) throws SQLException {
+		BitSet stale = _stale[shard];
+		if (stale.isEmpty()) {
+			return;
+		}
+		// Leaves of mutations rolled back stay in the set, recomputing their path is harmless
+		BitSet changed = new BitSet(LEAVES);
+		for (int leaf=stale.nextSetBit(0) ; leaf>=0 ; leaf=stale.nextSetBit(leaf + 1)) {
+			for (int parent=(LEAVES + leaf)>>>1 ; (parent >= 1) && !changed.get(parent) ; parent>>>=1) {
+				changed.set(parent);
+			}
+		}
+		stale.clear();
+		StringBuilder children = new StringBuilder();
+		for (int node=changed.nextSetBit(0) ; node>=0 ; node=changed.nextSetBit(node + 1)) {
+			children.append((children.length() == 0) ? "" : ", ").append(2 * node).append(", ").append(2 * node + 1);
+		}
+		byte[][] hashes = new byte[2 * LEAVES][];
+		ResultSet rs = stmt.executeQuery("SELECT node, hash FROM merk WHERE node IN (" + children + ");");
+		while (rs.next()) {
+			int node = rs.getInt(1);
+			if ((node >= 1) && (node < 2 * LEAVES)) {
+				hashes[node] = unhex(rs.getBytes(2));
+			}
+		}
+		rs.close();
+		PreparedStatement update = stmt.getConnection().prepareStatement("UPDATE merk SET hash = ? WHERE node = ?;");
+		try {
+			// Children first
+			for (int node=changed.previousSetBit(LEAVES - 1) ; node>=1 ; node=changed.previousSetBit(node - 1)) {
+				if ((hashes[2 * node] == null) || (hashes[2 * node + 1] == null)) {
+					throw new SQLException("Node " + node + " of the integrity tree has missing children");
+				}
+				hashes[node] = nodeHash(node, hashes[2 * node], hashes[2 * node + 1]);
+				update.setString(1, hex(hashes[node]));
+				update.setInt(2, node);
+				update.executeUpdate();
+			}
+		} finally {
+			update.close();
+		}
+	}
+
+	/**
+	 * Marks leaves as scrubbed, unless they have been written since they were checked
+	 * @param stmt Statement of the writer of the shard
+	 * @param leaves Write counters of the leaves when they were checked (<code>node => counter</code>)
+	 * @throws SQLException
+	 */
+	static void markScrubbed(Statement stmt, Map<Integer, Long> leaves) throws SQLException {
+		for (Map.Entry<Integer, Long> leaf : leaves.entrySet()) {
+			stmt.executeUpdate("UPDATE merk SET dirty = 0 WHERE node = " + leaf.getKey() + " AND dirty = " + leaf.getValue() + ";");
+		}
+	}
+
+	/**
+	 * Checks the tree of a shard, then the entries of all its leaves or only of the leaves written since their last scrub.
+	 * MACs of the entries are computed by the pool, in batches, while the rows are read.
+	 * @param c Connection reading the shard, in a transaction so every table is read from the same snapshot
+	 * @param shard Index of the shard
+	 * @param shards Number of shards, to report global IDs
+	 * @param changedOnly <code>true</code> to check only the leaves written since their last scrub
+	 * @param pool Threads computing the MACs
+	 * @param report Receiver of the problems found
+	 * @return Write counters of the checked leaves found intact and written since their last scrub (<code>node => counter</code>)
+	 * @throws SQLException
+	 */
+	Map<Integer, Long> verify(Connection c, int shard, int shards, boolean changedOnly, ExecutorService pool, ScrubReport report)
+			throws SQLException {
+		Map<Integer, Long> clean = new HashMap<Integer, Long>();
+		Statement stmt = c.createStatement();
+		try {
+			if (!exists(stmt)) {
+				report.add(Problem.MISSING_TREE, shard, -1, -1, -1);
+				return clean;
+			}
+			int[] counts = new int[2 * LEAVES];
+			byte[][] accs = new byte[2 * LEAVES][];
+			byte[][] hashes = new byte[2 * LEAVES][];
+			long[] dirty = new long[2 * LEAVES];
+			ResultSet rs = stmt.executeQuery("SELECT node, cnt, acc, hash, dirty FROM merk;");
+			while (rs.next()) {
+				int node = rs.getInt(1);
+				if ((node >= 1) && (node < 2 * LEAVES)) {
+					counts[node] = rs.getInt(2);
+					accs[node] = unhex(rs.getBytes(3));
+					hashes[node] = unhex(rs.getBytes(4));
+					dirty[node] = rs.getLong(5);
+				}
+			}
+			rs.close();
+
+			// Stored nodes must match their MAC, whatever the entries
+			boolean[] troubled = new boolean[LEAVES];
+			for (int node=2*LEAVES-1 ; node>=1 ; --node) {
+				boolean ok;
+				if (node >= LEAVES) {
+					ok = (hashes[node] != null) && (accs[node].length == TAG_LENGTH)
+							&& MessageDigest.isEqual(leafHash(node - LEAVES, counts[node], accs[node]), hashes[node]);
+					troubled[node - LEAVES] = !ok;
+				} else {
+					ok = (hashes[node] != null) && (hashes[2 * node] != null) && (hashes[2 * node + 1] != null)
+							&& MessageDigest.isEqual(nodeHash(node, hashes[2 * node], hashes[2 * node + 1]), hashes[node]);
+				}
+				if (!ok) {
+					report.add(Problem.DAMAGED_NODE, shard, node, -1, -1);
+				}
+			}
+
+			BitSet checked = new BitSet(LEAVES);
+			StringBuilder where = new StringBuilder();
+			for (int leaf=0 ; leaf<LEAVES ; ++leaf) {
+				if (!changedOnly || (dirty[LEAVES + leaf] != 0)) {
+					checked.set(leaf);
+					where.append((where.length() == 0) ? "" : ", ").append(leaf);
+				}
+			}
+			if (checked.isEmpty()) {
+				return clean;
+			}
+
+			// Entries against their MAC, and leaves against the MACs of their entries
+			int[] found = new int[LEAVES];
+			byte[][] foundAcc = new byte[LEAVES][TAG_LENGTH];
+			List<Future<?>> batches = new ArrayList<Future<?>>();
+			List<Object[]> batch = new ArrayList<Object[]>(BATCH);
+			long entries = 0;
+			rs = stmt.executeQuery("SELECT e.sid, e.lid, e.leaf, e.tag, corda.sid, " + ENTRY_COLUMNS
+					+ " FROM emac e"
+					+ " LEFT JOIN corda ON corda.sid = e.sid AND corda.lid = e.lid" + ENTRY_JOINS
+					+ (changedOnly ? " WHERE e.leaf IN (" + where + ")" : "") + ";");
+			while (rs.next()) {
+				int sid = rs.getInt(1);
+				int lid = rs.getInt(2);
+				int leaf = leafOf(sid, lid);
+				byte[] tag = unhex(rs.getBytes(4));
+				++entries;
+				if ((rs.getInt(3) != leaf) || (tag.length != TAG_LENGTH)) {
+					report.add(Problem.CORRUPTED_ENTRY, shard, LEAVES + leaf, sid * shards + shard, lid * shards + shard);
+					troubled[leaf] = true;
+					continue;
+				}
+				xor(foundAcc[leaf], tag);
+				++found[leaf];
+				if (rs.getObject(5) == null) {
+					report.add(Problem.MISSING_ENTRY, shard, LEAVES + leaf, sid * shards + shard, lid * shards + shard);
+					troubled[leaf] = true;
+					continue;
+				}
+				batch.add(new Object[] {Integer.valueOf(sid), Integer.valueOf(lid), tag, readEntry(rs, 6)});
+				if (batch.size() == BATCH) {
+					batches.add(submit(pool, batch, shard, shards, report, troubled));
+					batch = new ArrayList<Object[]>(BATCH);
+				}
+			}
+			rs.close();
+			if (!batch.isEmpty()) {
+				batches.add(submit(pool, batch, shard, shards, report, troubled));
+			}
+			if (!changedOnly) {
+				rs = stmt.executeQuery("SELECT corda.sid, corda.lid FROM corda"
+						+ " LEFT JOIN emac e ON e.sid = corda.sid AND e.lid = corda.lid"
+						+ " WHERE e.tag IS NULL;");
+				while (rs.next()) {
+					int sid = rs.getInt(1);
+					int lid = rs.getInt(2);
+					report.add(Problem.UNTAGGED_ENTRY, shard, LEAVES + leafOf(sid, lid), sid * shards + shard, lid * shards + shard);
+					troubled[leafOf(sid, lid)] = true;
+					++entries;
+				}
+				rs.close();
+			}
+			for (Future<?> f : batches) {
+				try {
+					f.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new SQLException("Scrub interrupted", e);
+				} catch (ExecutionException e) {
+					throw new SQLException(e.getCause());
+				}
+			}
+			for (int leaf=checked.nextSetBit(0) ; leaf>=0 ; leaf=checked.nextSetBit(leaf + 1)) {
+				int node = LEAVES + leaf;
+				if (!troubled[leaf] && ((found[leaf] != counts[node]) || !MessageDigest.isEqual(foundAcc[leaf], accs[node]))) {
+					report.add(Problem.LEAF_MISMATCH, shard, node, -1, -1);
+					troubled[leaf] = true;
+				}
+				if (!troubled[leaf] && (dirty[node] != 0)) {
+					clean.put(Integer.valueOf(node), Long.valueOf(dirty[node]));
+				}
+			}
+			report.count(entries, checked.cardinality());
+			return clean;
+		} finally {
+			stmt.close();
+		}
+	}
+
+	private Future<?> submit(ExecutorService pool, List<Object[]> batch, int shard, int shards, ScrubReport report, boolean[] troubled) {
+		return pool.submit(() -> {
+			for (Object[] row : batch) {
+				int sid = ((Integer)row[0]).intValue();
+				int lid = ((Integer)row[1]).intValue();
+				if (!MessageDigest.isEqual(entryTag(shard, sid, lid, (byte[][])row[3]), (byte[])row[2])) {
+					int leaf = leafOf(sid, lid);
+					report.add(Problem.CORRUPTED_ENTRY, shard, LEAVES + leaf, sid * shards + shard, lid * shards + shard);
+					// Read once the batches are over
+					synchronized (troubled) {
+						troubled[leaf] = true;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Copies the MACs of some entries and the whole tree of a shard to its backup, in the current transaction of the backup
+	 * @param source Connection to the shard
+	 * @param backup Connection to the backup of the shard
+	 * @param entries Entries to copy the MACs of, as <code>{seq, sid, lid}</code>
+	 * @throws SQLException
+	 */
+	static void ship(Connection source, Connection backup, Collection<long[]> entries) throws SQLException {
+		Statement read = source.createStatement();
+		Statement write = backup.createStatement();
+		PreparedStatement tag = backup.prepareStatement("INSERT OR REPLACE INTO emac VALUES(?, ?, ?, ?)");
+		PreparedStatement node = backup.prepareStatement("INSERT INTO merk VALUES(?, ?, ?, ?, ?)");
+		try {
+			createTables(write);
+			for (long[] entry : entries) {
+				ResultSet rs = read.executeQuery("SELECT leaf, tag FROM emac WHERE sid = " + entry[1] + " AND lid = " + entry[2] + ";");
+				if (rs.next()) {
+					tag.setLong(1, entry[1]);
+					tag.setLong(2, entry[2]);
+					tag.setInt(3, rs.getInt(1));
+					tag.setString(4, rs.getString(2));
+					tag.executeUpdate();
+				} else {
+					write.executeUpdate("DELETE FROM emac WHERE sid = " + entry[1] + " AND lid = " + entry[2]);
+				}
+				rs.close();
+			}
+			write.executeUpdate("DELETE FROM merk");
+			ResultSet rs = read.executeQuery("SELECT node, cnt, acc, hash, dirty FROM merk;");
+			while (rs.next()) {
+				node.setInt(1, rs.getInt(1));
+				node.setInt(2, rs.getInt(2));
+				node.setString(3, rs.getString(3));
+				node.setString(4, rs.getString(4));
+				node.setLong(5, rs.getLong(5));
+				node.executeUpdate();
+			}
+			rs.close();
+		} finally {
+			node.close();
+			tag.close();
+			write.close();
+			read.close();
+		}
+	}
+}
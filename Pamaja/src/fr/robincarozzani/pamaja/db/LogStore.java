@@ -0,0 +1,823 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.Pair;
+
+/**
+ * Vault store keeping every change as a record appended to a memory-mapped log file.
+ * An in-memory index maps each entry to the offset of its records, so reads go straight to the mapped bytes.
+ * Updates leave dead records behind; once they outweigh the live ones, a background thread rewrites
+ * the live records into a new file and swaps it in.
+ * Key rotation is not supported by this store.
+ * @author Robin Carozzani
+ */
+public class LogStore implements VaultStore {
+
+	private static final String LOG_NAME = "PamajaDB.log";
+	private static final String COMPACT_NAME = "PamajaDB.log.compact";
+	private static final int MAGIC = 0x504d4a4c;
+	private static final int FORMAT_VERSION = 1;
+	private static final int FILE_HEADER = 8;
+	private static final int RECORD_HEADER = 8;
+	private static final int INITIAL_SIZE = 1 << 20;
+	private static final long COMPACT_MIN_DEAD = 256 * 1024;
+
+	private static final byte INIT = 1;
+	private static final byte MASTER_PASSWORD = 2;
+	private static final byte MASTER_KEY = 3;
+	private static final byte INSERT = 4;
+	private static final byte UPDATE = 5;
+
+	/**
+	 * Offsets of the records of one entry
+	 */
+	private static class Entry {
+		final int serviceId;
+		final int loginId;
+		long insertPos;
+		long passwordPos;
+
+		Entry(int s, int l, long pos) {
+			serviceId = s;
+			loginId = l;
+			insertPos = pos;
+			passwordPos = pos;
+		}
+	}
+
+	private final String _dir = System.getProperty("pamaja.db.dir", "data");
+
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private final ReentrantLock _writeMutex = new ReentrantLock();
+	private final AtomicBoolean _compactionPending = new AtomicBoolean(false);
+	private ExecutorService _compactor = null;
+
+	private FileChannel _channel = null;
+	private MappedByteBuffer _map = null;
+	private long _end;
+	private long _live;
+	private boolean _formatOk;
+	private boolean _init;
+	private long _masterPasswordPos;
+	private long _masterKeyPos;
+	private int _lastServiceId;
+	private int _lastLoginId;
+	private final Map<Integer, String> _services = new TreeMap<Integer, String>();
+	// First service of each name, later inserts with that name go under it
+	private final Map<String, Integer> _serviceIds = new HashMap<String, Integer>();
+	private final Map<Integer, List<Entry>> _logins = new HashMap<Integer, List<Entry>>();
+	private final Map<Long, Entry> _entries = new LinkedHashMap<Long, Entry>();
+
+	private static LogStore instance = null;
+
+	private LogStore() {
+	}
+
+	/**
+	 * Gets unique instance of LogStore
+	 * @return Instance of LogStore
+	 */
+	public static synchronized LogStore getInstance() {
+		if (instance == null) {
+			instance = new LogStore();
+		}
+		return instance;
+	}
+
+	private File file(String name) {
+		return new File(_dir, name);
+	}
+
+	private static long key(int serviceId, int loginId) {
+		return ((long)serviceId << 32) | (loginId & 0xffffffffL);
+	}
+
+	@Override
+	public boolean exists() {
+		return file(LOG_NAME).isFile();
+	}
+
+	@Override
+	public void connect() {
+		long t = Metrics.start();
+		new File(_dir).mkdir();
+		file(COMPACT_NAME).delete();
+		clearIndex();
+		try {
+			boolean newLog = !exists();
+			_channel = new RandomAccessFile(file(LOG_NAME), "rw").getChannel();
+			long size = newLog ? INITIAL_SIZE : Math.max(_channel.size(), FILE_HEADER);
+			_map = _channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			if (newLog) {
+				_map.putInt(0, MAGIC);
+				_map.putInt(4, FORMAT_VERSION);
+				_map.force();
+			}
+			_formatOk = (_map.getInt(0) == MAGIC) && (_map.getInt(4) == FORMAT_VERSION);
+			if (_formatOk) {
+				scan();
+			}
+			_compactor = Executors.newSingleThreadExecutor(r -> {
+				Thread th = new Thread(r, "pamaja-compactor");
+				th.setDaemon(true);
+				return th;
+			});
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("log.connect", t, _end);
+	}
+
+	private void clearIndex() {
+		_end = FILE_HEADER;
+		_live = 0;
+		_init = false;
+		_masterPasswordPos = 0;
+		_masterKeyPos = 0;
+		_lastServiceId = 0;
+		_lastLoginId = 0;
+		_services.clear();
+		_serviceIds.clear();
+		_logins.clear();
+		_entries.clear();
+	}
+
+	/**
+	 * Rebuilds the index from the log, stopping at the first missing or torn record
+	 */
+	private void scan() {
+		CRC32 crc = new CRC32();
+		byte[] body = new byte[64];
+		long pos = FILE_HEADER;
+		while (pos + RECORD_HEADER <= _map.capacity()) {
+			int len = _map.getInt((int)pos);
+			if ((len <= 0) || (pos + RECORD_HEADER + len > _map.capacity())) {
+				break;
+			}
+			if (body.length < len) {
+				body = new byte[Math.max(len, body.length * 2)];
+			}
+			ByteBuffer b = _map.duplicate();
+			b.position((int)pos + RECORD_HEADER);
+			b.get(body, 0, len);
+			crc.reset();
+			crc.update(body, 0, len);
+			if ((int)crc.getValue() != _map.getInt((int)pos + 4)) {
+				// Torn write: wipe it so that later appends cannot be mistaken for its remains
+				for (int i=0 ; i<RECORD_HEADER+len ; ++i) {
+					_map.put((int)pos + i, (byte)0);
+				}
+				break;
+			}
+			index(pos);
+			pos += RECORD_HEADER + len;
+		}
+		_end = pos;
+	}
+
+	/**
+	 * Applies the record at the given offset to the index
+	 * @param pos Offset of the record
+	 */
+	private void index(long pos) {
+		ByteBuffer b = record(pos);
+		int size = RECORD_HEADER + b.getInt((int)pos);
+		switch (b.get()) {
+		case INIT:
+			_init = true;
+			_live += size;
+			break;
+		case MASTER_PASSWORD:
+			_masterPasswordPos = pos;
+			_live += size;
+			break;
+		case MASTER_KEY:
+			_masterKeyPos = pos;
+			_live += size;
+			break;
+		case INSERT: {
+			int serviceId = b.getInt();
+			int loginId = b.getInt();
+			Entry entry = new Entry(serviceId, loginId, pos);
+			String service = new String(getBytes(b), StandardCharsets.UTF_8);
+			_services.put(serviceId, service);
+			if (!_serviceIds.containsKey(service)) {
+				_serviceIds.put(service, Integer.valueOf(serviceId));
+			}
+			List<Entry> logins = _logins.get(serviceId);
+			if (logins == null) {
+				logins = new ArrayList<Entry>(1);
+				_logins.put(serviceId, logins);
+			}
+			logins.add(entry);
+			_entries.put(key(serviceId, loginId), entry);
+			_lastServiceId = Math.max(_lastServiceId, serviceId);
+			_lastLoginId = Math.max(_lastLoginId, loginId);
+			_live += size;
+			break;
+		}
+		case UPDATE: {
+			Entry entry = _entries.get(key(b.getInt(), b.getInt()));
+			if (entry != null) {
+				if (entry.passwordPos != entry.insertPos) {
+					_live -= RECORD_HEADER + _map.getInt((int)entry.passwordPos);
+				}
+				entry.passwordPos = pos;
+				_live += size;
+			}
+			break;
+		}
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Gets a view over the body of a record, positioned just after its header
+	 * @param pos Offset of the record
+	 * @return View of the mapped log
+	 */
+	private ByteBuffer record(long pos) {
+		ByteBuffer b = _map.duplicate();
+		b.position((int)pos + RECORD_HEADER);
+		return b;
+	}
+
+	private static byte[] getBytes(ByteBuffer b) {
+		byte[] data = new byte[b.getInt()];
+		b.get(data);
+		return data;
+	}
+
+	private static void skipBytes(ByteBuffer b) {
+		int len = b.getInt();
+		b.position(b.position() + len);
+	}
+
+	private static ByteBuffer newRecord(byte type, byte[]... fields) {
+		return newRecord(type, 0, fields);
+	}
+
+	private static ByteBuffer newRecord(byte type, int extra, byte[]... fields) {
+		int size = RECORD_HEADER + 1 + extra;
+		for (byte[] f : fields) {
+			size += 4 + f.length;
+		}
+		ByteBuffer b = ByteBuffer.allocate(size);
+		b.position(RECORD_HEADER);
+		b.put(type);
+		return b;
+	}
+
+	private static void putBytes(ByteBuffer b, byte[] data) {
+		b.putInt(data.length);
+		b.put(data);
+	}
+
+	private static ByteBuffer seal(ByteBuffer b) {
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), RECORD_HEADER, b.capacity() - RECORD_HEADER);
+		b.putInt(0, b.capacity() - RECORD_HEADER);
+		b.putInt(4, (int)crc.getValue());
+		b.clear();
+		return b;
+	}
+
+	/**
+	 * Appends a record, makes it durable, then adds it to the index
+	 * @param record Sealed record
+	 * @throws IllegalStateException If the record could not be written, nothing is indexed then
+	 */
+	private void append(ByteBuffer record) {
+		long t = Metrics.start();
+		_writeMutex.lock();
+		try {
+			long pos = _end;
+			long needed = pos + record.remaining();
+			if (needed > _map.capacity()) {
+				long size = _map.capacity();
+				while (size < needed) {
+					size *= 2;
+				}
+				if (size > Integer.MAX_VALUE) {
+					throw new IllegalStateException("Log is full");
+				}
+				MappedByteBuffer grown = _channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				_lock.writeLock().lock();
+				_map = grown;
+				_lock.writeLock().unlock();
+			}
+			ByteBuffer b = _map.duplicate();
+			b.position((int)pos);
+			b.put(record);
+			_map.force();
+			_lock.writeLock().lock();
+			try {
+				index(pos);
+				_end = needed;
+			} finally {
+				_lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Write failed: " + e.getMessage(), e);
+		} finally {
+			_writeMutex.unlock();
+		}
+		Metrics.record("log.append", t, record.capacity());
+		if ((_end - FILE_HEADER - _live > COMPACT_MIN_DEAD) && (_end - FILE_HEADER - _live > _live)
+				&& _compactionPending.compareAndSet(false, true)) {
+			_compactor.execute(() -> {
+				_compactionPending.set(false);
+				compact();
+			});
+		}
+	}
+
+	/**
+	 * Rewrites the live records into a new log and swaps it in.
+	 * Writers wait for the whole compaction, readers only for the swap.
+	 * @throws IllegalStateException If the new log could not be written, the current log is kept then
+	 */
+	public void compact() {
+		long t = Metrics.start();
+		_writeMutex.lock();
+		File target = file(COMPACT_NAME);
+		FileChannel channel = null;
+		boolean swapped = false;
+		try {
+			MappedByteBuffer map;
+			Map<Entry, Long> moved = new HashMap<Entry, Long>();
+			long masterPasswordPos = 0;
+			long masterKeyPos = 0;
+			long pos = FILE_HEADER;
+			_lock.readLock().lock();
+			try {
+				long size = INITIAL_SIZE;
+				while (size < FILE_HEADER + _live) {
+					size *= 2;
+				}
+				channel = new RandomAccessFile(target, "rw").getChannel();
+				map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+				map.putInt(0, MAGIC);
+				map.putInt(4, FORMAT_VERSION);
+				map.position(FILE_HEADER);
+				if (_init) {
+					map.put(seal(newRecord(INIT)));
+				}
+				if (_masterPasswordPos != 0) {
+					masterPasswordPos = map.position();
+					map.put(rawRecord(_masterPasswordPos));
+				}
+				if (_masterKeyPos != 0) {
+					masterKeyPos = map.position();
+					map.put(rawRecord(_masterKeyPos));
+				}
+				for (Entry entry : _entries.values()) {
+					moved.put(entry, Long.valueOf(map.position()));
+					if (entry.passwordPos == entry.insertPos) {
+						map.put(rawRecord(entry.insertPos));
+					} else {
+						map.put(mergedInsert(entry));
+					}
+				}
+				pos = map.position();
+				map.force();
+			} finally {
+				_lock.readLock().unlock();
+			}
+			Files.move(target.toPath(), file(LOG_NAME).toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			swapped = true;
+			_lock.writeLock().lock();
+			try {
+				FileChannel old = _channel;
+				long before = _end;
+				_channel = channel;
+				_map = map;
+				_end = pos;
+				_live = pos - FILE_HEADER;
+				_masterPasswordPos = masterPasswordPos;
+				_masterKeyPos = masterKeyPos;
+				for (Map.Entry<Entry, Long> m : moved.entrySet()) {
+					m.getKey().insertPos = m.getValue().longValue();
+					m.getKey().passwordPos = m.getValue().longValue();
+				}
+				old.close();
+				Metrics.record("log.compact", t, before - pos);
+			} finally {
+				_lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			throw new IllegalStateException("Compaction failed: " + e.getMessage(), e);
+		} finally {
+			if (!swapped) {
+				// Also reached on an overflow or any other unchecked failure
+				if (channel != null) {
+					try {
+						channel.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				target.delete();
+			}
+			_writeMutex.unlock();
+		}
+	}
+
+	private ByteBuffer rawRecord(long pos) {
+		ByteBuffer b = _map.duplicate();
+		b.position((int)pos);
+		b.limit((int)pos + RECORD_HEADER + _map.getInt((int)pos));
+		return b;
+	}
+
+	private ByteBuffer mergedInsert(Entry entry) {
+		ByteBuffer ins = record(entry.insertPos);
+		ins.get();
+		ins.getInt();
+		ins.getInt();
+		byte[] service = getBytes(ins);
+		byte[] loginIv = getBytes(ins);
+		byte[] loginEnc = getBytes(ins);
+		Ciph pwd = readPassword(entry);
+		ByteBuffer b = newRecord(INSERT, 8, service, loginIv, loginEnc, pwd.getIV(), pwd.getEnc());
+		b.putInt(entry.serviceId);
+		b.putInt(entry.loginId);
+		putBytes(b, service);
+		putBytes(b, loginIv);
+		putBytes(b, loginEnc);
+		putBytes(b, pwd.getIV());
+		putBytes(b, pwd.getEnc());
+		return seal(b);
+	}
+
+	@Override
+	public void disconnect() {
+		if (_compactor != null) {
+			_compactor.shutdown();
+		}
+		_writeMutex.lock();
+		try {
+			if (_channel != null) {
+				_map.force();
+				_channel.close();
+				_channel = null;
+				_map = null;
+				clearIndex();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			_writeMutex.unlock();
+		}
+	}
+
+	@Override
+	public boolean isInit() {
+		return _init;
+	}
+
+	@Override
+	public boolean dbVersionIsOk() {
+		return _formatOk;
+	}
+
+	@Override
+	public void setInit() {
+		if (!_init) {
+			append(seal(newRecord(INIT)));
+		}
+	}
+
+	@Override
+	public void insertMasterPassword(Hash password, byte[] origSalt) {
+		if (_masterPasswordPos == 0) {
+			ByteBuffer b = newRecord(MASTER_PASSWORD, origSalt, password.getSalt(), password.getHashedMessage());
+			putBytes(b, origSalt);
+			putBytes(b, password.getSalt());
+			putBytes(b, password.getHashedMessage());
+			append(seal(b));
+		}
+	}
+
+	@Override
+	public Pair<byte[], Hash> getStoredPasswordAndSalt() {
+		_lock.readLock().lock();
+		try {
+			if (_masterPasswordPos == 0) {
+				return null;
+			}
+			ByteBuffer b = record(_masterPasswordPos);
+			b.get();
+			byte[] origSalt = getBytes(b);
+			byte[] salt = getBytes(b);
+			return new Pair<byte[], Hash>(origSalt, new Hash(salt, getBytes(b)));
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void insertMasterKey(Ciph key) {
+		if (_masterKeyPos == 0) {
+			ByteBuffer b = newRecord(MASTER_KEY, key.getIV(), key.getEnc());
+			putBytes(b, key.getIV());
+			putBytes(b, key.getEnc());
+			append(seal(b));
+		}
+	}
+
+	@Override
+	public Ciph getStoredKey() {
+		_lock.readLock().lock();
+		try {
+			if (_masterKeyPos == 0) {
+				return null;
+			}
+			ByteBuffer b = record(_masterKeyPos);
+			b.get();
+			byte[] iv = getBytes(b);
+			return new Ciph(iv, getBytes(b));
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public Pair<Integer, Integer> insertEntry(String service, Ciph login, Ciph password) {
+		_writeMutex.lock();
+		try {
+			Integer existing = _serviceIds.get(service);
+			int serviceId = (existing != null) ? existing.intValue() : _lastServiceId + 1;
+			int loginId = _lastLoginId + 1;
+			byte[] name = service.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer b = newRecord(INSERT, 8, name, login.getIV(), login.getEnc(), password.getIV(), password.getEnc());
+			b.putInt(serviceId);
+			b.putInt(loginId);
+			putBytes(b, name);
+			putBytes(b, login.getIV());
+			putBytes(b, login.getEnc());
+			putBytes(b, password.getIV());
+			putBytes(b, password.getEnc());
+			append(seal(b));
+			return (_lastLoginId == loginId) ? new Pair<Integer, Integer>(serviceId, loginId) : null;
+		} catch (IllegalStateException e) {
+			e.printStackTrace();
+			return null;
+		} finally {
+			_writeMutex.unlock();
+		}
+	}
+
+	@Override
+	public void updatePassword(int serviceId, int loginId, Ciph newPassword) {
+		ByteBuffer b = newRecord(UPDATE, 8, newPassword.getIV(), newPassword.getEnc());
+		b.putInt(serviceId);
+		b.putInt(loginId);
+		putBytes(b, newPassword.getIV());
+		putBytes(b, newPassword.getEnc());
+		append(seal(b));
+	}
+
+	private Ciph readPassword(Entry entry) {
+		ByteBuffer b = record(entry.passwordPos);
+		byte type = b.get();
+		b.getInt();
+		b.getInt();
+		if (type == INSERT) {
+			skipBytes(b);
+			skipBytes(b);
+			skipBytes(b);
+		}
+		byte[] iv = getBytes(b);
+		return new Ciph(iv, getBytes(b));
+	}
+
+	@Override
+	public Ciph getPassword(int serviceId, int loginId) {
+		long t = Metrics.start();
+		Ciph pwd = null;
+		_lock.readLock().lock();
+		try {
+			Entry entry = _entries.get(key(serviceId, loginId));
+			if (entry != null) {
+				pwd = readPassword(entry);
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		Metrics.record("log.getPassword", t, (pwd != null) ? pwd.getEnc().length : 0);
+		return pwd;
+	}
+
+	@Override
+	public Map<Integer, String> getServices() {
+		long t = Metrics.start();
+		Map<Integer, String> services;
+		_lock.readLock().lock();
+		try {
+			services = new TreeMap<Integer, String>(_services);
+		} finally {
+			_lock.readLock().unlock();
+		}
+		long bytes = 0;
+		for (String ser : services.values()) {
+			bytes += ser.length();
+		}
+		Metrics.record("log.getServices", t, bytes);
+		return services;
+	}
+
+	@Override
+	public Map<Integer, Ciph> getLogins(int serviceId) {
+		long t = Metrics.start();
+		Map<Integer, Ciph> logins = new HashMap<Integer, Ciph>();
+		long bytes = 0;
+		_lock.readLock().lock();
+		try {
+			List<Entry> entries = _logins.get(serviceId);
+			if (entries != null) {
+				for (Entry entry : entries) {
+					Ciph login = readLogin(entry);
+					logins.put(entry.loginId, login);
+					bytes += login.getEnc().length;
+				}
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		Metrics.record("log.getLogins", t, bytes);
+		return logins;
+	}
+
+	@Override
+	public int getServiceId(String service) {
+		_lock.readLock().lock();
+		try {
+			Integer id = _serviceIds.get(service);
+			return (id != null) ? id.intValue() : -1;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int countServices() {
+		_lock.readLock().lock();
+		try {
+			return _services.size();
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int countLogins(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			List<Entry> entries = _logins.get(serviceId);
+			return (entries != null) ? entries.size() : 0;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public boolean entryExists(int serviceId, int loginId) {
+		_lock.readLock().lock();
+		try {
+			return _entries.containsKey(key(serviceId, loginId));
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public int[] getLoginIds(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			List<Entry> entries = _logins.get(serviceId);
+			if (entries == null) {
+				return new int[0];
+			}
+			int[] ids = new int[entries.size()];
+			for (int i=0 ; i<ids.length ; ++i) {
+				ids[i] = entries.get(i).loginId;
+			}
+			Arrays.sort(ids);
+			return ids;
+		} finally {
+			_lock.readLock().unlock();
+		}
+	}
+
+	private Ciph readLogin(Entry entry) {
+		ByteBuffer b = record(entry.insertPos);
+		b.get();
+		b.getInt();
+		b.getInt();
+		skipBytes(b);
+		byte[] iv = getBytes(b);
+		return new Ciph(iv, getBytes(b));
+	}
+
+	@Override
+	public Ciph getLogin(int serviceId, int loginId) {
+		long t = Metrics.start();
+		Ciph login = null;
+		_lock.readLock().lock();
+		try {
+			Entry entry = _entries.get(key(serviceId, loginId));
+			if (entry != null) {
+				login = readLogin(entry);
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		Metrics.record("log.getLogin", t, (login != null) ? login.getEnc().length : 0);
+		return login;
+	}
+
+	@Override
+	public void forEachEntry(EntryVisitor visitor) {
+		long t = Metrics.start();
+		long bytes = 0;
+		_lock.readLock().lock();
+		try {
+			for (Entry entry : _entries.values()) {
+				ByteBuffer b = record(entry.insertPos);
+				b.get();
+				b.getInt();
+				b.getInt();
+				String service = new String(getBytes(b), StandardCharsets.UTF_8);
+				byte[] iv = getBytes(b);
+				Ciph login = new Ciph(iv, getBytes(b));
+				Ciph password = readPassword(entry);
+				bytes += login.getEnc().length + password.getEnc().length;
+				if (!visitor.visit(entry.serviceId, service, entry.loginId, login, password)) {
+					break;
+				}
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		Metrics.record("log.forEachEntry", t, bytes);
+	}
+
+	/**
+	 * Gets the size of the log, dead records included
+	 * @return Number of bytes used in the log file
+	 */
+	public long getLogSize() {
+		return _end;
+	}
+
+	/**
+	 * Gets the size of the records still in use
+	 * @return Number of bytes a compaction would keep
+	 */
+	public long getLiveSize() {
+		return FILE_HEADER + _live;
+	}
+}
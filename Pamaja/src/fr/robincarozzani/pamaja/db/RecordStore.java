@@ -0,0 +1,697 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.io.File;
+import java.security.GeneralSecurityException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import fr.robincarozzani.pamaja.Launcher;
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.IntMap;
+import fr.robincarozzani.pamaja.utils.Pair;
+
+/**
+ * Vault store keeping each entry in one row of one table, clustered by service.
+ * The login and the password of an entry are encrypted together with one IV, see
+ * {@link Ciphor#encryptEntry(byte[], Secret, Secret)}: the row holds that IV, the length of the login and both
+ * ciphertexts, so reading a whole entry is one B-tree lookup and one cipher pass, where the {@link DBHandler} layout
+ * reads the corda, locl and cida tables and needs a pass for each.
+ * A password encrypted on its own, as given to {@link #updatePassword(int, int, Ciph)}, keeps its IV in the row.
+ * Writes are grouped into transactions by a {@link WriteBehindQueue}, reads have their own connection.
+ * Shards, key rotation, integrity trees, backups and TOTP secrets are not supported by this store.
+ * @author Robin Carozzani
+ */
+public class RecordStore implements VaultStore {
+
+	private static final String DB_NAME = "PamajaRec.db";
+	private static final int ARENA_SIZE = 4096;
+
+	private final String _dir;
+	private StorageProfile _profile = StorageProfile.BALANCED;
+	private Connection _connection = null;
+	private WriteBehindQueue _writer = null;
+	private final Map<String, PreparedStatement> _statements = new HashMap<String, PreparedStatement>();
+	// ID of every service name, as committed
+	private final Map<String, Integer> _serviceIds = new ConcurrentHashMap<String, Integer>();
+	// Only used by the writer thread
+	private final Map<String, Integer> _newServices = new HashMap<String, Integer>();
+	private int _lastServiceId;
+	private int _lastLoginId;
+
+	private static RecordStore instance = null;
+
+	private RecordStore() {
+		this(System.getProperty("pamaja.db.dir", "data"));
+	}
+
+	/**
+	 * Constructs a RecordStore on its own directory, independent from the unique instance
+	 * @param dir Directory of the database file
+	 */
+	public RecordStore(String dir) {
+		_dir = dir;
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets unique instance of RecordStore
+	 * @return Instance of RecordStore
+	 */
+	public static synchronized RecordStore getInstance() {
+		if (instance == null) {
+			instance = new RecordStore();
+		}
+		return instance;
+	}
+
+	@Override
+	public boolean exists() {
+		return new File(_dir, DB_NAME).exists();
+	}
+
+	/**
+	 * Opens the database, with the storage profile selected by <code>pamaja.db.profile</code>
+	 */
+	@Override
+	public void connect() {
+		long t = Metrics.start();
+		_profile = StorageProfile.selected();
+		boolean newDB = !exists();
+		new File(_dir).mkdir();
+		try {
+			String url = "jdbc:sqlite:"+_dir+"/"+DB_NAME;
+			_connection = DriverManager.getConnection(url);
+			_profile.apply(_connection, false);
+			if (newDB) {
+				createDB();
+			}
+			Statement stmt = _connection.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT id, ser FROM sercl;");
+			_lastServiceId = 0;
+			while (rs.next()) {
+				_serviceIds.put(rs.getString(2), Integer.valueOf(rs.getInt(1)));
+				_lastServiceId = Math.max(_lastServiceId, rs.getInt(1));
+			}
+			rs.close();
+			rs = stmt.executeQuery("SELECT MAX(id) FROM entr;");
+			_lastLoginId = rs.next() ? rs.getInt(1) : 0;
+			rs.close();
+			stmt.close();
+			Connection writer = DriverManager.getConnection(url);
+			_profile.apply(writer, true);
+			_writer = new WriteBehindQueue(writer, null, committed -> {
+				if (committed) {
+					_serviceIds.putAll(_newServices);
+				}
+				_newServices.clear();
+			});
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("rec.connect", t, 0);
+	}
+
+	private void createDB() throws SQLException {
+		Statement stmt = _connection.createStatement();
+		stmt.executeUpdate("CREATE TABLE info ("
+				+ "	init INTEGER NOT NULL,"
+				+ "	version TEXT NOT NULL)");
+		stmt.executeUpdate("INSERT INTO info VALUES(0, '"+Launcher.PROG_VERSION+"')");
+		stmt.executeUpdate("CREATE TABLE cimd ("
+				+ "	id INT PRIMARY KEY NOT NULL,"
+				+ "	sa TEXT,"
+				+ "	ivsa TEXT NOT NULL,"
+				+ "	enc TEXT NOT NULL)");
+		stmt.executeUpdate("CREATE TABLE sercl ("
+				+ "	id INT PRIMARY KEY NOT NULL,"
+				+ "	ser TEXT NOT NULL)");
+		stmt.executeUpdate("CREATE UNIQUE INDEX ix_sercl_ser ON sercl(ser)");
+		// Login length in bytes, ciphertexts of the login then of the password, IV of the password if it has its own
+		stmt.executeUpdate("CREATE TABLE entr ("
+				+ "	sid INT NOT NULL,"
+				+ "	id INT NOT NULL,"
+				+ "	iv TEXT NOT NULL,"
+				+ "	lolen INT NOT NULL,"
+				+ "	enc TEXT NOT NULL,"
+				+ "	piv TEXT,"
+				+ "	CONSTRAINT pk_entr PRIMARY KEY(sid, id)) WITHOUT ROWID");
+		stmt.close();
+	}
+
+	@Override
+	public void disconnect() {
+		try {
+			if (_writer != null) {
+				_writer.close();
+				_writer = null;
+			}
+			if (_connection != null) {
+				for (PreparedStatement stmt : _statements.values()) {
+					stmt.close();
+				}
+				_statements.clear();
+				_serviceIds.clear();
+				_connection.close();
+				_connection = null;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets a statement prepared on the read connection, reused by later calls.
+	 * Callers synchronize on the connection while binding, executing and reading it.
+	 */
+	private PreparedStatement prepare(String sql) throws SQLException {
+		synchronized (_statements) {
+			PreparedStatement stmt = _statements.get(sql);
+			if (stmt == null) {
+				stmt = _connection.prepareStatement(sql);
+				_statements.put(sql, stmt);
+			}
+			return stmt;
+		}
+	}
+
+	private static <T> T await(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+		}
+		return null;
+	}
+
+	/**
+	 * Waits for a write having no status to return
+	 * @throws IllegalStateException If the write failed, with the cause of the failure
+	 */
+	private static <T> T awaitWrite(CompletableFuture<T> future) {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			throw new IllegalStateException("Write failed: " + e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private static Ciph loginOf(byte[] iv, int loginLength, byte[] enc) {
+		return new Ciph(iv, Arrays.copyOf(enc, 2 * loginLength));
+	}
+
+	private static Ciph passwordOf(Ciph login, byte[] piv, byte[] enc) {
+		return new Ciph((piv != null) ? piv : Ciphor.passwordIV(login), Arrays.copyOfRange(enc, login.getEnc().length, enc.length));
+	}
+
+	@Override
+	public boolean isInit() {
+		boolean init = false;
+		try {
+			PreparedStatement stmt = prepare("SELECT init FROM info;");
+			synchronized (_connection) {
+				ResultSet rs = stmt.executeQuery();
+				init = rs.next() && rs.getBoolean(1);
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return init;
+	}
+
+	@Override
+	public boolean dbVersionIsOk() {
+		String version = "";
+		try {
+			PreparedStatement stmt = prepare("SELECT version FROM info;");
+			synchronized (_connection) {
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					version = rs.getString(1);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return Launcher.PROG_VERSION.equals(version);
+	}
+
+	@Override
+	public void setInit() {
+		await(_writer.submit(stmt -> stmt.executeUpdate("UPDATE info SET init = 1")));
+	}
+
+	private static void insertMaster(Connection c, int id, byte[] salt, byte[] iv, byte[] enc) throws SQLException {
+		PreparedStatement stmt = c.prepareStatement("INSERT OR IGNORE INTO cimd VALUES(?, ?, ?, ?)");
+		try {
+			stmt.setInt(1, id);
+			stmt.setString(2, new String(salt));
+			stmt.setString(3, new String(iv));
+			stmt.setString(4, new String(enc));
+			stmt.executeUpdate();
+		} finally {
+			stmt.close();
+		}
+	}
+
+	@Override
+	public void insertMasterPassword(Hash password, byte[] origSalt) {
+		await(_writer.submit(stmt -> insertMaster(stmt.getConnection(), 1, origSalt, password.getSalt(), password.getHashedMessage())));
+	}
+
+	@Override
+	public void insertMasterKey(Ciph key) {
+		await(_writer.submit(stmt -> insertMaster(stmt.getConnection(), 2, new byte[0], key.getIV(), key.getEnc())));
+	}
+
+	private byte[][] readMaster(int id) {
+		byte[][] row = null;
+		try {
+			PreparedStatement stmt = prepare("SELECT sa, ivsa, enc FROM cimd WHERE id = ?;");
+			synchronized (_connection) {
+				stmt.setInt(1, id);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					row = new byte[][] {rs.getBytes(1), rs.getBytes(2), rs.getBytes(3)};
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return row;
+	}
+
+	@Override
+	public Pair<byte[], Hash> getStoredPasswordAndSalt() {
+		byte[][] row = readMaster(1);
+		return (row != null) ? new Pair<byte[], Hash>(row[0], new Hash(row[1], row[2])) : null;
+	}
+
+	@Override
+	public Ciph getStoredKey() {
+		byte[][] row = readMaster(2);
+		return (row != null) ? new Ciph(row[1], row[2]) : null;
+	}
+
+	/**
+	 * Finds or creates a service, on the writer thread
+	 */
+	private int serviceId(Statement stmt, String service, int newId) throws SQLException {
+		Integer id = _newServices.get(service);
+		if (id == null) {
+			id = _serviceIds.get(service);
+		}
+		if (id != null) {
+			return id.intValue();
+		}
+		PreparedStatement insert = stmt.getConnection().prepareStatement("INSERT INTO sercl VALUES(?, ?)");
+		try {
+			insert.setInt(1, newId);
+			insert.setString(2, service);
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+		_newServices.put(service, Integer.valueOf(newId));
+		_lastServiceId = Math.max(_lastServiceId, newId);
+		return newId;
+	}
+
+	private void insertEntry(Statement stmt, int serviceId, int loginId, Ciph login, Ciph password) throws SQLException {
+		PreparedStatement insert = stmt.getConnection().prepareStatement("INSERT INTO entr VALUES(?, ?, ?, ?, ?, ?)");
+		try {
+			byte[] loginEnc = login.getEnc();
+			byte[] passwordEnc = password.getEnc();
+			byte[] enc = Arrays.copyOf(loginEnc, loginEnc.length + passwordEnc.length);
+			System.arraycopy(passwordEnc, 0, enc, loginEnc.length, passwordEnc.length);
+			insert.setInt(1, serviceId);
+			insert.setInt(2, loginId);
+			insert.setString(3, new String(login.getIV()));
+			insert.setInt(4, Ciphor.plainLength(login));
+			insert.setString(5, new String(enc));
+			insert.setString(6, Ciphor.isEntry(login, password) ? null : new String(password.getIV()));
+			insert.executeUpdate();
+		} finally {
+			insert.close();
+		}
+		_lastLoginId = Math.max(_lastLoginId, loginId);
+	}
+
+	/**
+	 * Queues the insertion of a new password, grouped with other pending writes into one transaction.
+	 * The entry goes under the service of that name, which is created if there is none yet.
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert, in one record with the login when encrypted by
+	 * {@link Ciphor#encryptEntry(byte[], Secret, Secret)}
+	 * @return Future completed with the ID of the service once the password is durably stored
+	 */
+	public CompletableFuture<Integer> insertPasswordAsync(String service, Ciph login, Ciph password) {
+		return insertEntryAsync(service, login, password).thenApply(ids -> ids.first());
+	}
+
+	/**
+	 * Queues the insertion of a new password like {@link #insertPasswordAsync(String, Ciph, Ciph)}, telling which login was created
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return Future completed with the IDs of the service and of the login once the password is durably stored
+	 */
+	public CompletableFuture<Pair<Integer, Integer>> insertEntryAsync(String service, Ciph login, Ciph password) {
+		long t = Metrics.start();
+		int[] ids = new int[2];
+		CompletableFuture<Pair<Integer, Integer>> f = _writer.submit(stmt -> {
+			ids[0] = serviceId(stmt, service, _lastServiceId + 1);
+			ids[1] = _lastLoginId + 1;
+			insertEntry(stmt, ids[0], ids[1], login, password);
+		}).thenApply(v -> new Pair<Integer, Integer>(ids[0], ids[1]));
+		f.whenComplete((v, e) -> Metrics.record("rec.insertPassword", t, login.getEnc().length + password.getEnc().length));
+		return f;
+	}
+
+	@Override
+	public Pair<Integer, Integer> insertEntry(String service, Ciph login, Ciph password) {
+		return await(insertEntryAsync(service, login, password));
+	}
+
+	@Override
+	public void updatePassword(int serviceId, int loginId, Ciph newPassword) {
+		long t = Metrics.start();
+		awaitWrite(_writer.submit(stmt -> {
+			PreparedStatement update = stmt.getConnection().prepareStatement("UPDATE entr"
+					+ " SET enc = substr(enc, 1, 2 * lolen) || ?, piv = ?"
+					+ " WHERE sid = ? AND id = ?");
+			try {
+				update.setString(1, new String(newPassword.getEnc()));
+				update.setString(2, new String(newPassword.getIV()));
+				update.setInt(3, serviceId);
+				update.setInt(4, loginId);
+				update.executeUpdate();
+			} finally {
+				update.close();
+			}
+		}));
+		Metrics.record("rec.updatePassword", t, newPassword.getEnc().length);
+	}
+
+	/**
+	 * Reads the row of an entry
+	 * @return Encrypted login and encrypted password, <code>null</code> if not found
+	 */
+	private Pair<Ciph, Ciph> readEntry(int serviceId, int loginId) {
+		Pair<Ciph, Ciph> entry = null;
+		try {
+			PreparedStatement stmt = prepare("SELECT iv, lolen, enc, piv FROM entr WHERE sid = ? AND id = ?;");
+			synchronized (_connection) {
+				stmt.setInt(1, serviceId);
+				stmt.setInt(2, loginId);
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					byte[] enc = rs.getBytes(3);
+					Ciph login = loginOf(rs.getBytes(1), rs.getInt(2), enc);
+					entry = new Pair<Ciph, Ciph>(login, passwordOf(login, rs.getBytes(4), enc));
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return entry;
+	}
+
+	@Override
+	public Pair<Ciph, Ciph> getEntry(int serviceId, int loginId) {
+		long t = Metrics.start();
+		Pair<Ciph, Ciph> entry = readEntry(serviceId, loginId);
+		Metrics.record("rec.getEntry", t, (entry != null) ? entry.first().getEnc().length + entry.second().getEnc().length : 0);
+		return entry;
+	}
+
+	@Override
+	public Ciph getPassword(int serviceId, int loginId) {
+		long t = Metrics.start();
+		Pair<Ciph, Ciph> entry = readEntry(serviceId, loginId);
+		Metrics.record("rec.getPassword", t, (entry != null) ? entry.second().getEnc().length : 0);
+		return (entry != null) ? entry.second() : null;
+	}
+
+	@Override
+	public Ciph getLogin(int serviceId, int loginId) {
+		long t = Metrics.start();
+		Pair<Ciph, Ciph> entry = readEntry(serviceId, loginId);
+		Metrics.record("rec.getLogin", t, (entry != null) ? entry.first().getEnc().length : 0);
+		return (entry != null) ? entry.first() : null;
+	}
+
+	@Override
+	public Map<Integer, String> getServices() {
+		long t = Metrics.start();
+		Map<Integer, String> services = new TreeMap<Integer, String>();
+		long bytes = 0;
+		try {
+			PreparedStatement stmt = prepare("SELECT id, ser FROM sercl;");
+			synchronized (_connection) {
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					String ser = rs.getString(2);
+					services.put(rs.getInt(1), ser);
+					bytes += ser.length();
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("rec.getServices", t, bytes);
+		return services;
+	}
+
+	@Override
+	public Map<Integer, Ciph> getLogins(int serviceId) {
+		long t = Metrics.start();
+		Map<Integer, Ciph> logins = new HashMap<Integer, Ciph>();
+		long bytes = 0;
+		try {
+			PreparedStatement stmt = prepare("SELECT id, iv, lolen, enc FROM entr WHERE sid = ?;");
+			synchronized (_connection) {
+				stmt.setInt(1, serviceId);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					Ciph login = loginOf(rs.getBytes(2), rs.getInt(3), rs.getBytes(4));
+					logins.put(rs.getInt(1), login);
+					bytes += login.getEnc().length;
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("rec.getLogins", t, bytes);
+		return logins;
+	}
+
+	private int count(String sql, int... params) {
+		int count = 0;
+		try {
+			PreparedStatement stmt = prepare(sql);
+			synchronized (_connection) {
+				for (int i=0 ; i<params.length ; ++i) {
+					stmt.setInt(i + 1, params[i]);
+				}
+				ResultSet rs = stmt.executeQuery();
+				if (rs.next()) {
+					count = rs.getInt(1);
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		return count;
+	}
+
+	@Override
+	public int getServiceId(String service) {
+		Integer id = _serviceIds.get(service);
+		return (id != null) ? id.intValue() : -1;
+	}
+
+	@Override
+	public int countServices() {
+		return count("SELECT COUNT(*) FROM sercl;");
+	}
+
+	@Override
+	public int countLogins(int serviceId) {
+		return count("SELECT COUNT(*) FROM entr WHERE sid = ?;", serviceId);
+	}
+
+	@Override
+	public boolean entryExists(int serviceId, int loginId) {
+		return count("SELECT COUNT(*) FROM entr WHERE sid = ? AND id = ?;", serviceId, loginId) != 0;
+	}
+
+	@Override
+	public int[] getLoginIds(int serviceId) {
+		List<Integer> ids = new ArrayList<Integer>();
+		try {
+			PreparedStatement stmt = prepare("SELECT id FROM entr WHERE sid = ? ORDER BY id;");
+			synchronized (_connection) {
+				stmt.setInt(1, serviceId);
+				ResultSet rs = stmt.executeQuery();
+				while (rs.next()) {
+					ids.add(rs.getInt(1));
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		int[] res = new int[ids.size()];
+		for (int i=0 ; i<res.length ; ++i) {
+			res[i] = ids.get(i).intValue();
+		}
+		return res;
+	}
+
+	@Override
+	public void forEachEntry(EntryVisitor visitor) {
+		long t = Metrics.start();
+		long bytes = 0;
+		try {
+			PreparedStatement stmt = prepare("SELECT e.sid, s.ser, e.id, e.iv, e.lolen, e.enc, e.piv"
+					+ " FROM entr e"
+					+ " JOIN sercl s ON s.id = e.sid;");
+			synchronized (_connection) {
+				ResultSet rs = stmt.executeQuery();
+				boolean more = true;
+				while (more && rs.next()) {
+					byte[] enc = rs.getBytes(6);
+					Ciph login = loginOf(rs.getBytes(4), rs.getInt(5), enc);
+					bytes += enc.length;
+					more = visitor.visit(rs.getInt(1), rs.getString(2), rs.getInt(3), login, passwordOf(login, rs.getBytes(7), enc));
+				}
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Metrics.record("rec.forEachEntry", t, bytes);
+	}
+
+	/**
+	 * Fills this empty store with the vault of another store, in one transaction.
+	 * Every entry is decrypted and encrypted again as one record with one IV. IDs, the master password and the
+	 * encrypted key are kept, so the same master password opens the copy. Services sharing a name are merged.
+	 * @param source Connected store of the vault
+	 * @param key The clear encryption key of the vault
+	 * @return Number of entries copied, <code>-1</code> if the copy failed and nothing has been written
+	 * @throws IllegalStateException If this store is not empty
+	 */
+	public int importFrom(VaultStore source, Secret key) {
+		if (isInit() || (countServices() != 0)) {
+			throw new IllegalStateException("Store is not empty");
+		}
+		long t = Metrics.start();
+		int expected = 0;
+		IntMap<String> services = source.listServices();
+		for (int i=0 ; i<services.size() ; ++i) {
+			expected += source.countLogins(services.keyAt(i));
+		}
+		int total = expected;
+		int[] copied = new int[1];
+		CompletableFuture<Void> f = _writer.submit(stmt -> {
+			copied[0] = 0;
+			Pair<byte[], Hash> master = source.getStoredPasswordAndSalt();
+			Ciph masterKey = source.getStoredKey();
+			if ((master == null) || (masterKey == null)) {
+				throw new SQLException("Source vault has no master password");
+			}
+			insertMaster(stmt.getConnection(), 1, master.first(), master.second().getSalt(), master.second().getHashedMessage());
+			insertMaster(stmt.getConnection(), 2, new byte[0], masterKey.getIV(), masterKey.getEnc());
+			SQLException[] failure = new SQLException[1];
+			Ciphor c = Ciphor.getInstance();
+			try (SecureArena arena = new SecureArena(ARENA_SIZE)) {
+				source.forEachEntry((serviceId, service, loginId, login, password) -> {
+					int size = Ciphor.plainLength(password);
+					arena.reset();
+					try (SecureArena own = (size > ARENA_SIZE) ? new SecureArena(size) : null) {
+						Pair<byte[], Secret> clear = c.decryptEntry(login, password, key, (own != null) ? own : arena);
+						try {
+							Pair<Ciph, Ciph> record = c.encryptEntry(clear.first(), clear.second(), key);
+							insertEntry(stmt, serviceId(stmt, service, serviceId), loginId, record.first(), record.second());
+						} finally {
+							Arrays.fill(clear.first(), (byte)0);
+							clear.second().wipe();
+						}
+						++copied[0];
+						return true;
+					} catch (SQLException e) {
+						failure[0] = e;
+					} catch (GeneralSecurityException e) {
+						failure[0] = new SQLException("Could not encrypt entry "+serviceId+"/"+loginId+" again", e);
+					}
+					return false;
+				});
+			}
+			if (failure[0] != null) {
+				throw failure[0];
+			}
+			if (copied[0] != total) {
+				throw new SQLException("Read "+copied[0]+" entries out of "+total);
+			}
+			if (source.isInit()) {
+				stmt.executeUpdate("UPDATE info SET init = 1");
+			}
+		});
+		boolean ok = true;
+		try {
+			f.join();
+		} catch (CompletionException e) {
+			e.getCause().printStackTrace();
+			ok = false;
+		}
+		Metrics.record("rec.importFrom", t, copied[0]);
+		return ok ? copied[0] : -1;
+	}
+}
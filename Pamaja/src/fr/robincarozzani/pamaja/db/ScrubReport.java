@@ -0,0 +1,173 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Result of an integrity scrub of the vault, see {@link DBHandler#scrub(boolean, int)}
+ * @author Robin Carozzani
+ */
+public class ScrubReport {
+
+	/**
+	 * Kinds of problems a scrub finds
+	 */
+	public enum Problem {
+		CORRUPTED_ENTRY("entry does not match its MAC"),
+		MISSING_ENTRY("entry has a MAC but no longer exists"),
+		UNTAGGED_ENTRY("entry has no MAC"),
+		LEAF_MISMATCH("entries of the leaf do not match it, some have been removed or added"),
+		DAMAGED_NODE("node of the integrity tree does not match its MAC"),
+		MISSING_TREE("shard has no integrity tree"),
+		UNREADABLE_TREE("integrity tree of the shard could not be read"),
+		MISSING_MARKER("vault has no integrity marker, its integrity protection is not enabled"),
+		DAMAGED_MARKER("integrity marker does not match the key of the vault");
+
+		private final String _description;
+
+		private Problem(String description) {
+			_description = description;
+		}
+
+		/**
+		 * @return Description of the problem
+		 */
+		public String getDescription() {
+			return _description;
+		}
+	}
+
+	/**
+	 * One problem found by a scrub
+	 */
+	public static class Finding {
+		private final Problem _problem;
+		private final int _shard;
+		private final int _node;
+		private final int _serviceId;
+		private final int _loginId;
+
+		private Finding(Problem problem, int shard, int node, int serviceId, int loginId) {
+			_problem = problem;
+			_shard = shard;
+			_node = node;
+			_serviceId = serviceId;
+			_loginId = loginId;
+		}
+
+		/**
+		 * @return Kind of problem
+		 */
+		public Problem getProblem() {
+			return _problem;
+		}
+
+		/**
+		 * @return Index of the shard, <code>-1</code> if the whole vault is concerned
+		 */
+		public int getShard() {
+			return _shard;
+		}
+
+		/**
+		 * @return Node of the integrity tree concerned, <code>-1</code> if none
+		 */
+		public int getNode() {
+			return _node;
+		}
+
+		/**
+		 * @return ID of the service of the entry concerned, <code>-1</code> if none
+		 */
+		public int getServiceId() {
+			return _serviceId;
+		}
+
+		/**
+		 * @return ID of the login of the entry concerned, <code>-1</code> if none
+		 */
+		public int getLoginId() {
+			return _loginId;
+		}
+
+		@Override
+		public String toString() {
+			String where = (_shard >= 0) ? "shard "+_shard : "vault";
+			if (_serviceId >= 0) {
+				where += ", service "+_serviceId+", login "+_loginId;
+			} else if (_node >= 0) {
+				where += ", node "+_node;
+			}
+			return where+": "+_problem.getDescription();
+		}
+	}
+
+	private final boolean _full;
+	private final List<Finding> _findings = new ArrayList<Finding>();
+	private long _entries = 0;
+	private int _leaves = 0;
+
+	ScrubReport(boolean full) {
+		_full = full;
+	}
+
+	synchronized void add(Problem problem, int shard, int node, int serviceId, int loginId) {
+		_findings.add(new Finding(problem, shard, node, serviceId, loginId));
+	}
+
+	synchronized void count(long entries, int leaves) {
+		_entries += entries;
+		_leaves += leaves;
+	}
+
+	/**
+	 * @return <code>true</code> if every leaf has been checked, <code>false</code> if only the changed ones
+	 */
+	public boolean isFull() {
+		return _full;
+	}
+
+	/**
+	 * @return <code>true</code> if no problem has been found
+	 */
+	public synchronized boolean isClean() {
+		return _findings.isEmpty();
+	}
+
+	/**
+	 * @return Problems found
+	 */
+	public synchronized List<Finding> getFindings() {
+		return new ArrayList<Finding>(_findings);
+	}
+
+	/**
+	 * @return Number of entries checked
+	 */
+	public synchronized long getCheckedEntries() {
+		return _entries;
+	}
+
+	/**
+	 * @return Number of leaves of the integrity trees whose entries have been checked
+	 */
+	public synchronized int getCheckedLeaves() {
+		return _leaves;
+	}
+}
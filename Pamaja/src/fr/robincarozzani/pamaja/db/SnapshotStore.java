@@ -0,0 +1,648 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.IntMap;
+import fr.robincarozzani.pamaja.utils.Pair;
+import fr.robincarozzani.pamaja.utils.ParallelSort;
+
+/**
+ * In-memory copy of the encrypted vault, serving every read without touching the underlying store.
+ * Entries are kept in parallel primitive arrays sorted by service and login ID, their ciphertexts packed into
+ * a single byte array. Writes go to the underlying store first, then to the copy.
+ * When the copy would use more memory than its ceiling, it is dropped and reads go back to the underlying store.
+ * @author Robin Carozzani
+ */
+public class SnapshotStore implements VaultStore {
+
+	/**
+	 * Default memory ceiling, in bytes
+	 */
+	public static final long DEFAULT_CEILING = 256L * 1024 * 1024;
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final VaultStore _store;
+	private final long _ceiling;
+	private final ReentrantReadWriteLock _lock = new ReentrantReadWriteLock();
+	private boolean _loaded = false;
+
+	// Services sorted by ID
+	private int[] _serviceIds;
+	private String[] _serviceNames;
+	private int _services;
+	private long _namesSize;
+
+	// Entries sorted by (service ID << 32 | login ID), with the offsets of their login and password in _data
+	private long[] _keys;
+	private int[] _loginPos;
+	private int[] _passwordPos;
+	private int _entries;
+
+	// Ciphertexts, each stored as [IV length (1 byte)][IV][data length (4 bytes)][data]
+	private byte[] _data;
+	private int _dataEnd;
+	private int _dataDead;
+
+	/**
+	 * Constructs a SnapshotStore, empty until {@link #load()} is called
+	 * @param store Store holding the vault
+	 * @param ceiling Maximum memory used by the copy, in bytes
+	 */
+	public SnapshotStore(VaultStore store, long ceiling) {
+		_store = store;
+		_ceiling = ceiling;
+	}
+
+	private static long key(int serviceId, int loginId) {
+		return ((long)serviceId << 32) | (loginId & 0xffffffffL);
+	}
+
+	/**
+	 * Copies the whole vault in memory, replacing any previous copy
+	 * @return <code>false</code> if the vault does not fit under the ceiling, reads then go to the underlying store
+	 */
+	public boolean load() {
+		long t = Metrics.start();
+		_lock.writeLock().lock();
+		try {
+			clear();
+			_serviceIds = new int[INITIAL_CAPACITY];
+			_serviceNames = new String[INITIAL_CAPACITY];
+			_keys = new long[INITIAL_CAPACITY];
+			_loginPos = new int[INITIAL_CAPACITY];
+			_passwordPos = new int[INITIAL_CAPACITY];
+			_data = new byte[INITIAL_CAPACITY * 128];
+			Map<Integer, String> names = new HashMap<Integer, String>();
+			boolean[] fits = {true};
+			_store.forEachEntry((serviceId, service, loginId, login, password) -> {
+				if (!names.containsKey(serviceId)) {
+					names.put(serviceId, service);
+					_namesSize += stringSize(service);
+				}
+				appendEntry(key(serviceId, loginId), login, password);
+				fits[0] = getMemoryUsage() <= _ceiling;
+				return fits[0];
+			});
+			if (!fits[0]) {
+				clear();
+				return false;
+			}
+			ParallelSort.sort(new ParallelSort.Sortable() {
+				@Override
+				public int compare(int i, int j) {
+					return Long.compare(_keys[i], _keys[j]);
+				}
+
+				@Override
+				public void swap(int i, int j) {
+					swapEntries(i, j);
+				}
+			}, 0, _entries);
+			for (int i=0 ; i<_entries ; ++i) {
+				int serviceId = (int)(_keys[i] >>> 32);
+				if ((_services == 0) || (_serviceIds[_services - 1] != serviceId)) {
+					ensureServiceCapacity(_services + 1);
+					_serviceIds[_services] = serviceId;
+					_serviceNames[_services] = names.get(serviceId);
+					++_services;
+				}
+			}
+			// Growth slack is only needed for later writes
+			_serviceIds = Arrays.copyOf(_serviceIds, _services);
+			_serviceNames = Arrays.copyOf(_serviceNames, _services);
+			_keys = Arrays.copyOf(_keys, _entries);
+			_loginPos = Arrays.copyOf(_loginPos, _entries);
+			_passwordPos = Arrays.copyOf(_passwordPos, _entries);
+			_data = Arrays.copyOf(_data, _dataEnd);
+			_loaded = true;
+			return true;
+		} finally {
+			_lock.writeLock().unlock();
+			Metrics.record("snapshot.load", t, _dataEnd);
+		}
+	}
+
+	private void clear() {
+		_loaded = false;
+		_serviceIds = null;
+		_serviceNames = null;
+		_services = 0;
+		_namesSize = 0;
+		_keys = null;
+		_loginPos = null;
+		_passwordPos = null;
+		_entries = 0;
+		_data = null;
+		_dataEnd = 0;
+		_dataDead = 0;
+	}
+
+	/**
+	 * Checks if reads are served from memory
+	 * @return <code>true</code> if the vault is loaded in memory
+	 */
+	public boolean isLoaded() {
+		return _loaded;
+	}
+
+	/**
+	 * Gets the number of entries held in memory
+	 * @return Number of entries
+	 */
+	public int getEntryCount() {
+		return _entries;
+	}
+
+	/**
+	 * Estimates the memory used by the copy: arrays, packed ciphertexts and service names
+	 * @return Approximate number of bytes
+	 */
+	public long getMemoryUsage() {
+		if (_keys == null) {
+			return 0;
+		}
+		return 8L * _keys.length + 4L * _loginPos.length + 4L * _passwordPos.length
+				+ _data.length + 4L * _serviceIds.length + 4L * _serviceNames.length + _namesSize;
+	}
+
+	/**
+	 * Gets the memory cost of one entry
+	 * @return Approximate number of bytes per entry
+	 */
+	public long getBytesPerEntry() {
+		return (_entries == 0) ? 0 : getMemoryUsage() / _entries;
+	}
+
+	private static long stringSize(String s) {
+		// String object and its char array, headers included and aligned on 8 bytes
+		return 24 + ((16 + 2L * s.length() + 7) & ~7L);
+	}
+
+	private void ensureServiceCapacity(int needed) {
+		if (needed > _serviceIds.length) {
+			int size = Math.max(needed + INITIAL_CAPACITY, _serviceIds.length * 2);
+			_serviceIds = Arrays.copyOf(_serviceIds, size);
+			_serviceNames = Arrays.copyOf(_serviceNames, size);
+		}
+	}
+
+	private void ensureEntryCapacity(int needed) {
+		if (needed > _keys.length) {
+			int size = Math.max(needed + INITIAL_CAPACITY, _keys.length * 2);
+			_keys = Arrays.copyOf(_keys, size);
+			_loginPos = Arrays.copyOf(_loginPos, size);
+			_passwordPos = Arrays.copyOf(_passwordPos, size);
+		}
+	}
+
+	private int putCiph(Ciph c) {
+		byte[] iv = c.getIV();
+		byte[] enc = c.getEnc();
+		if (iv.length > 255) {
+			throw new IllegalArgumentException("IV too long: " + iv.length);
+		}
+		int needed = _dataEnd + 5 + iv.length + enc.length;
+		if (needed > _data.length) {
+			_data = Arrays.copyOf(_data, Math.max(needed + INITIAL_CAPACITY * 128, _data.length * 2));
+		}
+		int pos = _dataEnd;
+		_data[pos] = (byte)iv.length;
+		System.arraycopy(iv, 0, _data, pos + 1, iv.length);
+		int p = pos + 1 + iv.length;
+		_data[p] = (byte)(enc.length >>> 24);
+		_data[p + 1] = (byte)(enc.length >>> 16);
+		_data[p + 2] = (byte)(enc.length >>> 8);
+		_data[p + 3] = (byte)enc.length;
+		System.arraycopy(enc, 0, _data, p + 4, enc.length);
+		_dataEnd = needed;
+		return pos;
+	}
+
+	private static int encLength(byte[] data, int p) {
+		return ((data[p] & 0xff) << 24) | ((data[p + 1] & 0xff) << 16) | ((data[p + 2] & 0xff) << 8) | (data[p + 3] & 0xff);
+	}
+
+	private static int ciphSize(byte[] data, int pos) {
+		int ivLength = data[pos] & 0xff;
+		return 5 + ivLength + encLength(data, pos + 1 + ivLength);
+	}
+
+	private Ciph getCiph(int pos) {
+		int ivLength = _data[pos] & 0xff;
+		int p = pos + 1 + ivLength;
+		int encLength = encLength(_data, p);
+		return new Ciph(Arrays.copyOfRange(_data, pos + 1, p), Arrays.copyOfRange(_data, p + 4, p + 4 + encLength));
+	}
+
+	private void appendEntry(long key, Ciph login, Ciph password) {
+		ensureEntryCapacity(_entries + 1);
+		_keys[_entries] = key;
+		_loginPos[_entries] = putCiph(login);
+		_passwordPos[_entries] = putCiph(password);
+		++_entries;
+	}
+
+	private void swapEntries(int i, int j) {
+		long k = _keys[i];
+		_keys[i] = _keys[j];
+		_keys[j] = k;
+		int p = _loginPos[i];
+		_loginPos[i] = _loginPos[j];
+		_loginPos[j] = p;
+		p = _passwordPos[i];
+		_passwordPos[i] = _passwordPos[j];
+		_passwordPos[j] = p;
+	}
+
+	/**
+	 * Gets the index of the first entry whose key is not lower than the given one
+	 */
+	private int lowerBound(long key) {
+		int lo = 0;
+		int hi = _entries;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (_keys[mid] < key) {
+				lo = mid + 1;
+			} else {
+				hi = mid;
+			}
+		}
+		return lo;
+	}
+
+	/**
+	 * Rewrites the ciphertexts without the space left by updates
+	 */
+	private void repack() {
+		byte[] old = _data;
+		_data = new byte[Math.max(INITIAL_CAPACITY * 128, _dataEnd - _dataDead)];
+		_dataEnd = 0;
+		_dataDead = 0;
+		for (int i=0 ; i<_entries ; ++i) {
+			int len = ciphSize(old, _loginPos[i]);
+			System.arraycopy(old, _loginPos[i], _data, _dataEnd, len);
+			_loginPos[i] = _dataEnd;
+			_dataEnd += len;
+			len = ciphSize(old, _passwordPos[i]);
+			System.arraycopy(old, _passwordPos[i], _data, _dataEnd, len);
+			_passwordPos[i] = _dataEnd;
+			_dataEnd += len;
+		}
+	}
+
+	/**
+	 * Drops the copy when it has grown over the ceiling
+	 */
+	private void checkCeiling() {
+		if (getMemoryUsage() > _ceiling) {
+			clear();
+		}
+	}
+
+	@Override
+	public boolean exists() {
+		return _store.exists();
+	}
+
+	@Override
+	public void connect() {
+		_store.connect();
+	}
+
+	@Override
+	public void disconnect() {
+		_lock.writeLock().lock();
+		try {
+			clear();
+		} finally {
+			_lock.writeLock().unlock();
+		}
+		_store.disconnect();
+	}
+
+	@Override
+	public boolean isInit() {
+		return _store.isInit();
+	}
+
+	@Override
+	public boolean dbVersionIsOk() {
+		return _store.dbVersionIsOk();
+	}
+
+	@Override
+	public void setInit() {
+		_store.setInit();
+	}
+
+	@Override
+	public void insertMasterPassword(Hash password, byte[] origSalt) {
+		_store.insertMasterPassword(password, origSalt);
+	}
+
+	@Override
+	public Pair<byte[], Hash> getStoredPasswordAndSalt() {
+		return _store.getStoredPasswordAndSalt();
+	}
+
+	@Override
+	public void insertMasterKey(Ciph key) {
+		_store.insertMasterKey(key);
+	}
+
+	@Override
+	public Ciph getStoredKey() {
+		return _store.getStoredKey();
+	}
+
+	@Override
+	public Pair<Integer, Integer> insertEntry(String service, Ciph login, Ciph password) {
+		Pair<Integer, Integer> ids = _store.insertEntry(service, login, password);
+		if (ids == null) {
+			return null;
+		}
+		int serviceId = ids.first().intValue();
+		_lock.writeLock().lock();
+		try {
+			if (_loaded) {
+				int s = Arrays.binarySearch(_serviceIds, 0, _services, serviceId);
+				if (s < 0) {
+					s = -s - 1;
+					ensureServiceCapacity(_services + 1);
+					System.arraycopy(_serviceIds, s, _serviceIds, s + 1, _services - s);
+					System.arraycopy(_serviceNames, s, _serviceNames, s + 1, _services - s);
+					_serviceIds[s] = serviceId;
+					_serviceNames[s] = service;
+					_namesSize += stringSize(service);
+					++_services;
+				}
+				long key = key(serviceId, ids.second().intValue());
+				int i = lowerBound(key);
+				if ((i == _entries) || (_keys[i] != key)) {
+					ensureEntryCapacity(_entries + 1);
+					System.arraycopy(_keys, i, _keys, i + 1, _entries - i);
+					System.arraycopy(_loginPos, i, _loginPos, i + 1, _entries - i);
+					System.arraycopy(_passwordPos, i, _passwordPos, i + 1, _entries - i);
+					_keys[i] = key;
+					++_entries;
+				}
+				_loginPos[i] = putCiph(login);
+				_passwordPos[i] = putCiph(password);
+				checkCeiling();
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+		return ids;
+	}
+
+	@Override
+	public void updatePassword(int serviceId, int loginId, Ciph newPassword) {
+		_store.updatePassword(serviceId, loginId, newPassword);
+		_lock.writeLock().lock();
+		try {
+			if (_loaded) {
+				long key = key(serviceId, loginId);
+				int i = lowerBound(key);
+				if ((i < _entries) && (_keys[i] == key)) {
+					_dataDead += ciphSize(_data, _passwordPos[i]);
+					_passwordPos[i] = putCiph(newPassword);
+					if (_dataDead > _dataEnd / 2) {
+						repack();
+					}
+					checkCeiling();
+				}
+			}
+		} finally {
+			_lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public Ciph getPassword(int serviceId, int loginId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long t = Metrics.start();
+				long key = key(serviceId, loginId);
+				int i = lowerBound(key);
+				Ciph pwd = ((i < _entries) && (_keys[i] == key)) ? getCiph(_passwordPos[i]) : null;
+				Metrics.record("snapshot.getPassword", t, (pwd != null) ? pwd.getEnc().length : 0);
+				return pwd;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.getPassword(serviceId, loginId);
+	}
+
+	@Override
+	public Map<Integer, String> getServices() {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long t = Metrics.start();
+				Map<Integer, String> services = new TreeMap<Integer, String>();
+				for (int i=0 ; i<_services ; ++i) {
+					services.put(_serviceIds[i], _serviceNames[i]);
+				}
+				Metrics.record("snapshot.getServices", t, 0);
+				return services;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.getServices();
+	}
+
+	@Override
+	public Map<Integer, Ciph> getLogins(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long t = Metrics.start();
+				Map<Integer, Ciph> logins = new HashMap<Integer, Ciph>();
+				for (int i=lowerBound(key(serviceId, 0)) ; (i < _entries) && ((int)(_keys[i] >>> 32) == serviceId) ; ++i) {
+					logins.put((int)_keys[i], getCiph(_loginPos[i]));
+				}
+				Metrics.record("snapshot.getLogins", t, 0);
+				return logins;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.getLogins(serviceId);
+	}
+
+	@Override
+	public IntMap<String> listServices() {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long t = Metrics.start();
+				IntMap<String> services = new IntMap<String>(_services);
+				for (int i=0 ; i<_services ; ++i) {
+					services.put(_serviceIds[i], _serviceNames[i]);
+				}
+				Metrics.record("snapshot.listServices", t, 0);
+				return services;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.listServices();
+	}
+
+	@Override
+	public IntMap<Ciph> listLogins(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long t = Metrics.start();
+				IntMap<Ciph> logins = new IntMap<Ciph>();
+				for (int i=lowerBound(key(serviceId, 0)) ; (i < _entries) && ((int)(_keys[i] >>> 32) == serviceId) ; ++i) {
+					logins.put((int)_keys[i], getCiph(_loginPos[i]));
+				}
+				Metrics.record("snapshot.listLogins", t, 0);
+				return logins;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.listLogins(serviceId);
+	}
+
+	@Override
+	public int getServiceId(String service) {
+		return _store.getServiceId(service);
+	}
+
+	@Override
+	public int countServices() {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				return _services;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.countServices();
+	}
+
+	/**
+	 * Gets the index of the first entry of the service following the given one
+	 */
+	private int serviceEnd(int serviceId) {
+		return (serviceId == Integer.MAX_VALUE) ? _entries : lowerBound(key(serviceId + 1, 0));
+	}
+
+	@Override
+	public int countLogins(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				return serviceEnd(serviceId) - lowerBound(key(serviceId, 0));
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.countLogins(serviceId);
+	}
+
+	@Override
+	public boolean entryExists(int serviceId, int loginId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long key = key(serviceId, loginId);
+				int i = lowerBound(key);
+				return (i < _entries) && (_keys[i] == key);
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.entryExists(serviceId, loginId);
+	}
+
+	@Override
+	public int[] getLoginIds(int serviceId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				int from = lowerBound(key(serviceId, 0));
+				int[] ids = new int[serviceEnd(serviceId) - from];
+				for (int i=0 ; i<ids.length ; ++i) {
+					ids[i] = (int)_keys[from + i];
+				}
+				return ids;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.getLoginIds(serviceId);
+	}
+
+	@Override
+	public Ciph getLogin(int serviceId, int loginId) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				long key = key(serviceId, loginId);
+				int i = lowerBound(key);
+				return ((i < _entries) && (_keys[i] == key)) ? getCiph(_loginPos[i]) : null;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		return _store.getLogin(serviceId, loginId);
+	}
+
+	@Override
+	public void forEachEntry(EntryVisitor visitor) {
+		_lock.readLock().lock();
+		try {
+			if (_loaded) {
+				int s = 0;
+				for (int i=0 ; i<_entries ; ++i) {
+					int serviceId = (int)(_keys[i] >>> 32);
+					while (_serviceIds[s] != serviceId) {
+						++s;
+					}
+					if (!visitor.visit(serviceId, _serviceNames[s], (int)_keys[i], getCiph(_loginPos[i]), getCiph(_passwordPos[i]))) {
+						break;
+					}
+				}
+				return;
+			}
+		} finally {
+			_lock.readLock().unlock();
+		}
+		_store.forEachEntry(visitor);
+	}
+}
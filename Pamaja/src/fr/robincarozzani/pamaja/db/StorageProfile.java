@@ -0,0 +1,118 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite settings applied to every connection of the vault, trading durability for throughput.
+ * The profile is chosen with the <code>pamaja.db.profile</code> system property:
+ * <code>safe</code>, <code>balanced</code> (default) or <code>fast</code>.
+ * Every profile uses write-ahead logging, which the write-behind queues rely on to write while entries are read.
+ * The page size only applies to vaults created with the profile.
+ * @author Robin Carozzani
+ */
+public enum StorageProfile {
+
+	/**
+	 * Every commit is synced to disk, by readers and writers alike, with the default SQLite caches
+	 */
+	SAFE("safe", "FULL", "FULL", 4096, 2000, "FILE"),
+
+	/**
+	 * Writes are synced to disk before being acknowledged, the checkpoints of readers are not,
+	 * with larger caches and temporary data kept in memory
+	 */
+	BALANCED("balanced", "NORMAL", "FULL", 4096, 8000, "MEMORY"),
+
+	/**
+	 * Nothing is synced: the vault survives the crash of the program, but writes can be lost or the files damaged
+	 * if the system crashes or loses power
+	 */
+	FAST("fast", "OFF", "OFF", 8192, 32000, "MEMORY");
+
+	private final String _name;
+	private final String _synchronous;
+	private final String _writerSynchronous;
+	private final int _pageSize;
+	private final int _cacheKiB;
+	private final String _tempStore;
+
+	private StorageProfile(String name, String synchronous, String writerSynchronous, int pageSize, int cacheKiB, String tempStore) {
+		_name = name;
+		_synchronous = synchronous;
+		_writerSynchronous = writerSynchronous;
+		_pageSize = pageSize;
+		_cacheKiB = cacheKiB;
+		_tempStore = tempStore;
+	}
+
+	/**
+	 * Gets the profile selected by the <code>pamaja.db.profile</code> system property
+	 * @return Selected profile
+	 */
+	public static StorageProfile selected() {
+		return forName(System.getProperty("pamaja.db.profile", BALANCED.getName()));
+	}
+
+	/**
+	 * Gets a profile from its name
+	 * @param name Name of the profile
+	 * @return Profile of this name
+	 */
+	public static StorageProfile forName(String name) {
+		for (StorageProfile profile : values()) {
+			if (profile._name.equals(name)) {
+				return profile;
+			}
+		}
+		throw new IllegalArgumentException("Unknown storage profile: " + name);
+	}
+
+	/**
+	 * Gets the name of the profile, as given to <code>pamaja.db.profile</code>
+	 * @return Profile name
+	 */
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Applies the profile to a newly opened connection
+	 * @param c Connection to set up
+	 * @param writer <code>true</code> for the connection of a write-behind queue, whose commits are acknowledged
+	 * @throws SQLException
+	 */
+	void apply(Connection c, boolean writer) throws SQLException {
+		Statement stmt = c.createStatement();
+		try {
+			// Must come before WAL is enabled, ignored once the database has been created
+			stmt.execute("PRAGMA page_size = " + _pageSize + ";");
+			stmt.execute("PRAGMA journal_mode = WAL;");
+			stmt.execute("PRAGMA synchronous = " + (writer ? _writerSynchronous : _synchronous) + ";");
+			stmt.execute("PRAGMA cache_size = -" + _cacheKiB + ";");
+			// Memory-mapped reads were measured slower than the page cache on lookups, whatever the profile
+			stmt.execute("PRAGMA mmap_size = 0;");
+			stmt.execute("PRAGMA temp_store = " + _tempStore + ";");
+			stmt.execute("PRAGMA busy_timeout = 30000;");
+		} finally {
+			stmt.close();
+		}
+	}
+}
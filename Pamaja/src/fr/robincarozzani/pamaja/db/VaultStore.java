@@ -0,0 +1,278 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.utils.IntMap;
+import fr.robincarozzani.pamaja.utils.Pair;
+
+/**
+ * Storage of an encrypted vault.
+ * The implementation is chosen with the <code>pamaja.store</code> system property:
+ * <code>sqlite</code> (default), <code>log</code> or <code>record</code>.
+ * @author Robin Carozzani
+ */
+public interface VaultStore {
+
+	/**
+	 * Receives the entries of the vault one by one
+	 */
+	interface EntryVisitor {
+		/**
+		 * Handles one entry
+		 * @param serviceId ID of the service
+		 * @param service Name of the service
+		 * @param loginId ID of the login
+		 * @param login Encrypted login
+		 * @param password Encrypted password
+		 * @return <code>false</code> to stop the scan
+		 */
+		boolean visit(int serviceId, String service, int loginId, Ciph login, Ciph password);
+	}
+
+	/**
+	 * Gets the store selected by the <code>pamaja.store</code> system property
+	 * @return Unique instance of the selected store
+	 */
+	static VaultStore getInstance() {
+		String name = System.getProperty("pamaja.store", "sqlite");
+		switch (name) {
+		case "sqlite":
+			return DBHandler.getInstance();
+		case "log":
+			return LogStore.getInstance();
+		case "record":
+			return RecordStore.getInstance();
+		default:
+			throw new IllegalArgumentException("Unknown store: " + name);
+		}
+	}
+
+	/**
+	 * Checks if the store already exists, without opening it
+	 * @return <code>true</code> if the store is present
+	 */
+	boolean exists();
+
+	/**
+	 * Opens the store, creating it when needed
+	 */
+	void connect();
+
+	/**
+	 * Closes the store
+	 */
+	void disconnect();
+
+	/**
+	 * Checks if the store has been initialized
+	 * @return <code>true</code> if the store has been initialized
+	 */
+	boolean isInit();
+
+	/**
+	 * Checks if the format of the store can be handled by the running program
+	 * @return <code>true</code> if the store can properly be handled by the program
+	 */
+	boolean dbVersionIsOk();
+
+	/**
+	 * Set the store status to initialized
+	 */
+	void setInit();
+
+	/**
+	 * Inserts the master password, unless one is already stored
+	 * @param password The double hashed password
+	 * @param origSalt Salt of the first hash
+	 */
+	void insertMasterPassword(Hash password, byte[] origSalt);
+
+	/**
+	 * Gets the master password and its salt from its first hash
+	 * @return Salt of the first hash and double hashed master password, <code>null</code> if not set
+	 */
+	Pair<byte[], Hash> getStoredPasswordAndSalt();
+
+	/**
+	 * Inserts the secret encryption key, unless one is already stored
+	 * @param key The encrypted secret key
+	 */
+	void insertMasterKey(Ciph key);
+
+	/**
+	 * Gets the encryption key
+	 * @return The encrypted secret key, <code>null</code> if not set
+	 */
+	Ciph getStoredKey();
+
+	/**
+	 * Inserts a new password, under the service of that name, which is created if there is none yet
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return ID of the service of the new entry, <code>-1</code> if it could not be stored
+	 */
+	default int insertPassword(String service, Ciph login, Ciph password) {
+		Pair<Integer, Integer> ids = insertEntry(service, login, password);
+		return (ids != null) ? ids.first().intValue() : -1;
+	}
+
+	/**
+	 * Inserts a new password like {@link #insertPassword(String, Ciph, Ciph)}, telling which login was created
+	 * @param service Service associated to the password
+	 * @param login Encrypted login corresponding to the password
+	 * @param password Encrypted password to insert
+	 * @return IDs of the service and of the login of the new entry, <code>null</code> if it could not be stored
+	 */
+	Pair<Integer, Integer> insertEntry(String service, Ciph login, Ciph password);
+
+	/**
+	 * Updates a password
+	 * @param serviceId ID of the service associated to the password
+	 * @param loginId ID of the login corresponding to the password
+	 * @param newPassword Encrypted password to insert
+	 * @throws IllegalStateException If the password could not be stored
+	 */
+	void updatePassword(int serviceId, int loginId, Ciph newPassword);
+
+	/**
+	 * Gets a specific password
+	 * @param serviceId ID of the service associated to the password
+	 * @param loginId ID of the login corresponding to the password
+	 * @return Encrypted password, <code>null</code> if not found
+	 */
+	Ciph getPassword(int serviceId, int loginId);
+
+	/**
+	 * Gets a list of registered services, ordered by ID
+	 * @return List of services (<code>ID => name</code>)
+	 */
+	Map<Integer, String> getServices();
+
+	/**
+	 * Gets a list of logins for a given service
+	 * @param serviceId ID of the service to get the logins from
+	 * @return List of logins (<code>ID => encrypted login</code>)
+	 */
+	Map<Integer, Ciph> getLogins(int serviceId);
+
+	/**
+	 * Gets the registered services in a compact map sorted by ID, without boxing the IDs
+	 * @return Services (<code>ID => name</code>)
+	 */
+	default IntMap<String> listServices() {
+		return IntMap.copyOf(getServices());
+	}
+
+	/**
+	 * Gets the logins of a given service in a compact map sorted by ID, without boxing the IDs
+	 * @param serviceId ID of the service to get the logins from
+	 * @return Logins (<code>ID => encrypted login</code>)
+	 */
+	default IntMap<Ciph> listLogins(int serviceId) {
+		return IntMap.copyOf(getLogins(serviceId));
+	}
+
+	/**
+	 * Finds a service by name
+	 * @param service Name of the service
+	 * @return ID of the service, <code>-1</code> if there is none of that name
+	 */
+	default int getServiceId(String service) {
+		IntMap<String> services = listServices();
+		for (int i=0 ; i<services.size() ; ++i) {
+			if (services.valueAt(i).equals(service)) {
+				return services.keyAt(i);
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Counts the registered services without reading their names
+	 * @return Number of services
+	 */
+	int countServices();
+
+	/**
+	 * Counts the logins of a service without reading them
+	 * @param serviceId ID of the service
+	 * @return Number of logins
+	 */
+	int countLogins(int serviceId);
+
+	/**
+	 * Checks if an entry exists without reading it
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return <code>true</code> if the entry exists
+	 */
+	boolean entryExists(int serviceId, int loginId);
+
+	/**
+	 * Gets the IDs of the logins of a service without reading them
+	 * @param serviceId ID of the service
+	 * @return Login IDs, in increasing order
+	 */
+	int[] getLoginIds(int serviceId);
+
+	/**
+	 * Gets a specific login
+	 * @param serviceId ID of the service associated to the login
+	 * @param loginId ID of the login
+	 * @return Encrypted login, <code>null</code> if not found
+	 */
+	Ciph getLogin(int serviceId, int loginId);
+
+	/**
+	 * Gets the login and the password of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return Encrypted login and encrypted password, <code>null</code> if not found
+	 */
+	default Pair<Ciph, Ciph> getEntry(int serviceId, int loginId) {
+		Ciph login = getLogin(serviceId, loginId);
+		Ciph password = (login != null) ? getPassword(serviceId, loginId) : null;
+		return (password != null) ? new Pair<Ciph, Ciph>(login, password) : null;
+	}
+
+	/**
+	 * Gets handles on the entries of a service, reading only their IDs
+	 * @param serviceId ID of the service
+	 * @return Handles loading the encrypted data on demand, ordered by login ID
+	 */
+	default List<EntryHandle> getEntries(int serviceId) {
+		int[] ids = getLoginIds(serviceId);
+		List<EntryHandle> entries = new ArrayList<EntryHandle>(ids.length);
+		for (int id : ids) {
+			entries.add(new EntryHandle(this, serviceId, id));
+		}
+		return entries;
+	}
+
+	/**
+	 * Reads every entry of the vault in one pass, in no particular order
+	 * @param visitor Receiver of the entries
+	 */
+	void forEachEntry(EntryVisitor visitor);
+}
@@ -0,0 +1,63 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+/**
+ * Tables of the database holding data encrypted with the master key
+ * @author Robin Carozzani
+ */
+public enum VaultTable {
+
+	/**
+	 * Encrypted logins
+	 */
+	LOGINS("locl", "lo"),
+
+	/**
+	 * Encrypted passwords
+	 */
+	PASSWORDS("cida", "enc"),
+
+	/**
+	 * Encrypted TOTP secrets, with the ID of the login they belong to
+	 */
+	TOTP_SECRETS("totp", "sec");
+
+	private final String _name;
+	private final String _column;
+
+	private VaultTable(String name, String column) {
+		_name = name;
+		_column = column;
+	}
+
+	/**
+	 * Gets the name of the table in the database
+	 * @return Table name
+	 */
+	public String getName() {
+		return _name;
+	}
+
+	/**
+	 * Gets the name of the column holding the encrypted data
+	 * @return Column name
+	 */
+	public String getColumn() {
+		return _column;
+	}
+}
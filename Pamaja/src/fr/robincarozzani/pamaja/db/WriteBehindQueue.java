@@ -0,0 +1,196 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.db;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import fr.robincarozzani.pamaja.metrics.Metrics;
+
+/**
+ * Queue applying vault mutations from a single writer thread.
+ * Pending mutations are grouped into one transaction, so each group costs a single sync.
+ * The connection is set up with the writer settings of the {@link StorageProfile}: unless the profile
+ * disables syncing, the futures only complete once their data is on disk.
+ * @author Robin Carozzani
+ */
+class WriteBehindQueue {
+
+	/**
+	 * Change to apply to the database
+	 */
+	interface Mutation {
+		void apply(Statement stmt) throws SQLException;
+	}
+
+	/**
+	 * Told, on the writer thread, how the transaction of a group ended
+	 */
+	interface Completion {
+		void ended(boolean committed);
+	}
+
+	private static final int MAX_GROUP = 512;
+
+	private static class Pending {
+		final Mutation mutation;
+		final CompletableFuture<Void> future;
+
+		Pending(Mutation m, CompletableFuture<Void> f) {
+			mutation = m;
+			future = f;
+		}
+	}
+
+	private static final Pending STOP = new Pending(null, null);
+
+	private final BlockingQueue<Pending> _queue = new LinkedBlockingQueue<Pending>();
+	private final Connection _connection;
+	private final Mutation _beforeCommit;
+	private final Completion _afterEnd;
+	private final Thread _writer;
+
+	/**
+	 * Constructs a WriteBehindQueue and starts its writer thread
+	 * @param connection Connection dedicated to the queue
+	 * @param beforeCommit Change applied once at the end of every group, in its transaction, <code>null</code> if none
+	 * @param afterEnd Called once the transaction of every group is committed or rolled back, <code>null</code> if none
+	 */
+	WriteBehindQueue(Connection connection, Mutation beforeCommit, Completion afterEnd) {
+		_connection = connection;
+		_beforeCommit = beforeCommit;
+		_afterEnd = afterEnd;
+		_writer = new Thread(this::run, "pamaja-writer");
+		_writer.setDaemon(true);
+		_writer.start();
+	}
+
+	/**
+	 * Queues a mutation
+	 * @param mutation Change to apply
+	 * @return Future completed once the change is committed
+	 */
+	CompletableFuture<Void> submit(Mutation mutation) {
+		CompletableFuture<Void> f = new CompletableFuture<Void>();
+		if (!_writer.isAlive()) {
+			f.completeExceptionally(new IllegalStateException("Write queue is closed"));
+		} else {
+			_queue.add(new Pending(mutation, f));
+		}
+		return f;
+	}
+
+	/**
+	 * Applies every queued mutation, then stops the writer thread and closes its connection
+	 */
+	void close() {
+		_queue.add(STOP);
+		try {
+			_writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Pending p : _queue) {
+			if (p != STOP) {
+				p.future.completeExceptionally(new IllegalStateException("Write queue is closed"));
+			}
+		}
+		_queue.clear();
+		try {
+			_connection.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void run() {
+		List<Pending> group = new ArrayList<Pending>();
+		boolean stop = false;
+		while (!stop) {
+			try {
+				group.add(_queue.take());
+			} catch (InterruptedException e) {
+				break;
+			}
+			_queue.drainTo(group, MAX_GROUP - 1);
+			int end = group.indexOf(STOP);
+			if (end >= 0) {
+				stop = true;
+				group = group.subList(0, end);
+			}
+			if (!group.isEmpty()) {
+				commit(group);
+			}
+			group = new ArrayList<Pending>();
+		}
+	}
+
+	private void commit(List<Pending> group) {
+		long t = Metrics.start();
+		try {
+			apply(group);
+			for (Pending p : group) {
+				p.future.complete(null);
+			}
+		} catch (SQLException | RuntimeException e) {
+			// One bad mutation must not fail the whole group: retry them one by one
+			for (Pending p : group) {
+				try {
+					apply(Collections.singletonList(p));
+					p.future.complete(null);
+				} catch (SQLException | RuntimeException e1) {
+					p.future.completeExceptionally(e1);
+				}
+			}
+		}
+		// Reported "bytes" is the number of mutations in the group
+		Metrics.record("db.groupCommit", t, group.size());
+	}
+
+	private void apply(List<Pending> group) throws SQLException {
+		_connection.setAutoCommit(false);
+		Statement stmt = _connection.createStatement();
+		try {
+			for (Pending p : group) {
+				p.mutation.apply(stmt);
+			}
+			if (_beforeCommit != null) {
+				_beforeCommit.apply(stmt);
+			}
+			_connection.commit();
+			if (_afterEnd != null) {
+				_afterEnd.ended(true);
+			}
+		} catch (SQLException | RuntimeException e) {
+			_connection.rollback();
+			if (_afterEnd != null) {
+				_afterEnd.ended(false);
+			}
+			throw e;
+		} finally {
+			stmt.close();
+			_connection.setAutoCommit(true);
+		}
+	}
+}
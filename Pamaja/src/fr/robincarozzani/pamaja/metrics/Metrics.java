@@ -0,0 +1,178 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records count, latency and bytes of crypto and storage operations.
+ * Recording starts enabled when the <code>pamaja.metrics</code> system property is <code>true</code>, and can be
+ * switched at any time through the MBean. While it is off, a probe costs a single volatile read.
+ * @author Robin Carozzani
+ */
+public class Metrics implements MetricsMBean {
+
+	/**
+	 * Name under which the MBean is registered
+	 */
+	public static final String OBJECT_NAME = "fr.robincarozzani.pamaja:type=Metrics";
+
+	private static volatile boolean enabled = Boolean.getBoolean("pamaja.metrics");
+
+	private static Metrics instance = null;
+
+	// Read for operations never recorded, never written
+	private static final OpStats NONE = new OpStats();
+
+	private final Map<String, OpStats> _stats = new ConcurrentHashMap<String, OpStats>();
+
+	private Metrics() {
+	}
+
+	/**
+	 * Gets the unique instance of Metrics
+	 * @return Instance of Metrics
+	 */
+	public static synchronized Metrics getInstance() {
+		if (instance == null) {
+			instance = new Metrics();
+		}
+		return instance;
+	}
+
+	/**
+	 * Starts timing an operation
+	 * @return Start timestamp to give to {@link #record(String, long, long)}, 0 if recording is disabled
+	 */
+	public static long start() {
+		return enabled ? System.nanoTime() : 0L;
+	}
+
+	/**
+	 * Records the end of an operation
+	 * @param operation Operation name
+	 * @param start Value returned by {@link #start()}
+	 * @param bytes Number of bytes processed by the operation
+	 */
+	public static void record(String operation, long start, long bytes) {
+		if (start == 0L) {
+			return;
+		}
+		long elapsed = System.nanoTime() - start;
+		getInstance().stats(operation).add(elapsed, bytes);
+	}
+
+	/**
+	 * Registers the MBean in the platform MBean server, so recording can be switched on without a restart
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Gets the statistics of an operation, creating them if needed
+	 * @param operation Operation name
+	 * @return Statistics of the operation
+	 */
+	public OpStats stats(String operation) {
+		OpStats s = _stats.get(operation);
+		if (s == null) {
+			s = _stats.computeIfAbsent(operation, k -> new OpStats());
+		}
+		return s;
+	}
+
+	/**
+	 * Gets the statistics of an operation without creating them
+	 */
+	private OpStats find(String operation) {
+		OpStats s = _stats.get(operation);
+		return (s != null) ? s : NONE;
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enable) {
+		enabled = enable;
+	}
+
+	@Override
+	public String[] getOperations() {
+		String[] ops = _stats.keySet().toArray(new String[0]);
+		Arrays.sort(ops);
+		return ops;
+	}
+
+	@Override
+	public long count(String operation) {
+		return find(operation).getCount();
+	}
+
+	@Override
+	public double meanMicros(String operation) {
+		return find(operation).getMeanMicros();
+	}
+
+	@Override
+	public long percentileMicros(String operation, double percentile) {
+		return find(operation).getPercentileMicros(percentile);
+	}
+
+	@Override
+	public long bytes(String operation) {
+		return find(operation).getBytes();
+	}
+
+	@Override
+	public long[] histogram(String operation) {
+		return find(operation).getHistogram();
+	}
+
+	@Override
+	public String report() {
+		StringBuilder sb = new StringBuilder();
+		for (String op : getOperations()) {
+			OpStats s = _stats.get(op);
+			sb.append(String.format("%-28s count=%-8d mean=%10.1fus p99<=%-8dus bytes=%d%n",
+					op, s.getCount(), s.getMeanMicros(), s.getPercentileMicros(99), s.getBytes()));
+		}
+		return sb.toString();
+	}
+
+	@Override
+	public void reset() {
+		_stats.clear();
+	}
+}
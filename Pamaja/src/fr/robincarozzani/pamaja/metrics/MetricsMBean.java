@@ -0,0 +1,89 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.metrics;
+
+/**
+ * JMX view of the operational metrics. An operation never recorded reads as zero.
+ * @author Robin Carozzani
+ */
+public interface MetricsMBean {
+
+	/**
+	 * Checks if metrics are being recorded
+	 * @return <code>true</code> if recording is enabled
+	 */
+	public boolean isEnabled();
+
+	/**
+	 * Enables or disables recording
+	 * @param enabled Whether operations should be recorded
+	 */
+	public void setEnabled(boolean enabled);
+
+	/**
+	 * Gets the names of the recorded operations
+	 * @return Operation names
+	 */
+	public String[] getOperations();
+
+	/**
+	 * Gets the number of calls of an operation
+	 * @param operation Operation name
+	 * @return Number of calls
+	 */
+	public long count(String operation);
+
+	/**
+	 * Gets the mean latency of an operation
+	 * @param operation Operation name
+	 * @return Mean latency in microseconds
+	 */
+	public double meanMicros(String operation);
+
+	/**
+	 * Gets an estimated latency percentile of an operation
+	 * @param operation Operation name
+	 * @param percentile Percentile, between 0 and 100
+	 * @return Latency in microseconds
+	 */
+	public long percentileMicros(String operation, double percentile);
+
+	/**
+	 * Gets the number of bytes processed by an operation
+	 * @param operation Operation name
+	 * @return Number of bytes
+	 */
+	public long bytes(String operation);
+
+	/**
+	 * Gets the latency histogram of an operation
+	 * @param operation Operation name
+	 * @return Counts per power-of-two microsecond bucket
+	 */
+	public long[] histogram(String operation);
+
+	/**
+	 * Gets a text summary of all operations
+	 * @return One line per operation
+	 */
+	public String report();
+
+	/**
+	 * Forgets every recorded value
+	 */
+	public void reset();
+}
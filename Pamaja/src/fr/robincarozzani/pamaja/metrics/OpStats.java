@@ -0,0 +1,113 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics collected for one kind of operation
+ * @author Robin Carozzani
+ */
+public class OpStats {
+
+	/**
+	 * Number of latency buckets, bucket <code>i</code> counts latencies in <code>[2^i, 2^(i+1))</code> microseconds
+	 */
+	public static final int BUCKETS = 32;
+
+	private final LongAdder _count = new LongAdder();
+	private final LongAdder _nanos = new LongAdder();
+	private final LongAdder _bytes = new LongAdder();
+	private final AtomicLongArray _histogram = new AtomicLongArray(BUCKETS);
+
+	void add(long nanos, long bytes) {
+		_count.increment();
+		_nanos.add(nanos);
+		_bytes.add(bytes);
+		long micros = nanos / 1000;
+		int bucket = (micros <= 0) ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+		_histogram.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+	}
+
+	/**
+	 * Gets the number of recorded operations
+	 * @return Number of operations
+	 */
+	public long getCount() {
+		return _count.sum();
+	}
+
+	/**
+	 * Gets the cumulated time spent in the operation
+	 * @return Total time in nanoseconds
+	 */
+	public long getTotalNanos() {
+		return _nanos.sum();
+	}
+
+	/**
+	 * Gets the number of bytes processed by the operation
+	 * @return Total number of bytes
+	 */
+	public long getBytes() {
+		return _bytes.sum();
+	}
+
+	/**
+	 * Gets the mean latency of the operation
+	 * @return Mean latency in microseconds
+	 */
+	public double getMeanMicros() {
+		long count = getCount();
+		return (count == 0) ? 0 : (getTotalNanos() / 1000.0) / count;
+	}
+
+	/**
+	 * Gets a copy of the latency histogram
+	 * @return Counts per power-of-two microsecond bucket
+	 */
+	public long[] getHistogram() {
+		long[] res = new long[BUCKETS];
+		for (int i=0 ; i<BUCKETS ; ++i) {
+			res[i] = _histogram.get(i);
+		}
+		return res;
+	}
+
+	/**
+	 * Estimates a latency percentile from the histogram
+	 * @param percentile Percentile to estimate, between 0 and 100
+	 * @return Upper bound of the bucket holding the percentile, in microseconds
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] histogram = getHistogram();
+		long total = 0;
+		for (long c : histogram) {
+			total += c;
+		}
+		long target = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+		for (int i=0 ; i<BUCKETS ; ++i) {
+			seen += histogram[i];
+			if ((seen >= target) && (seen > 0)) {
+				return 1L << (i + 1);
+			}
+		}
+		return 0;
+	}
+}
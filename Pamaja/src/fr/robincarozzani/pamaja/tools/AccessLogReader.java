@@ -0,0 +1,97 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+
+import fr.robincarozzani.pamaja.audit.AccessLog;
+
+/**
+ * Prints the records of an access log, oldest first, optionally filtered.
+ * Filters are <code>op=GET|CHANGE|KEY_ROTATION</code>, <code>service=id</code>, <code>login=id</code>,
+ * <code>since=time</code> and <code>until=time</code>, times being local ISO date-times such as <code>2016-03-01T12:00</code>.
+ * Usage: <code>AccessLogReader file [filter...]</code>
+ * @author Robin Carozzani
+ */
+public class AccessLogReader {
+
+	private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS");
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			usage();
+		}
+		AccessLog.Operation op = null;
+		Integer serviceId = null;
+		Integer loginId = null;
+		long since = Long.MIN_VALUE;
+		long until = Long.MAX_VALUE;
+		try {
+			for (int i=1 ; i<args.length ; ++i) {
+				int eq = args[i].indexOf('=');
+				String name = (eq < 0) ? args[i] : args[i].substring(0, eq);
+				String value = args[i].substring(eq + 1);
+				if (name.equals("op")) {
+					op = AccessLog.Operation.valueOf(value.toUpperCase());
+				} else if (name.equals("service")) {
+					serviceId = Integer.valueOf(value);
+				} else if (name.equals("login")) {
+					loginId = Integer.valueOf(value);
+				} else if (name.equals("since")) {
+					since = parseTime(value);
+				} else if (name.equals("until")) {
+					until = parseTime(value);
+				} else {
+					usage();
+				}
+			}
+		} catch (IllegalArgumentException | DateTimeParseException e) {
+			System.out.println("Bad filter: "+e.getMessage());
+			usage();
+		}
+
+		int shown = 0;
+		for (AccessLog.Record record : AccessLog.read(new File(args[0]))) {
+			if (((op == null) || (record.getOperation() == op))
+					&& ((serviceId == null) || (record.getServiceId() == serviceId.intValue()))
+					&& ((loginId == null) || (record.getLoginId() == loginId.intValue()))
+					&& (record.getTime() >= since) && (record.getTime() < until)) {
+				System.out.println(String.format("%8d  %s  %-12s  service %-6d  login %d", record.getSeq(),
+						TIME_FORMAT.format(Instant.ofEpochMilli(record.getTime()).atZone(ZoneId.systemDefault())),
+						record.getOperation(), record.getServiceId(), record.getLoginId()));
+				++shown;
+			}
+		}
+		System.out.println(shown+" records");
+	}
+
+	private static long parseTime(String value) {
+		return LocalDateTime.parse(value).atZone(ZoneId.systemDefault()).toInstant().truncatedTo(ChronoUnit.MILLIS).toEpochMilli();
+	}
+
+	private static void usage() {
+		System.out.println("Usage: AccessLogReader file [op=GET|CHANGE|KEY_ROTATION] [service=id] [login=id] [since=time] [until=time]");
+		System.exit(2);
+	}
+}
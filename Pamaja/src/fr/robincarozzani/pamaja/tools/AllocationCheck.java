@@ -0,0 +1,132 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.crypto.Hashor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.utils.Pair;
+
+/**
+ * Measures the heap bytes allocated by an unlock and by a password lookup on a scratch vault,
+ * and exits with a non-zero status when one of them goes over its budget.
+ * Usage: <code>AllocationCheck [iterations]</code>
+ * @author Robin Carozzani
+ */
+public class AllocationCheck {
+
+	/**
+	 * Maximum bytes allocated by one unlock (stored hash and key reads, two PBKDF2 derivations, key decryption).
+	 * Most of it is the JDK PBKDF2 implementation, which allocates a few dozen bytes per iteration.
+	 */
+	public static final long UNLOCK_BUDGET = 128 * 1024;
+
+	/**
+	 * Maximum bytes allocated by one password lookup and decryption
+	 */
+	public static final long LOOKUP_BUDGET = 4 * 1024;
+
+	private static final char[] MASTER = "allocation-check".toCharArray();
+
+	public static void main(String[] args) throws Exception {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 200;
+		File dir = Files.createTempDirectory("pamaja-alloc").toFile();
+		System.setProperty("pamaja.db.dir", dir.getPath());
+		Security.addProvider(new BouncyCastleProvider());
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long tid = Thread.currentThread().getId();
+
+		DBHandler dbh = DBHandler.getInstance();
+		dbh.connect();
+		createVault(dbh);
+		try (SecureArena arena = new SecureArena(64); SecureArena plain = new SecureArena(256)) {
+			for (int i=0 ; i<iterations ; ++i) {
+				lookup(dbh, unlock(dbh, arena), plain);
+				arena.reset();
+			}
+			long before = threads.getThreadAllocatedBytes(tid);
+			for (int i=0 ; i<iterations ; ++i) {
+				unlock(dbh, arena);
+				arena.reset();
+			}
+			long unlock = (threads.getThreadAllocatedBytes(tid) - before) / iterations;
+			Secret key = unlock(dbh, arena);
+			before = threads.getThreadAllocatedBytes(tid);
+			for (int i=0 ; i<iterations ; ++i) {
+				lookup(dbh, key, plain);
+			}
+			long lookup = (threads.getThreadAllocatedBytes(tid) - before) / iterations;
+			dbh.disconnect();
+			// Main file and shards, with their -wal and -shm files
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+
+			System.out.println("unlock: " + unlock + " bytes/op (budget " + UNLOCK_BUDGET + ")");
+			System.out.println("lookup: " + lookup + " bytes/op (budget " + LOOKUP_BUDGET + ")");
+			if ((unlock > UNLOCK_BUDGET) || (lookup > LOOKUP_BUDGET)) {
+				System.out.println("FAILED");
+				System.exit(1);
+			}
+			System.out.println("OK");
+		}
+	}
+
+	private static void createVault(DBHandler dbh) throws Exception {
+		Hashor h = Hashor.getInstance();
+		Hash hashed = h.generatePasswordHash(MASTER);
+		char[] hashedChars = hashed.toChars();
+		dbh.insertMasterPassword(h.generatePasswordHash(hashedChars), hashed.getSalt());
+		byte[] key = Randgen.generateKey().getEncoded();
+		dbh.insertMasterKey(Ciphor.getInstance().encrypt(key, hashed.getHashedMessage()));
+		dbh.setInit();
+		dbh.insertPassword("service", Ciphor.getInstance().encrypt("login".getBytes(), key),
+				Ciphor.getInstance().encrypt("password".getBytes(), key));
+	}
+
+	private static Secret unlock(DBHandler dbh, SecureArena arena) throws Exception {
+		Hashor h = Hashor.getInstance();
+		Pair<byte[], Hash> stored = dbh.getStoredPasswordAndSalt();
+		Ciph storedKey = dbh.getStoredKey();
+		Hash hashedIn = h.hash(MASTER, stored.first(), 64);
+		if (!h.checkHash(hashedIn, stored.second())) {
+			throw new IllegalStateException("Wrong master password");
+		}
+		return arena.moveIn(Ciphor.getInstance().decrypt(storedKey, hashedIn.getHashedMessage()));
+	}
+
+	private static void lookup(DBHandler dbh, Secret key, SecureArena plain) throws Exception {
+		Ciph pwd = dbh.getPassword(1, 1);
+		Ciphor.getInstance().decrypt(pwd, key, plain);
+		plain.reset();
+	}
+}
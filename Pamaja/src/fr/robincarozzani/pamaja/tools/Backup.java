@@ -0,0 +1,60 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import fr.robincarozzani.pamaja.db.DBHandler;
+
+/**
+ * Backs up the vault into a directory, which can be opened as a vault itself.
+ * Only the entries written since the previous backup are copied, unless a full copy is asked for or needed.
+ * The vault stays usable meanwhile. Entries are copied still encrypted, so the master password is not needed.
+ * Usage: <code>Backup directory [full]</code>
+ * @author Robin Carozzani
+ */
+public class Backup {
+
+	public static void main(String[] args) {
+		if ((args.length < 1) || (args.length > 2) || ((args.length == 2) && !args[1].equals("full"))) {
+			System.out.println("Usage: Backup directory [full]");
+			System.exit(2);
+		}
+		DBHandler dbh = DBHandler.getInstance();
+		if (!dbh.exists()) {
+			System.out.println("No database found");
+			System.exit(1);
+		}
+		System.out.print("Opening DB... ");
+		dbh.connect();
+		System.out.println("done");
+		if (!dbh.dbVersionIsOk()) {
+			System.out.println("Wrong version of database");
+			dbh.disconnect();
+			System.exit(1);
+		}
+		boolean ok = true;
+		int shipped = (args.length == 2) ? -1 : dbh.backupIncremental(args[0]);
+		if (shipped >= 0) {
+			System.out.println(shipped+" changed entries copied");
+		} else {
+			System.out.print("Copying the whole vault... ");
+			ok = dbh.backupFull(args[0]);
+			System.out.println(ok ? "done" : "failed");
+		}
+		dbh.disconnect();
+		System.exit(ok ? 0 : 1);
+	}
+}
@@ -0,0 +1,99 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import fr.robincarozzani.pamaja.audit.BreachCorpus;
+
+/**
+ * Builds and measures breached password lists.
+ * <code>ingest</code> turns a text list of SHA-1 hashes (e.g. the HIBP download) into the binary list read by
+ * Pamaja with <code>-Dpamaja.breach.list=file</code>.
+ * <code>bench</code> times lookups of hashes present in the list and of random ones.
+ * Usage: <code>BreachList ingest input output [runSize]</code> or <code>BreachList bench list [bloomBitsPerHash]</code>
+ * @author Robin Carozzani
+ */
+public class BreachList {
+
+	private static final int LOOKUPS = 200000;
+
+	public static void main(String[] args) throws IOException {
+		if ((args.length >= 3) && (args.length <= 4) && args[0].equals("ingest")) {
+			int runSize = (args.length == 4) ? Integer.parseInt(args[3]) : BreachCorpus.DEFAULT_RUN;
+			System.out.print("Ingesting "+args[1]+"... ");
+			long t = System.nanoTime();
+			long count = BreachCorpus.build(new File(args[1]), new File(args[2]), runSize);
+			System.out.println("done ("+count+" hashes in "+(System.nanoTime() - t) / 1000000+" ms)");
+		} else if ((args.length >= 2) && (args.length <= 3) && args[0].equals("bench")) {
+			int bloomBits = (args.length == 3) ? Integer.parseInt(args[2]) : 0;
+			bench(new File(args[1]), bloomBits);
+		} else {
+			System.out.println("Usage: BreachList ingest input output [runSize]");
+			System.out.println("       BreachList bench list [bloomBitsPerHash]");
+			System.exit(2);
+		}
+	}
+
+	private static void bench(File file, int bloomBits) throws IOException {
+		Random random = new Random(42);
+		System.out.print("Opening list... ");
+		long t = System.nanoTime();
+		try (BreachCorpus corpus = BreachCorpus.open(file, bloomBits)) {
+			System.out.println("done ("+corpus.size()+" hashes in "+(System.nanoTime() - t) / 1000000+" ms, Bloom filter "+corpus.getBloomMemory()+" bytes)");
+			if (corpus.size() == 0) {
+				return;
+			}
+			byte[][] present = new byte[LOOKUPS][BreachCorpus.HASH_LENGTH];
+			try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+				for (byte[] hash : present) {
+					raf.seek(16 + (long)(random.nextDouble() * corpus.size()) * BreachCorpus.HASH_LENGTH);
+					raf.readFully(hash);
+				}
+			}
+			byte[][] absent = new byte[LOOKUPS][BreachCorpus.HASH_LENGTH];
+			for (byte[] hash : absent) {
+				random.nextBytes(hash);
+			}
+			// One pass to warm up the page cache and the JIT
+			lookups(corpus, present);
+			lookups(corpus, absent);
+			report("present", corpus, present);
+			report("random", corpus, absent);
+		}
+	}
+
+	private static int lookups(BreachCorpus corpus, byte[][] hashes) {
+		int found = 0;
+		for (byte[] hash : hashes) {
+			if (corpus.contains(hash)) {
+				++found;
+			}
+		}
+		return found;
+	}
+
+	private static void report(String name, BreachCorpus corpus, byte[][] hashes) {
+		long t = System.nanoTime();
+		int found = lookups(corpus, hashes);
+		double micros = (System.nanoTime() - t) / 1000.0 / hashes.length;
+		System.out.println(String.format("%-8s %8.2f us/lookup, %d/%d found", name, micros, found, hashes.length));
+	}
+}
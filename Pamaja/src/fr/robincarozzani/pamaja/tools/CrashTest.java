@@ -0,0 +1,154 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.StorageProfile;
+
+/**
+ * Kills a process writing to a scratch vault at a random moment, then checks that the vault still opens,
+ * that SQLite finds no damage and that every acknowledged insert is still there. Repeated for each storage profile.
+ * Killing the process leaves the data already handed to the system in its cache, so this does not show
+ * what a power loss would cost to the profiles that do not sync.
+ * Exits with status 1 if a round fails.
+ * Usage: <code>CrashTest [rounds] [profile]</code>
+ * @author Robin Carozzani
+ */
+public class CrashTest {
+
+	private static final int BATCH = 64;
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length == 3) && args[0].equals("--writer")) {
+			write(args[1], Integer.parseInt(args[2]));
+			return;
+		}
+		int rounds = (args.length > 0) ? Integer.parseInt(args[0]) : 5;
+		StorageProfile[] profiles = (args.length > 1) ? new StorageProfile[] {StorageProfile.forName(args[1])} : StorageProfile.values();
+		Random rand = new Random();
+		boolean ok = true;
+		for (StorageProfile profile : profiles) {
+			System.out.println(profile.getName() + ":");
+			System.setProperty("pamaja.db.profile", profile.getName());
+			File dir = Files.createTempDirectory("pamaja-crash").toFile();
+			DBHandler db = new DBHandler(dir.getPath());
+			db.connect();
+			db.setInit();
+			db.disconnect();
+			int present = 0;
+			for (int round=0 ; round<rounds ; ++round) {
+				int acked = kill(profile, dir, round, 200 + rand.nextInt(1500));
+				db = new DBHandler(dir.getPath());
+				db.connect();
+				boolean opens = db.dbVersionIsOk() && db.isInit();
+				boolean sound = db.checkStorage();
+				int count = db.countServices();
+				db.disconnect();
+				boolean kept = count >= present + acked;
+				System.out.println(String.format("\tround %d: killed after %d acknowledged inserts, %d new entries found, %s, %s, %s",
+						round, acked, count - present, opens ? "opens" : "DOES NOT OPEN", sound ? "storage sound" : "STORAGE DAMAGED",
+						kept ? "nothing lost" : (present + acked - count) + " ACKNOWLEDGED INSERTS LOST"));
+				ok &= opens && sound && kept;
+				present = count;
+			}
+			for (File f : dir.listFiles()) {
+				f.delete();
+			}
+			dir.delete();
+		}
+		System.out.println(ok ? "Every round recovered" : "Some rounds failed");
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Runs a writer process and kills it
+	 * @return Number of inserts the writer had acknowledged when killed
+	 */
+	private static int kill(StorageProfile profile, File dir, int round, int delay) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process p = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+				"-Dpamaja.db.profile=" + profile.getName(), CrashTest.class.getName(),
+				"--writer", dir.getPath(), Integer.toString(round))
+				.redirectErrorStream(true).start();
+		AtomicInteger acked = new AtomicInteger();
+		CountDownLatch started = new CountDownLatch(1);
+		Thread reader = new Thread(() -> {
+			try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.equals("ready")) {
+						started.countDown();
+					} else if (line.matches("\\d+")) {
+						acked.set(Integer.parseInt(line));
+					}
+				}
+			} catch (Exception e) {
+				// Stream closed by the kill
+			}
+		});
+		reader.start();
+		started.await();
+		Thread.sleep(delay);
+		p.destroyForcibly().waitFor();
+		reader.join();
+		return acked.get();
+	}
+
+	/**
+	 * Inserts entries until killed, printing the number acknowledged after each batch
+	 */
+	private static void write(String dir, int round) throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		byte[] key = Randgen.generateKey().getEncoded();
+		Ciphor c = Ciphor.getInstance();
+		Ciph login = c.encrypt("login@example.com".getBytes(), key);
+		Ciph password = c.encrypt("0123456789abcdefg".getBytes(), key);
+		DBHandler db = new DBHandler(dir);
+		db.connect();
+		System.out.println("ready");
+		System.out.flush();
+		for (int n=0 ; ; n+=BATCH) {
+			List<CompletableFuture<Integer>> pending = new ArrayList<CompletableFuture<Integer>>(BATCH);
+			for (int i=0 ; i<BATCH-1 ; ++i) {
+				pending.add(db.insertPasswordAsync("r" + round + "-" + (n + i), login, password));
+			}
+			db.insertPassword("r" + round + "-" + (n + BATCH - 1), login, password);
+			for (CompletableFuture<Integer> f : pending) {
+				f.join();
+			}
+			System.out.println(n + BATCH);
+			System.out.flush();
+		}
+	}
+}
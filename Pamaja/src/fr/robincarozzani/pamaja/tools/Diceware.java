@@ -0,0 +1,86 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import fr.robincarozzani.pamaja.crypto.Passphrase;
+import fr.robincarozzani.pamaja.crypto.Wordlist;
+
+/**
+ * Builds word lists and generates passphrases from them.
+ * <code>ingest</code> turns a text list (e.g. an EFF diceware list) into the binary list read by
+ * Pamaja with <code>-Dpamaja.wordlist=file</code>.
+ * <code>generate</code> prints passphrases with their entropy, <code>bench</code> times batch generation.
+ * Usage: <code>Diceware ingest input output</code>, <code>Diceware generate list [words] [count]</code>
+ * or <code>Diceware bench list [words] [count]</code>
+ * @author Robin Carozzani
+ */
+public class Diceware {
+
+	public static void main(String[] args) throws IOException {
+		if ((args.length == 3) && args[0].equals("ingest")) {
+			System.out.print("Ingesting "+args[1]+"... ");
+			int count = Wordlist.build(new File(args[1]), new File(args[2]));
+			System.out.println("done ("+count+" words)");
+		} else if ((args.length >= 2) && (args.length <= 4) && (args[0].equals("generate") || args[0].equals("bench"))) {
+			Wordlist words = Wordlist.open(new File(args[1]));
+			int wordCount = (args.length > 2) ? Integer.parseInt(args[2]) : Passphrase.DEFAULT_WORDS;
+			Passphrase generator = new Passphrase(words, wordCount, ' ');
+			System.out.println(String.format("%d words in the list, %.1f bits per word, %.1f bits per passphrase",
+					words.size(), words.getBitsPerWord(), generator.getEntropy()));
+			if (args[0].equals("generate")) {
+				int count = (args.length > 3) ? Integer.parseInt(args[3]) : 5;
+				for (int i=0 ; i<count ; ++i) {
+					System.out.println(generator.getPwd());
+				}
+			} else {
+				bench(generator, (args.length > 3) ? Integer.parseInt(args[3]) : 1000000);
+			}
+		} else {
+			System.out.println("Usage: Diceware ingest input output");
+			System.out.println("       Diceware generate list [words] [count]");
+			System.out.println("       Diceware bench list [words] [count]");
+			System.exit(2);
+		}
+	}
+
+	private static void bench(Passphrase generator, int count) {
+		byte[] batch = new byte[generator.getMaxLength() * 1024];
+		long bytes = 0;
+		// One pass to warm up the JIT
+		for (int pass=0 ; pass<2 ; ++pass) {
+			long t = System.nanoTime();
+			for (int done=0 ; done<count ; done+=1024) {
+				int pos = 0;
+				for (int i=0 ; (i<1024) && (done + i<count) ; ++i) {
+					pos += generator.generate(batch, pos);
+				}
+				bytes += pos;
+			}
+			if (pass == 1) {
+				double seconds = (System.nanoTime() - t) / 1e9;
+				System.out.println(String.format("%d passphrases in %.2f s (%.0f per second, %.2f us each)",
+						count, seconds, count / seconds, seconds * 1e6 / count));
+			}
+		}
+		Arrays.fill(batch, (byte)0);
+		System.out.println((bytes / 2 / count)+" bytes per passphrase on average");
+	}
+}
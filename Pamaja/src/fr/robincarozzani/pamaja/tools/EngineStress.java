@@ -0,0 +1,184 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Hammers a {@link VaultEngine} from many threads doing mixed reads, updates and insertions while key rotations run.
+ * Every password names its entry, so a password read from the wrong entry or decrypted with the wrong key is caught.
+ * Reads must keep completing while a rotation re-encrypts the vault.
+ * The vault is created in a new directory. Exits with status 1 if any check failed.
+ * Usage: <code>EngineStress directory [threads] [seconds] [services]</code>
+ * @author Robin Carozzani
+ */
+public class EngineStress {
+
+	private static final char[] MASTER = "stress".toCharArray();
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 4)) {
+			System.out.println("Usage: EngineStress directory [threads] [seconds] [services]");
+			System.exit(2);
+		}
+		if (new File(args[0]).exists()) {
+			System.out.println(args[0]+" already exists");
+			System.exit(2);
+		}
+		int threads = (args.length > 1) ? Integer.parseInt(args[1]) : 16;
+		int seconds = (args.length > 2) ? Integer.parseInt(args[2]) : 10;
+		int services = (args.length > 3) ? Integer.parseInt(args[3]) : 200;
+
+		System.out.print("Creating vault... ");
+		VaultEngine engine = VaultEngine.open(args[0], MASTER);
+		List<int[]> entries = new ArrayList<int[]>();
+		try (SecureArena arena = new SecureArena(256)) {
+			for (int i=0 ; i<services ; ++i) {
+				int serviceId = engine.addEntry("service"+i, ("login"+i).getBytes(StandardCharsets.UTF_8), secret(arena, "pw-"+i+"-0"));
+				entries.add(new int[] {serviceId, engine.getLoginIds(serviceId)[0], i});
+				arena.reset();
+			}
+		}
+		System.out.println("done ("+services+" entries)");
+
+		AtomicBoolean stop = new AtomicBoolean(false);
+		AtomicLong reads = new AtomicLong();
+		AtomicLong updates = new AtomicLong();
+		AtomicLong inserts = new AtomicLong();
+		AtomicInteger rotations = new AtomicInteger();
+		AtomicBoolean rotating = new AtomicBoolean(false);
+		AtomicLong rotationReads = new AtomicLong();
+		AtomicInteger failures = new AtomicInteger();
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int w=0 ; w<threads ; ++w) {
+			int seed = w;
+			workers.add(new Thread(() -> {
+				Random random = new Random(seed);
+				try (SecureArena arena = new SecureArena(256)) {
+					while (!stop.get()) {
+						int[] entry = entries.get(random.nextInt(entries.size()));
+						int op = random.nextInt(100);
+						if (op < 75) {
+							boolean during = rotating.get();
+							Secret pwd = engine.getPassword(entry[0], entry[1], arena);
+							if (during && rotating.get()) {
+								rotationReads.incrementAndGet();
+							}
+							String clear = (pwd != null) ? read(pwd) : "missing";
+							if (!clear.startsWith("pw-"+entry[2]+"-")) {
+								System.out.println("Wrong password for entry "+entry[2]+": "+clear);
+								failures.incrementAndGet();
+							}
+							reads.incrementAndGet();
+						} else if (op < 95) {
+							engine.updatePassword(entry[0], entry[1], secret(arena, "pw-"+entry[2]+"-"+random.nextInt(1000000)));
+							updates.incrementAndGet();
+						} else {
+							String name = "extra-"+seed+"-"+random.nextInt(1000000);
+							int serviceId = engine.addEntry(name, name.getBytes(StandardCharsets.UTF_8), secret(arena, "pw-"+name));
+							if (!name.equals(engine.getServices().get(serviceId))) {
+								System.out.println("Inserted service "+name+" not found");
+								failures.incrementAndGet();
+							}
+							inserts.incrementAndGet();
+						}
+						arena.reset();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					failures.incrementAndGet();
+				}
+			}, "stress-"+w));
+		}
+		Thread rotator = new Thread(() -> {
+			try {
+				while (!stop.get()) {
+					Thread.sleep(1000);
+					rotating.set(true);
+					try {
+						engine.rotateKey(MASTER);
+					} finally {
+						rotating.set(false);
+					}
+					rotations.incrementAndGet();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				failures.incrementAndGet();
+			}
+		}, "stress-rotation");
+
+		System.out.println("Running "+threads+" threads for "+seconds+" s...");
+		long t = System.nanoTime();
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		rotator.start();
+		Thread.sleep(seconds * 1000L);
+		stop.set(true);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		rotator.join();
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		engine.close();
+
+		System.out.println(String.format("%d reads, %d updates, %d insertions, %d rotations in %.1f s (%.0f ops/s)",
+				reads.get(), updates.get(), inserts.get(), rotations.get(), elapsed,
+				(reads.get() + updates.get() + inserts.get()) / elapsed));
+		System.out.println(rotationReads.get()+" reads completed during rotations");
+		if ((rotations.get() > 0) && (rotationReads.get() == 0)) {
+			System.out.println("Reads were blocked by the rotations");
+			failures.incrementAndGet();
+		}
+		System.out.print("Reopening vault... ");
+		try (VaultEngine reopened = VaultEngine.open(args[0], MASTER); SecureArena arena = new SecureArena(256)) {
+			for (int[] entry : entries) {
+				Secret pwd = reopened.getPassword(entry[0], entry[1], arena);
+				if ((pwd == null) || !read(pwd).startsWith("pw-"+entry[2]+"-")) {
+					System.out.println("Entry "+entry[2]+" lost after reopening");
+					failures.incrementAndGet();
+				}
+				arena.reset();
+			}
+		}
+		System.out.println("done");
+		System.out.println(failures.get() == 0 ? "No failure" : failures.get()+" failures");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	private static Secret secret(SecureArena arena, String clear) {
+		return arena.moveIn(clear.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String read(Secret secret) {
+		byte[] b = new byte[secret.length()];
+		secret.copyTo(0, b, 0, b.length);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
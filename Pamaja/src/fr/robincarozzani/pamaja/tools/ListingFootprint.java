@@ -0,0 +1,119 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.utils.IntMap;
+
+/**
+ * Compares the heap held and the time taken by the listings of a vault, as maps of boxed IDs
+ * ({@link DBHandler#getServices()}, {@link DBHandler#getLogins(int)}) and as compact maps
+ * ({@link DBHandler#listServices()}, {@link DBHandler#listLogins(int)}).
+ * The names and encrypted logins are counted in both, so the difference is what the compact maps save.
+ * The vault is only read, see {@link VaultGenerator} to make a large one.
+ * Usage: <code>ListingFootprint directory</code>
+ * @author Robin Carozzani
+ */
+public class ListingFootprint {
+
+	private static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 1) {
+			System.out.println("Usage: ListingFootprint directory");
+			System.exit(2);
+		}
+		DBHandler db = new DBHandler(args[0]);
+		db.connect();
+		IntMap<String> services = db.listServices();
+		int[] ids = services.keys();
+		long logins = 0;
+		for (int id : ids) {
+			logins += db.countLogins(id);
+		}
+		System.out.println(ids.length + " services, " + logins + " logins\n");
+		System.out.println(String.format("%-10s %-8s %12s %14s %10s", "listing", "map", "heap", "per entry", "time"));
+
+		for (int round=0 ; round<ROUNDS ; ++round) {
+			boolean last = round == ROUNDS - 1;
+			// Services
+			long heap = usedHeap();
+			long t = System.nanoTime();
+			Map<Integer, String> boxed = db.getServices();
+			long boxedTime = System.nanoTime() - t;
+			long boxedHeap = usedHeap() - heap;
+			heap = usedHeap();
+			t = System.nanoTime();
+			IntMap<String> compact = db.listServices();
+			long compactTime = System.nanoTime() - t;
+			long compactHeap = usedHeap() - heap;
+			if (last) {
+				print("services", boxed.size(), boxedHeap, boxedTime, compactHeap, compactTime);
+			}
+			boxed = null;
+			compact = null;
+
+			// Logins of every service, all held at once
+			List<Map<Integer, Ciph>> boxedLogins = new ArrayList<Map<Integer, Ciph>>(ids.length);
+			heap = usedHeap();
+			t = System.nanoTime();
+			for (int id : ids) {
+				boxedLogins.add(db.getLogins(id));
+			}
+			boxedTime = System.nanoTime() - t;
+			boxedHeap = usedHeap() - heap;
+			boxedLogins = null;
+			List<IntMap<Ciph>> compactLogins = new ArrayList<IntMap<Ciph>>(ids.length);
+			heap = usedHeap();
+			t = System.nanoTime();
+			for (int id : ids) {
+				compactLogins.add(db.listLogins(id));
+			}
+			compactTime = System.nanoTime() - t;
+			compactHeap = usedHeap() - heap;
+			compactLogins = null;
+			if (last) {
+				print("logins", logins, boxedHeap, boxedTime, compactHeap, compactTime);
+			}
+		}
+		db.disconnect();
+		System.exit(0);
+	}
+
+	private static void print(String listing, long entries, long boxedHeap, long boxedTime, long compactHeap, long compactTime) {
+		System.out.println(String.format("%-10s %-8s %12d %14.1f %8.1f ms", listing, "boxed", boxedHeap,
+				(double)boxedHeap / entries, boxedTime / 1e6));
+		System.out.println(String.format("%-10s %-8s %12d %14.1f %8.1f ms", "", "compact", compactHeap,
+				(double)compactHeap / entries, compactTime / 1e6));
+		System.out.println(String.format("%-10s %-8s %12s %14.1f", "", "saved", "", (double)(boxedHeap - compactHeap) / entries));
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		// Statements left to the JDBC driver are only freed once finalized
+		for (int i=0 ; i<3 ; ++i) {
+			System.gc();
+			System.runFinalization();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
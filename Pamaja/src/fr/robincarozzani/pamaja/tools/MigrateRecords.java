@@ -0,0 +1,67 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+
+import fr.robincarozzani.pamaja.db.RecordStore;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Copies a vault into a new record store, where the login and the password of each entry are kept and
+ * encrypted together, see {@link RecordStore}. The source vault is left untouched and TOTP secrets are not copied.
+ * The copy opens with the same master password, from the target directory with <code>-Dpamaja.store=record</code>.
+ * Usage: <code>MigrateRecords sourceDirectory targetDirectory masterPassword</code>
+ * @author Robin Carozzani
+ */
+public class MigrateRecords {
+
+	public static void main(String[] args) throws Exception {
+		if (args.length != 3) {
+			System.out.println("Usage: MigrateRecords sourceDirectory targetDirectory masterPassword");
+			System.exit(2);
+		}
+		if (!new File(args[0]).isDirectory()) {
+			System.out.println(args[0]+" does not exist");
+			System.exit(2);
+		}
+
+		System.out.print("Opening vault... ");
+		VaultEngine engine = VaultEngine.open(args[0], args[2].toCharArray());
+		System.out.println("done");
+		System.out.print("Copying entries... ");
+		long t = System.nanoTime();
+		RecordStore target = new RecordStore(args[1]);
+		target.connect();
+		int count = -1;
+		try {
+			count = engine.copyTo(target);
+		} catch (IllegalStateException e) {
+			System.out.println(args[1]+" already holds a vault");
+			System.exit(2);
+		} finally {
+			target.disconnect();
+			engine.close();
+		}
+		if (count < 0) {
+			System.out.println("failed");
+			System.exit(1);
+		}
+		System.out.println(String.format("done (%d entries in %.1f s)", count, (System.nanoTime() - t) / 1e9));
+		System.exit(0);
+	}
+}
@@ -0,0 +1,120 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.security.SecureRandom;
+
+import fr.robincarozzani.pamaja.crypto.PasswordPolicy;
+import fr.robincarozzani.pamaja.crypto.PasswordPolicy.CharClass;
+
+/**
+ * Compares compiled password policies with drawing passwords until one complies, on a few typical policies.
+ * Every password of the compiled policies is checked against the rules. Exits with status 1 if one breaks them.
+ * Usage: <code>PolicyBenchmark [passwords]</code>
+ * @author Robin Carozzani
+ */
+public class PolicyBenchmark {
+
+	private static final CharClass[] CLASSES = CharClass.values();
+
+	public static void main(String[] args) {
+		int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+		SecureRandom random = new SecureRandom();
+		boolean ok = true;
+		// Length, minimums per class (upper, lower, digit, special), no repeat
+		Object[][] policies = {
+				{12, new int[] {0, 0, 2, 1}, false},
+				{8, new int[] {1, 1, 3, 3}, false},
+				{16, new int[] {2, 2, 2, 2}, true},
+				{20, new int[] {1, 1, 4, 4}, true}};
+		System.out.println(String.format("%-40s %8s %12s %12s %14s", "policy", "bits", "compiled us", "retry us", "retry attempts"));
+		for (Object[] p : policies) {
+			int length = ((Integer)p[0]).intValue();
+			int[] minimum = (int[])p[1];
+			boolean noRepeat = ((Boolean)p[2]).booleanValue();
+			PasswordPolicy policy = new PasswordPolicy(length, length);
+			for (CharClass c : CLASSES) {
+				policy.require(c, minimum[c.ordinal()]);
+			}
+			policy.setNoRepeat(noRepeat);
+			PasswordPolicy.Sampler sampler = policy.compile();
+			char[] pwd = new char[length];
+
+			// One pass to warm up the JIT
+			long compiled = 0;
+			for (int pass=0 ; pass<2 ; ++pass) {
+				long t = System.nanoTime();
+				for (int i=0 ; i<count ; ++i) {
+					sampler.generate(random, pwd);
+					if (!complies(pwd, length, minimum, noRepeat)) {
+						System.out.println("Non compliant password: "+new String(pwd));
+						ok = false;
+					}
+				}
+				compiled = System.nanoTime() - t;
+			}
+
+			String alphabet = "";
+			for (CharClass c : CLASSES) {
+				alphabet += c.getChars();
+			}
+			long attempts = 0;
+			long retry = 0;
+			for (int pass=0 ; pass<2 ; ++pass) {
+				attempts = 0;
+				long t = System.nanoTime();
+				for (int i=0 ; i<count ; ++i) {
+					do {
+						for (int j=0 ; j<length ; ++j) {
+							pwd[j] = alphabet.charAt(random.nextInt(alphabet.length()));
+						}
+						++attempts;
+					} while (!complies(pwd, length, minimum, noRepeat));
+				}
+				retry = System.nanoTime() - t;
+			}
+			String name = length+" chars, min "+minimum[0]+"/"+minimum[1]+"/"+minimum[2]+"/"+minimum[3]+(noRepeat ? ", no repeat" : "");
+			System.out.println(String.format("%-40s %8.1f %12.2f %12.2f %14.1f", name, sampler.getEntropy(),
+					compiled / 1000.0 / count, retry / 1000.0 / count, (double)attempts / count));
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+	private static boolean complies(char[] pwd, int length, int[] minimum, boolean noRepeat) {
+		int[] found = new int[CLASSES.length];
+		for (int i=0 ; i<length ; ++i) {
+			for (CharClass c : CLASSES) {
+				if (c.getChars().indexOf(pwd[i]) >= 0) {
+					++found[c.ordinal()];
+				}
+			}
+			if (noRepeat) {
+				for (int j=0 ; j<i ; ++j) {
+					if (pwd[j] == pwd[i]) {
+						return false;
+					}
+				}
+			}
+		}
+		for (CharClass c : CLASSES) {
+			if (found[c.ordinal()] < minimum[c.ordinal()]) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,116 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.StorageProfile;
+
+/**
+ * Measures the throughput of each storage profile on a scratch vault:
+ * acknowledged inserts one at a time, queued inserts grouped by the write-behind queues,
+ * password lookups, and the resulting file size.
+ * Usage: <code>ProfileBenchmark [entries] [lookups]</code>
+ * @author Robin Carozzani
+ */
+public class ProfileBenchmark {
+
+	private static final int SYNC_INSERTS = 500;
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 50000;
+		Security.addProvider(new BouncyCastleProvider());
+
+		byte[] key = Randgen.generateKey().getEncoded();
+		Ciphor c = Ciphor.getInstance();
+		Ciph login = c.encrypt("login@example.com".getBytes(), key);
+		Ciph password = c.encrypt("0123456789abcdefg".getBytes(), key);
+
+		System.out.println(SYNC_INSERTS + " acknowledged inserts, " + entries + " queued inserts, " + lookups + " lookups\n");
+		System.out.println(String.format("%-10s %14s %14s %14s %12s", "profile", "inserts/s", "queued/s", "lookups/s", "disk"));
+		// Untimed round so the first profile does not pay for class loading and compilation
+		run(StorageProfile.FAST, entries / 10, lookups / 10, login, password);
+		for (StorageProfile profile : StorageProfile.values()) {
+			double[] r = run(profile, entries, lookups, login, password);
+			System.out.println(String.format("%-10s %14.0f %14.0f %14.0f %9.0f KiB", profile.getName(), r[0], r[1], r[2], r[3] / 1024));
+		}
+		System.exit(0);
+	}
+
+	/**
+	 * Runs the measures of one profile on its own scratch vault
+	 * @return Acknowledged inserts per second, queued inserts per second, lookups per second and size on disk
+	 */
+	private static double[] run(StorageProfile profile, int entries, int lookups, Ciph login, Ciph password) throws Exception {
+		File dir = Files.createTempDirectory("pamaja-profile").toFile();
+		System.setProperty("pamaja.db.profile", profile.getName());
+		DBHandler db = new DBHandler(dir.getPath());
+		db.connect();
+		db.setInit();
+		Random rand = new Random(42);
+
+		long t = System.nanoTime();
+		for (int i=0 ; i<SYNC_INSERTS ; ++i) {
+			db.insertPassword("sync" + i, login, password);
+		}
+		double sync = SYNC_INSERTS / ((System.nanoTime() - t) / 1e9);
+
+		t = System.nanoTime();
+		List<CompletableFuture<Integer>> pending = new ArrayList<CompletableFuture<Integer>>(entries);
+		for (int i=0 ; i<entries ; ++i) {
+			pending.add(db.insertPasswordAsync("service" + i, login, password));
+		}
+		int[] ids = new int[entries];
+		for (int i=0 ; i<entries ; ++i) {
+			ids[i] = pending.get(i).join().intValue();
+		}
+		double queued = entries / ((System.nanoTime() - t) / 1e9);
+
+		int[] loginIds = new int[entries];
+		for (int i=0 ; i<entries ; ++i) {
+			loginIds[i] = db.getLoginIds(ids[i])[0];
+		}
+		t = System.nanoTime();
+		for (int i=0 ; i<lookups ; ++i) {
+			int k = rand.nextInt(entries);
+			db.getPassword(ids[k], loginIds[k]);
+		}
+		double get = lookups / ((System.nanoTime() - t) / 1e9);
+		db.disconnect();
+
+		long disk = 0;
+		for (File f : dir.listFiles()) {
+			disk += f.length();
+			f.delete();
+		}
+		dir.delete();
+		return new double[] {sync, queued, get, disk};
+	}
+}
@@ -0,0 +1,185 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.RecordStore;
+import fr.robincarozzani.pamaja.metrics.Metrics;
+import fr.robincarozzani.pamaja.utils.IntMap;
+import fr.robincarozzani.pamaja.utils.Pair;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Compares credential lookups between a vault and its copy in a record store: the copy time, then random
+ * lookups of a login and its password, through {@link VaultEngine#getLogin(int, int)} and
+ * {@link VaultEngine#getPassword(int, int, SecureArena)} on the vault and through
+ * {@link VaultEngine#getEntry(int, int, SecureArena)} on the copy. Cipher passes come from the metrics,
+ * read calls from <code>/proc/self/io</code> when available. Every looked up value is checked against the vault.
+ * The vault should be larger than the page cache of the storage profile to show the difference in reads,
+ * see {@link VaultGenerator}. It is left untouched, the copy is deleted at the end.
+ * Usage: <code>RecordBenchmark directory masterPassword [lookups]</code>
+ * @author Robin Carozzani
+ */
+public class RecordBenchmark {
+
+	private static final String DECRYPT = "ciphor.decrypt";
+	private static final int ARENA_SIZE = 4096;
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 2) || (args.length > 3)) {
+			System.out.println("Usage: RecordBenchmark directory masterPassword [lookups]");
+			System.exit(2);
+		}
+		int lookups = (args.length > 2) ? Integer.parseInt(args[2]) : 50000;
+		char[] master = args[1].toCharArray();
+		File dir = Files.createTempDirectory("pamaja-rec").toFile();
+		Metrics.getInstance().setEnabled(true);
+
+		System.out.print("Copying vault... ");
+		VaultEngine vault = VaultEngine.open(args[0], master);
+		RecordStore store = new RecordStore(dir.getPath());
+		store.connect();
+		long t = System.nanoTime();
+		int count = vault.copyTo(store);
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		store.disconnect();
+		if (count < 0) {
+			System.out.println("failed");
+			System.exit(1);
+		}
+		System.out.println(String.format("done (%d entries in %.1f s, %.0f entries/s)", count, elapsed, count / elapsed));
+		VaultEngine records = VaultEngine.open(new RecordStore(dir.getPath()), master);
+
+		List<int[]> entries = new ArrayList<int[]>(count);
+		IntMap<String> services = vault.listServices();
+		for (int i=0 ; i<services.size() ; ++i) {
+			for (int loginId : vault.getLoginIds(services.keyAt(i))) {
+				entries.add(new int[] {services.keyAt(i), loginId});
+			}
+		}
+		Random rand = new Random(42);
+		int[][] picks = new int[lookups][];
+		for (int i=0 ; i<lookups ; ++i) {
+			picks[i] = entries.get(rand.nextInt(entries.size()));
+		}
+
+		System.out.print("Checking copied entries... ");
+		int mismatches = 0;
+		try (SecureArena arena = new SecureArena(ARENA_SIZE)) {
+			for (int[] pick : picks) {
+				arena.reset();
+				byte[] login = vault.getLogin(pick[0], pick[1]);
+				Secret password = vault.getPassword(pick[0], pick[1], arena);
+				Pair<byte[], Secret> entry = records.getEntry(pick[0], pick[1], arena);
+				if ((entry == null) || !Arrays.equals(login, entry.first()) || !sameSecret(password, entry.second())) {
+					++mismatches;
+				}
+			}
+		}
+		System.out.println((mismatches == 0) ? "done" : mismatches+" mismatches");
+
+		System.out.println("\n" + lookups + " lookups");
+		System.out.println(String.format("%-10s %12s %14s %14s %12s", "layout", "lookups/s", "decrypts/op", "reads/op", "disk"));
+		report("columns", lookups, new File(args[0]), () -> lookupColumns(vault, picks));
+		report("record", lookups, dir, () -> lookupRecords(records, picks));
+
+		vault.close();
+		records.close();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.exit(mismatches == 0 ? 0 : 1);
+	}
+
+	private interface Lookups {
+		void run() throws Exception;
+	}
+
+	private static void lookupColumns(VaultEngine vault, int[][] picks) throws Exception {
+		try (SecureArena arena = new SecureArena(ARENA_SIZE)) {
+			for (int[] pick : picks) {
+				arena.reset();
+				vault.getLogin(pick[0], pick[1]);
+				vault.getPassword(pick[0], pick[1], arena);
+			}
+		}
+	}
+
+	private static void lookupRecords(VaultEngine records, int[][] picks) throws Exception {
+		try (SecureArena arena = new SecureArena(ARENA_SIZE)) {
+			for (int[] pick : picks) {
+				arena.reset();
+				records.getEntry(pick[0], pick[1], arena);
+			}
+		}
+	}
+
+	private static void report(String layout, int lookups, File dir, Lookups run) throws Exception {
+		Metrics.getInstance().reset();
+		long reads = readCalls();
+		long t = System.nanoTime();
+		run.run();
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		reads = (reads < 0) ? -1 : readCalls() - reads;
+		long disk = 0;
+		for (File f : dir.listFiles()) {
+			disk += f.length();
+		}
+		System.out.println(String.format("%-10s %12.0f %14.2f %14s %10.1f MB", layout, lookups / elapsed,
+				(double)Metrics.getInstance().count(DECRYPT) / lookups,
+				(reads < 0) ? "n/a" : String.format("%.2f", (double)reads / lookups), disk / 1e6));
+	}
+
+	/**
+	 * Gets the number of read calls made by the process so far
+	 * @return Number of calls, <code>-1</code> if not available
+	 */
+	private static long readCalls() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/io"))) {
+				if (line.startsWith("syscr:")) {
+					return Long.parseLong(line.substring(6).trim());
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+
+	private static boolean sameSecret(Secret a, Secret b) {
+		if ((a == null) || (b == null) || (a.length() != b.length())) {
+			return false;
+		}
+		for (int i=0 ; i<a.length() ; ++i) {
+			if (a.byteAt(i) != b.byteAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,60 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import fr.robincarozzani.pamaja.db.DBHandler;
+
+/**
+ * Moves the entries of a vault to a new number of shards.
+ * Entries are moved still encrypted, so the master password is not needed. Integrity trees are dropped,
+ * the vault needs to be protected again with {@link Scrub}.
+ * Usage: <code>Reshard count</code>
+ * @author Robin Carozzani
+ */
+public class Reshard {
+
+	public static void main(String[] args) {
+		if (args.length != 1) {
+			System.out.println("Usage: Reshard count");
+			System.exit(2);
+		}
+		int count = Integer.parseInt(args[0]);
+		DBHandler dbh = DBHandler.getInstance();
+		if (!dbh.exists()) {
+			System.out.println("No database found");
+			System.exit(1);
+		}
+		System.out.print("Opening DB... ");
+		dbh.connect();
+		System.out.println("done");
+		if (!dbh.dbVersionIsOk()) {
+			System.out.println("Wrong version of database");
+			dbh.disconnect();
+			System.exit(1);
+		}
+		int oldCount = dbh.getShardCount();
+		System.out.print("Moving entries from "+oldCount+" to "+count+" shards... ");
+		boolean ok = dbh.reshard(count);
+		System.out.println(ok ? "done" : "failed");
+		if (ok) {
+			System.out.println("Integrity trees have been dropped, protect the vault again with: Scrub "
+					+System.getProperty("pamaja.db.dir", "data")+" enable");
+		}
+		dbh.disconnect();
+		System.exit(ok ? 0 : 1);
+	}
+}
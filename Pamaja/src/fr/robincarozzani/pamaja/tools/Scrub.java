@@ -0,0 +1,93 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.util.Arrays;
+
+import fr.robincarozzani.pamaja.db.ScrubReport;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Checks a vault against its integrity trees, every entry or only the ones written since the last check.
+ * <code>enable</code> protects a vault without integrity trees, or whose trees have been dropped, trusting its entries as they are.
+ * The master password is asked for unless given, since the MACs are keyed.
+ * Exits with status 1 if a problem is found.
+ * Usage: <code>Scrub directory [full|changed|enable] [masterPassword]</code>
+ * @author Robin Carozzani
+ */
+public class Scrub {
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 3)
+				|| ((args.length > 1) && !args[1].equals("full") && !args[1].equals("changed") && !args[1].equals("enable"))) {
+			System.out.println("Usage: Scrub directory [full|changed|enable] [masterPassword]");
+			System.exit(2);
+		}
+		if (!new File(args[0]).isDirectory()) {
+			System.out.println("No vault in "+args[0]);
+			System.exit(2);
+		}
+		boolean changedOnly = (args.length > 1) && args[1].equals("changed");
+		char[] master;
+		if (args.length > 2) {
+			master = args[2].toCharArray();
+		} else {
+			System.out.println("Type your master password");
+			master = System.console().readPassword();
+		}
+
+		System.out.print("Opening vault... ");
+		long t = System.nanoTime();
+		VaultEngine engine;
+		try {
+			engine = VaultEngine.open(args[0], master);
+		} finally {
+			Arrays.fill(master, '\0');
+		}
+		System.out.println(String.format("done (%.2f s)", (System.nanoTime() - t) / 1e9));
+
+		if ((args.length > 1) && args[1].equals("enable")) {
+			System.out.print("Building integrity trees... ");
+			t = System.nanoTime();
+			int tagged = engine.enableIntegrity();
+			engine.close();
+			if (tagged < 0) {
+				System.out.println("failed");
+				System.exit(1);
+			}
+			System.out.println(String.format("done (%d entries, %.2f s)", tagged, (System.nanoTime() - t) / 1e9));
+			System.exit(0);
+		}
+
+		System.out.print("Checking "+(changedOnly ? "changed" : "all")+" entries... ");
+		t = System.nanoTime();
+		ScrubReport report = engine.scrub(changedOnly);
+		double seconds = (System.nanoTime() - t) / 1e9;
+		engine.close();
+		System.out.println(String.format("done (%d entries in %d leaves, %.2f s)", report.getCheckedEntries(), report.getCheckedLeaves(), seconds));
+		if (report.isClean()) {
+			System.out.println("No integrity problem found");
+		} else {
+			for (ScrubReport.Finding finding : report.getFindings()) {
+				System.out.println("\t"+finding);
+			}
+			System.out.println(report.getFindings().size()+" problems found");
+		}
+		System.exit(report.isClean() ? 0 : 1);
+	}
+}
@@ -0,0 +1,171 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.LogStore;
+import fr.robincarozzani.pamaja.db.VaultStore;
+
+/**
+ * Compares the latency and footprint of the vault stores on a scratch vault:
+ * inserts, updates, password lookups, listings, file size and heap held by the opened store.
+ * Usage: <code>StoreBenchmark [entries] [lookups]</code>
+ * @author Robin Carozzani
+ */
+public class StoreBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+		int lookups = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+		File dir = Files.createTempDirectory("pamaja-bench").toFile();
+		System.setProperty("pamaja.db.dir", dir.getPath());
+		Security.addProvider(new BouncyCastleProvider());
+
+		byte[] key = Randgen.generateKey().getEncoded();
+		Ciphor c = Ciphor.getInstance();
+		Ciph login = c.encrypt("login@example.com".getBytes(), key);
+		Ciph password = c.encrypt("0123456789abcdefg".getBytes(), key);
+
+		System.out.println(entries + " entries, " + lookups + " lookups\n");
+		for (VaultStore store : new VaultStore[] {DBHandler.getInstance(), LogStore.getInstance()}) {
+			int count = run(store, dir, entries, lookups, login, password);
+			footprint(store, count);
+			System.out.println();
+		}
+
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.exit(0);
+	}
+
+	private static int run(VaultStore store, File dir, int entries, int lookups, Ciph login, Ciph password) {
+		Random rand = new Random(42);
+		store.connect();
+		store.setInit();
+
+		long[] insert = new long[entries];
+		for (int i=0 ; i<entries ; ++i) {
+			long t = System.nanoTime();
+			store.insertPassword("service" + i, login, password);
+			insert[i] = System.nanoTime() - t;
+		}
+		int[] ids = new int[entries];
+		int n = 0;
+		for (int id : store.getServices().keySet()) {
+			ids[n++] = id;
+		}
+
+		long[] update = new long[entries];
+		for (int i=0 ; i<entries ; ++i) {
+			int serviceId = ids[rand.nextInt(n)];
+			int loginId = store.getLogins(serviceId).keySet().iterator().next().intValue();
+			long t = System.nanoTime();
+			store.updatePassword(serviceId, loginId, password);
+			update[i] = System.nanoTime() - t;
+		}
+
+		int[] loginIds = new int[n];
+		for (int i=0 ; i<n ; ++i) {
+			loginIds[i] = store.getLogins(ids[i]).keySet().iterator().next().intValue();
+		}
+		long[] get = new long[lookups];
+		for (int i=0 ; i<lookups ; ++i) {
+			int k = rand.nextInt(n);
+			long t = System.nanoTime();
+			store.getPassword(ids[k], loginIds[k]);
+			get[i] = System.nanoTime() - t;
+		}
+
+		long[] list = new long[20];
+		Map<Integer, String> services = null;
+		for (int i=0 ; i<list.length ; ++i) {
+			long t = System.nanoTime();
+			services = store.getServices();
+			list[i] = System.nanoTime() - t;
+		}
+		long used = (store instanceof LogStore) ? ((LogStore)store).getLogSize() : -1;
+		store.disconnect();
+
+		String prefix = (store instanceof LogStore) ? "PamajaDB.log" : "PamajaDB.db";
+		long disk = 0;
+		for (File f : dir.listFiles()) {
+			if (f.getName().startsWith(prefix)) {
+				disk += f.length();
+			}
+		}
+		System.out.println(store.getClass().getSimpleName() + ":");
+		print("insert", insert);
+		print("update", update);
+		print("getPassword", get);
+		print("getServices", list);
+		System.out.print("\tdisk: " + disk + " bytes");
+		if (used >= 0) {
+			System.out.print(", " + used + " used");
+			disk = used;
+		}
+		System.out.println(" (" + (disk / services.size()) + " per entry)");
+		return services.size();
+	}
+
+	/**
+	 * Measures the time to open the store and the heap released when closing it
+	 */
+	private static void footprint(VaultStore store, int count) {
+		long t = System.nanoTime();
+		store.connect();
+		long open = System.nanoTime() - t;
+		long heap = usedHeap();
+		store.disconnect();
+		heap -= usedHeap();
+		System.out.println(String.format("\t%-12s %8.1f ms", "open", open / 1000000.0));
+		System.out.println("\theap: " + heap + " bytes held by the opened store (" + (heap / count) + " per entry)");
+	}
+
+	private static void print(String op, long[] samples) {
+		long[] sorted = samples.clone();
+		Arrays.sort(sorted);
+		long sum = 0;
+		for (long s : sorted) {
+			sum += s;
+		}
+		System.out.println(String.format("\t%-12s mean %8.1f us   p50 %8.1f us   p99 %8.1f us",
+				op, sum / 1000.0 / sorted.length, sorted[sorted.length / 2] / 1000.0,
+				sorted[(int)(sorted.length * 0.99)] / 1000.0));
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0 ; i<3 ; ++i) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,172 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.crypto.Totp;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.vault.TotpCode;
+import fr.robincarozzani.pamaja.vault.TotpEngine;
+
+/**
+ * Measures the generation of the one-time codes of a whole scratch vault:
+ * entry by entry, reading, decrypting and setting up a new MAC each time, then in bulk through the {@link TotpEngine},
+ * on one thread and on every processor, first with the secrets to load then from its cache.
+ * Every code is checked against the entry by entry ones.
+ * Usage: <code>TotpBenchmark [entries]</code>
+ * @author Robin Carozzani
+ */
+public class TotpBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int entries = (args.length > 0) ? Integer.parseInt(args[0]) : 20000;
+		File dir = Files.createTempDirectory("pamaja-totp").toFile();
+		Security.addProvider(new BouncyCastleProvider());
+		Random rand = new Random(42);
+
+		SecureArena keyArena = new SecureArena(64);
+		Secret key = keyArena.moveIn(Randgen.generateKey().getEncoded());
+		Ciphor c = Ciphor.getInstance();
+		Ciph login = c.encrypt("login@example.com".getBytes(), key);
+		Ciph password = c.encrypt("0123456789abcdefg".getBytes(), key);
+		DBHandler db = new DBHandler(dir.getPath());
+		db.connect();
+		db.setInit();
+
+		System.out.print("Creating " + entries + " entries with a TOTP secret... ");
+		List<CompletableFuture<Integer>> inserted = new ArrayList<CompletableFuture<Integer>>(entries);
+		for (int i=0 ; i<entries ; ++i) {
+			inserted.add(db.insertPasswordAsync("service" + i, login, password));
+		}
+		List<CompletableFuture<Void>> stored = new ArrayList<CompletableFuture<Void>>(entries);
+		int[] serviceIds = new int[entries];
+		int[] loginIds = new int[entries];
+		try (SecureArena arena = new SecureArena(Totp.HEADER + 32)) {
+			for (int i=0 ; i<entries ; ++i) {
+				serviceIds[i] = inserted.get(i).join().intValue();
+				loginIds[i] = db.getLoginIds(serviceIds[i])[0];
+				byte[] raw = new byte[(i % 3 == 0) ? 32 : 20];
+				rand.nextBytes(raw);
+				Totp.Algorithm algorithm = (i % 3 == 0) ? Totp.Algorithm.SHA256 : Totp.Algorithm.SHA1;
+				Secret packed = Totp.pack(algorithm, (i % 2 == 0) ? 6 : 8, Totp.DEFAULT_PERIOD, raw, arena);
+				stored.add(db.setTotpSecretAsync(serviceIds[i], loginIds[i], c.encrypt(packed, key)));
+				arena.reset();
+			}
+		}
+		for (CompletableFuture<Void> f : stored) {
+			f.join();
+		}
+		System.out.println("done\n");
+
+		long now = System.currentTimeMillis() / 1000;
+		// Untimed round so the first measure does not pay for class loading and compilation
+		oneByOne(db, serviceIds, loginIds, Math.min(entries, 2000), key, now);
+		long t = System.nanoTime();
+		String[] expected = oneByOne(db, serviceIds, loginIds, entries, key, now);
+		print("one by one", entries, System.nanoTime() - t);
+
+		boolean ok = true;
+		int threads = Runtime.getRuntime().availableProcessors();
+		for (int n : (threads > 1) ? new int[] {1, threads} : new int[] {1}) {
+			try (TotpEngine engine = new TotpEngine(db, n)) {
+				t = System.nanoTime();
+				List<TotpCode> codes = engine.getCodes(now, key);
+				print("engine, " + n + " thread" + ((n > 1) ? "s" : "") + ", loading", codes.size(), System.nanoTime() - t);
+				for (int round=0 ; round<3 ; ++round) {
+					t = System.nanoTime();
+					codes = engine.getCodes(now, key);
+					print("engine, " + n + " thread" + ((n > 1) ? "s" : "") + ", cached", codes.size(), System.nanoTime() - t);
+				}
+				ok &= check(codes, serviceIds, loginIds, expected);
+			}
+		}
+		System.out.println(ok ? "\nEvery code matches" : "\nSOME CODES DIFFER");
+
+		db.disconnect();
+		keyArena.close();
+		for (File f : dir.listFiles()) {
+			f.delete();
+		}
+		dir.delete();
+		System.exit(ok ? 0 : 1);
+	}
+
+	/**
+	 * Generates the codes the way a caller without the engine would: one read, one decryption and one new MAC per entry
+	 */
+	private static String[] oneByOne(DBHandler db, int[] serviceIds, int[] loginIds, int count, Secret key, long now) throws Exception {
+		String[] codes = new String[count];
+		Ciphor c = Ciphor.getInstance();
+		for (int i=0 ; i<count ; ++i) {
+			byte[] packed = c.decrypt(db.getTotpSecret(serviceIds[i], loginIds[i]), key);
+			Totp.Algorithm algorithm = Totp.Algorithm.values()[packed[0]];
+			int period = ((packed[2] & 0xFF) << 8) | (packed[3] & 0xFF);
+			Mac mac = Mac.getInstance(algorithm.getMacName());
+			mac.init(new SecretKeySpec(packed, Totp.HEADER, packed.length - Totp.HEADER, algorithm.getMacName()));
+			long counter = now / period;
+			byte[] msg = new byte[8];
+			for (int j=0 ; j<8 ; ++j) {
+				msg[j] = (byte)(counter >>> (56 - 8 * j));
+			}
+			byte[] hash = mac.doFinal(msg);
+			int offset = hash[hash.length - 1] & 0x0F;
+			int binary = ((hash[offset] & 0x7F) << 24) | ((hash[offset + 1] & 0xFF) << 16)
+					| ((hash[offset + 2] & 0xFF) << 8) | (hash[offset + 3] & 0xFF);
+			codes[i] = Totp.format(binary % (int)Math.pow(10, packed[1]), packed[1]);
+		}
+		return codes;
+	}
+
+	private static boolean check(List<TotpCode> codes, int[] serviceIds, int[] loginIds, String[] expected) {
+		if (codes.size() != expected.length) {
+			return false;
+		}
+		Map<Long, String> byEntry = new HashMap<Long, String>();
+		for (TotpCode code : codes) {
+			byEntry.put(Long.valueOf(((long)code.getServiceId() << 32) | code.getLoginId()), code.getCode());
+		}
+		for (int i=0 ; i<expected.length ; ++i) {
+			if (!expected[i].equals(byEntry.get(Long.valueOf(((long)serviceIds[i] << 32) | loginIds[i])))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static void print(String what, int count, long nanos) {
+		System.out.println(String.format("\t%-32s %8.1f ms   %10.0f codes/s", what, nanos / 1e6, count / (nanos / 1e9)));
+	}
+}
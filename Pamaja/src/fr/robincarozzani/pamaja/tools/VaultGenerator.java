@@ -0,0 +1,184 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.crypto.Hashor;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.utils.Pair;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Creates a large vault to reproduce the behavior of big vaults: <code>services</code> services holding
+ * <code>logins</code> logins each, encrypted for real. Names, logins and passwords only depend on the seed,
+ * so the same arguments always give the same clear content, see {@link #password(long, int, int)}.
+ * Insertions are queued without waiting for each other, so they are committed in large groups.
+ * The number of shards comes from <code>-Dpamaja.db.shards</code>. The directory must not exist.
+ * Usage: <code>VaultGenerator directory services logins [seed] [masterPassword]</code>
+ * @author Robin Carozzani
+ */
+public class VaultGenerator {
+
+	/**
+	 * Master password of the generated vaults, unless another one is given
+	 */
+	public static final String DEFAULT_MASTER = "generated";
+
+	private static final int IN_FLIGHT = 4096;
+	private static final int BATCH = 1024;
+	private static final int PROGRESS = 100000;
+	private static final char[] ALPHABET = "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789!#$%&*+-/:;=?@_".toCharArray();
+	private static final int PASSWORD_LENGTH = 17;
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 3) || (args.length > 5)) {
+			System.out.println("Usage: VaultGenerator directory services logins [seed] [masterPassword]");
+			System.exit(2);
+		}
+		if (new File(args[0]).exists()) {
+			System.out.println(args[0]+" already exists");
+			System.exit(2);
+		}
+		int services = Integer.parseInt(args[1]);
+		int logins = Integer.parseInt(args[2]);
+		long seed = (args.length > 3) ? Long.parseLong(args[3]) : 42;
+		char[] master = ((args.length > 4) ? args[4] : DEFAULT_MASTER).toCharArray();
+
+		System.out.print("Creating vault... ");
+		VaultEngine.open(args[0], master).close();
+		DBHandler db = new DBHandler(args[0]);
+		db.connect();
+		Pair<byte[], Hash> stored = db.getStoredPasswordAndSalt();
+		Hash hashed = Hashor.getInstance().hash(master, stored.first(), 64);
+		byte[] key = Ciphor.getInstance().decrypt(db.getStoredKey(), hashed.getHashedMessage());
+		Arrays.fill(hashed.getHashedMessage(), (byte)0);
+		SecureArena keyArena = new SecureArena(key.length);
+		db.openIntegrity(keyArena.moveIn(key.clone()));
+		System.out.println("done ("+db.getShardCount()+" shards)");
+
+		System.out.println("Inserting "+services+" services with "+logins+" logins each...");
+		Semaphore inFlight = new Semaphore(IN_FLIGHT);
+		AtomicInteger failures = new AtomicInteger();
+		long total = (long)services * logins;
+		long done = 0;
+		long t = System.nanoTime();
+		Ciphor c = Ciphor.getInstance();
+		List<CompletableFuture<Integer>> serviceIds = new ArrayList<CompletableFuture<Integer>>(BATCH);
+		for (int from=0 ; from<services ; from+=BATCH) {
+			int to = Math.min(services, from + BATCH);
+			// Services of the batch first, their IDs are needed for the other logins
+			serviceIds.clear();
+			for (int s=from ; s<to ; ++s) {
+				inFlight.acquireUninterruptibly();
+				CompletableFuture<Integer> serviceId = db.insertPasswordAsync(serviceName(seed, s),
+						c.encrypt(login(seed, s, 0).getBytes(StandardCharsets.UTF_8), key),
+						c.encrypt(password(seed, s, 0).getBytes(StandardCharsets.UTF_8), key));
+				serviceId.whenComplete((id, e) -> release(inFlight, failures, e));
+				serviceIds.add(serviceId);
+			}
+			for (int s=from ; s<to ; ++s) {
+				int serviceId;
+				try {
+					serviceId = serviceIds.get(s - from).join().intValue();
+				} catch (CompletionException e) {
+					continue;
+				}
+				for (int l=1 ; l<logins ; ++l) {
+					inFlight.acquireUninterruptibly();
+					db.insertLoginAsync(serviceId,
+							c.encrypt(login(seed, s, l).getBytes(StandardCharsets.UTF_8), key),
+							c.encrypt(password(seed, s, l).getBytes(StandardCharsets.UTF_8), key))
+						.whenComplete((id, e) -> release(inFlight, failures, e));
+				}
+			}
+			long before = done;
+			done += (long)(to - from) * logins;
+			if (done / PROGRESS != before / PROGRESS) {
+				System.out.println(String.format("\t%d entries (%.0f s)", done, (System.nanoTime() - t) / 1e9));
+			}
+		}
+		inFlight.acquireUninterruptibly(IN_FLIGHT);
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		Arrays.fill(key, (byte)0);
+		db.disconnect();
+		keyArena.close();
+		System.out.println(String.format("done (%d entries in %.1f s, %.0f entries/s, %d failures)", total, elapsed, total / elapsed, failures.get()));
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	private static void release(Semaphore inFlight, AtomicInteger failures, Throwable e) {
+		if (e != null) {
+			failures.incrementAndGet();
+		}
+		inFlight.release();
+	}
+
+	/**
+	 * Gets the name of a generated service
+	 * @param seed Seed of the vault
+	 * @param service Index of the service
+	 * @return The name
+	 */
+	public static String serviceName(long seed, int service) {
+		return "service-"+service+"-"+Long.toHexString(mix(seed, service, -1) & 0xffffffL)+".example";
+	}
+
+	/**
+	 * Gets a generated login
+	 * @param seed Seed of the vault
+	 * @param service Index of the service
+	 * @param login Index of the login in the service
+	 * @return The login
+	 */
+	public static String login(long seed, int service, int login) {
+		return "user"+login+"-"+Long.toHexString(mix(seed, service, login) & 0xffffffL)+"@example.com";
+	}
+
+	/**
+	 * Gets a generated password
+	 * @param seed Seed of the vault
+	 * @param service Index of the service
+	 * @param login Index of the login in the service
+	 * @return The password
+	 */
+	public static String password(long seed, int service, int login) {
+		Random random = new Random(mix(seed, service, login));
+		char[] pwd = new char[PASSWORD_LENGTH];
+		for (int i=0 ; i<pwd.length ; ++i) {
+			pwd[i] = ALPHABET[random.nextInt(ALPHABET.length)];
+		}
+		return new String(pwd);
+	}
+
+	private static long mix(long seed, int service, int login) {
+		long h = (seed ^ ((long)service << 32 | (login & 0xffffffffL))) * 0x9e3779b97f4a7c15L;
+		return h ^ (h >>> 29);
+	}
+}
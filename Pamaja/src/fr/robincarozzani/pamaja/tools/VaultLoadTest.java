@@ -0,0 +1,271 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.tools;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.vault.VaultEngine;
+
+/**
+ * Replays a mixed workload on an existing vault, typically made by {@link VaultGenerator}, and reports
+ * the latency percentiles of each operation and the heap used, to find where the vault stops scaling.
+ * Operations are <code>get</code> (read and decrypt a password), <code>update</code>, <code>insert</code> (new service),
+ * <code>list</code> (login IDs of a service) and <code>services</code> (whole service listing), drawn at random
+ * with the weights of the mix, e.g. <code>get:70,update:15,insert:5,list:9,services:1</code>.
+ * Each thread draws from its own generator seeded from the seed, so a run can be replayed.
+ * Entries are picked among a working set of at most {@value #WORKING_SET} services.
+ * Usage: <code>VaultLoadTest directory [seconds] [threads] [mix] [seed] [masterPassword]</code>
+ * @author Robin Carozzani
+ */
+public class VaultLoadTest {
+
+	private static final String[] OPERATIONS = {"get", "update", "insert", "list", "services"};
+	private static final String DEFAULT_MIX = "get:70,update:15,insert:5,list:9,services:1";
+	private static final int WORKING_SET = 100000;
+	private static final int WARMUP_SECONDS = 2;
+	private static final long HEAP_SAMPLE_MILLIS = 50;
+
+	/**
+	 * Latencies recorded by one thread for one operation
+	 */
+	private static class Samples {
+		long[] values = new long[1024];
+		int size = 0;
+
+		void add(long nanos) {
+			if (size == values.length) {
+				values = Arrays.copyOf(values, size * 2);
+			}
+			values[size++] = nanos;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		if ((args.length < 1) || (args.length > 6)) {
+			System.out.println("Usage: VaultLoadTest directory [seconds] [threads] [mix] [seed] [masterPassword]");
+			System.exit(2);
+		}
+		int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 30;
+		int threads = (args.length > 2) ? Integer.parseInt(args[2]) : 8;
+		int[] weights = parseMix((args.length > 3) ? args[3] : DEFAULT_MIX);
+		long seed = (args.length > 4) ? Long.parseLong(args[4]) : 42;
+		char[] master = ((args.length > 5) ? args[5] : VaultGenerator.DEFAULT_MASTER).toCharArray();
+
+		System.out.print("Opening vault... ");
+		long t = System.nanoTime();
+		VaultEngine engine = VaultEngine.open(args[0], master);
+		System.out.println(String.format("done (%.0f ms)", (System.nanoTime() - t) / 1e6));
+		System.out.print("Listing services... ");
+		t = System.nanoTime();
+		Map<Integer, String> services = engine.getServices();
+		System.out.println(String.format("done (%d services in %.0f ms)", services.size(), (System.nanoTime() - t) / 1e6));
+		if (services.isEmpty()) {
+			System.out.println("Empty vault");
+			System.exit(2);
+		}
+
+		System.out.print("Loading working set... ");
+		Random random = new Random(seed);
+		int[] serviceIds = new int[services.size()];
+		int n = 0;
+		for (int id : services.keySet()) {
+			serviceIds[n++] = id;
+		}
+		// Partial shuffle: the first ones are a uniform sample
+		int size = Math.min(WORKING_SET, n);
+		for (int i=0 ; i<size ; ++i) {
+			int j = i + random.nextInt(n - i);
+			int tmp = serviceIds[i];
+			serviceIds[i] = serviceIds[j];
+			serviceIds[j] = tmp;
+		}
+		List<int[]> entries = new ArrayList<int[]>();
+		int[] workingServices = Arrays.copyOf(serviceIds, size);
+		for (int serviceId : workingServices) {
+			for (int loginId : engine.getLoginIds(serviceId)) {
+				entries.add(new int[] {serviceId, loginId});
+			}
+		}
+		serviceIds = null;
+		services = null;
+		long heapOpen = usedHeap();
+		System.out.println("done ("+entries.size()+" entries, heap "+heapOpen / (1024 * 1024)+" MB)");
+
+		AtomicBoolean stop = new AtomicBoolean(false);
+		AtomicBoolean recording = new AtomicBoolean(false);
+		AtomicInteger failures = new AtomicInteger();
+		AtomicLong heapPeak = new AtomicLong();
+		Samples[][] samples = new Samples[threads][OPERATIONS.length];
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int w=0 ; w<threads ; ++w) {
+			Samples[] mine = samples[w];
+			for (int op=0 ; op<OPERATIONS.length ; ++op) {
+				mine[op] = new Samples();
+			}
+			long workerSeed = seed * 31 + w;
+			int worker = w;
+			workers.add(new Thread(() -> {
+				Random r = new Random(workerSeed);
+				int inserted = 0;
+				try (SecureArena arena = new SecureArena(1024)) {
+					while (!stop.get()) {
+						int op = pick(weights, r);
+						int[] entry = entries.get(r.nextInt(entries.size()));
+						long start = System.nanoTime();
+						switch (op) {
+						case 0:
+							if (engine.getPassword(entry[0], entry[1], arena) == null) {
+								failures.incrementAndGet();
+							}
+							break;
+						case 1:
+							engine.updatePassword(entry[0], entry[1], arena.moveIn(VaultGenerator.password(workerSeed, entry[0], r.nextInt()).getBytes(StandardCharsets.UTF_8)));
+							break;
+						case 2:
+							String name = "load-"+worker+"-"+(inserted++)+"-"+Long.toHexString(workerSeed)+".example";
+							if (engine.addEntry(name, name.getBytes(StandardCharsets.UTF_8),
+									arena.moveIn(VaultGenerator.password(workerSeed, inserted, 0).getBytes(StandardCharsets.UTF_8))) < 0) {
+								failures.incrementAndGet();
+							}
+							break;
+						case 3:
+							engine.getLoginIds(entry[0]);
+							break;
+						default:
+							engine.getServices();
+							break;
+						}
+						long elapsed = System.nanoTime() - start;
+						if (recording.get()) {
+							mine[op].add(elapsed);
+						}
+						arena.reset();
+					}
+				} catch (Exception e) {
+					e.printStackTrace();
+					failures.incrementAndGet();
+				}
+			}, "load-"+w));
+		}
+		Thread heapSampler = new Thread(() -> {
+			Runtime rt = Runtime.getRuntime();
+			while (!stop.get()) {
+				heapPeak.accumulateAndGet(rt.totalMemory() - rt.freeMemory(), Math::max);
+				try {
+					Thread.sleep(HEAP_SAMPLE_MILLIS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}, "load-heap");
+		heapSampler.setDaemon(true);
+
+		System.out.println("Running "+threads+" threads for "+seconds+" s after "+WARMUP_SECONDS+" s of warm-up...");
+		for (Thread worker : workers) {
+			worker.start();
+		}
+		Thread.sleep(WARMUP_SECONDS * 1000L);
+		recording.set(true);
+		heapSampler.start();
+		t = System.nanoTime();
+		Thread.sleep(seconds * 1000L);
+		recording.set(false);
+		double elapsed = (System.nanoTime() - t) / 1e9;
+		stop.set(true);
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		heapSampler.join();
+		engine.close();
+
+		System.out.println(String.format("%-10s %10s %10s %10s %10s %10s %10s", "operation", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us"));
+		long total = 0;
+		for (int op=0 ; op<OPERATIONS.length ; ++op) {
+			int count = 0;
+			for (Samples[] s : samples) {
+				count += s[op].size;
+			}
+			if (count == 0) {
+				continue;
+			}
+			long[] all = new long[count];
+			int k = 0;
+			for (Samples[] s : samples) {
+				System.arraycopy(s[op].values, 0, all, k, s[op].size);
+				k += s[op].size;
+			}
+			Arrays.sort(all);
+			total += count;
+			System.out.println(String.format("%-10s %10d %10.0f %10.1f %10.1f %10.1f %10.1f", OPERATIONS[op], count, count / elapsed,
+					percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999), all[count - 1] / 1000.0));
+		}
+		System.out.println(String.format("%.0f ops/s overall", total / elapsed));
+		System.out.println("Heap: "+heapOpen / (1024 * 1024)+" MB after opening, peak "+heapPeak.get() / (1024 * 1024)+" MB during the run");
+		System.out.println(failures.get() == 0 ? "No failure" : failures.get()+" failures");
+		System.exit(failures.get() == 0 ? 0 : 1);
+	}
+
+	private static int[] parseMix(String mix) {
+		int[] weights = new int[OPERATIONS.length];
+		for (String part : mix.split(",")) {
+			String[] kv = part.split(":");
+			int op = Arrays.asList(OPERATIONS).indexOf(kv[0].trim());
+			if ((kv.length != 2) || (op < 0)) {
+				throw new IllegalArgumentException("Bad mix entry "+part+", operations are "+Arrays.toString(OPERATIONS));
+			}
+			weights[op] = Integer.parseInt(kv[1].trim());
+		}
+		// Cumulated weights
+		for (int i=1 ; i<weights.length ; ++i) {
+			weights[i] += weights[i - 1];
+		}
+		if (weights[weights.length - 1] <= 0) {
+			throw new IllegalArgumentException("Empty mix");
+		}
+		return weights;
+	}
+
+	private static int pick(int[] weights, Random random) {
+		int x = random.nextInt(weights[weights.length - 1]);
+		int op = 0;
+		while (x >= weights[op]) {
+			++op;
+		}
+		return op;
+	}
+
+	private static double percentile(long[] sorted, double p) {
+		return sorted[Math.min(sorted.length - 1, (int)(sorted.length * p))] / 1000.0;
+	}
+
+	private static long usedHeap() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0 ; i<3 ; ++i) {
+			System.gc();
+		}
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -16,7 +16,7 @@
 
 package fr.robincarozzani.pamaja.utils;
 
-import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
 import java.security.NoSuchAlgorithmException;
 
 /**
@@ -25,6 +25,8 @@ import java.security.NoSuchAlgorithmException;
  */
 public class HexHandler {
 	
+	private static final byte[] DIGITS = {'0','1','2','3','4','5','6','7','8','9','a','b','c','d','e','f'};
+	
 	/**
 	 * Converts a byte array to its hexadecimal representation
 	 * @param array Data to convert 
@@ -32,14 +34,21 @@ public class HexHandler {
 	 * @throws NoSuchAlgorithmException
 	 */
 	public static String toHex(byte[] array) throws NoSuchAlgorithmException {
-		BigInteger bi = new BigInteger(1, array);
-		String hex = bi.toString(16);
-		int paddingLength = (array.length * 2) - hex.length();
-		if (paddingLength > 0) {
-			return String.format("%0"+paddingLength+"d", 0) + hex;
-		} else {
-			return hex;
+		return new String(toHexBytes(array), StandardCharsets.US_ASCII);
+	}
+	
+	/**
+	 * Converts a byte array to the ASCII bytes of its hexadecimal representation
+	 * @param array Data to convert
+	 * @return The hexadecimal representation of the data, one byte per digit
+	 */
+	public static byte[] toHexBytes(byte[] array) {
+		byte[] hex = new byte[array.length * 2];
+		for (int i=0 ; i<array.length ; ++i) {
+			hex[2*i] = DIGITS[(array[i] >> 4) & 0xf];
+			hex[2*i+1] = DIGITS[array[i] & 0xf];
 		}
+		return hex;
 	}
 	
 	/**
@@ -47,12 +56,35 @@ public class HexHandler {
 	 * @param hex Hexadecimal data to convert
 	 * @return Original data
 	 * @throws NoSuchAlgorithmException
+	 * @throws NumberFormatException If a character is not a hexadecimal digit
 	 */
 	public static byte[] fromHex(String hex) throws NoSuchAlgorithmException {
 		byte[] bytes = new byte[hex.length()/2];
 		for(int i=0 ; i<bytes.length ; ++i) {
-			bytes[i] = (byte)Integer.parseInt(hex.substring(2*i, 2*i+2), 16);
+			bytes[i] = (byte)((digit(hex.charAt(2*i)) << 4) | digit(hex.charAt(2*i+1)));
+		}
+		return bytes;
+	}
+	
+	/**
+	 * Converts the ASCII bytes of a hexadecimal representation of data to its original representation
+	 * @param hex Hexadecimal data to convert, one byte per digit
+	 * @return Original data
+	 * @throws NumberFormatException If a byte is not a hexadecimal digit
+	 */
+	public static byte[] fromHex(byte[] hex) {
+		byte[] bytes = new byte[hex.length/2];
+		for(int i=0 ; i<bytes.length ; ++i) {
+			bytes[i] = (byte)((digit(hex[2*i] & 0xff) << 4) | digit(hex[2*i+1] & 0xff));
 		}
 		return bytes;
 	}
+	
+	private static int digit(int c) {
+		int d = Character.digit(c, 16);
+		if (d < 0) {
+			throw new NumberFormatException("Not a hexadecimal digit: "+(char)c);
+		}
+		return d;
+	}
 }
@@ -0,0 +1,257 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.utils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Map from int keys to objects, kept as two parallel arrays sorted by key.
+ * Keys are not boxed and there is no node per entry, so a listing of services or logins costs
+ * about 8 bytes per entry plus its values, against about 50 for a HashMap of boxed keys.
+ * Lookups are binary searches, iterations go by index with {@link #keyAt(int)} and {@link #valueAt(int)}.
+ * Keys put in increasing order are appended, others are inserted in place.
+ * Like HashMap, it may be read by several threads once filled, but not modified meanwhile.
+ * @author Robin Carozzani
+ */
+public class IntMap<V> {
+
+	private static final int DEFAULT_CAPACITY = 16;
+
+	private int[] _keys;
+	private Object[] _values;
+	private int _size;
+
+	/**
+	 * Constructs an empty IntMap
+	 */
+	public IntMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructs an empty IntMap
+	 * @param capacity Number of entries it can hold before growing
+	 */
+	public IntMap(int capacity) {
+		_keys = new int[Math.max(capacity, 1)];
+		_values = new Object[_keys.length];
+		_size = 0;
+	}
+
+	/**
+	 * Copies a map of boxed keys
+	 * @param map Map to copy
+	 * @return The copy
+	 */
+	public static <V> IntMap<V> copyOf(Map<Integer, V> map) {
+		IntMap<V> res = new IntMap<V>(map.size());
+		for (Map.Entry<Integer, V> entry : map.entrySet()) {
+			res.append(entry.getKey().intValue(), entry.getValue());
+		}
+		res.sort();
+		return res;
+	}
+
+	/**
+	 * Merges maps with distinct keys, such as the listings of several shards
+	 * @param parts Maps to merge
+	 * @return A new map holding the entries of all the parts
+	 */
+	public static <V> IntMap<V> merge(List<IntMap<V>> parts) {
+		int size = 0;
+		for (IntMap<V> part : parts) {
+			size += part._size;
+		}
+		IntMap<V> res = new IntMap<V>(size);
+		for (IntMap<V> part : parts) {
+			System.arraycopy(part._keys, 0, res._keys, res._size, part._size);
+			System.arraycopy(part._values, 0, res._values, res._size, part._size);
+			res._size += part._size;
+		}
+		res.sort();
+		return res;
+	}
+
+	/**
+	 * Gets the number of entries
+	 * @return Number of entries
+	 */
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * Checks if the map has no entry
+	 * @return <code>true</code> if the map is empty
+	 */
+	public boolean isEmpty() {
+		return _size == 0;
+	}
+
+	/**
+	 * Gets the key at a given position, keys being sorted in increasing order
+	 * @param index Position, from 0 to {@link #size()} excluded
+	 * @return The key
+	 */
+	public int keyAt(int index) {
+		checkIndex(index);
+		return _keys[index];
+	}
+
+	/**
+	 * Gets the value at a given position
+	 * @param index Position, from 0 to {@link #size()} excluded
+	 * @return The value
+	 */
+	@SuppressWarnings("unchecked")
+	public V valueAt(int index) {
+		checkIndex(index);
+		return (V)_values[index];
+	}
+
+	/**
+	 * Finds the position of a key
+	 * @param key Key to look for
+	 * @return Position of the key, negative if absent
+	 */
+	public int indexOf(int key) {
+		return Arrays.binarySearch(_keys, 0, _size, key);
+	}
+
+	/**
+	 * Checks if a key is present
+	 * @param key Key to look for
+	 * @return <code>true</code> if the key is present
+	 */
+	public boolean containsKey(int key) {
+		return indexOf(key) >= 0;
+	}
+
+	/**
+	 * Gets the value of a key
+	 * @param key Key to look for
+	 * @return The value, <code>null</code> if the key is absent
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		int i = indexOf(key);
+		return (i >= 0) ? (V)_values[i] : null;
+	}
+
+	/**
+	 * Sets the value of a key
+	 * @param key Key to set
+	 * @param value New value
+	 */
+	public void put(int key, V value) {
+		if ((_size == 0) || (key > _keys[_size - 1])) {
+			append(key, value);
+			return;
+		}
+		int i = indexOf(key);
+		if (i >= 0) {
+			_values[i] = value;
+			return;
+		}
+		i = -i - 1;
+		grow();
+		System.arraycopy(_keys, i, _keys, i + 1, _size - i);
+		System.arraycopy(_values, i, _values, i + 1, _size - i);
+		_keys[i] = key;
+		_values[i] = value;
+		++_size;
+	}
+
+	/**
+	 * Gets the keys
+	 * @return Sorted copy of the keys
+	 */
+	public int[] keys() {
+		return Arrays.copyOf(_keys, _size);
+	}
+
+	/**
+	 * Copies the entries to a map of boxed keys, for the callers needing one
+	 * @return A new HashMap
+	 */
+	@SuppressWarnings("unchecked")
+	public Map<Integer, V> toMap() {
+		Map<Integer, V> map = new HashMap<Integer, V>(_size * 4 / 3 + 1);
+		for (int i=0 ; i<_size ; ++i) {
+			map.put(_keys[i], (V)_values[i]);
+		}
+		return map;
+	}
+
+	private void append(int key, V value) {
+		grow();
+		_keys[_size] = key;
+		_values[_size] = value;
+		++_size;
+	}
+
+	private void grow() {
+		if (_size == _keys.length) {
+			int capacity = _keys.length + (_keys.length >> 1) + 1;
+			_keys = Arrays.copyOf(_keys, capacity);
+			_values = Arrays.copyOf(_values, capacity);
+		}
+	}
+
+	/**
+	 * Sorts entries appended in any order, the last value of a key put twice is kept
+	 */
+	private void sort() {
+		boolean sorted = true;
+		for (int i=1 ; sorted && (i<_size) ; ++i) {
+			sorted = _keys[i - 1] < _keys[i];
+		}
+		if (sorted) {
+			return;
+		}
+		// Key in the high half, position in the low half: equal keys stay in the order they were put
+		long[] order = new long[_size];
+		for (int i=0 ; i<_size ; ++i) {
+			order[i] = ((long)_keys[i] << 32) | i;
+		}
+		Arrays.sort(order);
+		int[] keys = new int[_keys.length];
+		Object[] values = new Object[_keys.length];
+		int size = 0;
+		for (int i=0 ; i<order.length ; ++i) {
+			int key = (int)(order[i] >> 32);
+			if ((size > 0) && (keys[size - 1] == key)) {
+				--size;
+			}
+			keys[size] = key;
+			values[size] = _values[(int)order[i]];
+			++size;
+		}
+		_keys = keys;
+		_values = values;
+		_size = size;
+	}
+
+	private void checkIndex(int index) {
+		if ((index < 0) || (index >= _size)) {
+			throw new IndexOutOfBoundsException(index + " >= " + _size);
+		}
+	}
+}
@@ -0,0 +1,86 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.utils;
+
+/**
+ * In-place sort of data kept as parallel arrays, which {@link java.util.Arrays} cannot sort together.
+ * Elements are only compared and swapped by position, so no key is boxed and no array is copied.
+ * @author Robin Carozzani
+ */
+public class ParallelSort {
+
+	/**
+	 * Parallel arrays to sort
+	 */
+	public interface Sortable {
+
+		/**
+		 * Compares the elements at two positions
+		 * @return Negative, zero or positive if the first element goes before, with or after the second
+		 */
+		int compare(int i, int j);
+
+		/**
+		 * Swaps the elements at two positions in every array
+		 */
+		void swap(int i, int j);
+	}
+
+	private ParallelSort() {
+	}
+
+	/**
+	 * Sorts a range of elements with a quicksort, not stable
+	 * @param data Arrays to sort
+	 * @param from Position of the first element
+	 * @param to Position after the last element
+	 */
+	public static void sort(Sortable data, int from, int to) {
+		int lo = from;
+		int hi = to - 1;
+		while (lo < hi) {
+			int pivot = (lo + hi) >>> 1;
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (data.compare(i, pivot) < 0) {
+					++i;
+				}
+				while (data.compare(j, pivot) > 0) {
+					--j;
+				}
+				if (i <= j) {
+					// The pivot is compared by position: follow it
+					if (pivot == i) {
+						pivot = j;
+					} else if (pivot == j) {
+						pivot = i;
+					}
+					data.swap(i++, j--);
+				}
+			}
+			// Recurse on the smaller side to bound the stack depth
+			if (j - lo < hi - i) {
+				sort(data, lo, j + 1);
+				lo = i;
+			} else {
+				sort(data, i, hi + 1);
+				hi = j;
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.vault;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.VaultStore;
+
+/**
+ * Non-blocking access to a {@link VaultEngine}: every operation returns at once with a future.
+ * Key derivations (unlock, key rotation) run on a pool sized to the processors, store access and encryption
+ * on a larger pool whose threads mostly wait for the database, so callers such as event loops never block.
+ * Failures, checked exceptions included, complete the futures exceptionally instead of being thrown.
+ * @author Robin Carozzani
+ */
+public class AsyncVault implements AutoCloseable {
+
+	/**
+	 * Default number of threads waiting for the store, overridden by the <code>pamaja.async.io</code> system property
+	 */
+	public static final int DEFAULT_IO_THREADS = 32;
+
+	/**
+	 * Performs one operation on the engine
+	 */
+	private interface Operation<T> {
+		T run(VaultEngine engine) throws Exception;
+	}
+
+	private interface Task<T> {
+		T run() throws Exception;
+	}
+
+	private final ExecutorService _kdf;
+	private final ExecutorService _io;
+	private final CompletableFuture<VaultEngine> _engine;
+
+	private AsyncVault(VaultStore store, char[] masterPassword) {
+		_kdf = newPool("pamaja-kdf", Runtime.getRuntime().availableProcessors());
+		_io = newPool("pamaja-io", Integer.getInteger("pamaja.async.io", DEFAULT_IO_THREADS).intValue());
+		_engine = supply(_kdf, () -> VaultEngine.open(store, masterPassword));
+	}
+
+	private static ExecutorService newPool(String name, int threads) {
+		AtomicInteger count = new AtomicInteger();
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+			Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+		// Idle threads go away, a quiet vault costs nothing
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	private static <T> CompletableFuture<T> supply(ExecutorService pool, Task<T> task) {
+		return CompletableFuture.supplyAsync(() -> {
+			try {
+				return task.run();
+			} catch (RuntimeException e) {
+				throw e;
+			} catch (Exception e) {
+				throw new CompletionException(e);
+			}
+		}, pool);
+	}
+
+	/**
+	 * Opens the vault of a directory, creating it if needed
+	 * @param dir Directory of the database files
+	 * @param masterPassword The master password, which must not be wiped before the returned future completes
+	 * @return Future completed with the unlocked vault
+	 */
+	public static CompletableFuture<AsyncVault> open(String dir, char[] masterPassword) {
+		return open(new DBHandler(dir), masterPassword);
+	}
+
+	/**
+	 * Opens a vault, creating it if needed
+	 * @param store Store of the vault, not connected yet and not used by anything else afterwards
+	 * @param masterPassword The master password, which must not be wiped before the returned future completes
+	 * @return Future completed with the unlocked vault
+	 */
+	public static CompletableFuture<AsyncVault> open(VaultStore store, char[] masterPassword) {
+		AsyncVault vault = new AsyncVault(store, masterPassword);
+		return vault._engine.handle((engine, e) -> {
+			if (e != null) {
+				vault.shutdown();
+				throw (e instanceof CompletionException) ? (CompletionException)e : new CompletionException(e);
+			}
+			return vault;
+		});
+	}
+
+	private <T> CompletableFuture<T> onEngine(ExecutorService pool, Operation<T> op) {
+		return _engine.thenCompose(engine -> {
+			try {
+				return supply(pool, () -> op.run(engine));
+			} catch (RejectedExecutionException e) {
+				CompletableFuture<T> closed = new CompletableFuture<T>();
+				closed.completeExceptionally(new IllegalStateException("Vault is closed"));
+				return closed;
+			}
+		});
+	}
+
+	/**
+	 * Reads and decrypts the password of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param arena Arena receiving the clear password, not used by anything else before the returned future completes
+	 * @return Future completed with the clear password, or <code>null</code> if the entry does not exist
+	 */
+	public CompletableFuture<Secret> getPassword(int serviceId, int loginId, SecureArena arena) {
+		return onEngine(_io, engine -> engine.getPassword(serviceId, loginId, arena));
+	}
+
+	/**
+	 * Reads and decrypts the login of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return Future completed with the clear login, or <code>null</code> if the entry does not exist
+	 */
+	public CompletableFuture<byte[]> getLogin(int serviceId, int loginId) {
+		return onEngine(_io, engine -> engine.getLogin(serviceId, loginId));
+	}
+
+	/**
+	 * Stores a new entry
+	 * @param service Service associated to the password
+	 * @param login The clear login
+	 * @param password The clear password, which must not be wiped before the returned future completes
+	 * @return Future completed with the ID of the service of the new entry, exceptionally if it could not be stored
+	 */
+	public CompletableFuture<Integer> addEntry(String service, byte[] login, Secret password) {
+		return onEngine(_io, engine -> {
+			int serviceId = engine.addEntry(service, login, password);
+			if (serviceId < 0) {
+				throw new IllegalStateException("Could not store the entry of "+service);
+			}
+			return Integer.valueOf(serviceId);
+		});
+	}
+
+	/**
+	 * Replaces the password of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param newPassword The clear password, which must not be wiped before the returned future completes
+	 * @return Future completed once the password is stored, exceptionally if it could not be
+	 */
+	public CompletableFuture<Void> updatePassword(int serviceId, int loginId, Secret newPassword) {
+		return onEngine(_io, engine -> {
+			engine.updatePassword(serviceId, loginId, newPassword);
+			return null;
+		});
+	}
+
+	/**
+	 * Gets the registered services
+	 * @return Future completed with the list of services (<code>ID => name</code>), ordered by ID
+	 */
+	public CompletableFuture<Map<Integer, String>> getServices() {
+		return onEngine(_io, engine -> engine.getServices());
+	}
+
+	/**
+	 * Gets the IDs of the logins of a service
+	 * @param serviceId ID of the service
+	 * @return Future completed with the login IDs, in increasing order
+	 */
+	public CompletableFuture<int[]> getLoginIds(int serviceId) {
+		return onEngine(_io, engine -> engine.getLoginIds(serviceId));
+	}
+
+	/**
+	 * Replaces the encryption key and re-encrypts the vault. Writes wait for it to end, reads and the operations queued
+	 * behind them only for the swap of the key, see {@link VaultEngine#rotateKey(char[])}.
+	 * @param masterPassword The master password, which must not be wiped before the returned future completes
+	 * @return Future completed with the number of re-encrypted rows
+	 */
+	public CompletableFuture<Integer> rotateKey(char[] masterPassword) {
+		return onEngine(_kdf, engine -> Integer.valueOf(engine.rotateKey(masterPassword)));
+	}
+
+	/**
+	 * Closes the vault once running operations are over, then stops the threads.
+	 * Operations submitted afterwards fail.
+	 */
+	@Override
+	public void close() {
+		try {
+			_engine.join().close();
+		} catch (CompletionException e) {
+			// Never opened, nothing to close
+		} finally {
+			shutdown();
+		}
+	}
+
+	private void shutdown() {
+		_kdf.shutdown();
+		_io.shutdown();
+	}
+}
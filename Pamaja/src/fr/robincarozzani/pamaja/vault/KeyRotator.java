@@ -0,0 +1,222 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.vault;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.VaultTable;
+
+/**
+ * Rotates the master encryption key by re-encrypting the whole vault.
+ * Rows are re-encrypted in batches on a worker pool and committed to shadow tables along with a checkpoint,
+ * so an interrupted rotation resumes where it stopped. The original tables keep being readable with the
+ * current key until the last batch is committed, then the shadow tables and the new key are swapped in at once.
+ * The store refuses writes of entries until the rotation is over: a row changed after being re-encrypted would be reverted
+ * by the swap.
+ * @author Robin Carozzani
+ */
+public class KeyRotator {
+
+	/**
+	 * Default number of rows per batch
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private DBHandler _dbh;
+	private int _batchSize;
+	private int _threads;
+
+	/**
+	 * Constructs a KeyRotator
+	 * @param dbh Connected database
+	 * @param batchSize Number of rows re-encrypted and committed at once
+	 * @param threads Number of worker threads
+	 */
+	public KeyRotator(DBHandler dbh, int batchSize, int threads) {
+		_dbh = dbh;
+		_batchSize = batchSize;
+		_threads = threads;
+	}
+
+	/**
+	 * Constructs a KeyRotator with default batch size and one worker per processor
+	 * @param dbh Connected database
+	 */
+	public KeyRotator(DBHandler dbh) {
+		this(dbh, DEFAULT_BATCH_SIZE, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Checks if a rotation has been started and not finished
+	 * @return <code>true</code> if a rotation is pending
+	 */
+	public boolean isPending() {
+		return _dbh.getRotationKey() != null;
+	}
+
+	/**
+	 * Generates a new key and registers it as the target of a rotation
+	 * @param wrapKey Key protecting the master key (derived from the master password)
+	 * @param arena Arena receiving the new key
+	 * @return The new clear key, <code>null</code> if a rotation is already pending
+	 * @throws Exception
+	 */
+	public Secret begin(byte[] wrapKey, SecureArena arena) throws Exception {
+		byte[] newKey = Randgen.generateKey().getEncoded();
+		boolean begun = _dbh.beginKeyRotation(Ciphor.getInstance().encrypt(newKey, wrapKey));
+		Secret res = arena.moveIn(newKey);
+		if (!begun) {
+			res.wipe();
+			return null;
+		}
+		return res;
+	}
+
+	/**
+	 * Gets the target key of the pending rotation
+	 * @param wrapKey Key protecting the master key (derived from the master password)
+	 * @param arena Arena receiving the new key
+	 * @return The new clear key, <code>null</code> if no rotation is pending
+	 * @throws Exception
+	 */
+	public Secret pendingKey(byte[] wrapKey, SecureArena arena) throws Exception {
+		Ciph stored = _dbh.getRotationKey();
+		if (stored == null) {
+			return null;
+		}
+		return arena.moveIn(Ciphor.getInstance().decrypt(stored, wrapKey));
+	}
+
+	/**
+	 * Re-encrypts every row not yet processed and completes the rotation, see {@link #reencrypt(Secret, Secret)} and
+	 * {@link #finish(Secret, Secret)}
+	 * @param oldKey Current clear key
+	 * @param newKey Clear key returned by {@link #begin(byte[], SecureArena)} or {@link #pendingKey(byte[], SecureArena)}
+	 * @return Number of rows re-encrypted by this call
+	 * @throws Exception
+	 */
+	public int run(Secret oldKey, Secret newKey) throws Exception {
+		int done = reencrypt(oldKey, newKey);
+		return done + finish(oldKey, newKey);
+	}
+
+	/**
+	 * Re-encrypts every row not yet processed into the shadow tables. The vault stays readable with the current key.
+	 * @param oldKey Current clear key
+	 * @param newKey Clear key returned by {@link #begin(byte[], SecureArena)} or {@link #pendingKey(byte[], SecureArena)}
+	 * @return Number of rows re-encrypted by this call
+	 * @throws Exception
+	 */
+	public int reencrypt(Secret oldKey, Secret newKey) throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(_threads, r -> {
+			Thread t = new Thread(r, "pamaja-rotation");
+			t.setDaemon(true);
+			return t;
+		});
+		int done = 0;
+		try {
+			for (int shard=0 ; shard<_dbh.getShardCount() ; ++shard) {
+				if (_dbh.isRotating(shard)) {
+					for (VaultTable table : VaultTable.values()) {
+						done += rotateTable(pool, shard, table, oldKey, newKey);
+					}
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+		return done;
+	}
+
+	/**
+	 * Completes the rotation once every row has been re-encrypted, the integrity trees being checked with the current key
+	 * and built again with the new one, then opens them. The vault must not be read meanwhile.
+	 * @param oldKey Current clear key
+	 * @param newKey Clear key returned by {@link #begin(byte[], SecureArena)} or {@link #pendingKey(byte[], SecureArena)}
+	 * @return Number of rows left by {@link #reencrypt(Secret, Secret)} and re-encrypted by this call
+	 * @throws Exception
+	 */
+	public int finish(Secret oldKey, Secret newKey) throws Exception {
+		int done = 0;
+		while (!_dbh.finishKeyRotation(oldKey, newKey)) {
+			done += reencrypt(oldKey, newKey);
+		}
+		_dbh.openIntegrity(newKey);
+		return done;
+	}
+
+	private int rotateTable(ExecutorService pool, int shard, VaultTable table, Secret oldKey, Secret newKey) throws Exception {
+		int done = 0;
+		int checkpoint = _dbh.getRotationCheckpoint(shard, table);
+		Map<Integer, Ciph> batch = _dbh.getRowsAfter(shard, table, checkpoint, _batchSize);
+		while (!batch.isEmpty()) {
+			List<Integer> ids = new ArrayList<Integer>(batch.keySet());
+			int chunk = (ids.size() + _threads - 1) / _threads;
+			List<Future<Map<Integer, Ciph>>> parts = new ArrayList<Future<Map<Integer, Ciph>>>();
+			for (int from=0 ; from<ids.size() ; from+=chunk) {
+				List<Integer> part = ids.subList(from, Math.min(from + chunk, ids.size()));
+				Map<Integer, Ciph> source = batch;
+				parts.add(pool.submit(() -> reencrypt(part, source, oldKey, newKey)));
+			}
+			Map<Integer, Ciph> rotated = new LinkedHashMap<Integer, Ciph>();
+			for (Future<Map<Integer, Ciph>> part : parts) {
+				try {
+					rotated.putAll(part.get());
+				} catch (ExecutionException e) {
+					throw (e.getCause() instanceof Exception) ? (Exception)e.getCause() : e;
+				}
+			}
+			checkpoint = ids.get(ids.size() - 1).intValue();
+			if (!_dbh.commitRotationBatch(shard, table, rotated, checkpoint)) {
+				throw new IllegalStateException("Could not commit rotation batch of " + table.getName());
+			}
+			done += rotated.size();
+			batch = _dbh.getRowsAfter(shard, table, checkpoint, _batchSize);
+		}
+		return done;
+	}
+
+	private static Map<Integer, Ciph> reencrypt(List<Integer> ids, Map<Integer, Ciph> rows, Secret oldKey, Secret newKey) throws Exception {
+		Ciphor c = Ciphor.getInstance();
+		int maxLength = 0;
+		for (Integer id : ids) {
+			maxLength = Math.max(maxLength, Ciphor.plainLength(rows.get(id)));
+		}
+		Map<Integer, Ciph> res = new LinkedHashMap<Integer, Ciph>();
+		try (SecureArena arena = new SecureArena(maxLength)) {
+			for (Integer id : ids) {
+				Secret clear = c.decrypt(rows.get(id), oldKey, arena);
+				res.put(id, c.encrypt(clear, newKey));
+				arena.reset();
+			}
+		}
+		return res;
+	}
+}
@@ -0,0 +1,73 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.vault;
+
+import fr.robincarozzani.pamaja.crypto.Totp;
+
+/**
+ * One-time code of an entry, valid until the end of its period
+ * @author Robin Carozzani
+ */
+public class TotpCode {
+
+	private final int _serviceId;
+	private final int _loginId;
+	private final int _code;
+	private final int _digits;
+	private final long _validUntil;
+
+	TotpCode(int serviceId, int loginId, int code, int digits, long validUntil) {
+		_serviceId = serviceId;
+		_loginId = loginId;
+		_code = code;
+		_digits = digits;
+		_validUntil = validUntil;
+	}
+
+	/**
+	 * @return ID of the service of the entry
+	 */
+	public int getServiceId() {
+		return _serviceId;
+	}
+
+	/**
+	 * @return ID of the login of the entry
+	 */
+	public int getLoginId() {
+		return _loginId;
+	}
+
+	/**
+	 * @return Code, with its leading zeros
+	 */
+	public String getCode() {
+		return Totp.format(_code, _digits);
+	}
+
+	/**
+	 * @return Time the code expires at, in seconds since 1970-01-01T00:00:00Z
+	 */
+	public long getValidUntil() {
+		return _validUntil;
+	}
+
+	@Override
+	public String toString() {
+		return getCode();
+	}
+}
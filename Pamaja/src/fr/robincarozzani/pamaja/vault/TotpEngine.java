@@ -0,0 +1,237 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.vault;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.crypto.Totp;
+import fr.robincarozzani.pamaja.db.DBHandler;
+
+/**
+ * Computes the one-time codes of the entries having a TOTP secret.
+ * The secrets are read and decrypted once, the first time a code is asked for, then kept in a secure arena
+ * for the session: asking for the codes of the whole vault touches neither the database nor the vault key.
+ * The codes of large vaults are computed in parallel, each worker reusing its own {@link javax.crypto.Mac}.
+ * Secrets must only be changed through the engine, so the cache stays up to date.
+ * @author Robin Carozzani
+ */
+public class TotpEngine implements AutoCloseable {
+
+	private static final int PARALLEL_THRESHOLD = 4096;
+
+	private final DBHandler _dbh;
+	private final int _threads;
+	private SecureArena _arena = null;
+	// Packed secrets by entry (service ID in the high half, login ID in the low half), null until loaded
+	private Map<Long, Secret> _secrets = null;
+	private ExecutorService _pool = null;
+
+	/**
+	 * Constructs a TotpEngine
+	 * @param dbh Connected database
+	 * @param threads Number of threads computing the codes of large vaults
+	 */
+	public TotpEngine(DBHandler dbh, int threads) {
+		_dbh = dbh;
+		_threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Constructs a TotpEngine with one thread per processor
+	 * @param dbh Connected database
+	 */
+	public TotpEngine(DBHandler dbh) {
+		this(dbh, Runtime.getRuntime().availableProcessors());
+	}
+
+	private static long entry(int serviceId, int loginId) {
+		return ((long)serviceId << 32) | (loginId & 0xFFFFFFFFL);
+	}
+
+	private void load(Secret key) throws GeneralSecurityException {
+		if (_secrets != null) {
+			return;
+		}
+		List<int[]> ids = new ArrayList<int[]>();
+		List<Ciph> encrypted = new ArrayList<Ciph>();
+		_dbh.forEachTotpSecret((serviceId, loginId, secret) -> {
+			ids.add(new int[] {serviceId, loginId});
+			encrypted.add(secret);
+		});
+		int size = 0;
+		for (Ciph secret : encrypted) {
+			size += Ciphor.plainLength(secret);
+		}
+		// Room for the secrets added during the session
+		_arena = new SecureArena(size + size / 4 + 4096);
+		_secrets = new TreeMap<Long, Secret>();
+		Ciphor c = Ciphor.getInstance();
+		for (int i=0 ; i<ids.size() ; ++i) {
+			_secrets.put(Long.valueOf(entry(ids.get(i)[0], ids.get(i)[1])), c.decrypt(encrypted.get(i), key, _arena));
+		}
+	}
+
+	/**
+	 * Stores the TOTP secret of an entry, replacing the previous one
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param packed Secret packed by {@link Totp#pack(Totp.Algorithm, int, int, byte[], SecureArena)}
+	 * @param key The vault key
+	 * @return <code>false</code> if the entry does not exist or the secret could not be stored
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized boolean setSecret(int serviceId, int loginId, Secret packed, Secret key) throws GeneralSecurityException {
+		if (!_dbh.setTotpSecret(serviceId, loginId, Ciphor.getInstance().encrypt(packed, key))) {
+			return false;
+		}
+		if (_secrets != null) {
+			if (_arena.remaining() < packed.length()) {
+				// Loaded again with more room on the next request
+				clear();
+			} else {
+				byte[] copy = new byte[packed.length()];
+				packed.copyTo(0, copy, 0, copy.length);
+				Secret old = _secrets.put(Long.valueOf(entry(serviceId, loginId)), _arena.moveIn(copy));
+				if (old != null) {
+					old.wipe();
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Computes the code of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param epochSeconds Time, in seconds since 1970-01-01T00:00:00Z
+	 * @param key The vault key, only used the first time
+	 * @return Code of the entry, <code>null</code> if it has no TOTP secret
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized TotpCode getCode(int serviceId, int loginId, long epochSeconds, Secret key) throws GeneralSecurityException {
+		load(key);
+		Secret packed = _secrets.get(Long.valueOf(entry(serviceId, loginId)));
+		return (packed != null) ? code(serviceId, loginId, packed, epochSeconds) : null;
+	}
+
+	/**
+	 * Computes the codes of every entry having a TOTP secret
+	 * @param epochSeconds Time, in seconds since 1970-01-01T00:00:00Z
+	 * @param key The vault key, only used the first time
+	 * @return Codes, ordered by service then login
+	 * @throws GeneralSecurityException
+	 */
+	public synchronized List<TotpCode> getCodes(long epochSeconds, Secret key) throws GeneralSecurityException {
+		load(key);
+		int count = _secrets.size();
+		long[] entries = new long[count];
+		Secret[] secrets = new Secret[count];
+		int n = 0;
+		for (Map.Entry<Long, Secret> e : _secrets.entrySet()) {
+			entries[n] = e.getKey().longValue();
+			secrets[n++] = e.getValue();
+		}
+		TotpCode[] codes = new TotpCode[count];
+		if ((count < PARALLEL_THRESHOLD) || (_threads == 1)) {
+			compute(entries, secrets, codes, 0, count, epochSeconds);
+		} else {
+			if (_pool == null) {
+				_pool = Executors.newFixedThreadPool(_threads, r -> {
+					Thread th = new Thread(r, "pamaja-totp");
+					th.setDaemon(true);
+					return th;
+				});
+			}
+			List<Future<Void>> parts = new ArrayList<Future<Void>>(_threads);
+			int chunk = (count + _threads - 1) / _threads;
+			for (int from=0 ; from<count ; from+=chunk) {
+				int start = from;
+				int end = Math.min(count, from + chunk);
+				parts.add(_pool.submit(() -> {
+					compute(entries, secrets, codes, start, end, epochSeconds);
+					return null;
+				}));
+			}
+			try {
+				for (Future<Void> part : parts) {
+					part.get();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalStateException(e);
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof GeneralSecurityException) {
+					throw (GeneralSecurityException)e.getCause();
+				}
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+		List<TotpCode> res = new ArrayList<TotpCode>(count);
+		for (TotpCode code : codes) {
+			res.add(code);
+		}
+		return res;
+	}
+
+	private static void compute(long[] entries, Secret[] secrets, TotpCode[] codes, int from, int to, long epochSeconds) throws GeneralSecurityException {
+		for (int i=from ; i<to ; ++i) {
+			codes[i] = code((int)(entries[i] >>> 32), (int)entries[i], secrets[i], epochSeconds);
+		}
+	}
+
+	private static TotpCode code(int serviceId, int loginId, Secret packed, long epochSeconds) throws GeneralSecurityException {
+		int period = Totp.periodOf(packed);
+		return new TotpCode(serviceId, loginId, Totp.code(packed, epochSeconds), Totp.digitsOf(packed),
+				(epochSeconds / period + 1) * period);
+	}
+
+	/**
+	 * Wipes the decrypted secrets, they are read again on the next request
+	 */
+	public synchronized void clear() {
+		if (_arena != null) {
+			_arena.close();
+			_arena = null;
+		}
+		_secrets = null;
+	}
+
+	/**
+	 * Wipes the decrypted secrets and stops the workers
+	 */
+	@Override
+	public synchronized void close() {
+		clear();
+		if (_pool != null) {
+			_pool.shutdown();
+			_pool = null;
+		}
+	}
+}
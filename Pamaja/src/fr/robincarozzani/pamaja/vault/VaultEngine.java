@@ -0,0 +1,585 @@
+/*  This file is part of Pamaja.
+*
+*  Pamaja is free software: you can redistribute it and/or modify
+*  it under the terms of the GNU General Public License as published by
+*  the Free Software Foundation, either version 3 of the License, or
+*  (at your option) any later version.
+*
+*  Pamaja is distributed in the hope that it will be useful,
+*  but WITHOUT ANY WARRANTY; without even the implied warranty of
+*  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+*  GNU General Public License for more details.
+*
+*  You should have received a copy of the GNU General Public License
+*  along with Pamaja.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package fr.robincarozzani.pamaja.vault;
+
+import java.security.GeneralSecurityException;
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import fr.robincarozzani.pamaja.crypto.Ciph;
+import fr.robincarozzani.pamaja.crypto.Ciphor;
+import fr.robincarozzani.pamaja.crypto.Hash;
+import fr.robincarozzani.pamaja.crypto.Hashor;
+import fr.robincarozzani.pamaja.crypto.Randgen;
+import fr.robincarozzani.pamaja.crypto.Secret;
+import fr.robincarozzani.pamaja.crypto.SecureArena;
+import fr.robincarozzani.pamaja.db.DBHandler;
+import fr.robincarozzani.pamaja.db.RecordStore;
+import fr.robincarozzani.pamaja.db.ScrubReport;
+import fr.robincarozzani.pamaja.db.VaultStore;
+import fr.robincarozzani.pamaja.utils.IntMap;
+import fr.robincarozzani.pamaja.utils.Pair;
+
+/**
+ * Unlocked vault usable as a library, from any number of threads.
+ * Each engine owns its store and its key, so several vaults can be open at once.
+ * Reads and writes of a service are ordered by a lock picked among a fixed set from the service ID,
+ * so work on different services runs in parallel. A key rotation holds writes while it re-encrypts the vault, which stays
+ * readable, then waits for running operations and holds new ones until the vault and the key have been swapped.
+ * @author Robin Carozzani
+ */
+public class VaultEngine implements AutoCloseable {
+
+	private static final int KEY_ARENA_SIZE = 64;
+	private static final int STRIPES = 64;
+
+	private final VaultStore _store;
+	private final byte[] _origSalt;
+	private final Hash _storedPwd;
+	// Held shared by every operation, exclusively to swap the key
+	private final ReentrantReadWriteLock _keyLock = new ReentrantReadWriteLock();
+	// Held shared by every write, before the key, exclusively while the vault is re-encrypted
+	private final ReentrantReadWriteLock _writeGate = new ReentrantReadWriteLock();
+	private final ReentrantReadWriteLock[] _stripes = new ReentrantReadWriteLock[STRIPES];
+	private final TotpEngine _totp;
+	private SecureArena _keyArena;
+	private Secret _key;
+	private boolean _closed = false;
+
+	private VaultEngine(VaultStore store, byte[] origSalt, Hash storedPwd, SecureArena keyArena, Secret key) {
+		_store = store;
+		_origSalt = origSalt;
+		_storedPwd = storedPwd;
+		_keyArena = keyArena;
+		_key = key;
+		_totp = (store instanceof DBHandler) ? new TotpEngine((DBHandler)store) : null;
+		for (int i=0 ; i<STRIPES ; ++i) {
+			_stripes[i] = new ReentrantReadWriteLock();
+		}
+	}
+
+	/**
+	 * Opens the vault of a directory, creating it if needed
+	 * @param dir Directory of the database files
+	 * @param masterPassword The master password, left untouched so the caller can wipe it
+	 * @return The unlocked vault
+	 * @throws GeneralSecurityException If the master password is wrong
+	 * @throws Exception
+	 */
+	public static VaultEngine open(String dir, char[] masterPassword) throws Exception {
+		return open(new DBHandler(dir), masterPassword);
+	}
+
+	/**
+	 * Opens a vault, creating it if needed. An interrupted key rotation is completed first.
+	 * @param store Store of the vault, not connected yet and not used by anything else afterwards
+	 * @param masterPassword The master password, left untouched so the caller can wipe it
+	 * @return The unlocked vault
+	 * @throws GeneralSecurityException If the master password is wrong
+	 * @throws Exception
+	 */
+	public static VaultEngine open(VaultStore store, char[] masterPassword) throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		store.connect();
+		if (!store.dbVersionIsOk()) {
+			store.disconnect();
+			throw new IllegalStateException("Wrong version of database");
+		}
+		Hashor h = Hashor.getInstance();
+		Ciphor c = Ciphor.getInstance();
+		SecureArena keyArena = new SecureArena(KEY_ARENA_SIZE);
+		try {
+			if (!store.isInit()) {
+				Hash hashed = h.generatePasswordHash(masterPassword);
+				char[] hashedChars = hashed.toChars();
+				Hash storedPwd = h.generatePasswordHash(hashedChars);
+				Arrays.fill(hashedChars, '\0');
+				byte[] clearKey = Randgen.generateKey().getEncoded();
+				Ciph storedKey = c.encrypt(clearKey, hashed.getHashedMessage());
+				Arrays.fill(hashed.getHashedMessage(), (byte)0);
+				store.insertMasterPassword(storedPwd, hashed.getSalt());
+				store.insertMasterKey(storedKey);
+				store.setInit();
+				VaultEngine engine = new VaultEngine(store, hashed.getSalt(), storedPwd, keyArena, keyArena.moveIn(clearKey));
+				if (store instanceof DBHandler) {
+					// Nothing to trust yet in a new vault
+					((DBHandler)store).enableIntegrity(engine._key);
+				}
+				return engine;
+			}
+			Pair<byte[], Hash> pwdAndSalt = store.getStoredPasswordAndSalt();
+			Hash hashedIn = h.hash(masterPassword, pwdAndSalt.first(), 64);
+			try {
+				if (!h.checkHash(hashedIn, pwdAndSalt.second())) {
+					throw new GeneralSecurityException("Wrong master password");
+				}
+				VaultEngine engine = new VaultEngine(store, pwdAndSalt.first(), pwdAndSalt.second(), keyArena,
+						keyArena.moveIn(c.decrypt(store.getStoredKey(), hashedIn.getHashedMessage())));
+				if ((store instanceof DBHandler) && (((DBHandler)store).getRotationKey() != null)) {
+					engine.rotate(hashedIn.getHashedMessage());
+				}
+				engine.openIntegrity();
+				return engine;
+			} finally {
+				// The salt is shared with the stored password, only the hash is wiped
+				Arrays.fill(hashedIn.getHashedMessage(), (byte)0);
+			}
+		} catch (Exception e) {
+			keyArena.close();
+			store.disconnect();
+			throw e;
+		}
+	}
+
+	private void openIntegrity() {
+		if (_store instanceof DBHandler) {
+			((DBHandler)_store).openIntegrity(_key);
+		}
+	}
+
+	private ReentrantReadWriteLock stripe(int serviceId) {
+		return _stripes[Math.floorMod(serviceId, STRIPES)];
+	}
+
+	private void lockKey() {
+		_keyLock.readLock().lock();
+		if (_closed) {
+			_keyLock.readLock().unlock();
+			throw new IllegalStateException("Vault is closed");
+		}
+	}
+
+	private void lockWrite() {
+		_writeGate.readLock().lock();
+		try {
+			lockKey();
+		} catch (IllegalStateException e) {
+			_writeGate.readLock().unlock();
+			throw e;
+		}
+	}
+
+	private void unlockWrite() {
+		_keyLock.readLock().unlock();
+		_writeGate.readLock().unlock();
+	}
+
+	/**
+	 * Stores a new entry, under the service of that name, which is created if there is none yet
+	 * @param service Service associated to the password
+	 * @param login The clear login
+	 * @param password The clear password
+	 * @return ID of the service of the new entry, <code>-1</code> if it could not be stored
+	 * @throws GeneralSecurityException
+	 */
+	public int addEntry(String service, byte[] login, Secret password) throws GeneralSecurityException {
+		lockWrite();
+		try {
+			Pair<Ciph, Ciph> entry = Ciphor.getInstance().encryptEntry(login, password, _key);
+			// A service created by this insertion cannot be read before it
+			int serviceId = _store.getServiceId(service);
+			if (serviceId < 0) {
+				return _store.insertPassword(service, entry.first(), entry.second());
+			}
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.writeLock().lock();
+			try {
+				return _store.insertPassword(service, entry.first(), entry.second());
+			} finally {
+				stripe.writeLock().unlock();
+			}
+		} finally {
+			unlockWrite();
+		}
+	}
+
+	/**
+	 * Replaces the password of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param newPassword The clear password
+	 * @throws GeneralSecurityException
+	 * @throws IllegalStateException If the password could not be stored
+	 */
+	public void updatePassword(int serviceId, int loginId, Secret newPassword) throws GeneralSecurityException {
+		lockWrite();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.writeLock().lock();
+			try {
+				_store.updatePassword(serviceId, loginId, Ciphor.getInstance().encrypt(newPassword, _key));
+			} finally {
+				stripe.writeLock().unlock();
+			}
+		} finally {
+			unlockWrite();
+		}
+	}
+
+	/**
+	 * Reads and decrypts the password of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param arena Arena receiving the clear password
+	 * @return The clear password, <code>null</code> if the entry does not exist
+	 * @throws GeneralSecurityException
+	 */
+	public Secret getPassword(int serviceId, int loginId, SecureArena arena) throws GeneralSecurityException {
+		lockKey();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.readLock().lock();
+			try {
+				Ciph password = _store.getPassword(serviceId, loginId);
+				return (password != null) ? Ciphor.getInstance().decrypt(password, _key, arena) : null;
+			} finally {
+				stripe.readLock().unlock();
+			}
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads and decrypts the login of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return The clear login, <code>null</code> if the entry does not exist
+	 * @throws GeneralSecurityException
+	 */
+	public byte[] getLogin(int serviceId, int loginId) throws GeneralSecurityException {
+		lockKey();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.readLock().lock();
+			try {
+				Ciph login = _store.getLogin(serviceId, loginId);
+				return (login != null) ? Ciphor.getInstance().decrypt(login, _key) : null;
+			} finally {
+				stripe.readLock().unlock();
+			}
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the registered services in a compact map, see {@link VaultStore#listServices()}
+	 * @return Services (<code>ID => name</code>), ordered by ID
+	 */
+	public IntMap<String> listServices() {
+		lockKey();
+		try {
+			return _store.listServices();
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the registered services
+	 * @return List of services (<code>ID => name</code>), ordered by ID
+	 */
+	public Map<Integer, String> getServices() {
+		lockKey();
+		try {
+			return _store.getServices();
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Gets the IDs of the logins of a service
+	 * @param serviceId ID of the service
+	 * @return Login IDs, in increasing order
+	 */
+	public int[] getLoginIds(int serviceId) {
+		lockKey();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.readLock().lock();
+			try {
+				return _store.getLoginIds(serviceId);
+			} finally {
+				stripe.readLock().unlock();
+			}
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	private TotpEngine totp() {
+		if (_totp == null) {
+			throw new UnsupportedOperationException("TOTP secrets are not supported by this store");
+		}
+		return _totp;
+	}
+
+	/**
+	 * Stores the TOTP secret of an entry, replacing the previous one
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param packed Secret packed by {@link fr.robincarozzani.pamaja.crypto.Totp}
+	 * @return <code>false</code> if the entry does not exist or the secret could not be stored
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedOperationException If the store does not support TOTP secrets
+	 */
+	public boolean setTotpSecret(int serviceId, int loginId, Secret packed) throws GeneralSecurityException {
+		TotpEngine totp = totp();
+		lockWrite();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.writeLock().lock();
+			try {
+				return totp.setSecret(serviceId, loginId, packed, _key);
+			} finally {
+				stripe.writeLock().unlock();
+			}
+		} finally {
+			unlockWrite();
+		}
+	}
+
+	/**
+	 * Computes the current one-time code of an entry
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @return Code of the entry, <code>null</code> if it has no TOTP secret
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedOperationException If the store does not support TOTP secrets
+	 */
+	public TotpCode getTotpCode(int serviceId, int loginId) throws GeneralSecurityException {
+		TotpEngine totp = totp();
+		lockKey();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.readLock().lock();
+			try {
+				return totp.getCode(serviceId, loginId, System.currentTimeMillis() / 1000, _key);
+			} finally {
+				stripe.readLock().unlock();
+			}
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes the one-time codes of every entry having a TOTP secret, at a given time
+	 * @param epochSeconds Time, in seconds since 1970-01-01T00:00:00Z
+	 * @return Codes, ordered by service then login
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedOperationException If the store does not support TOTP secrets
+	 */
+	public List<TotpCode> getTotpCodes(long epochSeconds) throws GeneralSecurityException {
+		TotpEngine totp = totp();
+		lockKey();
+		try {
+			return totp.getCodes(epochSeconds, _key);
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Computes the current one-time codes of every entry having a TOTP secret
+	 * @return Codes, ordered by service then login
+	 * @throws GeneralSecurityException
+	 * @throws UnsupportedOperationException If the store does not support TOTP secrets
+	 */
+	public List<TotpCode> getTotpCodes() throws GeneralSecurityException {
+		return getTotpCodes(System.currentTimeMillis() / 1000);
+	}
+
+	/**
+	 * Protects the vault with integrity trees built from its current entries, which are trusted as they are.
+	 * Only needed by vaults created before integrity trees, or whose trees have been dropped.
+	 * Holds new operations until the trees are built.
+	 * @return Number of entries tagged, <code>-1</code> if the vault could not be protected
+	 * @throws UnsupportedOperationException If the store has no integrity tree
+	 */
+	public int enableIntegrity() {
+		if (!(_store instanceof DBHandler)) {
+			throw new UnsupportedOperationException("Integrity checks are not supported by this store");
+		}
+		_keyLock.writeLock().lock();
+		try {
+			if (_closed) {
+				throw new IllegalStateException("Vault is closed");
+			}
+			return ((DBHandler)_store).enableIntegrity(_key);
+		} finally {
+			_keyLock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Checks the entries of the vault against their MACs and the integrity trees
+	 * @param changedOnly <code>true</code> to check only the entries written since their last check
+	 * @return Problems found
+	 * @throws UnsupportedOperationException If the store has no integrity tree
+	 */
+	public ScrubReport scrub(boolean changedOnly) {
+		if (!(_store instanceof DBHandler)) {
+			throw new UnsupportedOperationException("Integrity checks are not supported by this store");
+		}
+		lockKey();
+		try {
+			return ((DBHandler)_store).scrub(changedOnly, Runtime.getRuntime().availableProcessors());
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads and decrypts a whole entry, in one pass when its login and password have been encrypted together
+	 * @param serviceId ID of the service of the entry
+	 * @param loginId ID of the login of the entry
+	 * @param arena Arena receiving the clear password
+	 * @return The clear login and the clear password, <code>null</code> if the entry does not exist
+	 * @throws GeneralSecurityException
+	 */
+	public Pair<byte[], Secret> getEntry(int serviceId, int loginId, SecureArena arena) throws GeneralSecurityException {
+		lockKey();
+		try {
+			ReentrantReadWriteLock stripe = stripe(serviceId);
+			stripe.readLock().lock();
+			try {
+				Pair<Ciph, Ciph> entry = _store.getEntry(serviceId, loginId);
+				return (entry != null) ? Ciphor.getInstance().decryptEntry(entry.first(), entry.second(), _key, arena) : null;
+			} finally {
+				stripe.readLock().unlock();
+			}
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies the vault into an empty record store, see {@link RecordStore#importFrom(VaultStore, Secret)}.
+	 * TOTP secrets are not copied.
+	 * @param target Connected record store
+	 * @return Number of entries copied, <code>-1</code> if the copy failed
+	 */
+	public int copyTo(RecordStore target) {
+		lockKey();
+		try {
+			return target.importFrom(_store, _key);
+		} finally {
+			_keyLock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replaces the encryption key and re-encrypts the vault.
+	 * Writes wait for the rotation to end, reads only for the swap of the re-encrypted rows and of the key.
+	 * @param masterPassword The master password, left untouched so the caller can wipe it
+	 * @return Number of re-encrypted rows
+	 * @throws GeneralSecurityException If the master password is wrong
+	 * @throws UnsupportedOperationException If the store does not support key rotation
+	 * @throws Exception
+	 */
+	public int rotateKey(char[] masterPassword) throws Exception {
+		if (!(_store instanceof DBHandler)) {
+			throw new UnsupportedOperationException("Key rotation is not supported by this store");
+		}
+		Hash hashed = Hashor.getInstance().hash(masterPassword, _origSalt, 64);
+		try {
+			if (!Hashor.getInstance().checkHash(hashed, _storedPwd)) {
+				throw new GeneralSecurityException("Wrong master password");
+			}
+			_writeGate.writeLock().lock();
+			try {
+				return rotate(hashed.getHashedMessage());
+			} finally {
+				_writeGate.writeLock().unlock();
+			}
+		} finally {
+			Arrays.fill(hashed.getHashedMessage(), (byte)0);
+		}
+	}
+
+	/**
+	 * Re-encrypts the vault under the shared key lock, then swaps the rows and the key under the exclusive one.
+	 * Writes must be held by the caller.
+	 */
+	private int rotate(byte[] wrapKey) throws Exception {
+		KeyRotator rotator = new KeyRotator((DBHandler)_store);
+		SecureArena newArena = new SecureArena(KEY_ARENA_SIZE);
+		try {
+			Secret newKey;
+			int count;
+			lockKey();
+			try {
+				newKey = rotator.pendingKey(wrapKey, newArena);
+				if (newKey == null) {
+					newKey = rotator.begin(wrapKey, newArena);
+				}
+				if (newKey == null) {
+					throw new IllegalStateException("Could not begin the key rotation");
+				}
+				count = rotator.reencrypt(_key, newKey);
+			} finally {
+				_keyLock.readLock().unlock();
+			}
+			_keyLock.writeLock().lock();
+			try {
+				if (_closed) {
+					throw new IllegalStateException("Vault is closed");
+				}
+				count += rotator.finish(_key, newKey);
+				_keyArena.close();
+				_keyArena = newArena;
+				_key = newKey;
+				return count;
+			} finally {
+				_keyLock.writeLock().unlock();
+			}
+		} catch (Exception e) {
+			newArena.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the store and wipes the key, once running operations are over
+	 */
+	@Override
+	public void close() {
+		_keyLock.writeLock().lock();
+		try {
+			if (!_closed) {
+				_closed = true;
+				if (_totp != null) {
+					_totp.close();
+				}
+				_store.disconnect();
+				_keyArena.close();
+				_storedPwd.clear();
+				Arrays.fill(_origSalt, (byte)0);
+			}
+		} finally {
+			_keyLock.writeLock().unlock();
+		}
+	}
+}